@@ -7,9 +7,9 @@
  */
 package com.barchart.http.handlers;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,14 +29,14 @@ public abstract class CancellableRequestHandler extends RequestHandlerBase {
 	private static final Logger log = LoggerFactory
 			.getLogger(CancellableRequestHandler.class);
 
-	private final RequestAttributeKey<CancelFutureList> ATTR_CANCEL_TASKS =
-			new RequestAttributeKey<CancelFutureList>("cancel-tasks");
+	private static final RequestAttributeKey<CancellationScope> ATTR_CANCEL_SCOPE =
+			new RequestAttributeKey<CancellationScope>("cancel-scope");
 
 	@Override
 	public void onAbort(final ServerRequest request,
 			final ServerResponse response) {
 
-		cancelTasks(request);
+		cancelTasks(request, new CancellationException("Client disconnected"));
 
 	}
 
@@ -48,55 +48,78 @@ public abstract class CancellableRequestHandler extends RequestHandlerBase {
 				"Request encountered an uncaught exception, cancelling tasks",
 				exception);
 
-		cancelTasks(request);
+		cancelTasks(request, exception);
 
 	}
 
-	protected synchronized void cancelTasks(final ServerRequest request) {
-
-		synchronized (ATTR_CANCEL_TASKS) {
-
-			final List<Future<?>> tasks = request.attr(ATTR_CANCEL_TASKS).get();
+	@Override
+	public void onComplete(final ServerRequest request,
+			final ServerResponse response) {
 
-			if (tasks != null) {
-				for (final Future<?> future : tasks) {
-					if (!future.isDone()) {
-						try {
-							future.cancel(true);
-						} catch (final Exception e) {
-							// Swallow cancellation exceptions
-							log.debug("Uncaught exception while cancelling", e);
-						}
-					}
-				}
-			}
+		final CancellationScope scope = request.attr(ATTR_CANCEL_SCOPE).get();
 
+		if (scope != null) {
+			scope.clear();
 		}
 
 	}
 
-	protected synchronized void cancelOnAbort(final ServerRequest request,
-			final ServerResponse response, final Future<?> future) {
+	/**
+	 * Get the cancellation scope for a request, creating it if needed.
+	 */
+	protected CancellationScope cancellationScope(final ServerRequest request) {
 
-		synchronized (ATTR_CANCEL_TASKS) {
+		final RequestAttribute<CancellationScope> attr =
+				request.attr(ATTR_CANCEL_SCOPE);
 
-			final RequestAttribute<CancelFutureList> attr =
-					request.attr(ATTR_CANCEL_TASKS);
-			CancelFutureList tasks = attr.get();
+		CancellationScope scope = attr.get();
 
-			if (tasks == null) {
-				tasks = new CancelFutureList();
-				attr.set(tasks);
+		if (scope == null) {
+			scope = new CancellationScope();
+			final CancellationScope existing = attr.setIfAbsent(scope);
+			if (existing != null) {
+				scope = existing;
 			}
+		}
+
+		return scope;
+
+	}
+
+	protected void cancelTasks(final ServerRequest request) {
+		cancelTasks(request, new CancellationException("Request cancelled"));
+	}
 
-			tasks.add(future);
+	protected void cancelTasks(final ServerRequest request,
+			final Throwable cause) {
 
+		final CancellationScope scope = request.attr(ATTR_CANCEL_SCOPE).get();
+
+		if (scope != null) {
+			scope.cancel(cause);
 		}
 
 	}
 
-	private class CancelFutureList extends ArrayList<Future<?>> {
-		private static final long serialVersionUID = 1L;
+	protected void cancelOnAbort(final ServerRequest request,
+			final ServerResponse response, final Future<?> future) {
+		cancellationScope(request).add(future);
+	}
+
+	/**
+	 * Run a hook if the request is aborted, fails or times out.
+	 */
+	protected void onCancel(final ServerRequest request, final Runnable hook) {
+		cancellationScope(request).onCancel(hook);
+	}
+
+	/**
+	 * Cancel registered tasks if the request is not completed in time. The
+	 * response itself is left to the handler.
+	 */
+	protected void cancelAfter(final ServerRequest request, final long time,
+			final TimeUnit unit) {
+		cancellationScope(request).timeout(time, unit);
 	}
 
 }
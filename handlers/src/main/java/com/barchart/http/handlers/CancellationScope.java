@@ -0,0 +1,250 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.handlers;
+
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.Promise;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Work to cancel if a request is aborted, fails or times out. Registration is
+ * a lock-free push onto an append-only list, so concurrent registrations for
+ * different requests never contend and registrations for the same request only
+ * retry a compare-and-set.
+ */
+public class CancellationScope {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(CancellationScope.class);
+
+	/* Head once cancelled, later registrations are cancelled immediately */
+	private static final Node CANCELLED = new Node(null, null);
+
+	private final AtomicReference<Node> head = new AtomicReference<Node>();
+
+	private final AtomicReference<Throwable> cause =
+			new AtomicReference<Throwable>();
+
+	private volatile Timeout timeout = null;
+
+	/**
+	 * Cancel a future with this scope. Netty promises are failed with the
+	 * cancellation cause, other futures are cancelled with interruption.
+	 * 
+	 * @return False if the scope was already cancelled, in which case the
+	 *         future is cancelled immediately
+	 */
+	public boolean add(final Future<?> future) {
+		return push(future);
+	}
+
+	/**
+	 * Run a hook when this scope is cancelled. The hook can get the reason
+	 * from cause().
+	 * 
+	 * @return False if the scope was already cancelled, in which case the hook
+	 *         is run immediately
+	 */
+	public boolean onCancel(final Runnable hook) {
+		return push(hook);
+	}
+
+	private boolean push(final Object target) {
+
+		final Node node = new Node(target, null);
+
+		while (true) {
+
+			final Node current = head.get();
+
+			if (current == CANCELLED) {
+				cancel(target);
+				return false;
+			}
+
+			node.next = current;
+
+			if (head.compareAndSet(current, node)) {
+				return true;
+			}
+
+		}
+
+	}
+
+	/**
+	 * Cancel this scope if it is not completed within the given time.
+	 */
+	public void timeout(final long time, final TimeUnit unit) {
+
+		final Timeout previous = timeout;
+
+		timeout = Timers.TIMER.newTimeout(new TimerTask() {
+			@Override
+			public void run(final Timeout t) {
+				cancel(new CancellationException("Request timed out after "
+						+ time + " " + unit.toString().toLowerCase()));
+			}
+		}, time, unit);
+
+		if (previous != null) {
+			previous.cancel();
+		}
+
+	}
+
+	/**
+	 * Cancel all registered work, most recent first.
+	 * 
+	 * @return False if this scope was already cancelled
+	 */
+	public boolean cancel(final Throwable cause_) {
+
+		// First reason wins, set before any hooks run
+		cause.compareAndSet(null, cause_);
+
+		Node node = head.getAndSet(CANCELLED);
+
+		if (node == CANCELLED) {
+			return false;
+		}
+
+		stopTimeout();
+
+		while (node != null) {
+			cancel(node.target);
+			node = node.next;
+		}
+
+		return true;
+
+	}
+
+	/**
+	 * Release registered work without cancelling it, once the request has
+	 * completed normally.
+	 */
+	public void clear() {
+
+		stopTimeout();
+
+		while (true) {
+
+			final Node current = head.get();
+
+			if (current == null || current == CANCELLED
+					|| head.compareAndSet(current, null)) {
+				return;
+			}
+
+		}
+
+	}
+
+	/**
+	 * Check if this scope has been cancelled.
+	 */
+	public boolean isCancelled() {
+		return head.get() == CANCELLED;
+	}
+
+	/**
+	 * The reason this scope was cancelled, or null if it was not.
+	 */
+	public Throwable cause() {
+		return cause.get();
+	}
+
+	private void stopTimeout() {
+
+		final Timeout t = timeout;
+
+		if (t != null) {
+			t.cancel();
+		}
+
+	}
+
+	private void cancel(final Object target) {
+
+		try {
+
+			if (target instanceof Promise) {
+
+				final CancellationException e =
+						new CancellationException("Request cancelled");
+				e.initCause(cause.get());
+
+				((Promise<?>) target).tryFailure(e);
+
+			} else if (target instanceof Future) {
+
+				final Future<?> future = (Future<?>) target;
+
+				if (!future.isDone()) {
+					future.cancel(true);
+				}
+
+			} else {
+
+				((Runnable) target).run();
+
+			}
+
+		} catch (final Exception e) {
+			// Swallow cancellation exceptions
+			log.debug("Uncaught exception while cancelling", e);
+		}
+
+	}
+
+	private static final class Node {
+
+		private final Object target;
+		private Node next;
+
+		Node(final Object target_, final Node next_) {
+			target = target_;
+			next = next_;
+		}
+
+	}
+
+	/**
+	 * Lazily started timer for request timeouts.
+	 */
+	private static final class Timers {
+
+		static final Timer TIMER = new HashedWheelTimer(
+				new TimerThreadFactory(), 10, TimeUnit.MILLISECONDS);
+
+	}
+
+	private static final class TimerThreadFactory implements ThreadFactory {
+
+		@Override
+		public Thread newThread(final Runnable r) {
+			final Thread thread = new Thread(r, "barchart-http-timeout");
+			thread.setDaemon(true);
+			return thread;
+		}
+
+	}
+
+}
@@ -0,0 +1,33 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.handlers;
+
+import java.io.IOException;
+
+import com.barchart.http.request.FilterChain;
+import com.barchart.http.request.RequestFilter;
+import com.barchart.http.request.ServerRequest;
+import com.barchart.http.request.ServerResponse;
+
+/**
+ * Enables generated ETags and 304 Not Modified responses for the routes it is
+ * registered on, i.e. config.filter("/quotes", new ETagFilter()). The body is
+ * still rendered and hashed; handlers that can derive an ETag from a resource
+ * version should call ServerResponse.checkETag() instead to skip rendering.
+ */
+public class ETagFilter implements RequestFilter {
+
+	@Override
+	public boolean filter(final ServerRequest request,
+			final ServerResponse response, final FilterChain chain)
+			throws IOException {
+		response.setAutoETag(true);
+		return true;
+	}
+
+}
@@ -0,0 +1,759 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.handlers;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.Promise;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.barchart.http.request.AsyncRequestHandler;
+import com.barchart.http.request.RequestAttributeKey;
+import com.barchart.http.request.ServerRequest;
+import com.barchart.http.request.ServerResponse;
+
+/**
+ * Reverse proxy to a set of upstream HTTP/1.1 servers.
+ *
+ * Upstream connections are opened on the event loop of the inbound connection
+ * and kept alive in a pool per event loop per upstream, so a proxied request
+ * never changes threads. Requests go to the healthy upstream with the fewest
+ * outstanding requests on the current event loop; upstreams are ejected for a
+ * while after consecutive connection failures or 502/503/504 responses.
+ * Request bodies are forwarded without copying and response bodies are
+ * streamed to the client as chunks as they arrive.
+ *
+ * The request URI is forwarded unchanged, along with the Host header and
+ * X-Forwarded-For / X-Forwarded-Proto headers. Requires NIO event loops.
+ */
+public class ProxyRequestHandler extends AsyncRequestHandler<HttpResponse> {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(ProxyRequestHandler.class);
+
+	private static final RequestAttributeKey<Exchange> ATTR_EXCHANGE =
+			new RequestAttributeKey<Exchange>("proxy-exchange");
+
+	/* Connection-specific headers not forwarded (RFC 2616 13.5.1) */
+	private static final String[] HOP_HEADERS = {
+			HttpHeaders.Names.CONNECTION, "Keep-Alive",
+			HttpHeaders.Names.PROXY_AUTHENTICATE,
+			HttpHeaders.Names.PROXY_AUTHORIZATION, HttpHeaders.Names.TE,
+			HttpHeaders.Names.TRAILER, HttpHeaders.Names.TRANSFER_ENCODING,
+			HttpHeaders.Names.UPGRADE
+	};
+
+	private final Upstream[] upstreams;
+
+	private final ConcurrentMap<EventExecutor, LoopPool> pools =
+			new ConcurrentHashMap<EventExecutor, LoopPool>();
+
+	private int maxIdle = 16;
+	private int maxFailures = 3;
+	private long ejectNanos = TimeUnit.SECONDS.toNanos(10);
+	private int connectTimeout = 5000;
+
+	public ProxyRequestHandler(final SocketAddress... upstreams_) {
+		this(Arrays.asList(upstreams_));
+	}
+
+	public ProxyRequestHandler(final List<? extends SocketAddress> upstreams_) {
+
+		if (upstreams_.isEmpty()) {
+			throw new IllegalArgumentException("No upstream servers");
+		}
+
+		upstreams = new Upstream[upstreams_.size()];
+
+		for (int i = 0; i < upstreams.length; i++) {
+			upstreams[i] = new Upstream(i, upstreams_.get(i));
+		}
+
+	}
+
+	/**
+	 * Set the maximum idle keep-alive connections per upstream per event loop.
+	 * Defaults to 16.
+	 */
+	public ProxyRequestHandler maxIdleConnections(final int max) {
+		maxIdle = max;
+		return this;
+	}
+
+	/**
+	 * Eject an upstream for the given time after a number of consecutive
+	 * failures. Defaults to 3 failures, 10 seconds.
+	 */
+	public ProxyRequestHandler ejection(final int failures, final long time,
+			final TimeUnit unit) {
+		maxFailures = failures;
+		ejectNanos = unit.toNanos(time);
+		return this;
+	}
+
+	/**
+	 * Set the upstream connect timeout. Defaults to 5 seconds.
+	 */
+	public ProxyRequestHandler connectTimeout(final long time,
+			final TimeUnit unit) {
+		connectTimeout = (int) unit.toMillis(time);
+		return this;
+	}
+
+	@Override
+	public Future<HttpResponse> handle(final ServerRequest request,
+			final EventExecutor executor) {
+
+		final LoopPool pool = pool((EventLoop) executor);
+		final Upstream upstream = pool.select();
+
+		final Exchange exchange =
+				new Exchange(pool, upstream, executor
+						.<HttpResponse> newPromise());
+
+		request.attr(ATTR_EXCHANGE).set(exchange);
+
+		pool.acquire(exchange, upstreamRequest(request, upstream));
+
+		return exchange.head;
+
+	}
+
+	@Override
+	public void respond(final ServerRequest request,
+			final ServerResponse response, final HttpResponse head)
+			throws IOException {
+
+		response.setStatus(head.getStatus());
+
+		for (final Map.Entry<String, String> header : head.headers()) {
+			response.headers().add(header.getKey(), header.getValue());
+		}
+
+		strip(response.headers());
+		response.headers().remove(HttpHeaders.Names.CONTENT_LENGTH);
+
+		// Generated error response
+		if (head instanceof FullHttpResponse) {
+			response.write(((FullHttpResponse) head).content());
+			return;
+		}
+
+		response.setChunkedEncoding(true);
+
+		final Exchange exchange = request.attr(ATTR_EXCHANGE).get();
+
+		if (exchange != null && exchange.stream(response)) {
+			response.suspend();
+		}
+
+	}
+
+	@Override
+	public void onAbort(final ServerRequest request,
+			final ServerResponse response) {
+
+		final Exchange exchange = request.attr(ATTR_EXCHANGE).getAndSet(null);
+
+		if (exchange != null) {
+			exchange.abort();
+		}
+
+	}
+
+	@Override
+	public void onComplete(final ServerRequest request,
+			final ServerResponse response) {
+
+		final Exchange exchange = request.attr(ATTR_EXCHANGE).getAndSet(null);
+
+		// Stop writing to the response once it is recycled
+		if (exchange != null) {
+			exchange.detach();
+		}
+
+	}
+
+	private LoopPool pool(final EventLoop loop) {
+
+		LoopPool pool = pools.get(loop);
+
+		if (pool == null) {
+			pool = new LoopPool(loop);
+			final LoopPool existing = pools.putIfAbsent(loop, pool);
+			if (existing != null) {
+				pool = existing;
+			}
+		}
+
+		return pool;
+
+	}
+
+	private static FullHttpRequest upstreamRequest(
+			final ServerRequest request, final Upstream upstream) {
+
+		// Forward the aggregated body without copying
+		final ByteBuf body = request.getContent().duplicate().retain();
+
+		final FullHttpRequest forward =
+				new DefaultFullHttpRequest(HttpVersion.HTTP_1_1,
+						request.getMethod(), request.getUri(), body);
+
+		final HttpHeaders headers = forward.headers();
+
+		headers.set(request.headers());
+		strip(headers);
+
+		// Body is already complete, an upstream 100 Continue is not wanted
+		headers.remove(HttpHeaders.Names.EXPECT);
+
+		if (!headers.contains(HttpHeaders.Names.HOST)) {
+			headers.set(HttpHeaders.Names.HOST, upstream.host);
+		}
+
+		final InetSocketAddress remote = request.getRemoteAddress();
+
+		if (remote != null) {
+			final String forwarded = headers.get("X-Forwarded-For");
+			final String client = remote.getAddress().getHostAddress();
+			headers.set("X-Forwarded-For", forwarded == null ? client
+					: forwarded + ", " + client);
+		}
+
+		headers.set("X-Forwarded-Proto", request.getScheme());
+		HttpHeaders.setContentLength(forward, body.readableBytes());
+
+		return forward;
+
+	}
+
+	private static void strip(final HttpHeaders headers) {
+
+		// Headers named in Connection are connection-specific too
+		for (final String connection : headers
+				.getAll(HttpHeaders.Names.CONNECTION)) {
+			for (final String name : connection.split(",")) {
+				headers.remove(name.trim());
+			}
+		}
+
+		for (final String name : HOP_HEADERS) {
+			headers.remove(name);
+		}
+
+	}
+
+	private static FullHttpResponse error(final HttpResponseStatus status) {
+		return new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status,
+				Unpooled.copiedBuffer(status.toString(), CharsetUtil.UTF_8));
+	}
+
+	/**
+	 * Upstream server and its shared health state.
+	 */
+	private class Upstream {
+
+		private final int index;
+		private final SocketAddress address;
+		private final String host;
+
+		private final AtomicInteger failures = new AtomicInteger();
+		private volatile long ejectedUntil = 0;
+
+		Upstream(final int index_, final SocketAddress address_) {
+
+			index = index_;
+			address = address_;
+
+			if (address instanceof InetSocketAddress) {
+				final InetSocketAddress inet = (InetSocketAddress) address;
+				host = inet.getHostString() + ":" + inet.getPort();
+			} else {
+				host = address.toString();
+			}
+
+		}
+
+		boolean healthy(final long now) {
+			return ejectedUntil - now <= 0;
+		}
+
+		void success() {
+			if (failures.get() != 0) {
+				failures.set(0);
+			}
+		}
+
+		void failure() {
+			if (failures.incrementAndGet() >= maxFailures) {
+				failures.set(0);
+				ejectedUntil = System.nanoTime() + ejectNanos;
+				log.warn("Ejecting upstream {} for {}ms", address,
+						TimeUnit.NANOSECONDS.toMillis(ejectNanos));
+			}
+		}
+
+	}
+
+	/**
+	 * Upstream connections and outstanding request counts for one event loop.
+	 * Only accessed from that event loop.
+	 */
+	private class LoopPool {
+
+		private final Bootstrap bootstrap;
+		private final int[] outstanding = new int[upstreams.length];
+		private final ArrayDeque<Channel>[] idle;
+
+		private int next = 0;
+
+		LoopPool(final EventLoop loop) {
+
+			bootstrap = new Bootstrap().group(loop) //
+					.channel(NioSocketChannel.class) //
+					.option(ChannelOption.TCP_NODELAY, true) //
+					.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeout);
+
+			@SuppressWarnings("unchecked")
+			final ArrayDeque<Channel>[] deques =
+					(ArrayDeque<Channel>[]) new ArrayDeque<?>[upstreams.length];
+			idle = deques;
+
+			for (int i = 0; i < idle.length; i++) {
+				idle[i] = new ArrayDeque<Channel>();
+			}
+
+		}
+
+		/**
+		 * Least outstanding requests among healthy upstreams, rotating the
+		 * starting point to spread ties.
+		 */
+		Upstream select() {
+
+			final long now = System.nanoTime();
+			final int start = next++ % upstreams.length;
+
+			Upstream best = null;
+			Upstream fallback = null;
+
+			for (int i = 0; i < upstreams.length; i++) {
+
+				final Upstream upstream =
+						upstreams[(start + i) % upstreams.length];
+
+				if (fallback == null
+						|| outstanding[upstream.index] < outstanding[fallback.index]) {
+					fallback = upstream;
+				}
+
+				if (upstream.healthy(now)
+						&& (best == null || outstanding[upstream.index] < outstanding[best.index])) {
+					best = upstream;
+				}
+
+			}
+
+			// All ejected, keep trying rather than fail everything
+			return best != null ? best : fallback;
+
+		}
+
+		void acquire(final Exchange exchange, final FullHttpRequest request) {
+
+			outstanding[exchange.upstream.index]++;
+
+			final ArrayDeque<Channel> channels = idle[exchange.upstream.index];
+
+			Channel channel;
+
+			while ((channel = channels.pollLast()) != null) {
+				if (channel.isActive()) {
+					exchange.send(channel, request);
+					return;
+				}
+			}
+
+			bootstrap.handler(new ChannelInitializer<Channel>() {
+				@Override
+				protected void initChannel(final Channel ch) {
+					ch.pipeline().addLast(new HttpClientCodec(),
+							new ClientHandler());
+				}
+			}).connect(exchange.upstream.address)
+					.addListener(new ChannelFutureListener() {
+						@Override
+						public void operationComplete(final ChannelFuture future) {
+							if (future.isSuccess()) {
+								exchange.send(future.channel(), request);
+							} else {
+								request.release();
+								exchange.connectFailed(future.cause());
+							}
+						}
+					});
+
+		}
+
+		void release(final Exchange exchange, final Channel channel,
+				final boolean keepAlive) {
+
+			outstanding[exchange.upstream.index]--;
+
+			if (channel == null) {
+				return;
+			}
+
+			final ArrayDeque<Channel> channels = idle[exchange.upstream.index];
+
+			if (keepAlive && channel.isActive() && channels.size() < maxIdle) {
+				channel.pipeline().get(ClientHandler.class).exchange = null;
+				channels.addLast(channel);
+			} else {
+				channel.close();
+			}
+
+		}
+
+	}
+
+	/**
+	 * A single proxied request. Only accessed from the event loop.
+	 */
+	private class Exchange implements
+			GenericFutureListener<Future<HttpResponse>> {
+
+		private final LoopPool pool;
+		private final Upstream upstream;
+		private final Promise<HttpResponse> head;
+
+		private Channel channel = null;
+		private ServerResponse response = null;
+		private boolean keepAlive = true;
+		private boolean done = false;
+		private boolean aborted = false;
+
+		/* Body received before the client response was attached */
+		private List<ByteBuf> pending = null;
+
+		Exchange(final LoopPool pool_, final Upstream upstream_,
+				final Promise<HttpResponse> head_) {
+			pool = pool_;
+			upstream = upstream_;
+			head = head_;
+			head.addListener(this);
+		}
+
+		/**
+		 * Cancelled by the server on client abort or async timeout.
+		 */
+		@Override
+		public void operationComplete(final Future<HttpResponse> future) {
+			if (future.isCancelled()) {
+				abort();
+			}
+		}
+
+		void send(final Channel channel_, final FullHttpRequest request) {
+
+			// Aborted while connecting, the connection is still clean
+			if (done) {
+				request.release();
+				pool.idle[upstream.index].addLast(channel_);
+				return;
+			}
+
+			channel = channel_;
+			channel.pipeline().get(ClientHandler.class).exchange = this;
+
+			channel.writeAndFlush(request).addListener(
+					ChannelFutureListener.CLOSE_ON_FAILURE);
+
+		}
+
+		void connectFailed(final Throwable cause) {
+
+			if (done) {
+				return;
+			}
+
+			log.debug("Could not connect to " + upstream.address, cause);
+
+			done = true;
+			upstream.failure();
+			pool.release(this, null, false);
+
+			head.trySuccess(error(HttpResponseStatus.BAD_GATEWAY));
+
+		}
+
+		void onHead(final HttpResponse message) {
+
+			keepAlive = HttpHeaders.isKeepAlive(message);
+
+			final int status = message.getStatus().code();
+
+			if (status == 502 || status == 503 || status == 504) {
+				upstream.failure();
+			} else {
+				upstream.success();
+			}
+
+			head.trySuccess(message);
+
+		}
+
+		/**
+		 * Attach the client response for streaming.
+		 *
+		 * @return False if the upstream response is already complete
+		 */
+		boolean stream(final ServerResponse response_) throws IOException {
+
+			if (aborted) {
+				return false;
+			}
+
+			if (pending != null) {
+				for (final ByteBuf data : pending) {
+					response_.write(data);
+				}
+				pending = null;
+			}
+
+			// Complete already, finished by the server
+			if (done) {
+				return false;
+			}
+
+			response = response_;
+
+			return true;
+
+		}
+
+		void onContent(final HttpContent content) throws IOException {
+
+			final ByteBuf data = content.content();
+
+			if (aborted || !data.isReadable()) {
+				// Discard
+			} else if (response != null) {
+				if (!response.isFinished()) {
+					response.write(data.retain());
+				}
+			} else {
+				if (pending == null) {
+					pending = new ArrayList<ByteBuf>(2);
+				}
+				pending.add(data.retain());
+			}
+
+			if (content instanceof LastHttpContent) {
+
+				done = true;
+
+				if (response != null && !response.isFinished()) {
+					response.finish();
+				}
+
+				response = null;
+
+				pool.release(this, channel, keepAlive);
+
+			}
+
+		}
+
+		/**
+		 * Client response completed or recycled.
+		 */
+		void detach() {
+
+			response = null;
+
+			if (pending != null) {
+				for (final ByteBuf data : pending) {
+					data.release();
+				}
+				pending = null;
+			}
+
+		}
+
+		/**
+		 * Upstream connection closed.
+		 */
+		void onClosed() {
+
+			if (done) {
+				return;
+			}
+
+			done = true;
+			upstream.failure();
+			pool.release(this, null, false);
+
+			if (head.trySuccess(error(HttpResponseStatus.BAD_GATEWAY))) {
+				return;
+			}
+
+			// Truncated body, cannot be recovered once streaming; close so
+			// the client does not reuse the connection
+			log.warn("Upstream {} closed during response", upstream.address);
+
+			if (response != null && !response.isFinished()) {
+				try {
+					response.finish().addListener(ChannelFutureListener.CLOSE);
+				} catch (final IOException e) {
+					log.debug("Could not finish response", e);
+				}
+			}
+
+			response = null;
+
+		}
+
+		/**
+		 * Client went away, drop the upstream connection if it is mid-response.
+		 */
+		void abort() {
+
+			aborted = true;
+			detach();
+
+			if (done) {
+				return;
+			}
+
+			done = true;
+
+			if (channel != null) {
+				channel.pipeline().get(ClientHandler.class).exchange = null;
+				pool.release(this, channel, false);
+			} else {
+				// Still connecting, send() returns the connection to the pool
+				pool.release(this, null, false);
+			}
+
+		}
+
+	}
+
+	/**
+	 * Routes upstream response messages to the current exchange.
+	 */
+	private class ClientHandler extends ChannelInboundHandlerAdapter {
+
+		private Exchange exchange = null;
+
+		/* Reading a 1xx interim response, until its empty last content */
+		private boolean interim = false;
+
+		@Override
+		public void channelRead(final ChannelHandlerContext ctx,
+				final Object msg) throws Exception {
+
+			try {
+
+				if (exchange == null) {
+					return;
+				}
+
+				if (msg instanceof HttpResponse) {
+
+					final int status =
+							((HttpResponse) msg).getStatus().code();
+
+					// Interim responses precede the final head, 101 is final
+					interim = status >= 100 && status < 200 && status != 101;
+
+					if (!interim) {
+						exchange.onHead((HttpResponse) msg);
+					}
+
+				}
+
+				if (msg instanceof HttpContent) {
+
+					if (interim) {
+						if (msg instanceof LastHttpContent) {
+							interim = false;
+						}
+					} else if (exchange != null) {
+						exchange.onContent((HttpContent) msg);
+					}
+
+				}
+
+			} finally {
+				ReferenceCountUtil.release(msg);
+			}
+
+		}
+
+		@Override
+		public void channelInactive(final ChannelHandlerContext ctx) {
+			if (exchange != null) {
+				exchange.onClosed();
+				exchange = null;
+			}
+		}
+
+		@Override
+		public void exceptionCaught(final ChannelHandlerContext ctx,
+				final Throwable cause) {
+			log.debug("Upstream connection error", cause);
+			ctx.close();
+		}
+
+	}
+
+}
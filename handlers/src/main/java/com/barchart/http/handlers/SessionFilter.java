@@ -0,0 +1,76 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.handlers;
+
+import io.netty.handler.codec.http.Cookie;
+
+import java.io.IOException;
+
+import com.barchart.http.request.FilterChain;
+import com.barchart.http.request.RequestAttributeKey;
+import com.barchart.http.request.RequestFilter;
+import com.barchart.http.request.ServerRequest;
+import com.barchart.http.request.ServerResponse;
+
+/**
+ * Looks up the session named by a request cookie in a SessionStore and
+ * attaches it to the request, so handlers read it with
+ * request.attr(SessionFilter.SESSION).get(). Requests without a live session
+ * pass through with the attributes unset.
+ */
+public class SessionFilter implements RequestFilter {
+
+	/**
+	 * The session id from the cookie, if the session exists.
+	 */
+	public static final RequestAttributeKey<String> SESSION_ID =
+			new RequestAttributeKey<String>("session.id");
+
+	/**
+	 * A copy of the session value.
+	 */
+	public static final RequestAttributeKey<byte[]> SESSION =
+			new RequestAttributeKey<byte[]>("session");
+
+	private final SessionStore store;
+	private final String cookie;
+
+	public SessionFilter(final SessionStore store_, final String cookie_) {
+		store = store_;
+		cookie = cookie_;
+	}
+
+	@Override
+	public boolean filter(final ServerRequest request,
+			final ServerResponse response, final FilterChain chain)
+			throws IOException {
+
+		final Cookie c = request.getCookie(cookie);
+
+		if (c != null && c.getValue().length() > 0) {
+
+			try {
+
+				final byte[] session = store.get(c.getValue());
+
+				if (session != null) {
+					request.attr(SESSION_ID).set(c.getValue());
+					request.attr(SESSION).set(session);
+				}
+
+			} catch (final IllegalArgumentException e) {
+				// Id longer than any stored, no session
+			}
+
+		}
+
+		return true;
+
+	}
+
+}
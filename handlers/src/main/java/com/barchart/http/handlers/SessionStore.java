@@ -0,0 +1,801 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.handlers;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Session store that keeps its entries in off-heap memory, so millions of
+ * sessions add nothing to the garbage collected heap. Each lock stripe owns a
+ * fixed number of value slabs and an open-addressed index over them, both in
+ * direct buffers allocated up front.
+ * </p>
+ *
+ * <p>
+ * Session ids are compared as Latin-1 bytes, which covers cookie values.
+ * Entries expire after the TTL since their last put() or get(); expired
+ * entries are dropped on access and by sweep(), which can be scheduled in the
+ * background with sweeper(). Values are copied in and out, so the store never
+ * hands out references to its memory.
+ * </p>
+ */
+public class SessionStore implements Closeable {
+
+	private static final int MAGIC = 0x42485353; // "BHSS"
+	private static final int VERSION = 1;
+
+	/* Index slot: int hash, int slab reference */
+	private static final int EMPTY = 0;
+	private static final int TOMBSTONE = -1;
+
+	/* Slab layout, a zero expiry marks a free slab */
+	private static final int EXPIRES = 0;
+	private static final int HASH = 8;
+	private static final int VALUE_LENGTH = 12;
+	private static final int NEXT_FREE = 12;
+	private static final int KEY_LENGTH = 16;
+	private static final int KEY = 20;
+
+	private final Stripe[] stripes;
+	private final int stripeShift;
+
+	private final int maxKeySize;
+	private final int maxValueSize;
+
+	private volatile long ttl = TimeUnit.MINUTES.toMillis(30);
+
+	private ScheduledFuture<?> sweeper = null;
+
+	/**
+	 * Create a store for the given number of sessions of up to maxValueSize
+	 * bytes each, with session ids of up to 64 characters and 16 lock
+	 * stripes.
+	 */
+	public SessionStore(final int capacity, final int maxValueSize) {
+		this(capacity, 64, maxValueSize, 16);
+	}
+
+	/**
+	 * Create a store for the given number of sessions. All memory is
+	 * allocated here: about capacity * (maxKeySize + maxValueSize + 36)
+	 * bytes. The stripe count is rounded up to a power of two.
+	 */
+	public SessionStore(final int capacity, final int maxKeySize_,
+			final int maxValueSize_, final int stripeCount) {
+
+		if (capacity <= 0 || maxKeySize_ <= 0 || maxValueSize_ < 0
+				|| stripeCount <= 0) {
+			throw new IllegalArgumentException("Invalid session store size");
+		}
+
+		maxKeySize = maxKeySize_;
+		maxValueSize = maxValueSize_;
+
+		int count = 1;
+		while (count < stripeCount) {
+			count <<= 1;
+		}
+
+		stripes = new Stripe[count];
+		stripeShift = 32 - Integer.numberOfTrailingZeros(count);
+
+		final int slabSize = (KEY + maxKeySize + maxValueSize + 7) & ~7;
+		final int perStripe = (capacity + count - 1) / count;
+
+		if ((long) perStripe * slabSize > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException(
+					"Stripe too large, use more stripes");
+		}
+
+		for (int i = 0; i < count; i++) {
+			stripes[i] = new Stripe(perStripe, slabSize);
+		}
+
+	}
+
+	/**
+	 * Set the session time to live since last access. Defaults to 30 minutes.
+	 */
+	public SessionStore ttl(final long time, final TimeUnit unit) {
+		ttl = unit.toMillis(time);
+		return this;
+	}
+
+	/**
+	 * Sweep expired sessions periodically on the given executor, i.e. an
+	 * event loop group, until the store is closed.
+	 */
+	public synchronized SessionStore sweeper(
+			final ScheduledExecutorService executor, final long period,
+			final TimeUnit unit) {
+
+		if (sweeper != null) {
+			sweeper.cancel(false);
+		}
+
+		sweeper = executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				sweep();
+			}
+		}, period, period, unit);
+
+		return this;
+
+	}
+
+	/**
+	 * Get a copy of a session's value, extending its expiry.
+	 *
+	 * @return The value, or null if there is no live session with this id
+	 */
+	public byte[] get(final String id) {
+
+		final int hash = hash(id);
+
+		return stripe(hash).get(id, hash, System.currentTimeMillis(), ttl);
+
+	}
+
+	/**
+	 * Append a session's value to the given buffer, extending its expiry.
+	 *
+	 * @return False if there is no live session with this id
+	 */
+	public boolean get(final String id, final ByteBuf out) {
+
+		final int hash = hash(id);
+
+		return stripe(hash).read(id, hash, System.currentTimeMillis(), ttl,
+				out);
+
+	}
+
+	/**
+	 * Store a session's value, replacing any existing value.
+	 *
+	 * @return False if the value is too large or the store is full
+	 */
+	public boolean put(final String id, final byte[] value) {
+		return put(id, Unpooled.wrappedBuffer(value));
+	}
+
+	/**
+	 * Store a session's value from the readable bytes of the buffer, which is
+	 * not consumed, replacing any existing value.
+	 *
+	 * @return False if the value is too large or the store is full
+	 */
+	public boolean put(final String id, final ByteBuf value) {
+		return put(id, value, System.currentTimeMillis() + ttl);
+	}
+
+	/**
+	 * Extend a session's expiry without reading it.
+	 *
+	 * @return False if there is no live session with this id
+	 */
+	public boolean touch(final String id) {
+
+		final int hash = hash(id);
+
+		return stripe(hash).touch(id, hash, System.currentTimeMillis(), ttl);
+
+	}
+
+	/**
+	 * Remove a session.
+	 *
+	 * @return False if there was no session with this id
+	 */
+	public boolean remove(final String id) {
+
+		final int hash = hash(id);
+
+		return stripe(hash).remove(id, hash);
+
+	}
+
+	/**
+	 * The number of stored sessions, including expired sessions not yet
+	 * swept.
+	 */
+	public int size() {
+
+		int size = 0;
+
+		for (final Stripe stripe : stripes) {
+			size += stripe.size;
+		}
+
+		return size;
+
+	}
+
+	/**
+	 * Remove expired sessions, one stripe at a time.
+	 *
+	 * @return The number of sessions removed
+	 */
+	public int sweep() {
+
+		final long now = System.currentTimeMillis();
+
+		int removed = 0;
+
+		for (final Stripe stripe : stripes) {
+			removed += stripe.sweep(now);
+		}
+
+		return removed;
+
+	}
+
+	/**
+	 * Write all live sessions with their expiry times to a file, one stripe
+	 * at a time through a memory mapping. Sessions changed during the
+	 * snapshot may or may not be included.
+	 */
+	public void snapshot(final File file) throws IOException {
+
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+		try {
+
+			raf.setLength(0);
+
+			final FileChannel channel = raf.getChannel();
+			final long now = System.currentTimeMillis();
+
+			final MappedByteBuffer header =
+					channel.map(FileChannel.MapMode.READ_WRITE, 0, 12);
+
+			header.putInt(MAGIC).putInt(VERSION).putInt(stripes.length);
+
+			long position = 12;
+
+			for (final Stripe stripe : stripes) {
+				position = stripe.snapshot(channel, position, now);
+			}
+
+			header.force();
+
+		} finally {
+			raf.close();
+		}
+
+	}
+
+	/**
+	 * Load the unexpired sessions of a snapshot file into this store, which
+	 * may have a different stripe count than the one that wrote it.
+	 *
+	 * @return The number of sessions loaded
+	 */
+	public int load(final File file) throws IOException {
+
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+		try {
+
+			final FileChannel channel = raf.getChannel();
+			final long now = System.currentTimeMillis();
+
+			final MappedByteBuffer header =
+					channel.map(FileChannel.MapMode.READ_ONLY, 0, 12);
+
+			if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+				throw new IOException("Not a session snapshot: " + file);
+			}
+
+			final int sections = header.getInt();
+
+			long position = 12;
+			int loaded = 0;
+
+			for (int i = 0; i < sections; i++) {
+
+				final MappedByteBuffer section =
+						channel.map(FileChannel.MapMode.READ_ONLY, position, 8);
+
+				final int length = section.getInt();
+				final int count = section.getInt();
+
+				final ByteBuf records =
+						Unpooled.wrappedBuffer(channel.map(
+								FileChannel.MapMode.READ_ONLY, position + 8,
+								length));
+
+				for (int j = 0; j < count; j++) {
+
+					final long expires = records.readLong();
+					final String id =
+							records.readBytes(records.readInt()).toString(
+									CharsetUtil.ISO_8859_1);
+					final int size = records.readInt();
+
+					if (expires > now
+							&& put(id, records.slice(records.readerIndex(),
+									size), expires)) {
+						loaded++;
+					}
+
+					records.skipBytes(size);
+
+				}
+
+				position += 8 + length;
+
+			}
+
+			return loaded;
+
+		} finally {
+			raf.close();
+		}
+
+	}
+
+	/**
+	 * Stop the sweeper and free the store's memory. The store is empty
+	 * afterwards and rejects puts.
+	 */
+	@Override
+	public synchronized void close() {
+
+		if (sweeper != null) {
+			sweeper.cancel(false);
+			sweeper = null;
+		}
+
+		for (final Stripe stripe : stripes) {
+			stripe.release();
+		}
+
+	}
+
+	private boolean put(final String id, final ByteBuf value,
+			final long expires) {
+
+		if (value.readableBytes() > maxValueSize) {
+			return false;
+		}
+
+		final int hash = hash(id);
+
+		return stripe(hash).put(id, hash, value, expires);
+
+	}
+
+	private Stripe stripe(final int hash) {
+		return stripes[stripeShift == 32 ? 0 : hash >>> stripeShift];
+	}
+
+	private int hash(final String id) {
+
+		final int length = id.length();
+
+		if (length > maxKeySize) {
+			throw new IllegalArgumentException("Session id too long");
+		}
+
+		int h = 0;
+
+		for (int i = 0; i < length; i++) {
+			h = 31 * h + id.charAt(i);
+		}
+
+		h *= 0x9E3779B9;
+
+		return h ^ (h >>> 16);
+
+	}
+
+	/**
+	 * A lock stripe: a fixed pool of slabs with a free list, indexed by a
+	 * linear probing hash table twice the size of the pool.
+	 */
+	private final class Stripe {
+
+		private final int slabSize;
+		private final int capacity;
+		private final int mask;
+
+		private ByteBuf slabs;
+		private ByteBuf index;
+
+		private volatile int size = 0;
+		private int tombstones = 0;
+		private int free;
+
+		Stripe(final int capacity_, final int slabSize_) {
+
+			capacity = capacity_;
+			slabSize = slabSize_;
+
+			int table = 2;
+			while (table < capacity * 2) {
+				table <<= 1;
+			}
+
+			mask = table - 1;
+
+			slabs =
+					Unpooled.directBuffer(capacity * slabSize,
+							capacity * slabSize);
+			slabs.setZero(0, slabs.capacity());
+
+			index = Unpooled.directBuffer(table * 8, table * 8);
+			index.setZero(0, index.capacity());
+
+			// Thread the free list through the slabs
+			for (int i = 0; i < capacity; i++) {
+				slabs.setInt(i * slabSize + NEXT_FREE, i + 1 < capacity ? i + 1
+						: -1);
+			}
+
+			free = 0;
+
+		}
+
+		synchronized byte[] get(final String id, final int hash,
+				final long now, final long ttl) {
+
+			final int slab = live(id, hash, now, ttl);
+
+			if (slab == -1) {
+				return null;
+			}
+
+			final byte[] value = new byte[slabs.getInt(slab + VALUE_LENGTH)];
+			slabs.getBytes(slab + KEY + slabs.getInt(slab + KEY_LENGTH), value);
+
+			return value;
+
+		}
+
+		synchronized boolean read(final String id, final int hash,
+				final long now, final long ttl, final ByteBuf out) {
+
+			final int slab = live(id, hash, now, ttl);
+
+			if (slab == -1) {
+				return false;
+			}
+
+			out.writeBytes(slabs, slab + KEY + slabs.getInt(slab + KEY_LENGTH),
+					slabs.getInt(slab + VALUE_LENGTH));
+
+			return true;
+
+		}
+
+		synchronized boolean put(final String id, final int hash,
+				final ByteBuf value, final long expires) {
+
+			if (index == null) {
+				return false;
+			}
+
+			int slot = find(id, hash);
+			int slab;
+
+			if (slot != -1) {
+
+				slab = slab(slot);
+
+			} else {
+
+				if (free == -1) {
+					sweep(System.currentTimeMillis());
+				}
+
+				if (free == -1) {
+					return false;
+				}
+
+				slab = free * slabSize;
+				free = slabs.getInt(slab + NEXT_FREE);
+
+				slabs.setInt(slab + HASH, hash);
+				slabs.setInt(slab + KEY_LENGTH, id.length());
+
+				for (int i = 0; i < id.length(); i++) {
+					slabs.setByte(slab + KEY + i, id.charAt(i));
+				}
+
+				insert(hash, slab / slabSize + 1);
+
+				size++;
+
+				compact();
+
+			}
+
+			final int length = value.readableBytes();
+
+			slabs.setLong(slab + EXPIRES, expires);
+			slabs.setInt(slab + VALUE_LENGTH, length);
+			slabs.setBytes(slab + KEY + id.length(), value,
+					value.readerIndex(), length);
+
+			return true;
+
+		}
+
+		synchronized boolean touch(final String id, final int hash,
+				final long now, final long ttl) {
+			return live(id, hash, now, ttl) != -1;
+		}
+
+		synchronized boolean remove(final String id, final int hash) {
+
+			final int slot = find(id, hash);
+
+			if (slot == -1) {
+				return false;
+			}
+
+			delete(slot);
+			compact();
+
+			return true;
+
+		}
+
+		synchronized int sweep(final long now) {
+
+			if (index == null) {
+				return 0;
+			}
+
+			int removed = 0;
+
+			for (int slot = 0; slot <= mask; slot++) {
+
+				final int ref = index.getInt(slot * 8 + 4);
+
+				if (ref > 0
+						&& slabs.getLong((ref - 1) * slabSize + EXPIRES) <= now) {
+					delete(slot);
+					removed++;
+				}
+
+			}
+
+			compact();
+
+			return removed;
+
+		}
+
+		/**
+		 * Write this stripe's section: int length, int count, then each live
+		 * session as long expiry, int id length, id, int value length, value.
+		 */
+		synchronized long snapshot(final FileChannel channel,
+				final long position, final long now) throws IOException {
+
+			int length = 0;
+			int count = 0;
+
+			for (int i = 0; slabs != null && i < capacity; i++) {
+
+				final int slab = i * slabSize;
+				final long expires = slabs.getLong(slab + EXPIRES);
+
+				if (expires > now) {
+					length +=
+							16 + slabs.getInt(slab + KEY_LENGTH)
+									+ slabs.getInt(slab + VALUE_LENGTH);
+					count++;
+				}
+
+			}
+
+			final ByteBuf out =
+					Unpooled.wrappedBuffer(channel.map(
+							FileChannel.MapMode.READ_WRITE, position,
+							8 + length));
+
+			out.writerIndex(0);
+			out.writeInt(length).writeInt(count);
+
+			for (int i = 0; count > 0 && i < capacity; i++) {
+
+				final int slab = i * slabSize;
+				final long expires = slabs.getLong(slab + EXPIRES);
+
+				if (expires > now) {
+
+					final int keyLength = slabs.getInt(slab + KEY_LENGTH);
+					final int valueLength = slabs.getInt(slab + VALUE_LENGTH);
+
+					out.writeLong(expires);
+					out.writeInt(keyLength);
+					out.writeBytes(slabs, slab + KEY, keyLength);
+					out.writeInt(valueLength);
+					out.writeBytes(slabs, slab + KEY + keyLength, valueLength);
+
+				}
+
+			}
+
+			return position + 8 + length;
+
+		}
+
+		synchronized void release() {
+
+			if (index != null) {
+				index.release();
+				slabs.release();
+				index = null;
+				slabs = null;
+				size = 0;
+			}
+
+		}
+
+		/* Slab of the unexpired session, with its expiry extended, or -1 */
+		private int live(final String id, final int hash, final long now,
+				final long ttl) {
+
+			final int slot = find(id, hash);
+
+			if (slot == -1) {
+				return -1;
+			}
+
+			final int slab = slab(slot);
+
+			if (slabs.getLong(slab + EXPIRES) <= now) {
+				delete(slot);
+				compact();
+				return -1;
+			}
+
+			slabs.setLong(slab + EXPIRES, now + ttl);
+
+			return slab;
+
+		}
+
+		/* Index slot holding the session, or -1 */
+		private int find(final String id, final int hash) {
+
+			if (index == null) {
+				return -1;
+			}
+
+			int slot = hash & mask;
+
+			for (int probes = 0; probes <= mask; probes++) {
+
+				final int ref = index.getInt(slot * 8 + 4);
+
+				if (ref == EMPTY) {
+					return -1;
+				}
+
+				if (ref != TOMBSTONE && index.getInt(slot * 8) == hash
+						&& matches((ref - 1) * slabSize, id)) {
+					return slot;
+				}
+
+				slot = (slot + 1) & mask;
+
+			}
+
+			return -1;
+
+		}
+
+		private boolean matches(final int slab, final String id) {
+
+			final int length = id.length();
+
+			if (slabs.getInt(slab + KEY_LENGTH) != length) {
+				return false;
+			}
+
+			for (int i = 0; i < length; i++) {
+				if (slabs.getByte(slab + KEY + i) != (byte) id.charAt(i)) {
+					return false;
+				}
+			}
+
+			return true;
+
+		}
+
+		/* Put a reference in the first free slot of the probe sequence */
+		private void insert(final int hash, final int ref) {
+
+			int slot = hash & mask;
+
+			while (true) {
+
+				final int current = index.getInt(slot * 8 + 4);
+
+				if (current == EMPTY || current == TOMBSTONE) {
+
+					if (current == TOMBSTONE) {
+						tombstones--;
+					}
+
+					index.setInt(slot * 8, hash);
+					index.setInt(slot * 8 + 4, ref);
+
+					return;
+
+				}
+
+				slot = (slot + 1) & mask;
+
+			}
+
+		}
+
+		private int slab(final int slot) {
+			return (index.getInt(slot * 8 + 4) - 1) * slabSize;
+		}
+
+		private void delete(final int slot) {
+
+			final int slab = slab(slot);
+
+			slabs.setLong(slab + EXPIRES, 0);
+			slabs.setInt(slab + NEXT_FREE, free);
+			free = slab / slabSize;
+
+			index.setInt(slot * 8 + 4, TOMBSTONE);
+
+			tombstones++;
+			size--;
+
+		}
+
+		/* Once tombstones lengthen probes, reinsert every live slab */
+		private void compact() {
+
+			if (tombstones <= (mask + 1) / 4) {
+				return;
+			}
+
+			index.setZero(0, index.capacity());
+			tombstones = 0;
+
+			for (int i = 0; i < capacity; i++) {
+
+				final int slab = i * slabSize;
+
+				if (slabs.getLong(slab + EXPIRES) != 0) {
+					insert(slabs.getInt(slab + HASH), i + 1);
+				}
+
+			}
+
+		}
+
+	}
+
+}
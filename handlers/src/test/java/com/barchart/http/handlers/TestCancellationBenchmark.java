@@ -0,0 +1,124 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.handlers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Multi-threaded future registration throughput with per-request cancellation
+ * scopes, compared to the previous handler-wide lock. Each thread simulates a
+ * stream of requests registering futures on one shared handler.
+ */
+public class TestCancellationBenchmark {
+
+	private static final int REQUESTS = 1000000;
+	private static final int FUTURES = 4;
+
+	private static final Future<?> FUTURE = new FutureTask<Void>(
+			new Runnable() {
+				@Override
+				public void run() {
+				}
+			}, null);
+
+	public static void main(final String[] args) throws Exception {
+
+		final int maxThreads = Runtime.getRuntime().availableProcessors() * 2;
+
+		for (int round = 0; round < 3; round++) {
+			for (int threads = 1; threads <= maxThreads; threads *= 2) {
+
+				final double scoped = run(threads, new Registrar() {
+					@Override
+					public void request() {
+						final CancellationScope scope = new CancellationScope();
+						for (int i = 0; i < FUTURES; i++) {
+							scope.add(FUTURE);
+						}
+						scope.clear();
+					}
+				});
+
+				final LockedHandler handler = new LockedHandler();
+
+				final double locked = run(threads, new Registrar() {
+					@Override
+					public void request() {
+						final List<Future<?>> tasks = new ArrayList<Future<?>>();
+						for (int i = 0; i < FUTURES; i++) {
+							handler.cancelOnAbort(tasks, FUTURE);
+						}
+					}
+				});
+
+				System.out.printf(
+						"%2d threads  scope %6.2f M req/s  locked %6.2f M req/s%n",
+						threads, scoped, locked);
+
+			}
+		}
+
+	}
+
+	private static double run(final int threads, final Registrar registrar)
+			throws Exception {
+
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+
+		for (int t = 0; t < threads; t++) {
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (final InterruptedException e) {
+						return;
+					}
+					for (int i = 0; i < REQUESTS; i++) {
+						registrar.request();
+					}
+					done.countDown();
+				}
+			}.start();
+		}
+
+		final long begin = System.nanoTime();
+		start.countDown();
+		done.await();
+
+		return (double) threads * REQUESTS * 1000
+				/ (System.nanoTime() - begin);
+
+	}
+
+	private interface Registrar {
+		void request();
+	}
+
+	/**
+	 * The previous CancellableRequestHandler registration locking.
+	 */
+	private static class LockedHandler {
+
+		private final Object key = new Object();
+
+		synchronized void cancelOnAbort(final List<Future<?>> tasks,
+				final Future<?> future) {
+			synchronized (key) {
+				tasks.add(future);
+			}
+		}
+
+	}
+
+}
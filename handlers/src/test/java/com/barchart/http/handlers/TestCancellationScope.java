@@ -0,0 +1,132 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.handlers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import io.netty.util.concurrent.DefaultPromise;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.Promise;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class TestCancellationScope {
+
+	@Test
+	public void testCancel() throws Exception {
+
+		final CancellationScope scope = new CancellationScope();
+
+		final FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+			@Override
+			public void run() {
+			}
+		}, null);
+
+		final Promise<Void> promise =
+				new DefaultPromise<Void>(GlobalEventExecutor.INSTANCE);
+
+		final AtomicInteger hooks = new AtomicInteger();
+		final Throwable reason = new IllegalStateException("failed");
+
+		assertTrue(scope.add(task));
+		assertTrue(scope.add(promise));
+		assertTrue(scope.onCancel(new Runnable() {
+			@Override
+			public void run() {
+				assertSame(reason, scope.cause());
+				hooks.incrementAndGet();
+			}
+		}));
+
+		assertTrue(scope.cancel(reason));
+		assertFalse(scope.cancel(new RuntimeException()));
+
+		assertTrue(scope.isCancelled());
+		assertTrue(task.isCancelled());
+		assertTrue(promise.cause() instanceof CancellationException);
+		assertSame(reason, promise.cause().getCause());
+		assertEquals(1, hooks.get());
+
+		// Late registrations are cancelled right away
+		final FutureTask<Void> late = new FutureTask<Void>(new Runnable() {
+			@Override
+			public void run() {
+			}
+		}, null);
+
+		assertFalse(scope.add(late));
+		assertTrue(late.isCancelled());
+
+	}
+
+	@Test
+	public void testClear() {
+
+		final CancellationScope scope = new CancellationScope();
+		final AtomicInteger hooks = new AtomicInteger();
+
+		scope.onCancel(new Runnable() {
+			@Override
+			public void run() {
+				hooks.incrementAndGet();
+			}
+		});
+
+		scope.clear();
+
+		assertTrue(scope.cancel(new RuntimeException()));
+		assertEquals(0, hooks.get());
+
+	}
+
+	@Test
+	public void testTimeout() throws Exception {
+
+		final CancellationScope scope = new CancellationScope();
+		final CountDownLatch cancelled = new CountDownLatch(1);
+
+		scope.onCancel(new Runnable() {
+			@Override
+			public void run() {
+				cancelled.countDown();
+			}
+		});
+
+		scope.timeout(20, TimeUnit.MILLISECONDS);
+
+		assertTrue(cancelled.await(1, TimeUnit.SECONDS));
+		assertTrue(scope.cause() instanceof CancellationException);
+
+	}
+
+	@Test
+	public void testTimeoutCleared() throws Exception {
+
+		final CancellationScope scope = new CancellationScope();
+
+		scope.timeout(20, TimeUnit.MILLISECONDS);
+		scope.clear();
+
+		Thread.sleep(100);
+
+		assertFalse(scope.isCancelled());
+		assertNull(scope.cause());
+
+	}
+
+}
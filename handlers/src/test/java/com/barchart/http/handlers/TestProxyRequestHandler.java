@@ -0,0 +1,344 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.handlers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.util.CharsetUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.barchart.http.request.RequestHandlerBase;
+import com.barchart.http.request.ServerRequest;
+import com.barchart.http.request.ServerResponse;
+import com.barchart.http.server.HttpServer;
+import com.barchart.http.server.HttpServerConfig;
+
+public class TestProxyRequestHandler {
+
+	private final EventLoopGroup group = new NioEventLoopGroup(1);
+
+	private final ScheduledExecutorService executor = Executors
+			.newSingleThreadScheduledExecutor();
+
+	private final Set<Integer> clientPorts =
+			new ConcurrentSkipListSet<Integer>();
+
+	private HttpServer backend;
+	private HttpServer proxy;
+
+	private int backendPort;
+	private int deadPort;
+	private int proxyPort;
+
+	private HttpClient client;
+
+	@Before
+	public void setUp() throws Exception {
+
+		backendPort = freePort();
+		deadPort = freePort();
+		proxyPort = freePort();
+
+		backend = new HttpServer();
+		backend.configure(
+				new HttpServerConfig()
+						.address(new InetSocketAddress("localhost", backendPort))
+						.parentGroup(group).childGroup(group)
+						.requestHandler("/api/echo", new EchoHandler())
+						.requestHandler("/api/stream", new StreamHandler()))
+				.listen().sync();
+
+		client = new DefaultHttpClient();
+
+	}
+
+	private void startProxy(final ProxyRequestHandler handler)
+			throws Exception {
+
+		proxy = new HttpServer();
+		proxy.configure(
+				new HttpServerConfig()
+						.address(new InetSocketAddress("localhost", proxyPort))
+						.parentGroup(group).childGroup(group)
+						.requestHandler("/api", handler)).listen().sync();
+
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		executor.shutdownNow();
+		if (proxy != null && proxy.isRunning()) {
+			proxy.shutdown().sync();
+		}
+		if (backend.isRunning()) {
+			backend.shutdown().sync();
+		}
+		group.shutdownGracefully();
+	}
+
+	@Test
+	public void testForward() throws Exception {
+
+		startProxy(new ProxyRequestHandler(new InetSocketAddress("localhost",
+				backendPort)));
+
+		HttpResponse response = get("/api/echo?q=1");
+
+		assertEquals(200, response.getStatusLine().getStatusCode());
+		assertEquals("GET /api/echo?q=1 127.0.0.1",
+				EntityUtils.toString(response.getEntity()));
+		assertEquals("backend", response.getFirstHeader("X-Backend")
+				.getValue());
+
+		response = get("/api/echo");
+		EntityUtils.consume(response.getEntity());
+
+		// Upstream connection kept alive and reused
+		assertEquals(1, clientPorts.size());
+
+	}
+
+	@Test
+	public void testPostBody() throws Exception {
+
+		startProxy(new ProxyRequestHandler(new InetSocketAddress("localhost",
+				backendPort)));
+
+		final HttpPost post =
+				new HttpPost("http://localhost:" + proxyPort + "/api/echo");
+		post.setEntity(new StringEntity("request body"));
+
+		final HttpResponse response = client.execute(post);
+
+		assertEquals(200, response.getStatusLine().getStatusCode());
+		assertEquals("POST /api/echo 127.0.0.1 request body",
+				EntityUtils.toString(response.getEntity()));
+
+	}
+
+	@Test
+	public void testStreamed() throws Exception {
+
+		startProxy(new ProxyRequestHandler(new InetSocketAddress("localhost",
+				backendPort)));
+
+		final HttpResponse response = get("/api/stream");
+
+		assertEquals(200, response.getStatusLine().getStatusCode());
+		assertTrue(response.getFirstHeader("Transfer-Encoding") != null);
+		assertEquals("chunk-0 chunk-1 chunk-2 ",
+				EntityUtils.toString(response.getEntity()));
+
+	}
+
+	@Test
+	public void testBadGateway() throws Exception {
+
+		startProxy(new ProxyRequestHandler(new InetSocketAddress("localhost",
+				deadPort)));
+
+		final HttpResponse response = get("/api/echo");
+		EntityUtils.consume(response.getEntity());
+
+		assertEquals(502, response.getStatusLine().getStatusCode());
+
+	}
+
+	@Test
+	public void testEjection() throws Exception {
+
+		startProxy(new ProxyRequestHandler(new InetSocketAddress("localhost",
+				deadPort), new InetSocketAddress("localhost", backendPort))
+				.ejection(1, 10, TimeUnit.SECONDS));
+
+		int failures = 0;
+
+		for (int i = 0; i < 6; i++) {
+			final HttpResponse response = get("/api/echo");
+			EntityUtils.consume(response.getEntity());
+			if (response.getStatusLine().getStatusCode() != 200) {
+				failures++;
+			}
+		}
+
+		// Dead upstream tried at most once before ejection
+		assertTrue("failures: " + failures, failures <= 1);
+
+	}
+
+	private HttpResponse get(final String path) throws Exception {
+		return client.execute(new HttpGet("http://localhost:" + proxyPort
+				+ path));
+	}
+
+	@Test
+	public void testInterimResponse() throws Exception {
+
+		final ServerSocket upstream = new ServerSocket(0);
+		final AtomicReference<String> forwarded = new AtomicReference<String>();
+
+		final Thread thread = new Thread() {
+			@Override
+			public void run() {
+				try {
+
+					final Socket socket = upstream.accept();
+					final InputStream in = socket.getInputStream();
+					final StringBuilder head = new StringBuilder();
+
+					while (head.indexOf("\r\n\r\n") == -1) {
+						head.append((char) in.read());
+					}
+
+					forwarded.set(head.toString());
+
+					socket.getOutputStream().write(
+							("HTTP/1.1 100 Continue\r\n\r\n"
+									+ "HTTP/1.1 200 OK\r\n"
+									+ "Content-Length: 5\r\n\r\nfinal")
+									.getBytes());
+
+					socket.close();
+
+				} catch (final IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		thread.start();
+
+		proxy = new HttpServer();
+		proxy.configure(
+				new HttpServerConfig()
+						.address(new InetSocketAddress("localhost", proxyPort))
+						.parentGroup(group)
+						.childGroup(group)
+						.flyweightParser(true)
+						.requestHandler(
+								"/api",
+								new ProxyRequestHandler(new InetSocketAddress(
+										"localhost", upstream.getLocalPort()))))
+				.listen().sync();
+
+		final Socket socket = new Socket("localhost", proxyPort);
+		socket.setSoTimeout(5000);
+		socket.getOutputStream().write(
+				("POST /api/x HTTP/1.1\r\nHost: localhost\r\n"
+						+ "Expect: 100-continue\r\nContent-Length: 4\r\n\r\n"
+						+ "body").getBytes());
+
+		final InputStream in = socket.getInputStream();
+		final StringBuilder response = new StringBuilder();
+
+		while (!response.toString().endsWith("final")) {
+			final int b = in.read();
+			assertTrue(response.toString(), b != -1);
+			response.append((char) b);
+		}
+
+		socket.close();
+		thread.join();
+		upstream.close();
+
+		// 100 from the proxy itself, then the upstream's final response
+		assertTrue(response.toString(),
+				response.toString().startsWith("HTTP/1.1 100 Continue"));
+		assertTrue(response.toString(),
+				response.indexOf("HTTP/1.1 200 OK") > 0);
+		assertEquals(response.toString(), -1,
+				response.indexOf("100 Continue", 10));
+		assertFalse(forwarded.get(), forwarded.get().contains("Expect"));
+
+	}
+
+	private static int freePort() throws IOException {
+		final ServerSocket s = new ServerSocket(0);
+		final int port = s.getLocalPort();
+		s.close();
+		return port;
+	}
+
+	private class EchoHandler extends RequestHandlerBase {
+
+		@Override
+		public void onRequest(final ServerRequest request,
+				final ServerResponse response) throws IOException {
+
+			clientPorts.add(request.getRemoteAddress().getPort());
+
+			final String body =
+					request.getContent().toString(CharsetUtil.UTF_8);
+
+			response.headers().set("X-Backend", "backend");
+			response.write(request.getMethod() + " " + request.getUri() + " "
+					+ request.headers().get("X-Forwarded-For")
+					+ (body.isEmpty() ? "" : " " + body));
+
+		}
+
+	}
+
+	private class StreamHandler extends RequestHandlerBase {
+
+		@Override
+		public void onRequest(final ServerRequest request,
+				final ServerResponse response) throws IOException {
+
+			response.setChunkedEncoding(true);
+			response.suspend();
+
+			for (int i = 0; i < 3; i++) {
+
+				final int chunk = i;
+
+				executor.schedule(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							response.write("chunk-" + chunk + " ");
+							if (chunk == 2) {
+								response.finish();
+							}
+						} catch (final IOException e) {
+							throw new RuntimeException(e);
+						}
+					}
+				}, 20 * (i + 1), TimeUnit.MILLISECONDS);
+
+			}
+
+		}
+
+	}
+
+}
@@ -0,0 +1,266 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.handlers;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.util.CharsetUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.junit.Test;
+
+import com.barchart.http.request.RequestHandlerBase;
+import com.barchart.http.request.ServerRequest;
+import com.barchart.http.request.ServerResponse;
+import com.barchart.http.server.HttpServer;
+import com.barchart.http.server.HttpServerConfig;
+
+public class TestSessionStore {
+
+	@Test
+	public void testPutGet() {
+
+		final SessionStore store = new SessionStore(100, 32);
+
+		assertNull(store.get("a"));
+		assertTrue(store.put("a", bytes("first")));
+		assertTrue(store.put("b", bytes("second")));
+		assertArrayEquals(bytes("first"), store.get("a"));
+		assertEquals(2, store.size());
+
+		// Replace with a shorter value
+		assertTrue(store.put("a", bytes("1")));
+		assertArrayEquals(bytes("1"), store.get("a"));
+		assertEquals(2, store.size());
+
+		final ByteBuf out = Unpooled.buffer();
+		assertTrue(store.get("b", out));
+		assertEquals("second", out.toString(CharsetUtil.US_ASCII));
+
+		// Too large
+		assertFalse(store.put("c", new byte[33]));
+
+		assertTrue(store.remove("a"));
+		assertFalse(store.remove("a"));
+		assertNull(store.get("a"));
+		assertEquals(1, store.size());
+
+		store.close();
+
+		assertNull(store.get("b"));
+		assertFalse(store.put("b", bytes("closed")));
+
+	}
+
+	@Test
+	public void testCapacity() {
+
+		final SessionStore store = new SessionStore(4, 16, 8, 1);
+
+		for (int i = 0; i < 4; i++) {
+			assertTrue(store.put("id" + i, bytes("v" + i)));
+		}
+
+		assertFalse(store.put("id4", bytes("v4")));
+
+		assertTrue(store.remove("id0"));
+		assertTrue(store.put("id4", bytes("v4")));
+
+		// Churn through the index to force tombstone compaction
+		for (int i = 5; i < 10000; i++) {
+			assertTrue(store.remove("id" + (i - 4)));
+			assertTrue(store.put("id" + i, bytes("v" + i)));
+		}
+
+		assertEquals(4, store.size());
+
+		for (int i = 9996; i < 10000; i++) {
+			assertArrayEquals(bytes("v" + i), store.get("id" + i));
+		}
+
+		store.close();
+
+	}
+
+	@Test
+	public void testExpiry() throws Exception {
+
+		final SessionStore store =
+				new SessionStore(100, 16).ttl(100, TimeUnit.MILLISECONDS);
+
+		store.put("a", bytes("a"));
+		store.put("b", bytes("b"));
+		store.put("c", bytes("c"));
+
+		Thread.sleep(60);
+
+		// Access extends the TTL
+		assertTrue(store.touch("a"));
+		assertArrayEquals(bytes("b"), store.get("b"));
+
+		Thread.sleep(60);
+
+		assertEquals(1, store.sweep());
+		assertEquals(2, store.size());
+		assertNull(store.get("c"));
+		assertArrayEquals(bytes("a"), store.get("a"));
+
+		Thread.sleep(120);
+
+		assertNull(store.get("a"));
+		assertFalse(store.touch("b"));
+		assertEquals(0, store.size());
+
+		store.close();
+
+	}
+
+	@Test
+	public void testSweeper() throws Exception {
+
+		final NioEventLoopGroup group = new NioEventLoopGroup(1);
+
+		final SessionStore store =
+				new SessionStore(100, 16).ttl(20, TimeUnit.MILLISECONDS)
+						.sweeper(group, 10, TimeUnit.MILLISECONDS);
+
+		for (int i = 0; i < 50; i++) {
+			store.put("id" + i, bytes("value"));
+		}
+
+		Thread.sleep(200);
+
+		assertEquals(0, store.size());
+
+		store.close();
+		group.shutdownGracefully();
+
+	}
+
+	@Test
+	public void testSnapshot() throws Exception {
+
+		final File file = File.createTempFile("sessions", ".snap");
+
+		try {
+
+			final SessionStore store = new SessionStore(1000, 64);
+
+			for (int i = 0; i < 500; i++) {
+				store.put("session-" + i, bytes("value-" + i));
+			}
+
+			store.put("empty", new byte[0]);
+			store.snapshot(file);
+			store.close();
+
+			final SessionStore restored = new SessionStore(1000, 32, 64, 4);
+
+			assertEquals(501, restored.load(file));
+			assertEquals(501, restored.size());
+
+			for (int i = 0; i < 500; i++) {
+				assertArrayEquals(bytes("value-" + i),
+						restored.get("session-" + i));
+			}
+
+			assertArrayEquals(new byte[0], restored.get("empty"));
+
+			restored.close();
+
+		} finally {
+			file.delete();
+		}
+
+	}
+
+	@Test
+	public void testFilter() throws Exception {
+
+		final ServerSocket s = new ServerSocket(0);
+		final int port = s.getLocalPort();
+		s.close();
+
+		final SessionStore store = new SessionStore(100, 64);
+		store.put("abc123", bytes("user=alice"));
+
+		final NioEventLoopGroup group = new NioEventLoopGroup(1);
+		final HttpServer server = new HttpServer();
+
+		server.configure(
+				new HttpServerConfig()
+						.address(new InetSocketAddress("localhost", port))
+						.parentGroup(group).childGroup(group)
+						.filter("/", new SessionFilter(store, "sid"))
+						.requestHandler("/", new SessionHandler())).listen()
+				.sync();
+
+		try {
+
+			assertEquals("user=alice", get(port, "sid=abc123"));
+			assertEquals("none", get(port, "sid=unknown"));
+			assertEquals("none", get(port, null));
+
+		} finally {
+			server.shutdown().sync();
+			group.shutdownGracefully();
+			store.close();
+		}
+
+	}
+
+	private static String get(final int port, final String cookie)
+			throws IOException {
+
+		final HttpGet get = new HttpGet("http://localhost:" + port + "/");
+
+		if (cookie != null) {
+			get.setHeader("Cookie", cookie);
+		}
+
+		final HttpResponse response = new DefaultHttpClient().execute(get);
+
+		return EntityUtils.toString(response.getEntity());
+
+	}
+
+	private static byte[] bytes(final String value) {
+		return value.getBytes(CharsetUtil.US_ASCII);
+	}
+
+	private static class SessionHandler extends RequestHandlerBase {
+
+		@Override
+		public void onRequest(final ServerRequest request,
+				final ServerResponse response) throws IOException {
+
+			final byte[] session = request.attr(SessionFilter.SESSION).get();
+
+			response.write(session == null ? "none" : new String(session,
+					CharsetUtil.US_ASCII));
+
+		}
+
+	}
+
+}
@@ -0,0 +1,353 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.capture;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufProcessor;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.CharsetUtil;
+
+/**
+ * Copies the raw bytes of each request on a sampled connection to the capture
+ * log. Request boundaries are found with a minimal HTTP/1.1 framing parser
+ * (headers, Content-Length and chunked bodies), so each record holds exactly
+ * one request as received. Removes itself from unsampled connections, and
+ * stops capturing a connection whose framing it cannot follow.
+ */
+class CaptureHandler extends ChannelInboundHandlerAdapter {
+
+	private enum State {
+		HEADERS, BODY, CHUNK_SIZE, CHUNK_DATA, TRAILER
+	}
+
+	private final TrafficCapture capture;
+	private final int connection;
+
+	/* Bytes of the request being received, and any that follow it */
+	private ByteBuf pending;
+
+	private State state = State.HEADERS;
+
+	/* Parse position in pending, and remaining body bytes */
+	private int position = 0;
+	private long remaining = 0;
+
+	/* Arrival of the first byte of the current request */
+	private long arrival = -1;
+
+	CaptureHandler(final TrafficCapture capture_, final int connection_) {
+		capture = capture_;
+		connection = connection_;
+	}
+
+	@Override
+	public void channelActive(final ChannelHandlerContext ctx) throws Exception {
+
+		ctx.fireChannelActive();
+
+		if (capture.sample()) {
+			pending = ctx.alloc().heapBuffer();
+		} else {
+			ctx.pipeline().remove(this);
+		}
+
+	}
+
+	@Override
+	public void channelRead(final ChannelHandlerContext ctx, final Object msg)
+			throws Exception {
+
+		if (pending != null && msg instanceof ByteBuf) {
+
+			final long now = capture.time();
+
+			if (arrival == -1) {
+				arrival = now;
+			}
+
+			pending.writeBytes((ByteBuf) msg, ((ByteBuf) msg).readerIndex(),
+					((ByteBuf) msg).readableBytes());
+
+			if (!frame(now)) {
+				stop(ctx);
+			}
+
+		}
+
+		ctx.fireChannelRead(msg);
+
+	}
+
+	@Override
+	public void channelInactive(final ChannelHandlerContext ctx)
+			throws Exception {
+		release();
+		ctx.fireChannelInactive();
+	}
+
+	@Override
+	public void handlerRemoved(final ChannelHandlerContext ctx) {
+		release();
+	}
+
+	private void stop(final ChannelHandlerContext ctx) {
+		release();
+		ctx.pipeline().remove(this);
+	}
+
+	private void release() {
+		if (pending != null) {
+			pending.release();
+			pending = null;
+		}
+	}
+
+	/**
+	 * Advance the framing parser over the received bytes, appending every
+	 * complete request to the log.
+	 * 
+	 * @return False if the stream cannot be framed or a request is too large
+	 */
+	private boolean frame(final long now) {
+
+		while (position < pending.writerIndex()) {
+
+			final int end = pending.writerIndex();
+
+			switch (state) {
+
+				case HEADERS: {
+
+					final int lf = headersEnd();
+
+					if (lf == -1) {
+						return pending.readableBytes() <= capture.maxRequestSize();
+					}
+
+					final long length = contentLength(lf);
+
+					position = lf + 1;
+
+					if (length == -2) {
+						return false;
+					} else if (length == -1) {
+						state = State.CHUNK_SIZE;
+					} else if (length == 0) {
+						complete(now);
+					} else {
+						remaining = length;
+						state = State.BODY;
+					}
+
+					break;
+
+				}
+
+				case BODY:
+				case CHUNK_DATA: {
+
+					final int available = end - position;
+
+					if (available < remaining) {
+						position = end;
+						remaining -= available;
+						break;
+					}
+
+					position += (int) remaining;
+					remaining = 0;
+
+					if (state == State.BODY) {
+						complete(now);
+					} else {
+						state = State.CHUNK_SIZE;
+					}
+
+					break;
+
+				}
+
+				case CHUNK_SIZE: {
+
+					final int lf = pending.indexOf(position, end, (byte) '\n');
+
+					if (lf == -1) {
+						return end - position < 256;
+					}
+
+					final long size = chunkSize(position, lf);
+
+					position = lf + 1;
+
+					if (size < 0) {
+						return false;
+					} else if (size == 0) {
+						state = State.TRAILER;
+					} else {
+						remaining = size + 2;
+						state = State.CHUNK_DATA;
+					}
+
+					break;
+
+				}
+
+				case TRAILER: {
+
+					final int lf = pending.indexOf(position, end, (byte) '\n');
+
+					if (lf == -1) {
+						return end - position < 8192;
+					}
+
+					final boolean last = lf - position <= 1;
+
+					position = lf + 1;
+
+					if (last) {
+						complete(now);
+					}
+
+					break;
+
+				}
+
+			}
+
+		}
+
+		return pending.readableBytes() <= capture.maxRequestSize();
+
+	}
+
+	private void complete(final long now) {
+
+		final int start = pending.readerIndex();
+
+		capture.append(connection, arrival, pending, start, position - start);
+
+		pending.readerIndex(position);
+		state = State.HEADERS;
+
+		if (pending.isReadable()) {
+			// Pipelined, next request arrived with this one
+			pending.discardReadBytes();
+			position = 0;
+			arrival = now;
+		} else {
+			pending.clear();
+			position = 0;
+			arrival = -1;
+		}
+
+	}
+
+	/* Index of the LF ending the header block, or -1 */
+	private int headersEnd() {
+
+		final int end = pending.writerIndex();
+
+		// Rescan the last few bytes, the blank line may span reads
+		int i = Math.max(pending.readerIndex(), position - 3);
+
+		while ((i = pending.forEachByte(i, end - i, ByteBufProcessor.FIND_LF)) != -1) {
+
+			if (i + 1 < end && pending.getByte(i + 1) == '\n') {
+				return i + 1;
+			}
+
+			if (i + 2 < end && pending.getByte(i + 1) == '\r'
+					&& pending.getByte(i + 2) == '\n') {
+				return i + 2;
+			}
+
+			i++;
+
+		}
+
+		position = end;
+
+		return -1;
+
+	}
+
+	/**
+	 * Body framing from the header block ending at lf: the Content-Length, 0
+	 * if none, -1 if chunked, or -2 if malformed.
+	 */
+	private long contentLength(final int lf) {
+
+		final String headers =
+				pending.toString(pending.readerIndex(),
+						lf - pending.readerIndex(), CharsetUtil.ISO_8859_1);
+
+		long length = 0;
+
+		for (final String line : headers.split("\r?\n")) {
+
+			final int colon = line.indexOf(':');
+
+			if (colon == -1) {
+				continue;
+			}
+
+			final String name = line.substring(0, colon).trim();
+			final String value = line.substring(colon + 1).trim();
+
+			if (name.equalsIgnoreCase("Transfer-Encoding")
+					&& value.toLowerCase().contains("chunked")) {
+				return -1;
+			}
+
+			if (name.equalsIgnoreCase("Content-Length")) {
+				try {
+					length = Long.parseLong(value);
+				} catch (final NumberFormatException e) {
+					return -2;
+				}
+
+				// Would be taken for chunked, or move the position back
+				if (length < 0) {
+					return -2;
+				}
+			}
+
+		}
+
+		return length;
+
+	}
+
+	/* Hex chunk size of the line from start to lf, or -1 if malformed */
+	private long chunkSize(final int start, final int lf) {
+
+		long size = 0;
+		int digits = 0;
+
+		for (int i = start; i < lf; i++) {
+
+			final int digit = Character.digit(pending.getByte(i), 16);
+
+			if (digit == -1) {
+				break;
+			}
+
+			if (++digits > 15) {
+				return -1;
+			}
+
+			size = size << 4 | digit;
+
+		}
+
+		return digits == 0 ? -1 : size;
+
+	}
+
+}
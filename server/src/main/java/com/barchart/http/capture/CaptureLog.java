@@ -0,0 +1,228 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.capture;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only capture log, written to a sequence of memory-mapped files of a
+ * fixed size. Writers reserve space with a single atomic add and copy into
+ * their own region, so event loops only synchronize when a file fills up.
+ * 
+ * File layout: a header (magic, version, capture start time in epoch
+ * milliseconds) followed by records (payload length, connection id, nanos
+ * since capture start, payload). Unused space is zero, so a zero length ends
+ * the file.
+ */
+class CaptureLog {
+
+	static final int MAGIC = 0x42484350; // "BHCP"
+	static final int VERSION = 1;
+
+	static final int HEADER_SIZE = 16;
+	static final int RECORD_HEADER_SIZE = 16;
+
+	static final String SUFFIX = ".cap";
+
+	private static final Logger log = LoggerFactory
+			.getLogger(CaptureLog.class);
+
+	private final File directory;
+	private final String prefix;
+	private final int fileSize;
+	private final int maxFiles;
+	private final long startMillis;
+
+	private final Deque<File> files = new ArrayDeque<File>();
+
+	private volatile Segment current;
+	private int sequence = 0;
+	private boolean closed = false;
+
+	/**
+	 * @param previous
+	 *            A closed log to continue the file sequence, retention and
+	 *            start time of, or null
+	 */
+	CaptureLog(final File directory_, final String prefix_,
+			final int fileSize_, final int maxFiles_, final CaptureLog previous)
+			throws IOException {
+
+		directory = directory_;
+		prefix = prefix_;
+		fileSize = fileSize_;
+		maxFiles = maxFiles_;
+
+		if (previous != null) {
+			startMillis = previous.startMillis;
+			sequence = previous.sequence;
+			files.addAll(previous.files);
+		} else {
+			startMillis = System.currentTimeMillis();
+		}
+
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create " + directory);
+		}
+
+		current = open();
+
+	}
+
+	/**
+	 * Append a record, rotating to a new file if the current one is full.
+	 * 
+	 * @return False if the record is larger than a file, or the log is closed
+	 */
+	boolean append(final int connection, final long time, final ByteBuf data,
+			final int index, final int length) {
+
+		final int size = RECORD_HEADER_SIZE + length;
+
+		if (size > fileSize - HEADER_SIZE) {
+			return false;
+		}
+
+		while (true) {
+
+			final Segment segment = current;
+
+			if (segment == null) {
+				return false;
+			}
+
+			final int position = segment.position.getAndAdd(size);
+
+			if (position + size <= fileSize) {
+
+				final ByteBuffer buffer = segment.buffer.duplicate();
+
+				buffer.position(position + 4);
+				buffer.putInt(connection);
+				buffer.putLong(time);
+				data.getBytes(index, (ByteBuffer) buffer.slice().limit(length));
+
+				// Length last, readers stop at the first zero length
+				buffer.putInt(position, length);
+
+				return true;
+
+			}
+
+			rotate(segment);
+
+		}
+
+	}
+
+	/**
+	 * Flush and close the current file.
+	 */
+	synchronized void close() {
+
+		closed = true;
+
+		if (current != null) {
+			current.close();
+			current = null;
+		}
+
+	}
+
+	private synchronized void rotate(final Segment full) {
+
+		if (current != full || closed) {
+			// Already rotated by another writer
+			return;
+		}
+
+		full.close();
+
+		try {
+			current = open();
+		} catch (final IOException e) {
+			log.error("Could not rotate capture log, capture stopped", e);
+			current = null;
+		}
+
+	}
+
+	private Segment open() throws IOException {
+
+		final File file =
+				new File(directory, String.format("%s-%06d%s", prefix,
+						++sequence, SUFFIX));
+
+		files.add(file);
+
+		while (maxFiles > 0 && files.size() > maxFiles) {
+			final File oldest = files.poll();
+			if (!oldest.delete()) {
+				log.warn("Could not delete old capture file {}", oldest);
+			}
+		}
+
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+		try {
+
+			raf.setLength(0);
+
+			final FileChannel channel = raf.getChannel();
+			final MappedByteBuffer buffer =
+					channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+
+			buffer.putInt(0, MAGIC);
+			buffer.putInt(4, VERSION);
+			buffer.putLong(8, startMillis);
+
+			return new Segment(raf, buffer);
+
+		} catch (final IOException e) {
+			raf.close();
+			throw e;
+		}
+
+	}
+
+	private static class Segment {
+
+		private final RandomAccessFile file;
+		private final MappedByteBuffer buffer;
+		private final AtomicInteger position = new AtomicInteger(HEADER_SIZE);
+
+		Segment(final RandomAccessFile file_, final MappedByteBuffer buffer_) {
+			file = file_;
+			buffer = buffer_;
+		}
+
+		void close() {
+			try {
+				buffer.force();
+				file.close();
+			} catch (final IOException e) {
+				log.warn("Could not close capture file", e);
+			}
+		}
+
+	}
+
+}
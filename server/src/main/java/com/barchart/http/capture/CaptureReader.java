@@ -0,0 +1,176 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.capture;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Reads the records of capture files written by TrafficCapture, in order.
+ */
+public class CaptureReader implements Closeable {
+
+	private final Iterator<File> files;
+
+	private RandomAccessFile file = null;
+	private MappedByteBuffer buffer = null;
+	private long startMillis = 0;
+
+	private int connection;
+	private long time;
+	private ByteBuf content;
+
+	/**
+	 * Read the given capture files in order.
+	 */
+	public CaptureReader(final List<File> files_) {
+		files = new ArrayList<File>(files_).iterator();
+	}
+
+	/**
+	 * List the capture files with the given prefix in a directory, oldest
+	 * first.
+	 */
+	public static List<File> files(final File directory, final String prefix) {
+
+		final File[] found = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(final File dir, final String name) {
+				return name.startsWith(prefix + "-")
+						&& name.endsWith(CaptureLog.SUFFIX);
+			}
+		});
+
+		if (found == null) {
+			return new ArrayList<File>();
+		}
+
+		Arrays.sort(found);
+
+		return Arrays.asList(found);
+
+	}
+
+	/**
+	 * Advance to the next record.
+	 * 
+	 * @return False if there are no more records
+	 */
+	public boolean next() throws IOException {
+
+		while (true) {
+
+			if (buffer != null
+					&& buffer.remaining() >= CaptureLog.RECORD_HEADER_SIZE) {
+
+				final int length = buffer.getInt();
+
+				if (length > 0 && length <= buffer.remaining() - 12) {
+
+					connection = buffer.getInt();
+					time = buffer.getLong();
+
+					content =
+							Unpooled.wrappedBuffer((ByteBuffer) buffer.slice()
+									.limit(length));
+
+					buffer.position(buffer.position() + length);
+
+					return true;
+
+				}
+
+			}
+
+			if (!open()) {
+				return false;
+			}
+
+		}
+
+	}
+
+	/**
+	 * The connection id of the current record, unique within a capture.
+	 */
+	public int connection() {
+		return connection;
+	}
+
+	/**
+	 * The arrival time of the current record, in nanoseconds since the
+	 * capture started.
+	 */
+	public long time() {
+		return time;
+	}
+
+	/**
+	 * The raw request bytes of the current record, valid until next().
+	 */
+	public ByteBuf content() {
+		return content;
+	}
+
+	/**
+	 * The capture start time of the current file, in epoch milliseconds.
+	 */
+	public long startMillis() {
+		return startMillis;
+	}
+
+	@Override
+	public void close() throws IOException {
+		buffer = null;
+		if (file != null) {
+			file.close();
+			file = null;
+		}
+	}
+
+	private boolean open() throws IOException {
+
+		close();
+
+		if (!files.hasNext()) {
+			return false;
+		}
+
+		final File next = files.next();
+
+		file = new RandomAccessFile(next, "r");
+		buffer =
+				file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+						file.length());
+
+		if (buffer.remaining() < CaptureLog.HEADER_SIZE
+				|| buffer.getInt() != CaptureLog.MAGIC
+				|| buffer.getInt() != CaptureLog.VERSION) {
+			throw new IOException("Not a capture file: " + next);
+		}
+
+		startMillis = buffer.getLong();
+
+		return true;
+
+	}
+
+}
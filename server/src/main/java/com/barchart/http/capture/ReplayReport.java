@@ -0,0 +1,114 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.capture;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Results of a TrafficReplay run. Latencies are measured from writing a
+ * request to receiving the end of its response.
+ */
+public class ReplayReport {
+
+	private final int connections;
+	private final int requests;
+	private final int responses;
+	private final int errors;
+	private final long duration;
+	private final long[] latencies;
+
+	ReplayReport(final int connections_, final int requests_,
+			final int errors_, final long duration_, final long[] latencies_) {
+
+		connections = connections_;
+		requests = requests_;
+		responses = latencies_.length;
+		errors = errors_;
+		duration = duration_;
+		latencies = latencies_;
+
+		Arrays.sort(latencies);
+
+	}
+
+	/**
+	 * Number of captured connections replayed.
+	 */
+	public int connections() {
+		return connections;
+	}
+
+	/**
+	 * Number of captured requests.
+	 */
+	public int requests() {
+		return requests;
+	}
+
+	/**
+	 * Number of responses received.
+	 */
+	public int responses() {
+		return responses;
+	}
+
+	/**
+	 * Number of requests that got no response, because the connection failed
+	 * or closed or the replay timed out.
+	 */
+	public int errors() {
+		return errors;
+	}
+
+	/**
+	 * Wall clock time of the replay, in the given unit.
+	 */
+	public long duration(final TimeUnit unit) {
+		return unit.convert(duration, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Responses per second.
+	 */
+	public double throughput() {
+		return duration == 0 ? 0 : responses * 1e9 / duration;
+	}
+
+	/**
+	 * Latency at the given percentile (0 to 100), in the given unit.
+	 */
+	public long latency(final double percentile, final TimeUnit unit) {
+
+		if (latencies.length == 0) {
+			return 0;
+		}
+
+		final int index =
+				(int) Math.ceil(percentile / 100 * latencies.length) - 1;
+
+		return unit.convert(
+				latencies[Math.max(0, Math.min(index, latencies.length - 1))],
+				TimeUnit.NANOSECONDS);
+
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"%d connections, %d requests, %d responses, %d errors in %dms "
+						+ "(%.1f/s), latency p50 %dus p90 %dus p99 %dus max %dus",
+				connections, requests, responses, errors,
+				duration(TimeUnit.MILLISECONDS), throughput(),
+				latency(50, TimeUnit.MICROSECONDS),
+				latency(90, TimeUnit.MICROSECONDS),
+				latency(99, TimeUnit.MICROSECONDS),
+				latency(100, TimeUnit.MICROSECONDS));
+	}
+
+}
@@ -0,0 +1,161 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.capture;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * Captures raw inbound requests with their arrival times, for replay with
+ * TrafficReplay. Enable with HttpServerConfig.trafficCapture().
+ * </p>
+ * 
+ * <p>
+ * Connections are sampled as they are accepted; every request on a sampled
+ * connection is captured, so replay sees the same per-connection request
+ * sequences (keep-alive reuse, pipelining) as production. Unsampled
+ * connections pay nothing. Records are written to rotated memory-mapped
+ * files named prefix-NNNNNN.cap, keeping the most recent maxFiles.
+ * </p>
+ * 
+ * <p>
+ * Captured requests include headers such as cookies and authorization as
+ * received, so capture files should be handled as sensitive.
+ * </p>
+ */
+public class TrafficCapture {
+
+	private final AtomicInteger connections = new AtomicInteger(0);
+	private final long start = System.nanoTime();
+
+	private final File directory;
+
+	private String prefix = "capture";
+	private double sampleRate = 1.0;
+	private int fileSize = 64 * 1024 * 1024;
+	private int maxFiles = 16;
+	private int maxRequestSize = 1024 * 1024;
+
+	private volatile CaptureLog log;
+
+	/* Last closed log, continued on reopen */
+	private CaptureLog previous = null;
+
+	/**
+	 * Capture to files in the given directory.
+	 */
+	public TrafficCapture(final File directory_) {
+		directory = directory_;
+	}
+
+	/**
+	 * Set the capture file name prefix. Defaults to "capture".
+	 */
+	public TrafficCapture prefix(final String prefix_) {
+		prefix = prefix_;
+		return this;
+	}
+
+	/**
+	 * Set the fraction of connections to capture, from 0 to 1. Defaults to 1.
+	 */
+	public TrafficCapture sampleRate(final double rate) {
+		sampleRate = rate;
+		return this;
+	}
+
+	/**
+	 * Set the size of each capture file in bytes. Defaults to 64MB.
+	 */
+	public TrafficCapture fileSize(final int size) {
+		fileSize = size;
+		return this;
+	}
+
+	/**
+	 * Set the number of capture files to keep, deleting the oldest on
+	 * rotation. Defaults to 16, 0 to keep all.
+	 */
+	public TrafficCapture maxFiles(final int max) {
+		maxFiles = max;
+		return this;
+	}
+
+	/**
+	 * Set the largest request to capture in bytes. A connection sending a
+	 * larger request is no longer captured. Defaults to 1MB.
+	 */
+	public TrafficCapture maxRequestSize(final int max) {
+		maxRequestSize = max;
+		return this;
+	}
+
+	/**
+	 * Open the next capture file. Called by the server on startup.
+	 */
+	public synchronized void open() throws IOException {
+		if (log == null) {
+			log =
+					new CaptureLog(directory, prefix, fileSize, maxFiles,
+							previous);
+		}
+	}
+
+	/**
+	 * Flush and close the current capture file. Further requests are not
+	 * captured until open() is called again.
+	 */
+	public synchronized void close() {
+		if (log != null) {
+			log.close();
+			previous = log;
+			log = null;
+		}
+	}
+
+	/**
+	 * Create the capture stage for a new connection, placed ahead of the
+	 * request decoder.
+	 */
+	public ChannelHandler newHandler() {
+		return new CaptureHandler(this, connections.incrementAndGet());
+	}
+
+	boolean sample() {
+		return log != null
+				&& (sampleRate >= 1.0 || ThreadLocalRandom.current()
+						.nextDouble() < sampleRate);
+	}
+
+	long time() {
+		return System.nanoTime() - start;
+	}
+
+	int maxRequestSize() {
+		return maxRequestSize;
+	}
+
+	void append(final int connection, final long time, final ByteBuf data,
+			final int index, final int length) {
+
+		// Closed since sampled
+		final CaptureLog current = log;
+
+		if (current != null) {
+			current.append(connection, time, data, index, length);
+		}
+
+	}
+
+}
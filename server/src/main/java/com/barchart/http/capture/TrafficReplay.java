@@ -0,0 +1,438 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.capture;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.HttpMessage;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseDecoder;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Replays captured traffic against a server. Each captured connection is
+ * replayed on its own connection, sending its requests as captured at their
+ * original offsets from the start of the capture, scaled by the replay speed.
+ * Responses are read in order and timed against their requests.
+ * </p>
+ * 
+ * <p>
+ * Usage: TrafficReplay host:port speed file-or-directory...
+ * </p>
+ */
+public class TrafficReplay {
+
+	private final SocketAddress address;
+
+	private double speed = 1.0;
+	private long timeout = TimeUnit.SECONDS.toNanos(30);
+	private EventLoopGroup group = null;
+
+	/**
+	 * Replay against the server at the given address. A LocalAddress replays
+	 * over an in-VM LocalChannel.
+	 */
+	public TrafficReplay(final SocketAddress address_) {
+		address = address_;
+	}
+
+	/**
+	 * Set the replay speed relative to the capture: 2 replays twice as fast,
+	 * 0 sends every request as soon as its connection is ready. Defaults to 1.
+	 */
+	public TrafficReplay speed(final double speed_) {
+		speed = speed_;
+		return this;
+	}
+
+	/**
+	 * Set how long to wait for responses after the last request is due.
+	 * Defaults to 30 seconds.
+	 */
+	public TrafficReplay timeout(final long time, final TimeUnit unit) {
+		timeout = unit.toNanos(time);
+		return this;
+	}
+
+	/**
+	 * Use the given event loop group for client connections instead of a
+	 * private one.
+	 */
+	public TrafficReplay group(final EventLoopGroup group_) {
+		group = group_;
+		return this;
+	}
+
+	/**
+	 * Replay all records from the reader, blocking until every request has a
+	 * response or the timeout expires.
+	 */
+	public ReplayReport run(final CaptureReader reader) throws IOException,
+			InterruptedException {
+
+		final Map<Integer, Replayed> connections =
+				new LinkedHashMap<Integer, Replayed>();
+
+		long first = Long.MAX_VALUE;
+		long last = 0;
+		int requests = 0;
+
+		while (reader.next()) {
+
+			Replayed replayed = connections.get(reader.connection());
+
+			if (replayed == null) {
+				replayed = new Replayed();
+				connections.put(reader.connection(), replayed);
+			}
+
+			final ByteBuf content = reader.content();
+			final byte[] bytes = new byte[content.readableBytes()];
+			content.getBytes(content.readerIndex(), bytes);
+
+			replayed.add(reader.time(), bytes);
+
+			first = Math.min(first, reader.time());
+			last = Math.max(last, reader.time());
+			requests++;
+
+		}
+
+		reader.close();
+
+		final EventLoopGroup loops =
+				group != null ? group : new NioEventLoopGroup();
+
+		try {
+
+			final Bootstrap bootstrap =
+					new Bootstrap()
+							.group(loops)
+							.channel(address instanceof LocalAddress
+									? LocalChannel.class
+									: NioSocketChannel.class);
+
+			if (!(address instanceof LocalAddress)) {
+				bootstrap.option(ChannelOption.TCP_NODELAY, true);
+			}
+
+			final CountDownLatch done = new CountDownLatch(connections.size());
+			final long start = System.nanoTime();
+
+			for (final Replayed replayed : connections.values()) {
+				replayed.start(bootstrap, first, start, done);
+			}
+
+			final long deadline = scale(last - first) + timeout;
+
+			if (!done.await(deadline, TimeUnit.NANOSECONDS)) {
+
+				// Timed out, count unanswered requests as errors
+				for (final Replayed replayed : connections.values()) {
+					replayed.abort();
+				}
+
+				done.await(timeout, TimeUnit.NANOSECONDS);
+
+			}
+
+			int errors = 0;
+			int responses = 0;
+			long end = start;
+
+			for (final Replayed replayed : connections.values()) {
+				errors += replayed.count - replayed.responses;
+				responses += replayed.responses;
+				end = Math.max(end, replayed.end);
+			}
+
+			final long[] latencies = new long[responses];
+			int index = 0;
+
+			for (final Replayed replayed : connections.values()) {
+				System.arraycopy(replayed.latencies, 0, latencies, index,
+						replayed.responses);
+				index += replayed.responses;
+			}
+
+			return new ReplayReport(connections.size(), requests, errors, end
+					- start, latencies);
+
+		} finally {
+
+			if (group == null) {
+				loops.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+			}
+
+		}
+
+	}
+
+	private long scale(final long time) {
+		return speed <= 0 ? 0 : (long) (time / speed);
+	}
+
+	public static void main(final String[] args) throws Exception {
+
+		if (args.length < 3) {
+			System.err
+					.println("Usage: TrafficReplay host:port speed file-or-directory...");
+			System.exit(1);
+		}
+
+		final int colon = args[0].lastIndexOf(':');
+
+		final SocketAddress address =
+				new InetSocketAddress(args[0].substring(0, colon),
+						Integer.parseInt(args[0].substring(colon + 1)));
+
+		final List<File> files = new ArrayList<File>();
+
+		for (int i = 2; i < args.length; i++) {
+
+			final File file = new File(args[i]);
+
+			if (file.isDirectory()) {
+				final File[] found = file.listFiles();
+				if (found != null) {
+					Arrays.sort(found);
+					for (final File f : found) {
+						if (f.getName().endsWith(CaptureLog.SUFFIX)) {
+							files.add(f);
+						}
+					}
+				}
+			} else {
+				files.add(file);
+			}
+
+		}
+
+		System.out.println(new TrafficReplay(address).speed(
+				Double.parseDouble(args[1])).run(new CaptureReader(files)));
+
+	}
+
+	/**
+	 * One captured connection: its requests, send schedule and responses.
+	 * Runs on its channel's event loop once connected.
+	 */
+	private class Replayed extends ChannelInboundHandlerAdapter {
+
+		private byte[][] requests = new byte[4][];
+		private long[] times = new long[4];
+		private int count = 0;
+
+		private long[] due;
+		private long[] sent;
+		private long[] latencies;
+		private boolean[] head;
+
+		private CountDownLatch done;
+		private long start;
+
+		private volatile Channel channel = null;
+
+		private int writes = 0;
+		private int responses = 0;
+		private boolean informational = false;
+		private boolean finished = false;
+		private long end = 0;
+
+		void add(final long time, final byte[] request) {
+
+			if (count == requests.length) {
+				requests = Arrays.copyOf(requests, count * 2);
+				times = Arrays.copyOf(times, count * 2);
+			}
+
+			requests[count] = request;
+			times[count] = time;
+			count++;
+
+		}
+
+		void start(final Bootstrap bootstrap, final long first,
+				final long start_, final CountDownLatch done_) {
+
+			start = start_;
+			done = done_;
+
+			due = new long[count];
+			sent = new long[count];
+			latencies = new long[count];
+			head = new boolean[count];
+
+			for (int i = 0; i < count; i++) {
+				due[i] = scale(times[i] - first);
+				head[i] = isHead(requests[i]);
+			}
+
+			bootstrap.group().schedule(new Runnable() {
+				@Override
+				public void run() {
+					connect(bootstrap);
+				}
+			}, Math.max(0, due[0] - (System.nanoTime() - start)),
+					TimeUnit.NANOSECONDS);
+
+		}
+
+		void abort() {
+
+			final Channel ch = channel;
+
+			if (ch != null) {
+				ch.close().syncUninterruptibly();
+			}
+
+		}
+
+		private void connect(final Bootstrap bootstrap) {
+
+			bootstrap.clone().handler(new ChannelInitializer<Channel>() {
+				@Override
+				protected void initChannel(final Channel ch) {
+					ch.pipeline().addLast(new Decoder(), Replayed.this);
+				}
+			}).connect(address).addListener(new ChannelFutureListener() {
+				@Override
+				public void operationComplete(final ChannelFuture future) {
+					if (future.isSuccess()) {
+						channel = future.channel();
+						send();
+					} else {
+						finish();
+					}
+				}
+			});
+
+		}
+
+		private void send() {
+
+			final long elapsed = System.nanoTime() - start;
+
+			while (writes < count && due[writes] <= elapsed) {
+				sent[writes] = System.nanoTime();
+				channel.write(Unpooled.wrappedBuffer(requests[writes]));
+				writes++;
+			}
+
+			channel.flush();
+
+			if (writes < count) {
+				channel.eventLoop().schedule(new Runnable() {
+					@Override
+					public void run() {
+						if (channel.isActive()) {
+							send();
+						}
+					}
+				}, due[writes] - elapsed, TimeUnit.NANOSECONDS);
+			}
+
+		}
+
+		@Override
+		public void channelRead(final ChannelHandlerContext ctx,
+				final Object msg) {
+
+			try {
+
+				if (msg instanceof HttpResponse) {
+					informational =
+							((HttpResponse) msg).getStatus().code() / 100 == 1;
+				}
+
+				if (msg instanceof LastHttpContent && !informational
+						&& responses < writes) {
+
+					end = System.nanoTime();
+					latencies[responses] = end - sent[responses];
+					responses++;
+
+					if (responses == count) {
+						ctx.close();
+					}
+
+				}
+
+			} finally {
+				ReferenceCountUtil.release(msg);
+			}
+
+		}
+
+		@Override
+		public void channelInactive(final ChannelHandlerContext ctx) {
+			finish();
+		}
+
+		@Override
+		public void exceptionCaught(final ChannelHandlerContext ctx,
+				final Throwable cause) {
+			ctx.close();
+		}
+
+		private void finish() {
+			if (!finished) {
+				finished = true;
+				done.countDown();
+			}
+		}
+
+		/**
+		 * Response decoder that knows which responses answer HEAD requests
+		 * and so have no body.
+		 */
+		private class Decoder extends HttpResponseDecoder {
+
+			@Override
+			protected boolean isContentAlwaysEmpty(final HttpMessage msg) {
+				return (responses < count && head[responses])
+						|| super.isContentAlwaysEmpty(msg);
+			}
+
+		}
+
+	}
+
+	private static boolean isHead(final byte[] request) {
+		return request.length > 5 && request[0] == 'H' && request[1] == 'E'
+				&& request[2] == 'A' && request[3] == 'D' && request[4] == ' ';
+	}
+
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.codec;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+
+/**
+ * Raw binary codec for BinaryMessage implementations, ByteBufs and byte
+ * arrays.
+ *
+ * Decoded ByteBufs are slices of the request content and are only valid until
+ * the request completes.
+ */
+public class BinaryCodec implements BodyCodec {
+
+	private final String contentType;
+
+	/**
+	 * Create a codec for application/octet-stream.
+	 */
+	public BinaryCodec() {
+		this("application/octet-stream");
+	}
+
+	/**
+	 * Create a codec for a custom binary MIME type.
+	 */
+	public BinaryCodec(final String contentType_) {
+		contentType = contentType_;
+	}
+
+	@Override
+	public String contentType() {
+		return contentType;
+	}
+
+	@Override
+	public boolean canWrite(final Class<?> type) {
+		return BinaryMessage.class.isAssignableFrom(type)
+				|| ByteBuf.class.isAssignableFrom(type) || type == byte[].class;
+	}
+
+	@Override
+	public boolean canRead(final Class<?> type) {
+		return BinaryMessage.class.isAssignableFrom(type)
+				|| type == ByteBuf.class || type == byte[].class;
+	}
+
+	@Override
+	public void write(final Object value, final ByteBuf out) throws IOException {
+
+		if (value instanceof BinaryMessage) {
+			((BinaryMessage) value).encode(out);
+		} else if (value instanceof ByteBuf) {
+			final ByteBuf buf = (ByteBuf) value;
+			out.writeBytes(buf, buf.readerIndex(), buf.readableBytes());
+		} else if (value instanceof byte[]) {
+			out.writeBytes((byte[]) value);
+		} else {
+			throw new IOException("Unsupported type "
+					+ (value == null ? null : value.getClass()));
+		}
+
+	}
+
+	@Override
+	public <T> T read(final Class<T> type, final ByteBuf in) throws IOException {
+
+		if (type == ByteBuf.class) {
+			return type.cast(in.slice());
+		}
+
+		if (type == byte[].class) {
+			final byte[] bytes = new byte[in.readableBytes()];
+			in.getBytes(in.readerIndex(), bytes);
+			return type.cast(bytes);
+		}
+
+		if (BinaryMessage.class.isAssignableFrom(type)) {
+
+			final T message;
+
+			try {
+				message = type.newInstance();
+			} catch (final Exception e) {
+				throw new IOException("Cannot create " + type, e);
+			}
+
+			((BinaryMessage) message).decode(in);
+
+			return message;
+
+		}
+
+		throw new IOException("Unsupported type " + type);
+
+	}
+
+}
@@ -0,0 +1,31 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.codec;
+
+import io.netty.buffer.ByteBuf;
+
+import aQute.bnd.annotation.ConsumerType;
+
+/**
+ * A message with its own binary wire format, such as a fixed-layout market
+ * data record, written by BinaryCodec without intermediate copies.
+ */
+@ConsumerType
+public interface BinaryMessage {
+
+	/**
+	 * Encode this message at the writer index of the buffer.
+	 */
+	void encode(ByteBuf out);
+
+	/**
+	 * Decode this message from the readable bytes of the buffer.
+	 */
+	void decode(ByteBuf in);
+
+}
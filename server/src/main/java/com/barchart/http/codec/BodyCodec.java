@@ -0,0 +1,48 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.codec;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+
+import aQute.bnd.annotation.ConsumerType;
+
+/**
+ * Serializes objects directly to and from request and response buffers for a
+ * single MIME type.
+ */
+@ConsumerType
+public interface BodyCodec {
+
+	/**
+	 * The MIME type handled by this codec, i.e. application/json.
+	 */
+	String contentType();
+
+	/**
+	 * Check if this codec can serialize objects of the given type.
+	 */
+	boolean canWrite(Class<?> type);
+
+	/**
+	 * Check if this codec can deserialize objects of the given type.
+	 */
+	boolean canRead(Class<?> type);
+
+	/**
+	 * Serialize an object into the buffer, starting at its writer index.
+	 */
+	void write(Object value, ByteBuf out) throws IOException;
+
+	/**
+	 * Deserialize an object from the readable bytes of the buffer.
+	 */
+	<T> T read(Class<T> type, ByteBuf in) throws IOException;
+
+}
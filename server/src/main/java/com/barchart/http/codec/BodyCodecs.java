@@ -0,0 +1,158 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.codec;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Registry of body codecs with Accept / Content-Type negotiation. Codecs are
+ * tried in order of preference, most recently added first.
+ */
+public class BodyCodecs {
+
+	private final List<BodyCodec> codecs =
+			new CopyOnWriteArrayList<BodyCodec>();
+
+	/**
+	 * Add a codec, taking precedence over previously added codecs.
+	 */
+	public BodyCodecs add(final BodyCodec codec) {
+		codecs.add(0, codec);
+		return this;
+	}
+
+	/**
+	 * Remove a codec.
+	 */
+	public BodyCodecs remove(final BodyCodec codec) {
+		codecs.remove(codec);
+		return this;
+	}
+
+	/**
+	 * Get all registered codecs in order of preference.
+	 */
+	public List<BodyCodec> codecs() {
+		return codecs;
+	}
+
+	/**
+	 * Find a codec that can write the given type in a format accepted by the
+	 * client.
+	 *
+	 * @param accept
+	 *            The request Accept header, or null
+	 * @return The codec, or null if none is acceptable
+	 */
+	public BodyCodec writer(final Class<?> type, final String accept) {
+
+		if (accept == null || accept.isEmpty() || accept.equals("*/*")) {
+
+			for (final BodyCodec codec : codecs) {
+				if (codec.canWrite(type)) {
+					return codec;
+				}
+			}
+
+			return null;
+
+		}
+
+		BodyCodec best = null;
+		float bestQuality = 0;
+
+		for (final String range : accept.split(",")) {
+
+			final int semi = range.indexOf(';');
+			final String mime =
+					(semi == -1 ? range : range.substring(0, semi)).trim();
+			final float quality = semi == -1 ? 1 : quality(range, semi);
+
+			if (quality <= bestQuality) {
+				continue;
+			}
+
+			for (final BodyCodec codec : codecs) {
+				if (matches(mime, codec.contentType()) && codec.canWrite(type)) {
+					best = codec;
+					bestQuality = quality;
+					break;
+				}
+			}
+
+		}
+
+		return best;
+
+	}
+
+	/**
+	 * Find a codec that can read the given type from the request content.
+	 *
+	 * @param contentType
+	 *            The request Content-Type header, or null
+	 * @return The codec, or null if the content type is not supported
+	 */
+	public BodyCodec reader(final Class<?> type, final String contentType) {
+
+		String mime = null;
+
+		if (contentType != null) {
+			final int semi = contentType.indexOf(';');
+			mime =
+					(semi == -1 ? contentType : contentType.substring(0, semi))
+							.trim();
+		}
+
+		for (final BodyCodec codec : codecs) {
+			if ((mime == null || mime.equalsIgnoreCase(codec.contentType()))
+					&& codec.canRead(type)) {
+				return codec;
+			}
+		}
+
+		return null;
+
+	}
+
+	private static boolean matches(final String range, final String mime) {
+
+		if (range.equals("*/*")) {
+			return true;
+		}
+
+		if (range.endsWith("/*")) {
+			return mime.regionMatches(true, 0, range, 0, range.length() - 1);
+		}
+
+		return range.equalsIgnoreCase(mime);
+
+	}
+
+	private static float quality(final String range, final int semi) {
+
+		for (final String param : range.substring(semi + 1).split(";")) {
+
+			final String p = param.trim();
+
+			if (p.startsWith("q=")) {
+				try {
+					return Float.parseFloat(p.substring(2));
+				} catch (final NumberFormatException e) {
+					return 0;
+				}
+			}
+
+		}
+
+		return 1;
+
+	}
+
+}
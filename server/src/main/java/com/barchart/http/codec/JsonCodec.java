@@ -0,0 +1,679 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.codec;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streaming JSON codec for the standard Java types: maps, collections,
+ * arrays, strings, numbers, booleans, enums and null.
+ *
+ * Values are written as UTF-8 straight into the output buffer without
+ * building an intermediate String. Parsed objects are returned as
+ * LinkedHashMap, arrays as ArrayList, integers as Long (BigInteger if out of
+ * range) and decimals as Double.
+ */
+public class JsonCodec implements BodyCodec {
+
+	private static final int MAX_DEPTH = 256;
+
+	private static final byte[] NULL = { 'n', 'u', 'l', 'l' };
+	private static final byte[] TRUE = { 't', 'r', 'u', 'e' };
+	private static final byte[] FALSE = { 'f', 'a', 'l', 's', 'e' };
+	private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+	private static final byte[] MIN_LONG = Long.toString(Long.MIN_VALUE)
+			.getBytes();
+
+	/* Reusable string buffer for parsing on each event loop thread */
+	private static final ThreadLocal<StringBuilder> builders =
+			new ThreadLocal<StringBuilder>() {
+				@Override
+				protected StringBuilder initialValue() {
+					return new StringBuilder(64);
+				}
+			};
+
+	/* Reusable digit buffer for writing integers */
+	private static final ThreadLocal<byte[]> digits =
+			new ThreadLocal<byte[]>() {
+				@Override
+				protected byte[] initialValue() {
+					return new byte[20];
+				}
+			};
+
+	@Override
+	public String contentType() {
+		return "application/json";
+	}
+
+	@Override
+	public boolean canWrite(final Class<?> type) {
+		return type == Void.class || CharSequence.class.isAssignableFrom(type)
+				|| Number.class.isAssignableFrom(type) || type == Boolean.class
+				|| Map.class.isAssignableFrom(type)
+				|| Iterable.class.isAssignableFrom(type)
+				|| (type.isArray() && type != byte[].class)
+				|| type.isEnum() || type == Character.class;
+	}
+
+	@Override
+	public boolean canRead(final Class<?> type) {
+		return type == Object.class || type.isAssignableFrom(LinkedHashMap.class)
+				|| type.isAssignableFrom(ArrayList.class) || type == String.class
+				|| type == Long.class || type == Double.class
+				|| type == Number.class || type == Boolean.class;
+	}
+
+	/* Writer */
+
+	@Override
+	public void write(final Object value, final ByteBuf out) throws IOException {
+		writeValue(value, out, 0);
+	}
+
+	private void writeValue(final Object value, final ByteBuf out,
+			final int depth) throws IOException {
+
+		if (depth > MAX_DEPTH) {
+			throw new IOException("Maximum nesting depth exceeded");
+		}
+
+		if (value == null) {
+			out.writeBytes(NULL);
+		} else if (value instanceof CharSequence) {
+			writeString((CharSequence) value, out);
+		} else if (value instanceof Long || value instanceof Integer
+				|| value instanceof Short || value instanceof Byte) {
+			writeLong(((Number) value).longValue(), out);
+		} else if (value instanceof Double || value instanceof Float) {
+			writeDouble(((Number) value).doubleValue(), out);
+		} else if (value instanceof Number) {
+			writeAscii(value.toString(), out);
+		} else if (value instanceof Boolean) {
+			out.writeBytes((Boolean) value ? TRUE : FALSE);
+		} else if (value instanceof Map) {
+			writeMap((Map<?, ?>) value, out, depth);
+		} else if (value instanceof Iterable) {
+
+			out.writeByte('[');
+
+			boolean first = true;
+
+			for (final Object item : (Iterable<?>) value) {
+				if (!first) {
+					out.writeByte(',');
+				}
+				writeValue(item, out, depth + 1);
+				first = false;
+			}
+
+			out.writeByte(']');
+
+		} else if (value.getClass().isArray()) {
+
+			out.writeByte('[');
+
+			final int length = Array.getLength(value);
+
+			for (int i = 0; i < length; i++) {
+				if (i > 0) {
+					out.writeByte(',');
+				}
+				writeValue(Array.get(value, i), out, depth + 1);
+			}
+
+			out.writeByte(']');
+
+		} else if (value instanceof Enum) {
+			writeString(((Enum<?>) value).name(), out);
+		} else if (value instanceof Character) {
+			writeString(value.toString(), out);
+		} else {
+			throw new IOException("Unsupported type " + value.getClass());
+		}
+
+	}
+
+	private void writeMap(final Map<?, ?> map, final ByteBuf out,
+			final int depth) throws IOException {
+
+		out.writeByte('{');
+
+		boolean first = true;
+
+		for (final Map.Entry<?, ?> entry : map.entrySet()) {
+
+			if (!first) {
+				out.writeByte(',');
+			}
+
+			writeString(String.valueOf(entry.getKey()), out);
+			out.writeByte(':');
+			writeValue(entry.getValue(), out, depth + 1);
+
+			first = false;
+
+		}
+
+		out.writeByte('}');
+
+	}
+
+	private static void writeString(final CharSequence s, final ByteBuf out) {
+
+		final int length = s.length();
+
+		out.ensureWritable(length + 2);
+		out.writeByte('"');
+
+		for (int i = 0; i < length; i++) {
+
+			final char c = s.charAt(i);
+
+			if (c == '"' || c == '\\') {
+				out.writeByte('\\');
+				out.writeByte(c);
+			} else if (c < 0x20) {
+				switch (c) {
+					case '\n':
+						out.writeByte('\\').writeByte('n');
+						break;
+					case '\r':
+						out.writeByte('\\').writeByte('r');
+						break;
+					case '\t':
+						out.writeByte('\\').writeByte('t');
+						break;
+					default:
+						out.writeByte('\\').writeByte('u').writeByte('0')
+								.writeByte('0').writeByte(HEX[c >> 4])
+								.writeByte(HEX[c & 0xF]);
+				}
+			} else if (c < 0x80) {
+				out.writeByte(c);
+			} else if (c < 0x800) {
+				out.writeByte(0xC0 | c >> 6);
+				out.writeByte(0x80 | c & 0x3F);
+			} else if (Character.isHighSurrogate(c) && i + 1 < length
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				final int cp = Character.toCodePoint(c, s.charAt(++i));
+				out.writeByte(0xF0 | cp >> 18);
+				out.writeByte(0x80 | cp >> 12 & 0x3F);
+				out.writeByte(0x80 | cp >> 6 & 0x3F);
+				out.writeByte(0x80 | cp & 0x3F);
+			} else if (Character.isSurrogate(c)) {
+				// Unpaired surrogate
+				out.writeByte('?');
+			} else {
+				out.writeByte(0xE0 | c >> 12);
+				out.writeByte(0x80 | c >> 6 & 0x3F);
+				out.writeByte(0x80 | c & 0x3F);
+			}
+
+		}
+
+		out.writeByte('"');
+
+	}
+
+	private static void writeLong(long value, final ByteBuf out) {
+
+		if (value == Long.MIN_VALUE) {
+			out.writeBytes(MIN_LONG);
+			return;
+		}
+
+		if (value < 0) {
+			out.writeByte('-');
+			value = -value;
+		}
+
+		final byte[] buf = digits.get();
+		int pos = buf.length;
+
+		do {
+			buf[--pos] = (byte) ('0' + value % 10);
+			value /= 10;
+		} while (value > 0);
+
+		out.writeBytes(buf, pos, buf.length - pos);
+
+	}
+
+	private static void writeDouble(final double value, final ByteBuf out)
+			throws IOException {
+
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			throw new IOException("Cannot write " + value + " as JSON");
+		}
+
+		if (value == (long) value && Math.abs(value) < 1e15) {
+			writeLong((long) value, out);
+		} else {
+			writeAscii(Double.toString(value), out);
+		}
+
+	}
+
+	private static void writeAscii(final String s, final ByteBuf out) {
+		for (int i = 0; i < s.length(); i++) {
+			out.writeByte(s.charAt(i));
+		}
+	}
+
+	/* Parser */
+
+	@Override
+	public <T> T read(final Class<T> type, final ByteBuf in) throws IOException {
+
+		final Parser parser = new Parser(in);
+
+		final Object value = parser.value(0);
+
+		parser.skipWhitespace();
+
+		if (parser.pos != parser.end) {
+			throw parser.error("Unexpected trailing content");
+		}
+
+		if (value != null && type != Object.class) {
+
+			if (type == Double.class && value instanceof Number) {
+				return type.cast(((Number) value).doubleValue());
+			}
+
+			if (!type.isInstance(value)) {
+				throw new IOException("Expected " + type.getSimpleName()
+						+ " but found " + value.getClass().getSimpleName());
+			}
+
+		}
+
+		return type.cast(value);
+
+	}
+
+	private static class Parser {
+
+		private final ByteBuf in;
+		private final int end;
+		private int pos;
+
+		Parser(final ByteBuf in_) {
+			in = in_;
+			pos = in.readerIndex();
+			end = in.writerIndex();
+		}
+
+		Object value(final int depth) throws IOException {
+
+			if (depth > MAX_DEPTH) {
+				throw error("Maximum nesting depth exceeded");
+			}
+
+			skipWhitespace();
+
+			if (pos == end) {
+				throw error("Unexpected end of input");
+			}
+
+			final byte b = in.getByte(pos);
+
+			switch (b) {
+
+				case '{': {
+
+					pos++;
+
+					final Map<String, Object> map =
+							new LinkedHashMap<String, Object>();
+
+					skipWhitespace();
+
+					if (peek() == '}') {
+						pos++;
+						return map;
+					}
+
+					while (true) {
+
+						skipWhitespace();
+						expect('"');
+						final String key = string();
+
+						skipWhitespace();
+						expect(':');
+
+						map.put(key, value(depth + 1));
+
+						skipWhitespace();
+
+						if (peek() == ',') {
+							pos++;
+						} else {
+							expect('}');
+							return map;
+						}
+
+					}
+
+				}
+
+				case '[': {
+
+					pos++;
+
+					final List<Object> list = new ArrayList<Object>();
+
+					skipWhitespace();
+
+					if (peek() == ']') {
+						pos++;
+						return list;
+					}
+
+					while (true) {
+
+						list.add(value(depth + 1));
+
+						skipWhitespace();
+
+						if (peek() == ',') {
+							pos++;
+						} else {
+							expect(']');
+							return list;
+						}
+
+					}
+
+				}
+
+				case '"':
+					pos++;
+					return string();
+
+				case 't':
+					literal(TRUE);
+					return Boolean.TRUE;
+
+				case 'f':
+					literal(FALSE);
+					return Boolean.FALSE;
+
+				case 'n':
+					literal(NULL);
+					return null;
+
+				default:
+
+					if (b == '-' || (b >= '0' && b <= '9')) {
+						return number();
+					}
+
+					throw error("Unexpected character '" + (char) b + "'");
+
+			}
+
+		}
+
+		private String string() throws IOException {
+
+			final StringBuilder sb = builders.get();
+			sb.setLength(0);
+
+			while (true) {
+
+				if (pos == end) {
+					throw error("Unterminated string");
+				}
+
+				final int b = in.getByte(pos++) & 0xFF;
+
+				if (b == '"') {
+					return sb.toString();
+				}
+
+				if (b == '\\') {
+					escape(sb);
+				} else if (b < 0x80) {
+					sb.append((char) b);
+				} else if ((b & 0xE0) == 0xC0) {
+					sb.append((char) ((b & 0x1F) << 6 | continuation()));
+				} else if ((b & 0xF0) == 0xE0) {
+					sb.append((char) ((b & 0x0F) << 12 | continuation() << 6
+							| continuation()));
+				} else if ((b & 0xF8) == 0xF0) {
+					sb.appendCodePoint((b & 0x07) << 18 | continuation() << 12
+							| continuation() << 6 | continuation());
+				} else {
+					throw error("Invalid UTF-8");
+				}
+
+			}
+
+		}
+
+		private int continuation() throws IOException {
+
+			if (pos == end) {
+				throw error("Unterminated string");
+			}
+
+			final int b = in.getByte(pos++) & 0xFF;
+
+			if ((b & 0xC0) != 0x80) {
+				throw error("Invalid UTF-8");
+			}
+
+			return b & 0x3F;
+
+		}
+
+		private void escape(final StringBuilder sb) throws IOException {
+
+			if (pos == end) {
+				throw error("Unterminated string");
+			}
+
+			final byte b = in.getByte(pos++);
+
+			switch (b) {
+				case '"':
+				case '\\':
+				case '/':
+					sb.append((char) b);
+					break;
+				case 'b':
+					sb.append('\b');
+					break;
+				case 'f':
+					sb.append('\f');
+					break;
+				case 'n':
+					sb.append('\n');
+					break;
+				case 'r':
+					sb.append('\r');
+					break;
+				case 't':
+					sb.append('\t');
+					break;
+				case 'u':
+
+					if (end - pos < 4) {
+						throw error("Invalid unicode escape");
+					}
+
+					int c = 0;
+
+					for (int i = 0; i < 4; i++) {
+
+						final int digit =
+								Character.digit(in.getByte(pos++), 16);
+
+						if (digit == -1) {
+							throw error("Invalid unicode escape");
+						}
+
+						c = c << 4 | digit;
+
+					}
+
+					sb.append((char) c);
+
+					break;
+
+				default:
+					throw error("Invalid escape");
+			}
+
+		}
+
+		private Object number() throws IOException {
+
+			final int start = pos;
+			boolean decimal = false;
+
+			if (peek() == '-') {
+				pos++;
+			}
+
+			while (pos < end) {
+
+				final byte b = in.getByte(pos);
+
+				if (b >= '0' && b <= '9') {
+					pos++;
+				} else if (b == '.' || b == 'e' || b == 'E' || b == '+'
+						|| b == '-') {
+					decimal = true;
+					pos++;
+				} else {
+					break;
+				}
+
+			}
+
+			final int length = pos - start;
+
+			if (!decimal && length < 19) {
+
+				// Fast path, fits in a long
+				long value = 0;
+				boolean negative = false;
+
+				for (int i = start; i < pos; i++) {
+					final byte b = in.getByte(i);
+					if (b == '-') {
+						negative = true;
+					} else {
+						value = value * 10 + (b - '0');
+					}
+				}
+
+				if (negative && length == 1) {
+					throw error("Invalid number");
+				}
+
+				return negative ? -value : value;
+
+			}
+
+			final StringBuilder sb = builders.get();
+			sb.setLength(0);
+
+			for (int i = start; i < pos; i++) {
+				sb.append((char) in.getByte(i));
+			}
+
+			try {
+
+				if (decimal) {
+					return Double.parseDouble(sb.toString());
+				}
+
+				final BigInteger value = new BigInteger(sb.toString());
+
+				return value.bitLength() < 64 ? (Object) value.longValue()
+						: value;
+
+			} catch (final NumberFormatException e) {
+				throw error("Invalid number");
+			}
+
+		}
+
+		private void literal(final byte[] literal) throws IOException {
+
+			if (end - pos < literal.length) {
+				throw error("Unexpected end of input");
+			}
+
+			for (final byte b : literal) {
+				if (in.getByte(pos++) != b) {
+					throw error("Invalid literal");
+				}
+			}
+
+		}
+
+		private int peek() throws IOException {
+
+			if (pos == end) {
+				throw error("Unexpected end of input");
+			}
+
+			return in.getByte(pos);
+
+		}
+
+		private void expect(final char c) throws IOException {
+
+			if (peek() != c) {
+				throw error("Expected '" + c + "'");
+			}
+
+			pos++;
+
+		}
+
+		void skipWhitespace() {
+
+			while (pos < end) {
+
+				final byte b = in.getByte(pos);
+
+				if (b != ' ' && b != '\t' && b != '\n' && b != '\r') {
+					return;
+				}
+
+				pos++;
+
+			}
+
+		}
+
+		IOException error(final String message) {
+			return new IOException(message + " at offset "
+					+ (pos - in.readerIndex()));
+		}
+
+	}
+
+}
@@ -0,0 +1,34 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.error;
+
+import io.netty.handler.codec.http.HttpResponseStatus;
+
+import java.io.IOException;
+
+/**
+ * Thrown when no body codec matches the request Content-Type (415) or the
+ * client's Accept header (406).
+ */
+public class ContentNegotiationException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final HttpResponseStatus status;
+
+	public ContentNegotiationException(final HttpResponseStatus status_,
+			final String message_) {
+		super(message_);
+		status = status_;
+	}
+
+	public HttpResponseStatus getStatus() {
+		return status;
+	}
+
+}
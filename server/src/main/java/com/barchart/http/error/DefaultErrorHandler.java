@@ -7,7 +7,12 @@
  */
 package com.barchart.http.error;
 
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.util.CharsetUtil;
+
 import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -16,31 +21,64 @@ import com.barchart.http.request.ServerRequest;
 import com.barchart.http.request.ServerResponse;
 
 /**
- * Very basic default error handler.
+ * Very basic default error handler. Replaces any buffered content with a
+ * "code reason" text body, encoded once per status. Headers and cookies already
+ * set on the response are kept.
  */
 public class DefaultErrorHandler implements ErrorHandler {
 
 	private final static Logger log = LoggerFactory
 			.getLogger(DefaultErrorHandler.class);
 
+	private final ConcurrentMap<Integer, byte[]> canned =
+			new ConcurrentHashMap<Integer, byte[]>();
+
 	@Override
 	public void onError(final ServerRequest request,
 			final ServerResponse response, final Throwable cause)
 			throws IOException {
 
 		if (cause != null) {
-
 			log.warn("Uncaught exception thrown in request", cause);
-			response.write(cause.getClass()
-					+ " was thrown while processing this request.  See logs for more details.");
+		}
 
-		} else {
+		final HttpResponseStatus status = response.getStatus();
 
-			response.write("Request could not be processed.  Status code: "
-					+ response.getStatus());
+		// Chunked content already in flight, append to it
+		if (response.isChunkedEncoding()) {
+			response.write(status.code() + " " + status.reasonPhrase());
+			return;
+		}
+
+		response.resetBuffer();
+		response.setContentType("text/plain; charset=UTF-8");
+		response.write(canned(status));
+
+	}
+
+	private byte[] canned(final HttpResponseStatus status) {
+
+		// Only cache standard reason phrases
+		final boolean standard =
+				HttpResponseStatus.valueOf(status.code()).reasonPhrase()
+						.equals(status.reasonPhrase());
+
+		byte[] body = standard ? canned.get(status.code()) : null;
+
+		if (body == null) {
+
+			body =
+					(status.code() + " " + status.reasonPhrase())
+							.getBytes(CharsetUtil.UTF_8);
+
+			if (standard) {
+				canned.putIfAbsent(status.code(), body);
+			}
 
 		}
 
+		return body;
+
 	}
 
 }
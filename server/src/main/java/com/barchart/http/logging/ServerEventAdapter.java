@@ -0,0 +1,59 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.logging;
+
+import io.netty.handler.codec.http.HttpMethod;
+
+import java.net.SocketAddress;
+
+import com.barchart.http.request.ServerRequest;
+import com.barchart.http.request.ServerResponse;
+
+/**
+ * Empty ServerEventListener, for listeners interested in a few events.
+ */
+public class ServerEventAdapter implements ServerEventListener {
+
+	@Override
+	public void requestCompleted(final ServerRequest request,
+			final ServerResponse response, final String route,
+			final long duration) {
+		// Noop
+	}
+
+	@Override
+	public void slowHandler(final HttpMethod method, final String uri,
+			final String route, final Class<?> handler, final long duration) {
+		// Noop
+	}
+
+	@Override
+	public void messagePoolExhausted(final HttpMethod method, final String uri) {
+		// Noop
+	}
+
+	@Override
+	public void connectionRejected(final SocketAddress remoteAddress,
+			final int connections) {
+		// Noop
+	}
+
+	@Override
+	public void responseAborted(final ServerRequest request,
+			final ServerResponse response, final String route) {
+		// Noop
+	}
+
+	@Override
+	public void eventLoopStalled(final Thread thread, final long duration,
+			final StackTraceElement[] stack, final HttpMethod method,
+			final String uri, final String route) {
+		// Noop
+	}
+
+}
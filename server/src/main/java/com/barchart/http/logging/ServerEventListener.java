@@ -0,0 +1,91 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.logging;
+
+import io.netty.handler.codec.http.HttpMethod;
+
+import java.net.SocketAddress;
+
+import aQute.bnd.annotation.ConsumerType;
+
+import com.barchart.http.request.ServerRequest;
+import com.barchart.http.request.ServerResponse;
+
+/**
+ * Receives request lifecycle and server internals events, i.e. to commit
+ * them as JDK Flight Recorder events or record them as metrics. Called on
+ * event loop threads, so implementations must not block. When no listener is
+ * configured, the server does not measure or build anything for these
+ * events.
+ */
+@ConsumerType
+public interface ServerEventListener {
+
+	/**
+	 * A request completed. The status and byte count are available from the
+	 * response. When request timing is enabled, response.timing() splits the
+	 * duration by phase.
+	 * 
+	 * @param route
+	 *            The mapped handler prefix, or null if no handler matched
+	 * @param duration
+	 *            Nanoseconds from dispatch, or from receipt with request
+	 *            timing, to the end of the response
+	 */
+	void requestCompleted(ServerRequest request, ServerResponse response,
+			String route, long duration);
+
+	/**
+	 * The filters and handler of a request ran on the event loop for longer
+	 * than the configured slow handler threshold. The request may already
+	 * have completed, so it is identified by value.
+	 * 
+	 * @param route
+	 *            The mapped handler prefix, or null if no handler matched
+	 * @param handler
+	 *            The handler class, or null if no handler matched
+	 * @param duration
+	 *            Nanoseconds spent in the filters and handler
+	 */
+	void slowHandler(HttpMethod method, String uri, String route,
+			Class<?> handler, long duration);
+
+	/**
+	 * A request was refused with 503 because the message pool was empty.
+	 */
+	void messagePoolExhausted(HttpMethod method, String uri);
+
+	/**
+	 * A connection was refused with 503 because the connection limit was
+	 * reached.
+	 */
+	void connectionRejected(SocketAddress remoteAddress, int connections);
+
+	/**
+	 * The client disconnected before a suspended or unfinished response
+	 * completed. Called before RequestHandler.onAbort().
+	 */
+	void responseAborted(ServerRequest request, ServerResponse response,
+			String route);
+
+	/**
+	 * An event loop has not run a task for longer than the configured stall
+	 * threshold. Called from the watchdog thread while the loop is still
+	 * stalled, once per stall.
+	 * 
+	 * @param stack
+	 *            The loop thread's stack, sampled after the stall was detected
+	 * @param uri
+	 *            The URI of the request being dispatched on the loop, or null
+	 *            if the loop was not in a request handler
+	 */
+	void eventLoopStalled(Thread thread, long duration,
+			StackTraceElement[] stack, HttpMethod method, String uri,
+			String route);
+
+}
@@ -0,0 +1,68 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.request;
+
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+
+import java.io.IOException;
+
+/**
+ * Request handler that returns a future result instead of writing to a
+ * suspended response from another thread. The server suspends the response,
+ * writes the result on the channel's event loop once the future completes,
+ * and fails the request if it does not complete within the configured async
+ * timeout.
+ */
+public abstract class AsyncRequestHandler<T> extends RequestHandlerBase {
+
+	/**
+	 * Start processing a request. Called on the channel's event loop.
+	 * 
+	 * @param executor
+	 *            The channel's event loop. Promises created with
+	 *            executor.newPromise() complete the response without a thread
+	 *            hop, and completions from many requests are processed in the
+	 *            same loop iteration.
+	 * @return The result, or a failed future to send an error response
+	 */
+	public abstract Future<T> handle(ServerRequest request,
+			EventExecutor executor) throws IOException;
+
+	/**
+	 * Write a successful result, on the channel's event loop. By default sends
+	 * PrebuiltResponses as is, writes byte arrays and strings directly and
+	 * serializes other objects with the negotiated body codec. The response is
+	 * finished afterwards, unless suspended again to keep streaming.
+	 */
+	public void respond(final ServerRequest request,
+			final ServerResponse response, final T result) throws IOException {
+
+		if (result instanceof PrebuiltResponse) {
+			response.send((PrebuiltResponse) result);
+		} else if (result instanceof byte[]) {
+			response.write((byte[]) result);
+		} else if (result instanceof CharSequence) {
+			response.write(result.toString());
+		} else if (result != null) {
+			response.writeObject(result);
+		}
+
+	}
+
+	/**
+	 * Dispatch to handle() through ServerResponse.async(), so handlers that
+	 * delegate to this one get the same completion and timeout handling.
+	 */
+	@Override
+	public void onRequest(final ServerRequest request,
+			final ServerResponse response) throws IOException {
+		response.async(this);
+	}
+
+}
@@ -0,0 +1,27 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.request;
+
+import java.io.IOException;
+
+import aQute.bnd.annotation.ProviderType;
+
+/**
+ * Continuation of a request's filter chain after a filter suspended it.
+ */
+@ProviderType
+public interface FilterChain {
+
+	/**
+	 * Resume the suspended response and run the remaining filters and the
+	 * request handler on the calling thread. The response is finished
+	 * afterwards unless suspended again.
+	 */
+	void proceed() throws IOException;
+
+}
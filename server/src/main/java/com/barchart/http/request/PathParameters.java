@@ -0,0 +1,150 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.request;
+
+import io.netty.util.CharsetUtil;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Path parameters captured by a RequestURLMapper. Only segment offsets into
+ * the request URI are recorded while matching; values are cut out and
+ * percent-decoded when read. Instances are reused between requests and are
+ * not thread-safe.
+ */
+public final class PathParameters {
+
+	private static final String[] NO_NAMES = new String[0];
+
+	private String uri = null;
+	private String[] names = NO_NAMES;
+	private int[] offsets = new int[8];
+
+	/**
+	 * Clear all parameters and set the URI that offsets refer to.
+	 */
+	public void reset(final String uri_) {
+		uri = uri_;
+		names = NO_NAMES;
+	}
+
+	/**
+	 * Make room for the given number of captures.
+	 */
+	public void capacity(final int count) {
+		if (offsets.length < count * 2) {
+			final int[] grown = new int[count * 2];
+			System.arraycopy(offsets, 0, grown, 0, offsets.length);
+			offsets = grown;
+		}
+	}
+
+	/**
+	 * Record the URI range of the capture at the given index.
+	 */
+	public void set(final int index, final int start, final int end) {
+		offsets[index * 2] = start;
+		offsets[index * 2 + 1] = end;
+	}
+
+	/**
+	 * Name the captures of the matched route, in index order. Not copied.
+	 */
+	public void names(final String[] names_) {
+		names = names_;
+	}
+
+	/**
+	 * Copy the captures of another instance.
+	 */
+	public void copy(final PathParameters other) {
+		uri = other.uri;
+		names = other.names;
+		capacity(names.length);
+		System.arraycopy(other.offsets, 0, offsets, 0, names.length * 2);
+	}
+
+	/**
+	 * The number of captured parameters.
+	 */
+	public int size() {
+		return names.length;
+	}
+
+	/**
+	 * The name of the parameter at the given index.
+	 */
+	public String name(final int index) {
+		return names[index];
+	}
+
+	/**
+	 * The decoded value of the parameter at the given index.
+	 */
+	public String value(final int index) {
+		return decode(uri, offsets[index * 2], offsets[index * 2 + 1]);
+	}
+
+	/**
+	 * The decoded value of the named parameter, or null if the route did not
+	 * capture it.
+	 */
+	public String get(final String name) {
+
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].equals(name)) {
+				return value(i);
+			}
+		}
+
+		return null;
+
+	}
+
+	/* Percent-decode as UTF-8, leaving '+' alone as it is not a space in paths */
+	private static String decode(final String s, final int start,
+			final int end) {
+
+		final int pct = s.indexOf('%', start);
+
+		if (pct == -1 || pct >= end) {
+			return s.substring(start, end);
+		}
+
+		final ByteArrayOutputStream out =
+				new ByteArrayOutputStream(end - start);
+
+		for (int i = start; i < end; i++) {
+
+			final char c = s.charAt(i);
+
+			if (c == '%' && i + 2 < end) {
+				final int hi = Character.digit(s.charAt(i + 1), 16);
+				final int lo = Character.digit(s.charAt(i + 2), 16);
+				if (hi != -1 && lo != -1) {
+					out.write(hi << 4 | lo);
+					i += 2;
+					continue;
+				}
+			}
+
+			if (c < 0x80) {
+				out.write(c);
+			} else {
+				final byte[] bytes =
+						String.valueOf(c).getBytes(CharsetUtil.UTF_8);
+				out.write(bytes, 0, bytes.length);
+			}
+
+		}
+
+		return new String(out.toByteArray(), CharsetUtil.UTF_8);
+
+	}
+
+}
@@ -0,0 +1,187 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.request;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.util.CharsetUtil;
+
+import java.util.Map;
+
+/**
+ * An immutable response (status line, headers and body) encoded once into
+ * read-only direct buffers and written to clients by reference.
+ *
+ * Content-Length and Connection headers are generated, and the Date header is
+ * not sent since the encoded bytes never change.
+ */
+public final class PrebuiltResponse {
+
+	private static final byte[] CRLF = { '\r', '\n' };
+
+	/**
+	 * Default 404 response.
+	 */
+	public static final PrebuiltResponse NOT_FOUND = text(
+			HttpResponseStatus.NOT_FOUND, "404 Not Found");
+
+	/**
+	 * Default 500 response.
+	 */
+	public static final PrebuiltResponse INTERNAL_SERVER_ERROR = text(
+			HttpResponseStatus.INTERNAL_SERVER_ERROR,
+			"500 Internal Server Error");
+
+	/**
+	 * Default 503 response when the server is at its connection limit.
+	 */
+	public static final PrebuiltResponse SERVICE_UNAVAILABLE = text(
+			HttpResponseStatus.SERVICE_UNAVAILABLE,
+			"503 Service Unavailable - Server Too Busy");
+
+	private final HttpResponseStatus status;
+	private final HttpHeaders headers;
+	private final int contentLength;
+
+	/* Full wire bytes for keep-alive and closing connections */
+	private final ByteBuf keepAlive;
+	private final ByteBuf close;
+
+	/* Header length, for HEAD responses */
+	private final int keepAliveHeaderLength;
+	private final int closeHeaderLength;
+
+	/**
+	 * Create a response with the given headers and body.
+	 */
+	public PrebuiltResponse(final HttpResponseStatus status_,
+			final HttpHeaders headers_, final byte[] content) {
+
+		status = status_;
+
+		headers = new DefaultHttpHeaders();
+		headers.set(headers_);
+		headers.remove(HttpHeaders.Names.CONTENT_LENGTH);
+		headers.remove(HttpHeaders.Names.CONNECTION);
+		headers.remove(HttpHeaders.Names.TRANSFER_ENCODING);
+		headers.set(HttpHeaders.Names.CONTENT_LENGTH, content.length);
+
+		contentLength = content.length;
+
+		final ByteBuf ka = encode(HttpHeaders.Values.KEEP_ALIVE);
+		keepAliveHeaderLength = ka.readableBytes();
+		keepAlive = Unpooled.unmodifiableBuffer(ka.writeBytes(content));
+
+		final ByteBuf cl = encode(HttpHeaders.Values.CLOSE);
+		closeHeaderLength = cl.readableBytes();
+		close = Unpooled.unmodifiableBuffer(cl.writeBytes(content));
+
+	}
+
+	/**
+	 * Create a response with the given content type and body.
+	 */
+	public PrebuiltResponse(final HttpResponseStatus status_,
+			final String contentType, final byte[] content) {
+		this(status_, contentType(contentType), content);
+	}
+
+	/**
+	 * Create a text/plain response encoded as UTF-8.
+	 */
+	public static PrebuiltResponse text(final HttpResponseStatus status,
+			final String text) {
+		return new PrebuiltResponse(status, "text/plain; charset=UTF-8",
+				text.getBytes(CharsetUtil.UTF_8));
+	}
+
+	/**
+	 * The response status.
+	 */
+	public HttpResponseStatus status() {
+		return status;
+	}
+
+	/**
+	 * The encoded response headers, excluding Connection. Modifications have
+	 * no effect on the encoded response.
+	 */
+	public HttpHeaders headers() {
+		return headers;
+	}
+
+	/**
+	 * The response body length in bytes.
+	 */
+	public int contentLength() {
+		return contentLength;
+	}
+
+	/**
+	 * Get a retained read-only view of the encoded response. The caller is
+	 * responsible for releasing it, which writing it to a channel does.
+	 *
+	 * @param keepAlive_
+	 *            Whether the connection will be kept open after the response
+	 * @param head
+	 *            Omit the body for HEAD requests
+	 */
+	public ByteBuf encoded(final boolean keepAlive_, final boolean head) {
+
+		final ByteBuf buf = keepAlive_ ? keepAlive : close;
+
+		if (head) {
+			return buf.slice(0,
+					keepAlive_ ? keepAliveHeaderLength : closeHeaderLength)
+					.retain();
+		}
+
+		return buf.duplicate().retain();
+
+	}
+
+	private ByteBuf encode(final String connection) {
+
+		final ByteBuf buf = Unpooled.directBuffer(256 + contentLength);
+
+		ascii("HTTP/1.1 " + status.code() + " " + status.reasonPhrase(), buf);
+		buf.writeBytes(CRLF);
+
+		for (final Map.Entry<String, String> header : headers) {
+			ascii(header.getKey() + ": " + header.getValue(), buf);
+			buf.writeBytes(CRLF);
+		}
+
+		ascii(HttpHeaders.Names.CONNECTION + ": " + connection, buf);
+		buf.writeBytes(CRLF);
+		buf.writeBytes(CRLF);
+
+		return buf;
+
+	}
+
+	private static void ascii(final String value, final ByteBuf buf) {
+		buf.writeBytes(value.getBytes(CharsetUtil.ISO_8859_1));
+	}
+
+	private static HttpHeaders contentType(final String contentType) {
+
+		final HttpHeaders headers = new DefaultHttpHeaders();
+
+		if (contentType != null) {
+			headers.set(HttpHeaders.Names.CONTENT_TYPE, contentType);
+		}
+
+		return headers;
+
+	}
+
+}
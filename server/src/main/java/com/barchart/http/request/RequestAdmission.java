@@ -0,0 +1,33 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.request;
+
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+
+import aQute.bnd.annotation.ConsumerType;
+
+/**
+ * Optionally implemented by request handlers, handler factories and filters to
+ * reject a request on its headers alone, before the body is received. Checked
+ * for requests sending "Expect: 100-continue": the client is only told to
+ * send the body if every check on the route accepts it, filters first.
+ */
+@ConsumerType
+public interface RequestAdmission {
+
+	/**
+	 * Check whether the request body should be received. Called on the event
+	 * loop, before a ServerRequest exists, so must not block.
+	 * 
+	 * @return null to accept the request, or the final status to reject it
+	 *         with; the connection is closed after a rejection
+	 */
+	HttpResponseStatus admit(HttpRequest request);
+
+}
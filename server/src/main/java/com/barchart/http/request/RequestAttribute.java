@@ -7,12 +7,20 @@
  */
 package com.barchart.http.request;
 
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
 /**
  * An arbitrarily-valued attribute for storing in a ServerRequest object.
+ * Thread safe without locking.
  */
 public class RequestAttribute<T> {
 
-	private T value = null;
+	@SuppressWarnings("rawtypes")
+	private static final AtomicReferenceFieldUpdater<RequestAttribute, Object> VALUE =
+			AtomicReferenceFieldUpdater.newUpdater(RequestAttribute.class,
+					Object.class, "value");
+
+	private volatile T value = null;
 
 	public void set(final T value_) {
 		value = value_;
@@ -22,4 +30,41 @@ public class RequestAttribute<T> {
 		return value;
 	}
 
+	/**
+	 * Set the value and return the previous one.
+	 */
+	@SuppressWarnings("unchecked")
+	public T getAndSet(final T value_) {
+		return (T) VALUE.getAndSet(this, value_);
+	}
+
+	/**
+	 * Set the value if it is currently the expected value.
+	 */
+	public boolean compareAndSet(final T expect, final T update) {
+		return VALUE.compareAndSet(this, expect, update);
+	}
+
+	/**
+	 * Set the value if none is set, returning the existing value or null if
+	 * the value was set.
+	 */
+	public T setIfAbsent(final T value_) {
+
+		while (true) {
+
+			final T current = value;
+
+			if (current != null) {
+				return current;
+			}
+
+			if (VALUE.compareAndSet(this, null, value_)) {
+				return null;
+			}
+
+		}
+
+	}
+
 }
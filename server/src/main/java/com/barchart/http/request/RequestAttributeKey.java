@@ -7,15 +7,74 @@
  */
 package com.barchart.http.request;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
- * Key for storing and retrieving request attributes.
+ * Key for storing and retrieving request attributes. Keys are assigned an
+ * index used to look up their attribute slot, so they should be created once
+ * and shared (i.e. as static constants) rather than per request. Once all
+ * slot indexes are taken, further keys are stored in a per-request map.
  */
 public class RequestAttributeKey<T> {
 
+	/* Bounds the slot array of every pooled request */
+	private static final int MAX_INDEXED = 256;
+
+	private static final AtomicInteger count = new AtomicInteger();
+
 	protected final String name;
 
+	private final int index;
+
 	public RequestAttributeKey(final String name_) {
+		this(name_, true);
+	}
+
+	/**
+	 * @param indexed
+	 *            False for keys created dynamically (i.e. per handler
+	 *            instance), which do not take a slot index
+	 */
+	public RequestAttributeKey(final String name_, final boolean indexed) {
 		name = name_;
+		index = indexed ? nextIndex() : -1;
+	}
+
+	private static int nextIndex() {
+
+		for (;;) {
+
+			final int next = count.get();
+
+			if (next >= MAX_INDEXED) {
+				return -1;
+			}
+
+			if (count.compareAndSet(next, next + 1)) {
+				return next;
+			}
+
+		}
+
+	}
+
+	/**
+	 * The attribute slot index of this key, or -1 if it has none.
+	 */
+	public int index() {
+		return index;
+	}
+
+	/**
+	 * The number of slot indexes assigned so far.
+	 */
+	public static int count() {
+		return count.get();
+	}
+
+	@Override
+	public String toString() {
+		return name;
 	}
 
 }
@@ -0,0 +1,33 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.request;
+
+import java.io.IOException;
+
+import aQute.bnd.annotation.ConsumerType;
+
+/**
+ * Request interceptor for cross-cutting concerns like authentication, CORS
+ * and validation, run in order before the request handler.
+ */
+@ConsumerType
+public interface RequestFilter {
+
+	/**
+	 * Filter an inbound request.
+	 * 
+	 * To short-circuit, write or finish the response and return false. To
+	 * continue asynchronously, suspend the response, return false and call
+	 * chain.proceed() once done.
+	 * 
+	 * @return True to continue to the next filter and the request handler
+	 */
+	boolean filter(ServerRequest request, ServerResponse response,
+			FilterChain chain) throws IOException;
+
+}
@@ -7,28 +7,76 @@
  */
 package com.barchart.http.request;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Convenience tuple for returning the results of a RequestHandler / path prefix
  * lookup.
  */
 public class RequestHandlerMapping {
 
+	private static final RequestFilter[] NO_FILTERS = new RequestFilter[0];
+	private static final RequestAdmission[] NO_ADMISSIONS =
+			new RequestAdmission[0];
+
 	private final String path;
 	private final RequestHandler handler;
 	private final RequestHandlerFactory factory;
+	private final PrebuiltResponse response;
+	private final RequestFilter[] filters;
+	private final RequestAdmission[] admissions;
 
 	public RequestHandlerMapping(final String path_,
 			final RequestHandler handler_) {
-		path = path_;
-		handler = handler_;
-		factory = null;
+		this(path_, handler_, null, null, NO_FILTERS);
 	}
 
 	public RequestHandlerMapping(final String path_,
 			final RequestHandlerFactory factory_) {
+		this(path_, null, factory_, null, NO_FILTERS);
+	}
+
+	public RequestHandlerMapping(final String path_,
+			final PrebuiltResponse response_) {
+		this(path_, null, null, response_, NO_FILTERS);
+	}
+
+	private RequestHandlerMapping(final String path_,
+			final RequestHandler handler_,
+			final RequestHandlerFactory factory_,
+			final PrebuiltResponse response_, final RequestFilter[] filters_) {
 		path = path_;
-		handler = null;
+		handler = handler_;
 		factory = factory_;
+		response = response_;
+		filters = filters_;
+		admissions = admissions(filters_, handler_, factory_);
+	}
+
+	private static RequestAdmission[] admissions(
+			final RequestFilter[] filters, final Object handler,
+			final Object factory) {
+
+		final List<RequestAdmission> list = new ArrayList<RequestAdmission>();
+
+		for (final RequestFilter filter : filters) {
+			if (filter instanceof RequestAdmission) {
+				list.add((RequestAdmission) filter);
+			}
+		}
+
+		if (handler instanceof RequestAdmission) {
+			list.add((RequestAdmission) handler);
+		}
+
+		if (factory instanceof RequestAdmission) {
+			list.add((RequestAdmission) factory);
+		}
+
+		return list.isEmpty() ? NO_ADMISSIONS : list
+				.toArray(new RequestAdmission[list.size()]);
+
 	}
 
 	public String path() {
@@ -41,10 +89,46 @@ public class RequestHandlerMapping {
 			return handler;
 		}
 
+		if (factory == null) {
+			return null;
+		}
+
 		return factory.newHandler(request);
 
 	}
 
+	/**
+	 * The static response for this path, or null if it is served by a request
+	 * handler.
+	 */
+	public PrebuiltResponse response() {
+		return response;
+	}
+
+	/**
+	 * The filters to run before the request handler, in order. Not copied,
+	 * must not be modified.
+	 */
+	public RequestFilter[] filters() {
+		return filters;
+	}
+
+	/**
+	 * The filters, handler and handler factory of this mapping that implement
+	 * RequestAdmission, in that order. Not copied, must not be modified.
+	 */
+	public RequestAdmission[] admissions() {
+		return admissions;
+	}
+
+	/**
+	 * Copy of this mapping with the given filters.
+	 */
+	public RequestHandlerMapping filters(final RequestFilter[] filters_) {
+		return new RequestHandlerMapping(path, handler, factory, response,
+				filters_.length == 0 ? NO_FILTERS : filters_);
+	}
+
 	public static RequestHandlerMapping create(final String path_,
 			final Object handler_) {
 
@@ -52,6 +136,10 @@ public class RequestHandlerMapping {
 			return new RequestHandlerMapping(path_, (RequestHandler) handler_);
 		}
 
+		if (handler_ instanceof PrebuiltResponse) {
+			return new RequestHandlerMapping(path_, (PrebuiltResponse) handler_);
+		}
+
 		return new RequestHandlerMapping(path_,
 				(RequestHandlerFactory) handler_);
 
@@ -0,0 +1,80 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.request;
+
+import io.netty.handler.codec.http.HttpHeaders;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+import aQute.bnd.annotation.ProviderType;
+
+/**
+ * A single part of a multipart/form-data request. Small parts are kept in
+ * memory, larger ones are stored in a temporary file which is deleted when the
+ * request completes unless it has been moved with moveTo().
+ */
+@ProviderType
+public interface RequestPart {
+
+	/**
+	 * The form field name from the Content-Disposition header.
+	 */
+	String getName();
+
+	/**
+	 * The submitted file name, or null if this part is not a file upload.
+	 */
+	String getFilename();
+
+	/**
+	 * The part content MIME type, or null if not specified.
+	 */
+	String getContentType();
+
+	/**
+	 * The part headers.
+	 */
+	HttpHeaders headers();
+
+	/**
+	 * The length of the part content in bytes.
+	 */
+	long getSize();
+
+	/**
+	 * True if the part content is held in memory, false if it was stored to
+	 * disk.
+	 */
+	boolean isInMemory();
+
+	/**
+	 * Get an input stream for reading the part content.
+	 */
+	InputStream getInputStream() throws IOException;
+
+	/**
+	 * Get the part content as a string.
+	 */
+	String getString(Charset charset) throws IOException;
+
+	/**
+	 * The temporary file holding the part content, or null if it is held in
+	 * memory.
+	 */
+	File getFile();
+
+	/**
+	 * Move the part content to the given file. The content is no longer
+	 * deleted when the request completes.
+	 */
+	void moveTo(File destination) throws IOException;
+
+}
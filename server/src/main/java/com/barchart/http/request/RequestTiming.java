@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.request;
+
+import aQute.bnd.annotation.ProviderType;
+
+/**
+ * Timeline of a single request, recorded with System.nanoTime() when request
+ * timing is enabled in the server config.
+ */
+@ProviderType
+public interface RequestTiming {
+
+	/**
+	 * Request processing phases, in order.
+	 */
+	enum Phase {
+
+		/**
+		 * First bytes of the request read from the socket.
+		 */
+		RECEIVED,
+
+		/**
+		 * Request line and headers decoded.
+		 */
+		DECODED,
+
+		/**
+		 * Request body aggregated and dispatched to the server.
+		 */
+		AGGREGATED,
+
+		/**
+		 * Request handler invoked.
+		 */
+		HANDLER_START,
+
+		/**
+		 * Request handler returned.
+		 */
+		HANDLER_RETURN,
+
+		/**
+		 * Response suspended for asynchronous completion.
+		 */
+		SUSPENDED,
+
+		/**
+		 * Response finished by the handler.
+		 */
+		FINISHED,
+
+		/**
+		 * Last byte of the response written to the socket.
+		 */
+		WRITTEN
+
+	}
+
+	/**
+	 * Get the System.nanoTime() value when the given phase was reached, or 0
+	 * if it was not reached.
+	 */
+	long time(Phase phase);
+
+	/**
+	 * Get the nanoseconds elapsed between two phases, or -1 if either was not
+	 * reached.
+	 */
+	long elapsed(Phase from, Phase to);
+
+	/**
+	 * Get the nanoseconds from receiving the request to writing the response,
+	 * or -1 if the response was not written.
+	 */
+	long total();
+
+}
@@ -7,14 +7,28 @@
  */
 package com.barchart.http.request;
 
+import io.netty.handler.codec.http.HttpMethod;
+
 import aQute.bnd.annotation.ConsumerType;
 
 @ConsumerType
 public interface RequestURLMapper {
 
 	/**
-	 * Find the correct request handler for the given request URI.
+	 * Find the correct request handler for the given request method and URI,
+	 * recording any captured path parameters. Returns null if nothing
+	 * matches, in which case the prefix handlers are tried.
+	 * 
+	 * The returned mapping's path is treated as the handler prefix, see
+	 * ServerRequest.getPathInfo(). Mappings should be created once and reused,
+	 * since filter chains are resolved and cached per mapping instance; once
+	 * the cache is full, further instances are resolved on every request.
+	 * 
+	 * @param params
+	 *            Empty on entry and reset to the request URI, called on the
+	 *            event loop
 	 */
-	RequestHandlerMapping getHandlerFor(String uri);
+	RequestHandlerMapping getHandlerFor(HttpMethod method, String uri,
+			PathParameters params);
 
 }
@@ -14,6 +14,7 @@ import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpVersion;
 
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetSocketAddress;
 import java.nio.charset.Charset;
@@ -22,6 +23,8 @@ import java.util.Map;
 
 import aQute.bnd.annotation.ProviderType;
 
+import com.barchart.http.error.ContentNegotiationException;
+
 /**
  * Information about an inbound request.
  */
@@ -68,6 +71,17 @@ public interface ServerRequest extends ServerMessage, HttpRequest {
 	 */
 	String getPathInfo();
 
+	/**
+	 * The decoded value of a path parameter captured by the URL mapper (see
+	 * TemplateURLMapper), or null if the matched route has none by that name.
+	 */
+	String pathParam(String name);
+
+	/**
+	 * All path parameters captured by the URL mapper.
+	 */
+	PathParameters pathParams();
+
 	/**
 	 * The protocol scheme (http, https, etc)
 	 */
@@ -85,12 +99,14 @@ public interface ServerRequest extends ServerMessage, HttpRequest {
 	String getServerHost();
 
 	/**
-	 * The local IP address of the server.
+	 * The local IP address of the server, or null for Unix domain socket and
+	 * in-VM connections.
 	 */
 	InetSocketAddress getServerAddress();
 
 	/**
-	 * The remote client's IP address.
+	 * The remote client's IP address, or null for Unix domain socket and in-VM
+	 * connections.
 	 */
 	InetSocketAddress getRemoteAddress();
 
@@ -116,6 +132,17 @@ public interface ServerRequest extends ServerMessage, HttpRequest {
 	 */
 	List<String> getParameterList(String name);
 
+	/**
+	 * Get the parts of a multipart/form-data request, in the order received.
+	 * Requires streaming uploads to be enabled in the server configuration.
+	 */
+	List<RequestPart> getParts();
+
+	/**
+	 * Get a multipart/form-data part by field name.
+	 */
+	RequestPart getPart(String name);
+
 	/**
 	 * Get all active cookies for this request.
 	 */
@@ -163,6 +190,16 @@ public interface ServerRequest extends ServerMessage, HttpRequest {
 	 */
 	BufferedReader getReader();
 
+	/**
+	 * Deserialize the request body with the body codec registered for the
+	 * request Content-Type.
+	 *
+	 * @throws ContentNegotiationException
+	 *             If no codec supports the content type (415 Unsupported
+	 *             Media Type)
+	 */
+	<T> T readObject(Class<T> type) throws IOException;
+
 	/* Request attributes */
 
 	/**
@@ -7,6 +7,7 @@
  */
 package com.barchart.http.request;
 
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelFuture;
 import io.netty.handler.codec.http.Cookie;
 import io.netty.handler.codec.http.HttpResponse;
@@ -20,6 +21,8 @@ import java.nio.charset.Charset;
 
 import aQute.bnd.annotation.ProviderType;
 
+import com.barchart.http.error.ContentNegotiationException;
+
 /**
  * Encapsulates a response to an inbound ServerRequest.
  */
@@ -39,6 +42,22 @@ public interface ServerResponse extends ServerMessage, HttpResponse {
 
 	void setChunkedEncoding(final boolean chunked);
 
+	/**
+	 * Generate a strong ETag for a complete 200 response by hashing its body
+	 * when it is finished, and send an empty 304 Not Modified instead if it
+	 * matches the request's If-None-Match. Has no effect on chunked responses
+	 * or if an ETag is already set. Enable per route with ETagFilter.
+	 */
+	void setAutoETag(boolean enabled);
+
+	/**
+	 * Set an ETag known before rendering, i.e. from a resource version, quoted
+	 * if not already. If it matches the If-None-Match of a GET or HEAD
+	 * request, the status is set to 304 Not Modified and true is returned: the
+	 * handler can skip rendering and finish the response without a body.
+	 */
+	boolean checkETag(String etag);
+
 	/**
 	 * Send a cookie to the client.
 	 */
@@ -89,6 +108,14 @@ public interface ServerResponse extends ServerMessage, HttpResponse {
 	 */
 	Writer getWriter();
 
+	/**
+	 * Discard any buffered content, keeping the status, headers and cookies.
+	 *
+	 * @throws IllegalStateException
+	 *             If the response has already been started or is chunked
+	 */
+	void resetBuffer();
+
 	/**
 	 * Write a string to the client.
 	 */
@@ -104,6 +131,23 @@ public interface ServerResponse extends ServerMessage, HttpResponse {
 	 */
 	void write(byte[] data, int offset, int length) throws IOException;
 
+	/**
+	 * Write a buffer to the client. Takes ownership of the buffer, which is
+	 * released once written. With chunked encoding the buffer is sent as its
+	 * own chunk without copying.
+	 */
+	void write(ByteBuf data) throws IOException;
+
+	/**
+	 * Serialize an object to the client with the first registered body codec
+	 * that supports its type and is acceptable to the client (Accept header),
+	 * and set the Content-Type accordingly.
+	 *
+	 * @throws ContentNegotiationException
+	 *             If no acceptable codec is available (406 Not Acceptable)
+	 */
+	void writeObject(Object value) throws IOException;
+
 	/**
 	 * Get the number of bytes written to the client for this response.
 	 */
@@ -126,12 +170,36 @@ public interface ServerResponse extends ServerMessage, HttpResponse {
 	 */
 	boolean isSuspended();
 
+	/**
+	 * Suspend this response and complete it with the result of
+	 * handler.handle(), written by handler.respond() on the channel's event
+	 * loop. The request fails if the result does not complete within the
+	 * configured async timeout.
+	 */
+	<T> void async(AsyncRequestHandler<T> handler) throws IOException;
+
+	/**
+	 * Get the timeline of this request, or null if request timing is not
+	 * enabled. When enabled, the request logger and RequestHandler.onComplete()
+	 * are called after the response has been written to the socket.
+	 */
+	RequestTiming timing();
+
 	/**
 	 * Mark this response as finished, and release any resources associated with
 	 * it.
 	 */
 	ChannelFuture finish() throws IOException;
 
+	/**
+	 * Send a prebuilt response in place of this one and finish. Any status,
+	 * headers and content set on this response are discarded.
+	 *
+	 * @throws IllegalStateException
+	 *             If the response has already been started
+	 */
+	ChannelFuture send(PrebuiltResponse response) throws IOException;
+
 	/**
 	 * Check if this response has been finished.
 	 */
@@ -0,0 +1,27 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.server;
+
+import aQute.bnd.annotation.ConsumerType;
+
+/**
+ * Binds event loop threads to CPUs.
+ */
+@ConsumerType
+public interface AffinityStrategy {
+
+	/**
+	 * Called from each new event loop thread before it starts processing
+	 * events.
+	 *
+	 * @param index
+	 *            The thread index within its event loop group
+	 */
+	void pin(int index);
+
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.server;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.util.concurrent.DefaultPromise;
+import io.netty.util.concurrent.GlobalEventExecutor;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Completes when all client connections have closed during a graceful
+ * shutdown, with progress counts for monitoring.
+ */
+public class DrainFuture extends DefaultPromise<Void> {
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicInteger idle = new AtomicInteger();
+	private final AtomicInteger closed = new AtomicInteger();
+	private final AtomicInteger remaining = new AtomicInteger(1);
+
+	DrainFuture() {
+		super(GlobalEventExecutor.INSTANCE);
+	}
+
+	/**
+	 * Connections with a response still in progress.
+	 */
+	public int inFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * Idle keep-alive connections waiting to be closed.
+	 */
+	public int idle() {
+		return idle.get();
+	}
+
+	/**
+	 * Connections closed since draining started.
+	 */
+	public int closed() {
+		return closed.get();
+	}
+
+	/**
+	 * Register a connection to be tracked.
+	 */
+	void add() {
+		remaining.incrementAndGet();
+	}
+
+	/**
+	 * Track a registered connection until it closes.
+	 */
+	void track(final Channel channel, final boolean active) {
+
+		final AtomicInteger counter = active ? inFlight : idle;
+
+		counter.incrementAndGet();
+
+		channel.closeFuture().addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(final ChannelFuture future) {
+				counter.decrementAndGet();
+				closed.incrementAndGet();
+				done();
+			}
+		});
+
+	}
+
+	/**
+	 * Count down one tracked connection (or the initial registration guard),
+	 * completing the future once none remain.
+	 */
+	void done() {
+		if (remaining.decrementAndGet() == 0) {
+			trySuccess(null);
+		}
+	}
+
+}
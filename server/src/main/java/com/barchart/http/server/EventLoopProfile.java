@@ -0,0 +1,186 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.server;
+
+import io.netty.channel.nio.NioEventLoopGroup;
+
+import java.nio.channels.spi.SelectorProvider;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Event loop tuning for the request handler threads. The default throughput
+ * profile is a standard NIO event loop group; the low latency profile
+ * busy-polls the selector before blocking and gives all loop time to I/O,
+ * optionally pinning each thread to a dedicated CPU.
+ */
+public class EventLoopProfile {
+
+	private int threads = 0;
+	private int ioRatio = 50;
+	private long spinNanos = 0;
+	private AffinityStrategy affinity = null;
+	private String name = "barchart-http";
+
+	/**
+	 * Standard NIO event loops, one per core.
+	 */
+	public static EventLoopProfile throughput() {
+		return new EventLoopProfile();
+	}
+
+	/**
+	 * Busy-poll for 50us before blocking, and run tasks only after I/O is
+	 * processed.
+	 */
+	public static EventLoopProfile lowLatency() {
+		return new EventLoopProfile().ioRatio(100).spin(50,
+				TimeUnit.MICROSECONDS);
+	}
+
+	/**
+	 * Set the number of event loop threads. Defaults to 0 (Netty default,
+	 * twice the number of cores).
+	 */
+	public EventLoopProfile threads(final int threads_) {
+		threads = threads_;
+		return this;
+	}
+
+	/**
+	 * Set the percentage of loop time spent on I/O versus queued tasks.
+	 */
+	public EventLoopProfile ioRatio(final int ioRatio_) {
+
+		if (ioRatio_ <= 0 || ioRatio_ > 100) {
+			throw new IllegalArgumentException("ioRatio: " + ioRatio_);
+		}
+
+		ioRatio = ioRatio_;
+		return this;
+
+	}
+
+	/**
+	 * Set how long an idle event loop polls without blocking before waiting
+	 * on the selector. Spinning keeps a core busy but avoids the wakeup cost
+	 * of a blocking select. Defaults to 0 (no spinning).
+	 */
+	public EventLoopProfile spin(final long time, final TimeUnit unit) {
+		spinNanos = unit.toNanos(time);
+		return this;
+	}
+
+	/**
+	 * Set the CPU affinity strategy for event loop threads. Defaults to null
+	 * (not pinned).
+	 */
+	public EventLoopProfile affinity(final AffinityStrategy affinity_) {
+		affinity = affinity_;
+		return this;
+	}
+
+	/**
+	 * Set the event loop thread name prefix.
+	 */
+	public EventLoopProfile name(final String name_) {
+		name = name_;
+		return this;
+	}
+
+	/**
+	 * Get the number of event loop threads.
+	 */
+	public int threads() {
+		return threads;
+	}
+
+	/**
+	 * Get the I/O time percentage.
+	 */
+	public int ioRatio() {
+		return ioRatio;
+	}
+
+	/**
+	 * Get the selector spin time in nanoseconds.
+	 */
+	public long spinNanos() {
+		return spinNanos;
+	}
+
+	/**
+	 * Get the CPU affinity strategy.
+	 */
+	public AffinityStrategy affinity() {
+		return affinity;
+	}
+
+	/**
+	 * Get the thread name prefix.
+	 */
+	public String name() {
+		return name;
+	}
+
+	/**
+	 * Create a new event loop group with this profile.
+	 */
+	public NioEventLoopGroup create() {
+
+		final SelectorProvider provider =
+				spinNanos > 0 ? new SpinSelectorProvider(spinNanos)
+						: SelectorProvider.provider();
+
+		final NioEventLoopGroup group =
+				new NioEventLoopGroup(threads, new LoopThreadFactory(name,
+						affinity), provider);
+
+		group.setIoRatio(ioRatio);
+
+		return group;
+
+	}
+
+	private static class LoopThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		private final String name;
+		private final AffinityStrategy affinity;
+
+		LoopThreadFactory(final String name_, final AffinityStrategy affinity_) {
+			name = name_;
+			affinity = affinity_;
+		}
+
+		@Override
+		public Thread newThread(final Runnable r) {
+
+			final int index = count.getAndIncrement();
+
+			final Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					if (affinity != null) {
+						affinity.pin(index);
+					}
+					r.run();
+				}
+			}, name + "-" + index);
+
+			thread.setDaemon(false);
+
+			return thread;
+
+		}
+
+	}
+
+}
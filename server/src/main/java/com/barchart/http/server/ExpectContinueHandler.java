@@ -0,0 +1,157 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.server;
+
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.ReferenceCountUtil;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.barchart.http.request.PathParameters;
+import com.barchart.http.request.RequestAdmission;
+import com.barchart.http.request.RequestHandlerMapping;
+
+/**
+ * Answers "Expect: 100-continue" before the body is aggregated. The request
+ * route and its RequestAdmission checks decide on the headers alone whether
+ * the client may send the body; rejected requests get a final response and
+ * the connection is closed without reading the body. Other messages are
+ * passed on as they are.
+ */
+class ExpectContinueHandler extends ChannelInboundHandlerAdapter {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(ExpectContinueHandler.class);
+
+	private final HttpServerConfig config;
+
+	/* Set after a rejected request, until the connection closes */
+	private boolean discarding = false;
+
+	ExpectContinueHandler(final HttpServerConfig config_) {
+		config = config_;
+	}
+
+	@Override
+	public void channelRead(final ChannelHandlerContext ctx, final Object msg)
+			throws Exception {
+
+		if (discarding) {
+			ReferenceCountUtil.release(msg);
+			return;
+		}
+
+		if (msg instanceof HttpRequest
+				&& HttpHeaders.is100ContinueExpected((HttpRequest) msg)) {
+
+			final HttpRequest request = (HttpRequest) msg;
+
+			// Answered here, the aggregator must not send its own
+			request.headers().remove(HttpHeaders.Names.EXPECT);
+
+			final HttpResponseStatus status = admit(config, request);
+
+			if (status != null) {
+				discarding = true;
+				ReferenceCountUtil.release(msg);
+				reject(ctx, status);
+				return;
+			}
+
+			ctx.writeAndFlush(new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+					HttpResponseStatus.CONTINUE));
+
+		}
+
+		ctx.fireChannelRead(msg);
+
+	}
+
+	/**
+	 * Run the admission checks of the request's route.
+	 * 
+	 * @return null if the body should be received, or the status to reject
+	 *         the request with
+	 */
+	static HttpResponseStatus admit(final HttpServerConfig config,
+			final HttpRequest request) {
+
+		// Reset again when the request is dispatched
+		final PathParameters params =
+				HttpRequestChannelHandler.PATH_PARAMS.get();
+		params.reset(request.getUri());
+
+		final RequestHandlerMapping mapping =
+				config.getVirtualHost(HttpHeaders.getHost(request, null))
+						.getRequestMapping(request.getMethod(),
+								request.getUri(), params);
+
+		if (mapping == null) {
+			return HttpResponseStatus.NOT_FOUND;
+		}
+
+		// Streamed uploads are limited by maxUploadSize instead
+		final long maxSize =
+				config.maxUploadSize() > 0
+						&& MultipartUploadHandler.boundary(request) != null ? config
+						.maxUploadSize() : config.maxRequestSize();
+
+		if (HttpHeaders.getContentLength(request, -1) > maxSize) {
+			return HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE;
+		}
+
+		try {
+
+			for (final RequestAdmission admission : mapping.admissions()) {
+
+				final HttpResponseStatus status = admission.admit(request);
+
+				if (status != null) {
+					return status;
+				}
+
+			}
+
+		} catch (final RuntimeException e) {
+			log.warn("Admission check failed", e);
+			return HttpResponseStatus.INTERNAL_SERVER_ERROR;
+		}
+
+		return null;
+
+	}
+
+	/**
+	 * Send a final response and close, without reading any further input.
+	 */
+	static void reject(final ChannelHandlerContext ctx,
+			final HttpResponseStatus status) {
+
+		ctx.channel().config().setAutoRead(false);
+
+		final FullHttpResponse response =
+				new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status);
+
+		response.headers().set(ResponseHeaders.CONTENT_LENGTH, 0);
+		response.headers().set(ResponseHeaders.CONNECTION,
+				ResponseHeaders.CLOSE);
+
+		ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+
+	}
+
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.server;
+
+import java.io.IOException;
+
+import com.barchart.http.request.FilterChain;
+import com.barchart.http.request.RequestFilter;
+import com.barchart.http.request.RequestHandler;
+
+/**
+ * Runs a route's precompiled filters and then its request handler. Reused
+ * with its pooled response, so dispatch does not allocate. Not thread safe.
+ */
+class FilterInvocation implements FilterChain {
+
+	private final PooledServerResponse response;
+
+	private HttpRequestChannelHandler channelHandler;
+	private PooledServerRequest request;
+	private RequestHandler handler;
+
+	private RequestFilter[] filters;
+	private int index;
+
+	/* Response generation while the chain may be suspended in a filter, or
+	 * -1. Continuations of an earlier request are dropped. */
+	private volatile long pending = -1;
+
+	FilterInvocation(final PooledServerResponse response_) {
+		response = response_;
+	}
+
+	void init(final HttpRequestChannelHandler channelHandler_,
+			final PooledServerRequest request_, final RequestHandler handler_) {
+		channelHandler = channelHandler_;
+		request = request_;
+		handler = handler_;
+	}
+
+	/**
+	 * Run the filter chain from the start.
+	 */
+	void start(final RequestFilter[] filters_) throws IOException {
+		filters = filters_;
+		index = 0;
+		pending = -1;
+		invoke();
+	}
+
+	private void invoke() throws IOException {
+
+		while (index < filters.length) {
+
+			// Set first, proceed() may be called before the filter returns
+			pending = response.generation();
+
+			if (!filters[index++].filter(request, response, this)
+					|| response.isFinished()) {
+				return;
+			}
+
+		}
+
+		pending = -1;
+
+		handler.onRequest(request, response);
+
+	}
+
+	@Override
+	public void proceed() throws IOException {
+
+		if (filters == null || index == 0) {
+			throw new IllegalStateException("Filter chain not started");
+		}
+
+		// Aborted and recycled, or already continued
+		if (pending != response.generation() || response.isFinished()) {
+			return;
+		}
+
+		pending = -1;
+
+		response.resume();
+
+		try {
+			invoke();
+		} catch (final Throwable t) {
+			channelHandler.failed(request, response, t);
+		} finally {
+			if (!response.isFinished() && !response.isSuspended()) {
+				response.finish();
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,191 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.FileRegion;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Defers flushes so that multiple responses (pipelined requests, chunks
+ * written in quick succession) go out in a single write syscall.
+ *
+ * Flushes requested while a read batch is in progress are performed once when
+ * the batch completes. Flushes requested outside of a read (i.e. from async
+ * handlers) are performed at the end of the current event loop iteration, or
+ * after the maximum delay if one is configured. Pending data is flushed
+ * immediately once it exceeds the maximum pending bytes.
+ *
+ * Must be the first handler in the pipeline, so it sees encoded data. Not
+ * sharable.
+ */
+public class FlushConsolidator extends ChannelDuplexHandler {
+
+	private final int maxPendingBytes;
+	private final long maxDelay;
+
+	private ChannelHandlerContext context;
+
+	private boolean reading = false;
+	private boolean flushPending = false;
+	private long pendingBytes = 0;
+
+	/* Deferred flush task state */
+	private boolean taskPending = false;
+	private ScheduledFuture<?> timer = null;
+
+	private final Runnable flushTask = new Runnable() {
+		@Override
+		public void run() {
+			taskPending = false;
+			timer = null;
+			flushIfPending();
+		}
+	};
+
+	/**
+	 * Create a new flush consolidator.
+	 *
+	 * @param maxPendingBytes_
+	 *            Flush immediately once this many bytes have been written
+	 *            since the last flush
+	 * @param maxDelay_
+	 *            Maximum time to defer a flush outside of a read batch in
+	 *            nanoseconds, 0 to flush at the end of the current event loop
+	 *            iteration
+	 */
+	public FlushConsolidator(final int maxPendingBytes_, final long maxDelay_) {
+		maxPendingBytes = maxPendingBytes_;
+		maxDelay = maxDelay_;
+	}
+
+	@Override
+	public void handlerAdded(final ChannelHandlerContext ctx) {
+		context = ctx;
+	}
+
+	@Override
+	public void handlerRemoved(final ChannelHandlerContext ctx) {
+		flushIfPending();
+	}
+
+	@Override
+	public void channelRead(final ChannelHandlerContext ctx, final Object msg)
+			throws Exception {
+		reading = true;
+		ctx.fireChannelRead(msg);
+	}
+
+	@Override
+	public void channelReadComplete(final ChannelHandlerContext ctx)
+			throws Exception {
+
+		ctx.fireChannelReadComplete();
+
+		// Flush everything written during the read batch at once
+		reading = false;
+		flushIfPending();
+
+	}
+
+	@Override
+	public void write(final ChannelHandlerContext ctx, final Object msg,
+			final ChannelPromise promise) throws Exception {
+
+		if (msg instanceof ByteBuf) {
+			pendingBytes += ((ByteBuf) msg).readableBytes();
+		} else if (msg instanceof ByteBufHolder) {
+			pendingBytes += ((ByteBufHolder) msg).content().readableBytes();
+		} else if (msg instanceof FileRegion) {
+			pendingBytes += ((FileRegion) msg).count();
+		}
+
+		ctx.write(msg, promise);
+
+	}
+
+	@Override
+	public void flush(final ChannelHandlerContext ctx) throws Exception {
+
+		flushPending = true;
+
+		if (pendingBytes >= maxPendingBytes) {
+			flushIfPending();
+		} else if (!reading && !taskPending) {
+
+			taskPending = true;
+
+			if (maxDelay > 0) {
+				timer =
+						ctx.executor().schedule(flushTask, maxDelay,
+								TimeUnit.NANOSECONDS);
+			} else {
+				ctx.executor().execute(flushTask);
+			}
+
+		}
+
+	}
+
+	@Override
+	public void channelWritabilityChanged(final ChannelHandlerContext ctx)
+			throws Exception {
+
+		if (!ctx.channel().isWritable()) {
+			// Buffer is full, let the transport start draining it
+			flushIfPending();
+		}
+
+		ctx.fireChannelWritabilityChanged();
+
+	}
+
+	@Override
+	public void exceptionCaught(final ChannelHandlerContext ctx,
+			final Throwable cause) throws Exception {
+		flushIfPending();
+		ctx.fireExceptionCaught(cause);
+	}
+
+	@Override
+	public void disconnect(final ChannelHandlerContext ctx,
+			final ChannelPromise promise) throws Exception {
+		flushIfPending();
+		ctx.disconnect(promise);
+	}
+
+	@Override
+	public void close(final ChannelHandlerContext ctx,
+			final ChannelPromise promise) throws Exception {
+		flushIfPending();
+		ctx.close(promise);
+	}
+
+	private void flushIfPending() {
+
+		if (timer != null) {
+			timer.cancel(false);
+			timer = null;
+			taskPending = false;
+		}
+
+		if (flushPending) {
+			flushPending = false;
+			pendingBytes = 0;
+			context.flush();
+		}
+
+	}
+
+}
@@ -0,0 +1,296 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.server;
+
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaders;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Read-mostly header view over a FlyweightHttpRequest. Lookups scan the
+ * recorded header offsets and only create a String for the returned value. The
+ * first modification copies all headers into a regular DefaultHttpHeaders
+ * instance which is used from then on.
+ */
+class FlyweightHttpHeaders extends HttpHeaders {
+
+	private final FlyweightHttpRequest request;
+
+	private DefaultHttpHeaders materialized = null;
+
+	FlyweightHttpHeaders(final FlyweightHttpRequest request_) {
+		request = request_;
+	}
+
+	void reset() {
+		materialized = null;
+	}
+
+	private HttpHeaders materialize() {
+
+		if (materialized == null) {
+
+			materialized = new DefaultHttpHeaders(false);
+
+			final int count = request.fieldCount();
+
+			for (int f = 0; f < count; f++) {
+				materialized.add(request.name(f), request.value(f));
+			}
+
+		}
+
+		return materialized;
+
+	}
+
+	/**
+	 * Check if the comma-separated token list of the given header contains a
+	 * token (case insensitive). Strings are only created if the header is
+	 * present.
+	 */
+	boolean containsToken(final CharSequence name, final String token) {
+
+		for (final String element : tokens(name)) {
+			if (element.equalsIgnoreCase(token)) {
+				return true;
+			}
+		}
+
+		return false;
+
+	}
+
+	/**
+	 * Get the comma-separated tokens of every field with the given name, in
+	 * order and trimmed. Empty elements are skipped.
+	 */
+	List<String> tokens(final CharSequence name) {
+
+		final List<String> values = getAll(name);
+
+		if (values.isEmpty()) {
+			return Collections.emptyList();
+		}
+
+		final List<String> tokens = new ArrayList<String>(2);
+
+		for (final String value : values) {
+			for (final String element : value.split(",")) {
+				final String token = element.trim();
+				if (!token.isEmpty()) {
+					tokens.add(token);
+				}
+			}
+		}
+
+		return tokens;
+
+	}
+
+	/**
+	 * Get a numeric header value without creating Strings.
+	 *
+	 * @return The value, -1 if the header is not present or -2 if it is not a
+	 *         valid number
+	 */
+	long getLong(final CharSequence name) {
+
+		if (materialized != null) {
+
+			final String value = materialized.get(name);
+
+			if (value == null) {
+				return -1;
+			}
+
+			try {
+				final long number = Long.parseLong(value.trim());
+				return number < 0 ? -2 : number;
+			} catch (final NumberFormatException e) {
+				return -2;
+			}
+
+		}
+
+		final int f = request.find(name, 0);
+
+		if (f == -1) {
+			return -1;
+		}
+
+		final long value = request.valueAsLong(f);
+
+		return value < 0 ? -2 : value;
+
+	}
+
+	@Override
+	public String get(final String name) {
+		return get((CharSequence) name);
+	}
+
+	@Override
+	public String get(final CharSequence name) {
+
+		if (materialized != null) {
+			return materialized.get(name);
+		}
+
+		final int f = request.find(name, 0);
+
+		return f == -1 ? null : request.value(f);
+
+	}
+
+	@Override
+	public List<String> getAll(final String name) {
+		return getAll((CharSequence) name);
+	}
+
+	@Override
+	public List<String> getAll(final CharSequence name) {
+
+		if (materialized != null) {
+			return materialized.getAll(name);
+		}
+
+		int f = request.find(name, 0);
+
+		if (f == -1) {
+			return Collections.emptyList();
+		}
+
+		final List<String> values = new ArrayList<String>(2);
+
+		while (f != -1) {
+			values.add(request.value(f));
+			f = request.find(name, f + 1);
+		}
+
+		return values;
+
+	}
+
+	@Override
+	public List<Map.Entry<String, String>> entries() {
+
+		if (materialized != null) {
+			return materialized.entries();
+		}
+
+		final int count = request.fieldCount();
+
+		final List<Map.Entry<String, String>> entries =
+				new ArrayList<Map.Entry<String, String>>(count);
+
+		for (int f = 0; f < count; f++) {
+			entries.add(new AbstractMap.SimpleEntry<String, String>(request
+					.name(f), request.value(f)));
+		}
+
+		return entries;
+
+	}
+
+	@Override
+	public Iterator<Map.Entry<String, String>> iterator() {
+		return entries().iterator();
+	}
+
+	@Override
+	public boolean contains(final String name) {
+		return contains((CharSequence) name);
+	}
+
+	@Override
+	public boolean contains(final CharSequence name) {
+
+		if (materialized != null) {
+			return materialized.contains(name);
+		}
+
+		return request.find(name, 0) != -1;
+
+	}
+
+	@Override
+	public boolean isEmpty() {
+
+		if (materialized != null) {
+			return materialized.isEmpty();
+		}
+
+		return request.fieldCount() == 0;
+
+	}
+
+	@Override
+	public Set<String> names() {
+
+		if (materialized != null) {
+			return materialized.names();
+		}
+
+		final Set<String> names = new LinkedHashSet<String>();
+
+		final int count = request.fieldCount();
+
+		for (int f = 0; f < count; f++) {
+			names.add(request.name(f));
+		}
+
+		return names;
+
+	}
+
+	@Override
+	public HttpHeaders add(final String name, final Object value) {
+		materialize().add(name, value);
+		return this;
+	}
+
+	@Override
+	public HttpHeaders add(final String name, final Iterable<?> values) {
+		materialize().add(name, values);
+		return this;
+	}
+
+	@Override
+	public HttpHeaders set(final String name, final Object value) {
+		materialize().set(name, value);
+		return this;
+	}
+
+	@Override
+	public HttpHeaders set(final String name, final Iterable<?> values) {
+		materialize().set(name, values);
+		return this;
+	}
+
+	@Override
+	public HttpHeaders remove(final String name) {
+		materialize().remove(name);
+		return this;
+	}
+
+	@Override
+	public HttpHeaders clear() {
+		materialize().clear();
+		return this;
+	}
+
+}
@@ -0,0 +1,554 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.DecoderResult;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.AbstractReferenceCounted;
+import io.netty.util.CharsetUtil;
+
+/**
+ * FullHttpRequest backed by the raw bytes received from the client. The
+ * request line and headers are recorded as offsets into the received header
+ * block, and Strings are only created when a value is actually read. The body
+ * is a retained slice of the inbound buffer.
+ *
+ * Instances are reused by the FlyweightRequestDecoder that created them once
+ * they have been fully released.
+ */
+class FlyweightHttpRequest extends AbstractReferenceCounted implements
+		FullHttpRequest {
+
+	private static final HttpMethod[] METHODS = new HttpMethod[] {
+			HttpMethod.GET, HttpMethod.POST, HttpMethod.PUT,
+			HttpMethod.DELETE, HttpMethod.HEAD, HttpMethod.OPTIONS,
+			HttpMethod.PATCH, HttpMethod.TRACE, HttpMethod.CONNECT };
+
+	/* Raw header block, a retained slice of the inbound buffer */
+	private ByteBuf head;
+
+	/* Backing array of head for direct access, null if not available */
+	private byte[] array;
+	private int arrayOffset;
+
+	/* Request body, a retained slice or an aggregated chunked body */
+	private ByteBuf content = Unpooled.EMPTY_BUFFER;
+
+	/* Request line offsets into head */
+	private int methodStart;
+	private int methodEnd;
+	private int uriStart;
+	private int uriEnd;
+	private int versionStart;
+	private int versionEnd;
+
+	/* Header offsets into head: name start, name end, value start, value end */
+	private int[] fields = new int[64];
+	private int fieldCount = 0;
+
+	/* Materialized on demand */
+	private HttpMethod method;
+	private String uri;
+	private HttpVersion version;
+
+	private final FlyweightHttpHeaders headers = new FlyweightHttpHeaders(this);
+
+	/* Trailing headers of a chunked request, created on demand */
+	private HttpHeaders trailers;
+
+	private DecoderResult decoderResult = DecoderResult.SUCCESS;
+
+	/* Set once all resources have been released after deallocation */
+	private volatile boolean recycled = false;
+
+	/**
+	 * Parse the request line and headers from the given header block, which
+	 * must end with the empty line that terminates the header section.
+	 *
+	 * @return False if the request is malformed
+	 */
+	boolean parse(final ByteBuf head_) {
+
+		head = head_;
+
+		if (head.hasArray()) {
+			array = head.array();
+			arrayOffset = head.arrayOffset();
+		} else {
+			array = null;
+		}
+
+		final int length = head.writerIndex();
+
+		int pos = 0;
+
+		// Skip empty lines before the request line (RFC 2616 4.1)
+		while (pos < length && isLineBreak(at(pos))) {
+			pos++;
+		}
+
+		int lineEnd = indexOf(pos, length, (byte) '\n');
+		int eol = trimEnd(pos, lineEnd);
+
+		// Method
+		methodStart = pos;
+		methodEnd = indexOf(pos, eol, (byte) ' ');
+
+		if (methodEnd <= methodStart || methodEnd == eol) {
+			return false;
+		}
+
+		// URI
+		uriStart = skipWhitespace(methodEnd, eol);
+		uriEnd = indexOf(uriStart, eol, (byte) ' ');
+
+		if (uriEnd <= uriStart || uriEnd == eol) {
+			return false;
+		}
+
+		// Version
+		versionStart = skipWhitespace(uriEnd, eol);
+		versionEnd = eol;
+
+		if (versionEnd <= versionStart) {
+			return false;
+		}
+
+		// Headers
+		pos = lineEnd + 1;
+
+		while (pos < length) {
+
+			lineEnd = indexOf(pos, length, (byte) '\n');
+			eol = lineEnd > pos && at(lineEnd - 1) == '\r' ? lineEnd - 1
+					: lineEnd;
+
+			if (eol == pos) {
+				// End of headers
+				break;
+			}
+
+			// Folded header values are obsolete (RFC 7230 3.2.4)
+			if (isWhitespace(at(pos))) {
+				return false;
+			}
+
+			final int colon = indexOf(pos, eol, (byte) ':');
+
+			if (colon == eol || colon == pos) {
+				return false;
+			}
+
+			int nameEnd = colon;
+			while (nameEnd > pos && isWhitespace(at(nameEnd - 1))) {
+				nameEnd--;
+			}
+
+			final int valueStart = skipWhitespace(colon + 1, eol);
+			final int valueEnd = trimEnd(valueStart, eol);
+
+			addField(pos, nameEnd, valueStart, valueEnd);
+
+			pos = lineEnd + 1;
+
+		}
+
+		return true;
+
+	}
+
+	void content(final ByteBuf content_) {
+		content = content_;
+	}
+
+	HttpHeaders trailers() {
+
+		if (trailers == null) {
+			trailers = new DefaultHttpHeaders(false);
+		}
+
+		return trailers;
+
+	}
+
+	/**
+	 * Prepare this instance for another request. Must only be called after
+	 * isRecycled() returns true.
+	 */
+	void reset() {
+		recycled = false;
+		setRefCnt(1);
+	}
+
+	/**
+	 * Check if this request has been fully released and can be reused.
+	 */
+	boolean isRecycled() {
+		return recycled;
+	}
+
+	@Override
+	protected void deallocate() {
+
+		if (head != null) {
+			head.release();
+			head = null;
+			array = null;
+		}
+
+		content.release();
+		content = Unpooled.EMPTY_BUFFER;
+
+		fieldCount = 0;
+		method = null;
+		uri = null;
+		version = null;
+		headers.reset();
+		trailers = null;
+		decoderResult = DecoderResult.SUCCESS;
+
+		recycled = true;
+
+	}
+
+	/* Header lookups for FlyweightHttpHeaders */
+
+	int fieldCount() {
+		return fieldCount;
+	}
+
+	String name(final int field) {
+		return string(fields[field * 4], fields[field * 4 + 1]);
+	}
+
+	String value(final int field) {
+		return string(fields[field * 4 + 2], fields[field * 4 + 3]);
+	}
+
+	/**
+	 * Find the next header field with the given name (case insensitive),
+	 * starting at the specified field index.
+	 *
+	 * @return The field index, or -1 if not found
+	 */
+	int find(final CharSequence name, final int from) {
+
+		final int nameLength = name.length();
+
+		for (int f = from; f < fieldCount; f++) {
+
+			final int start = fields[f * 4];
+
+			if (fields[f * 4 + 1] - start == nameLength
+					&& equalsIgnoreCase(start, name)) {
+				return f;
+			}
+
+		}
+
+		return -1;
+
+	}
+
+	/**
+	 * Parse a header value as a non-negative decimal number without
+	 * materializing it.
+	 *
+	 * @return The value, or -1 if it is not a valid number
+	 */
+	long valueAsLong(final int field) {
+
+		final int start = fields[field * 4 + 2];
+		final int end = fields[field * 4 + 3];
+
+		if (start == end || end - start > 18) {
+			return -1;
+		}
+
+		long value = 0;
+
+		for (int i = start; i < end; i++) {
+
+			final byte b = at(i);
+
+			if (b < '0' || b > '9') {
+				return -1;
+			}
+
+			value = value * 10 + (b - '0');
+
+		}
+
+		return value;
+
+	}
+
+	/* FullHttpRequest */
+
+	@Override
+	public HttpMethod getMethod() {
+
+		if (method == null) {
+
+			final int length = methodEnd - methodStart;
+
+			for (final HttpMethod m : METHODS) {
+				if (m.name().length() == length && matches(methodStart, m.name())) {
+					method = m;
+					return method;
+				}
+			}
+
+			method = HttpMethod.valueOf(string(methodStart, methodEnd));
+
+		}
+
+		return method;
+
+	}
+
+	@Override
+	public FullHttpRequest setMethod(final HttpMethod method_) {
+		method = method_;
+		return this;
+	}
+
+	@Override
+	public String getUri() {
+
+		if (uri == null) {
+			uri = string(uriStart, uriEnd);
+		}
+
+		return uri;
+
+	}
+
+	@Override
+	public FullHttpRequest setUri(final String uri_) {
+		uri = uri_;
+		return this;
+	}
+
+	@Override
+	public HttpVersion getProtocolVersion() {
+
+		if (version == null) {
+
+			if (versionEnd - versionStart == 8
+					&& matches(versionStart, "HTTP/1.")) {
+
+				final byte minor = at(versionStart + 7);
+
+				if (minor == '1') {
+					version = HttpVersion.HTTP_1_1;
+				} else if (minor == '0') {
+					version = HttpVersion.HTTP_1_0;
+				}
+
+			}
+
+			if (version == null) {
+				version =
+						HttpVersion.valueOf(string(versionStart, versionEnd));
+			}
+
+		}
+
+		return version;
+
+	}
+
+	@Override
+	public FullHttpRequest setProtocolVersion(final HttpVersion version_) {
+		version = version_;
+		return this;
+	}
+
+	@Override
+	public HttpHeaders headers() {
+		return headers;
+	}
+
+	@Override
+	public HttpHeaders trailingHeaders() {
+		return trailers == null ? HttpHeaders.EMPTY_HEADERS : trailers;
+	}
+
+	@Override
+	public ByteBuf content() {
+		return content;
+	}
+
+	@Override
+	public DecoderResult getDecoderResult() {
+		return decoderResult;
+	}
+
+	@Override
+	public void setDecoderResult(final DecoderResult result) {
+		decoderResult = result;
+	}
+
+	@Override
+	public FullHttpRequest copy() {
+
+		final FullHttpRequest copy =
+				new DefaultFullHttpRequest(getProtocolVersion(), getMethod(),
+						getUri(), content.copy());
+
+		copy.headers().set(headers);
+		copy.trailingHeaders().set(trailingHeaders());
+
+		return copy;
+
+	}
+
+	@Override
+	public FullHttpRequest duplicate() {
+
+		final FullHttpRequest duplicate =
+				new DefaultFullHttpRequest(getProtocolVersion(), getMethod(),
+						getUri(), content.duplicate());
+
+		duplicate.headers().set(headers);
+		duplicate.trailingHeaders().set(trailingHeaders());
+
+		return duplicate;
+
+	}
+
+	@Override
+	public FullHttpRequest retain() {
+		super.retain();
+		return this;
+	}
+
+	@Override
+	public FullHttpRequest retain(final int increment) {
+		super.retain(increment);
+		return this;
+	}
+
+	@Override
+	public String toString() {
+		return getMethod() + " " + getUri() + " " + getProtocolVersion();
+	}
+
+	/* Byte helpers */
+
+	private void addField(final int nameStart, final int nameEnd,
+			final int valueStart, final int valueEnd) {
+
+		final int offset = fieldCount * 4;
+
+		if (offset + 4 > fields.length) {
+			final int[] grown = new int[fields.length * 2];
+			System.arraycopy(fields, 0, grown, 0, fields.length);
+			fields = grown;
+		}
+
+		fields[offset] = nameStart;
+		fields[offset + 1] = nameEnd;
+		fields[offset + 2] = valueStart;
+		fields[offset + 3] = valueEnd;
+
+		fieldCount++;
+
+	}
+
+	private byte at(final int index) {
+		return array != null ? array[arrayOffset + index] : head.getByte(index);
+	}
+
+	private String string(final int start, final int end) {
+		return head.toString(start, end - start, CharsetUtil.ISO_8859_1);
+	}
+
+	private boolean matches(final int start, final CharSequence s) {
+
+		final int length = s.length();
+
+		for (int i = 0; i < length; i++) {
+			if (at(start + i) != s.charAt(i)) {
+				return false;
+			}
+		}
+
+		return true;
+
+	}
+
+	private boolean equalsIgnoreCase(final int start, final CharSequence s) {
+
+		final int length = s.length();
+
+		for (int i = 0; i < length; i++) {
+			if (toLowerCase(at(start + i)) != toLowerCase(s.charAt(i))) {
+				return false;
+			}
+		}
+
+		return true;
+
+	}
+
+	private int indexOf(final int from, final int to, final byte b) {
+
+		for (int i = from; i < to; i++) {
+			if (at(i) == b) {
+				return i;
+			}
+		}
+
+		return to;
+
+	}
+
+	private int skipWhitespace(int pos, final int end) {
+
+		while (pos < end && isWhitespace(at(pos))) {
+			pos++;
+		}
+
+		return pos;
+
+	}
+
+	private int trimEnd(final int start, int end) {
+
+		while (end > start
+				&& (isWhitespace(at(end - 1)) || head
+						.getByte(end - 1) == '\r')) {
+			end--;
+		}
+
+		return end;
+
+	}
+
+	private static int toLowerCase(final int c) {
+		return c >= 'A' && c <= 'Z' ? c + 32 : c;
+	}
+
+	private static boolean isWhitespace(final byte b) {
+		return b == ' ' || b == '\t';
+	}
+
+	private static boolean isLineBreak(final byte b) {
+		return b == '\r' || b == '\n';
+	}
+
+}
@@ -0,0 +1,551 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufProcessor;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.CharsetUtil;
+
+import java.util.List;
+
+/**
+ * Allocation-light replacement for HttpRequestDecoder + HttpObjectAggregator.
+ *
+ * The inbound buffer is scanned once for the end of the header block, which is
+ * then kept as a retained slice and indexed by a reusable FlyweightHttpRequest.
+ * Fixed-length bodies are passed on as retained slices of the inbound buffer
+ * without copying; chunked bodies are aggregated into a single buffer.
+ *
+ * Malformed requests are answered with 400 Bad Request, and bodies over the
+ * configured limit with 413 Request Entity Too Large. The connection is closed
+ * in both cases.
+ */
+public class FlyweightRequestDecoder extends ByteToMessageDecoder {
+
+	private static final String CHUNKED = HttpHeaders.Values.CHUNKED;
+	private static final String CONTINUE = HttpHeaders.Values.CONTINUE;
+
+	/* Codings that may precede chunked in Transfer-Encoding */
+	private static final String[] CODINGS = {
+			HttpHeaders.Values.GZIP, HttpHeaders.Values.DEFLATE, "compress",
+			"x-gzip", "x-compress"
+	};
+
+	private static enum State {
+		HEADERS, BODY, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILER, DISCARD
+	}
+
+	private final int maxRequestSize;
+	private final int maxHeaderSize;
+
+	/* Admits requests expecting 100-continue, if set */
+	private final HttpServerConfig config;
+
+	private State state = State.HEADERS;
+
+	/* Bytes scanned so far in the current header block or line */
+	private int scanned = 0;
+
+	/* Start of the current line in the header block being scanned */
+	private int lineStart = 0;
+
+	/* Remaining bytes in the current body or chunk */
+	private long remaining = 0;
+
+	/* Request currently being decoded */
+	private FlyweightHttpRequest request;
+
+	/* Aggregated chunked body */
+	private ByteBuf chunks;
+
+	/* Reusable request instance, recycled once released by the application */
+	private FlyweightHttpRequest spare;
+
+	/**
+	 * Create a new decoder with an 8KB header limit.
+	 *
+	 * @param maxRequestSize_
+	 *            The maximum request body size
+	 */
+	public FlyweightRequestDecoder(final int maxRequestSize_) {
+		this(maxRequestSize_, 8192);
+	}
+
+	/**
+	 * Create a new decoder.
+	 *
+	 * @param maxRequestSize_
+	 *            The maximum request body size
+	 * @param maxHeaderSize_
+	 *            The maximum size of the request line and headers
+	 */
+	public FlyweightRequestDecoder(final int maxRequestSize_,
+			final int maxHeaderSize_) {
+		this(maxRequestSize_, maxHeaderSize_, null);
+	}
+
+	/**
+	 * Create a new decoder for a server, with an 8KB header limit. Requests
+	 * expecting 100-continue are only told to send their body if their route
+	 * admits them (see RequestAdmission).
+	 *
+	 * @param config_
+	 *            The server configuration
+	 */
+	public FlyweightRequestDecoder(final HttpServerConfig config_) {
+		this(config_.maxRequestSize(), 8192, config_);
+	}
+
+	private FlyweightRequestDecoder(final int maxRequestSize_,
+			final int maxHeaderSize_, final HttpServerConfig config_) {
+		maxRequestSize = maxRequestSize_;
+		maxHeaderSize = maxHeaderSize_;
+		config = config_;
+	}
+
+	@Override
+	protected void decode(final ChannelHandlerContext ctx, final ByteBuf in,
+			final List<Object> out) throws Exception {
+
+		switch (state) {
+
+			case HEADERS:
+				decodeHeaders(ctx, in, out);
+				break;
+
+			case BODY:
+
+				if (in.readableBytes() >= remaining) {
+					request.content(in.readSlice((int) remaining).retain());
+					complete(out);
+				}
+
+				break;
+
+			case CHUNK_SIZE:
+				decodeChunkSize(ctx, in);
+				break;
+
+			case CHUNK_DATA:
+
+				final int length =
+						(int) Math.min(remaining, in.readableBytes());
+
+				chunks.writeBytes(in, length);
+				remaining -= length;
+
+				if (remaining == 0) {
+					state = State.CHUNK_END;
+				}
+
+				break;
+
+			case CHUNK_END:
+
+				if (in.readableBytes() >= 2) {
+
+					if (in.readByte() != '\r' || in.readByte() != '\n') {
+						reject(ctx, in, HttpResponseStatus.BAD_REQUEST);
+						return;
+					}
+
+					state = State.CHUNK_SIZE;
+
+				}
+
+				break;
+
+			case TRAILER:
+				decodeTrailer(ctx, in, out);
+				break;
+
+			case DISCARD:
+				in.skipBytes(in.readableBytes());
+				break;
+
+		}
+
+	}
+
+	private void decodeHeaders(final ChannelHandlerContext ctx,
+			final ByteBuf in, final List<Object> out) {
+
+		// Skip empty lines between requests (RFC 7230 3.5)
+		if (scanned == 0) {
+			while (in.isReadable() && isLineBreak(in.getByte(in.readerIndex()))) {
+				in.skipBytes(1);
+			}
+		}
+
+		final int length = scanHeaderEnd(in);
+
+		if (length == -1) {
+			if (scanned > maxHeaderSize) {
+				reject(ctx, in, HttpResponseStatus.BAD_REQUEST);
+			}
+			return;
+		}
+
+		if (length > maxHeaderSize) {
+			reject(ctx, in, HttpResponseStatus.BAD_REQUEST);
+			return;
+		}
+
+		request = obtain();
+
+		if (!request.parse(in.readSlice(length).retain()) || !validate(request)) {
+			reject(ctx, in, HttpResponseStatus.BAD_REQUEST);
+			return;
+		}
+
+		final FlyweightHttpHeaders headers =
+				(FlyweightHttpHeaders) request.headers();
+
+		final List<String> codings =
+				headers.tokens(HttpHeaders.Names.TRANSFER_ENCODING);
+
+		final boolean chunked =
+				!codings.isEmpty()
+						|| headers.contains(HttpHeaders.Names.TRANSFER_ENCODING);
+
+		// Ambiguous framing is rejected rather than guessed (RFC 7230 3.3.3)
+		if (chunked
+				&& (!validCodings(codings) || headers
+						.contains(HttpHeaders.Names.CONTENT_LENGTH))) {
+			reject(ctx, in, HttpResponseStatus.BAD_REQUEST);
+			return;
+		}
+
+		final long contentLength =
+				chunked ? -1 : headers.getLong(HttpHeaders.Names.CONTENT_LENGTH);
+
+		if (contentLength == -2) {
+			reject(ctx, in, HttpResponseStatus.BAD_REQUEST);
+			return;
+		}
+
+		if (contentLength > maxRequestSize) {
+			reject(ctx, in, HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE);
+			return;
+		}
+
+		if (request.getProtocolVersion() == HttpVersion.HTTP_1_1
+				&& headers.containsToken(HttpHeaders.Names.EXPECT, CONTINUE)
+				&& (chunked || contentLength > 0)) {
+
+			final HttpResponseStatus status =
+					config == null ? null : ExpectContinueHandler.admit(config,
+							request);
+
+			if (status != null) {
+				// Do not read the body that was never asked for
+				ctx.channel().config().setAutoRead(false);
+				reject(ctx, in, status);
+				return;
+			}
+
+			ctx.writeAndFlush(new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+					HttpResponseStatus.CONTINUE));
+
+		}
+
+		if (chunked) {
+			chunks = ctx.alloc().buffer();
+			state = State.CHUNK_SIZE;
+		} else if (contentLength > 0) {
+			remaining = contentLength;
+			state = State.BODY;
+		} else {
+			complete(out);
+		}
+
+	}
+
+	/**
+	 * Check that chunked is the final transfer coding, and that any codings
+	 * before it are known and not chunked.
+	 */
+	private static boolean validCodings(final List<String> codings) {
+
+		final int last = codings.size() - 1;
+
+		if (last < 0 || !codings.get(last).equalsIgnoreCase(CHUNKED)) {
+			return false;
+		}
+
+		for (int i = 0; i < last; i++) {
+			if (!isKnownCoding(codings.get(i))) {
+				return false;
+			}
+		}
+
+		return true;
+
+	}
+
+	private static boolean isKnownCoding(final String coding) {
+
+		for (final String known : CODINGS) {
+			if (known.equalsIgnoreCase(coding)) {
+				return true;
+			}
+		}
+
+		return false;
+
+	}
+
+	/**
+	 * Scan for the empty line terminating the header block, continuing where
+	 * the previous call left off.
+	 *
+	 * @return The length of the header block including the terminating empty
+	 *         line, or -1 if it has not been fully received yet
+	 */
+	private int scanHeaderEnd(final ByteBuf in) {
+
+		final int base = in.readerIndex();
+		final int end = in.writerIndex();
+
+		int i = base + scanned;
+
+		while ((i = in.forEachByte(i, end - i, ByteBufProcessor.FIND_LF)) != -1) {
+
+			final int lineLength = i - base - lineStart;
+
+			if (lineLength == 0
+					|| (lineLength == 1 && in.getByte(i - 1) == '\r')) {
+				scanned = 0;
+				lineStart = 0;
+				return i + 1 - base;
+			}
+
+			lineStart = i + 1 - base;
+			i++;
+
+		}
+
+		scanned = end - base;
+
+		return -1;
+
+	}
+
+	/**
+	 * Scan for the end of the next line.
+	 *
+	 * @return The length of the line including the line break, or -1 if it has
+	 *         not been fully received yet
+	 */
+	private int scanLine(final ByteBuf in) {
+
+		final int base = in.readerIndex();
+		final int end = in.writerIndex();
+
+		final int i =
+				in.forEachByte(base + scanned, end - base - scanned,
+						ByteBufProcessor.FIND_LF);
+
+		if (i != -1) {
+			scanned = 0;
+			return i + 1 - base;
+		}
+
+		scanned = end - base;
+
+		return -1;
+
+	}
+
+	private void decodeChunkSize(final ChannelHandlerContext ctx,
+			final ByteBuf in) {
+
+		final int length = scanLine(in);
+
+		if (length == -1) {
+			if (scanned > maxHeaderSize) {
+				reject(ctx, in, HttpResponseStatus.BAD_REQUEST);
+			}
+			return;
+		}
+
+		long size = 0;
+		int digits = 0;
+
+		final int start = in.readerIndex();
+
+		for (int i = start; i < start + length; i++) {
+
+			final int digit = Character.digit(in.getByte(i), 16);
+
+			if (digit == -1) {
+				break;
+			}
+
+			size = size * 16 + digit;
+
+			if (++digits > 15) {
+				break;
+			}
+
+		}
+
+		in.skipBytes(length);
+
+		if (digits == 0 || digits > 15) {
+			reject(ctx, in, HttpResponseStatus.BAD_REQUEST);
+			return;
+		}
+
+		if (chunks.readableBytes() + size > maxRequestSize) {
+			reject(ctx, in, HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE);
+			return;
+		}
+
+		if (size == 0) {
+			state = State.TRAILER;
+		} else {
+			remaining = size;
+			state = State.CHUNK_DATA;
+		}
+
+	}
+
+	private void decodeTrailer(final ChannelHandlerContext ctx,
+			final ByteBuf in, final List<Object> out) {
+
+		while (state == State.TRAILER) {
+
+			final int length = scanLine(in);
+
+			if (length == -1) {
+				if (scanned > maxHeaderSize) {
+					reject(ctx, in, HttpResponseStatus.BAD_REQUEST);
+				}
+				return;
+			}
+
+			final String line =
+					in.readSlice(length).toString(CharsetUtil.ISO_8859_1).trim();
+
+			if (line.isEmpty()) {
+
+				// Aggregated body, headers as HttpObjectAggregator leaves them
+				final HttpHeaders headers = request.headers();
+				headers.remove(HttpHeaders.Names.TRANSFER_ENCODING);
+				headers.set(HttpHeaders.Names.CONTENT_LENGTH,
+						chunks.readableBytes());
+
+				request.content(chunks);
+				chunks = null;
+
+				complete(out);
+
+			} else {
+
+				final int colon = line.indexOf(':');
+
+				if (colon <= 0) {
+					reject(ctx, in, HttpResponseStatus.BAD_REQUEST);
+					return;
+				}
+
+				request.trailers().add(line.substring(0, colon).trim(),
+						line.substring(colon + 1).trim());
+
+			}
+
+		}
+
+	}
+
+	private void complete(final List<Object> out) {
+
+		out.add(request);
+
+		request = null;
+		state = State.HEADERS;
+
+	}
+
+	private FlyweightHttpRequest obtain() {
+
+		if (spare != null && spare.isRecycled()) {
+			spare.reset();
+		} else {
+			spare = new FlyweightHttpRequest();
+		}
+
+		return spare;
+
+	}
+
+	private void reject(final ChannelHandlerContext ctx, final ByteBuf in,
+			final HttpResponseStatus status) {
+
+		state = State.DISCARD;
+		in.skipBytes(in.readableBytes());
+
+		cleanup();
+
+		final FullHttpResponse response =
+				new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status);
+
+		response.headers().set(ResponseHeaders.CONTENT_LENGTH, 0);
+		response.headers().set(ResponseHeaders.CONNECTION,
+				ResponseHeaders.CLOSE);
+
+		ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+
+	}
+
+	private void cleanup() {
+
+		if (request != null) {
+			request.release();
+			request = null;
+		}
+
+		if (chunks != null) {
+			chunks.release();
+			chunks = null;
+		}
+
+	}
+
+	@Override
+	protected void handlerRemoved0(final ChannelHandlerContext ctx)
+			throws Exception {
+		cleanup();
+	}
+
+	private static boolean validate(final FlyweightHttpRequest request) {
+
+		try {
+			request.getMethod();
+			request.getProtocolVersion();
+			return true;
+		} catch (final IllegalArgumentException e) {
+			return false;
+		}
+
+	}
+
+	private static boolean isLineBreak(final byte b) {
+		return b == '\r' || b == '\n';
+	}
+
+}
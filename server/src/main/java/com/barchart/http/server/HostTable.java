@@ -0,0 +1,144 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.server;
+
+import java.util.Map;
+
+/**
+ * Immutable open-addressed lookup of virtual hosts by Host header. Hashes the
+ * host characters in place, ignoring case and any port, so resolving a host
+ * allocates nothing. Wildcard hosts ("*.example.com") are stored by their
+ * suffix (".example.com") and tried longest suffix first after an exact miss.
+ */
+final class HostTable {
+
+	private final String[] names;
+	private final VirtualHost[] hosts;
+	private final int mask;
+
+	HostTable(final Map<String, VirtualHost> entries) {
+
+		int capacity = 4;
+		while (capacity < entries.size() * 2) {
+			capacity <<= 1;
+		}
+
+		names = new String[capacity];
+		hosts = new VirtualHost[capacity];
+		mask = capacity - 1;
+
+		for (final Map.Entry<String, VirtualHost> entry : entries.entrySet()) {
+
+			final String name = key(entry.getKey());
+
+			int i = hash(name, 0, name.length()) & mask;
+			while (names[i] != null && !names[i].equals(name)) {
+				i = (i + 1) & mask;
+			}
+
+			names[i] = name;
+			hosts[i] = entry.getValue();
+
+		}
+
+	}
+
+	/**
+	 * Normalize a configured host name to its table key.
+	 */
+	static String key(final String host) {
+
+		final String name = host.toLowerCase();
+
+		if (name.startsWith("*.")) {
+			return name.substring(1);
+		}
+
+		return name;
+
+	}
+
+	/**
+	 * Find the virtual host for a Host header value, or null if none match.
+	 */
+	VirtualHost resolve(final String host) {
+
+		if (host == null) {
+			return null;
+		}
+
+		final int end = end(host);
+
+		VirtualHost found = probe(host, 0, end);
+
+		if (found != null) {
+			return found;
+		}
+
+		// Wildcards, longest suffix first
+		for (int i = host.indexOf('.'); i != -1 && i < end; i =
+				host.indexOf('.', i + 1)) {
+			found = probe(host, i, end);
+			if (found != null) {
+				return found;
+			}
+		}
+
+		return null;
+
+	}
+
+	private VirtualHost probe(final String host, final int start,
+			final int end) {
+
+		final int length = end - start;
+
+		for (int i = hash(host, start, end) & mask;; i = (i + 1) & mask) {
+
+			final String name = names[i];
+
+			if (name == null) {
+				return null;
+			}
+
+			if (name.length() == length
+					&& host.regionMatches(true, start, name, 0, length)) {
+				return hosts[i];
+			}
+
+		}
+
+	}
+
+	/* Host end, excluding the port and allowing for IPv6 literals */
+	private static int end(final String host) {
+
+		final int from = host.startsWith("[") ? host.indexOf(']') : 0;
+		final int colon = host.indexOf(':', from < 0 ? 0 : from);
+
+		return colon == -1 ? host.length() : colon;
+
+	}
+
+	private static int hash(final String s, final int start, final int end) {
+
+		int h = 0;
+
+		for (int i = start; i < end; i++) {
+			char c = s.charAt(i);
+			if (c >= 'A' && c <= 'Z') {
+				c += 'a' - 'A';
+			}
+			h = 31 * h + c;
+		}
+
+		return h ^ (h >>> 16);
+
+	}
+
+}
@@ -7,24 +7,29 @@
  */
 package com.barchart.http.server;
 
-import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
-import io.netty.handler.codec.http.DefaultFullHttpResponse;
 import io.netty.handler.codec.http.FullHttpRequest;
-import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpResponseStatus;
-import io.netty.handler.codec.http.HttpVersion;
 import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.FastThreadLocal;
 
-import com.barchart.http.error.ServerException;
-import com.barchart.http.error.ServerTooBusyException;
+import java.io.IOException;
+import java.util.concurrent.TimeoutException;
+
+import com.barchart.http.error.ContentNegotiationException;
+import com.barchart.http.logging.ServerEventListener;
+import com.barchart.http.request.PathParameters;
+import com.barchart.http.request.PrebuiltResponse;
 import com.barchart.http.request.RequestHandler;
 import com.barchart.http.request.RequestHandlerMapping;
+import com.barchart.http.request.RequestTiming;
 
 /**
  * Netty channel handler for routing inbound requests to the proper
@@ -37,21 +42,52 @@ public class HttpRequestChannelHandler extends
 	public static final AttributeKey<PooledServerResponse> ATTR_RESPONSE =
 			AttributeKey.<PooledServerResponse> valueOf("response");
 
+	/* Captures for the request being mapped, copied into the pooled request */
+	static final FastThreadLocal<PathParameters> PATH_PARAMS =
+			new FastThreadLocal<PathParameters>() {
+				@Override
+				protected PathParameters initialValue() {
+					return new PathParameters();
+				}
+			};
+
 	private final HttpServerConfig config;
 	private final ServerMessagePool messagePool;
 
+	private volatile boolean draining = false;
+
 	public HttpRequestChannelHandler(final HttpServerConfig config_) {
 		super();
 		config = config_;
 		messagePool = new ServerMessagePool(config.maxConnections());
 	}
 
+	/**
+	 * Create pooled requests and responses up front.
+	 */
+	void preallocate(final int messages) {
+		messagePool.prefill(messages);
+	}
+
 	@Override
 	public void channelRead0(final ChannelHandlerContext ctx,
 			final FullHttpRequest msg) throws Exception {
 
+		// Resolve the virtual host once, before path matching
+		final String host = HttpHeaders.getHost(msg, null);
+
+		final PathParameters params = PATH_PARAMS.get();
+		params.reset(msg.getUri());
+
 		final RequestHandlerMapping mapping =
-				config.getRequestMapping(msg.getUri());
+				config.getVirtualHost(host).getRequestMapping(msg.getMethod(),
+						msg.getUri(), params);
+
+		// Static response, bypass request / response pool entirely
+		if (mapping != null && mapping.response() != null) {
+			sendPrebuilt(ctx, msg, mapping.response());
+			return;
+		}
 
 		String relativePath = msg.getUri();
 
@@ -62,20 +98,44 @@ public class HttpRequestChannelHandler extends
 		// Create request/response
 		final PooledServerRequest request = messagePool.getRequest();
 
+		// Parsed multipart upload, if any
+		final MultipartUpload upload =
+				ctx.channel().attr(MultipartUploadHandler.ATTR_UPLOAD)
+						.getAndRemove();
+
 		// Handle 503 - sanity check, should be caught in acceptor
 		if (request == null) {
-			sendServerError(ctx, new ServerTooBusyException(
-					"Maximum concurrent connections reached"));
+			if (upload != null) {
+				upload.close();
+			}
+			if (config.eventListener() != null) {
+				config.eventListener().messagePoolExhausted(msg.getMethod(),
+						msg.getUri());
+			}
+			sendServerError(ctx, PrebuiltResponse.SERVICE_UNAVAILABLE);
 			return;
 		}
 
-		request.init(ctx.channel(), msg, relativePath);
+		request.init(ctx.channel(), msg, host,
+				mapping == null ? null : mapping.path(), relativePath, params,
+				upload, config);
 
 		final RequestHandler handler =
 				mapping == null ? null : mapping.handler(request);
 
 		final PooledServerResponse response = messagePool.getResponse();
-		response.init(ctx, this, handler, request, config.logger());
+		response.init(ctx, this, handler, request, config);
+
+		final PooledRequestTiming timing = response.timing();
+
+		if (timing != null) {
+			final RequestTimer timer =
+					ctx.channel().attr(RequestTimer.ATTR_TIMER).get();
+			if (timer != null) {
+				timer.dispatch(timing);
+			}
+			timing.mark(RequestTiming.Phase.HANDLER_START);
+		}
 
 		if (mapping == null) {
 			// No handler found, 404
@@ -85,6 +145,17 @@ public class HttpRequestChannelHandler extends
 		// Store in ChannelHandlerContext for future reference
 		ctx.attr(ATTR_RESPONSE).set(response);
 
+		final ServerEventListener events = config.eventListener();
+		final long start = events != null ? System.nanoTime() : 0;
+
+		// Attribute event loop stalls to this request
+		final StallWatchdog.Loop loop =
+				config.stallThreshold() > 0 ? StallWatchdog.current() : null;
+
+		if (loop != null) {
+			loop.enter(msg.getMethod(), msg.getUri(), request.route());
+		}
+
 		try {
 
 			// MJS: Dispatch an error if not found or authorized
@@ -92,65 +163,127 @@ public class HttpRequestChannelHandler extends
 					|| response.getStatus() == HttpResponseStatus.NOT_FOUND) {
 				config.errorHandler().onError(request, response, null);
 			} else {
-				handler.onRequest(request, response);
+				response.filterChain().start(mapping.filters());
 			}
 
 		} catch (final Throwable t) {
 
-			// Catch server errors
-			response.setStatus(HttpResponseStatus.INTERNAL_SERVER_ERROR);
+			failed(request, response, t);
+
+		} finally {
+
+			if (timing != null) {
+				timing.mark(RequestTiming.Phase.HANDLER_RETURN);
+			}
+
+			if (loop != null) {
+				loop.exit();
+			}
+
+			if (events != null) {
+				slow(events, msg, mapping, handler, System.nanoTime() - start);
+			}
 
 			try {
-				config.errorHandler().onError(request, response, t);
-			} catch (final Throwable t2) {
+
+				// If handler did not request async response, finish request
+				if (!response.isFinished() && !response.isSuspended()) {
+					response.finish();
+				}
+
+			} finally {
+				// Timed responses are only logged and recycled after this
+				response.dispatched();
+			}
+
+		}
+
+	}
+
+	/**
+	 * Send an error response for an exception thrown by a request handler or
+	 * filter.
+	 */
+	void failed(final PooledServerRequest request,
+			final PooledServerResponse response, final Throwable t)
+			throws IOException {
+
+		// Catch server errors
+		if (t instanceof ContentNegotiationException) {
+			response.setStatus(((ContentNegotiationException) t).getStatus());
+		} else if (t instanceof TimeoutException) {
+			response.setStatus(HttpResponseStatus.SERVICE_UNAVAILABLE);
+		} else {
+			response.setStatus(HttpResponseStatus.INTERNAL_SERVER_ERROR);
+		}
+
+		// Log before the error handler, which may complete the response and
+		// return the request to the pool
+		config.logger().error(request, response, t);
+
+		try {
+			config.errorHandler().onError(request, response, t);
+		} catch (final Throwable t2) {
+			if (!response.isFinished()) {
 				response.write(t.getClass()
 						+ " was thrown while processing this request.  Additionally, "
 						+ t2.getClass()
 						+ " was thrown while handling this exception.");
 			}
+		}
 
-			config.logger().error(request, response, t);
-
-			// Force request to end on exception, async handlers cannot allow
-			// unchecked exceptions and still expect to return data
-			if (!response.isFinished()) {
-				response.finish();
-			}
+		// Force request to end on exception, async handlers cannot allow
+		// unchecked exceptions and still expect to return data
+		if (!response.isFinished()) {
+			response.finish();
+		}
 
-		} finally {
+	}
 
-			// If handler did not request async response, finish request
-			if (!response.isFinished() && !response.isSuspended()) {
-				response.finish();
-			}
+	private void slow(final ServerEventListener events,
+			final FullHttpRequest msg, final RequestHandlerMapping mapping,
+			final RequestHandler handler, final long duration) {
 
+		if (duration < config.slowHandlerThreshold()) {
+			return;
 		}
 
+		events.slowHandler(msg.getMethod(), msg.getUri(),
+				mapping == null ? null : mapping.path(),
+				handler == null ? null : handler.getClass(), duration);
+
 	}
 
 	private void sendServerError(final ChannelHandlerContext ctx,
-			final ServerException cause) throws Exception {
+			final PrebuiltResponse response) throws Exception {
 
 		if (ctx.channel().isActive()) {
+			ctx.writeAndFlush(
+					ServerResponseEncoder.prebuilt(response, false, false))
+					.addListener(ChannelFutureListener.CLOSE);
+		}
 
-			final ByteBuf content = Unpooled.buffer();
+	}
 
-			content.writeBytes((cause.getStatus().code() + " "
-					+ cause.getStatus().reasonPhrase() + " - " + cause
-					.getMessage()).getBytes());
+	private void sendPrebuilt(final ChannelHandlerContext ctx,
+			final FullHttpRequest msg, final PrebuiltResponse response) {
 
-			final FullHttpResponse response =
-					new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
-							cause.getStatus());
+		final MultipartUpload upload =
+				ctx.channel().attr(MultipartUploadHandler.ATTR_UPLOAD)
+						.getAndRemove();
 
-			response.headers().set(HttpHeaders.Names.CONTENT_LENGTH,
-					content.readableBytes());
+		if (upload != null) {
+			upload.close();
+		}
 
-			response.content().writeBytes(content);
+		final boolean keepAlive = HttpHeaders.isKeepAlive(msg) && !draining;
 
-			ctx.writeAndFlush(response)
-					.addListener(ChannelFutureListener.CLOSE);
+		final ChannelFuture future =
+				ctx.writeAndFlush(ServerResponseEncoder.prebuilt(response,
+						keepAlive, msg.getMethod() == HttpMethod.HEAD));
 
+		if (!keepAlive) {
+			future.addListener(ChannelFutureListener.CLOSE);
 		}
 
 	}
@@ -167,6 +300,13 @@ public class HttpRequestChannelHandler extends
 				if (!response.isFinished()) {
 
 					response.close();
+					response.cancelAsync();
+
+					if (config.eventListener() != null) {
+						config.eventListener().responseAborted(
+								response.request(), response,
+								response.request().route());
+					}
 
 					final RequestHandler handler = response.handler();
 
@@ -196,27 +336,30 @@ public class HttpRequestChannelHandler extends
 
 			try {
 
-				try {
-
-					if (!response.isFinished()) {
+				if (!response.isFinished()) {
 
-						response.setStatus(HttpResponseStatus.INTERNAL_SERVER_ERROR);
+					response.setStatus(HttpResponseStatus.INTERNAL_SERVER_ERROR);
 
-						config.errorHandler().onError(response.request(),
-								response, exception);
-
-						response.close();
+					config.logger().error(response.request(), response,
+							exception);
 
-						final RequestHandler handler = response.handler();
+					final RequestHandler handler = response.handler();
 
-						if (handler != null) {
-							handler.onException(response.request(), response,
-									exception);
-						}
+					if (handler != null) {
+						handler.onException(response.request(), response,
+								exception);
+					}
 
+					// Error handler may send a response, which completes and
+					// frees the request
+					if (!response.isFinished()) {
+						config.errorHandler().onError(response.request(),
+								response, exception);
 					}
 
-				} finally {
+					response.close();
+
+				} else {
 
 					config.logger().error(response.request(), response,
 							exception);
@@ -233,14 +376,57 @@ public class HttpRequestChannelHandler extends
 
 	}
 
+	/**
+	 * Stop keeping connections alive after their current response.
+	 */
+	void drain() {
+		draining = true;
+	}
+
+	/**
+	 * Keep connections alive again, when the server listens after a drain.
+	 */
+	void undrain() {
+		draining = false;
+	}
+
+	boolean isDraining() {
+		return draining;
+	}
+
+	/**
+	 * Check if a response is in progress on the given channel. Must be called
+	 * from the channel's event loop.
+	 */
+	boolean isActive(final Channel channel) {
+
+		final ChannelHandlerContext ctx = channel.pipeline().context(this);
+
+		return ctx != null && ctx.attr(ATTR_RESPONSE).get() != null;
+
+	}
+
 	/**
 	 * Free any request/response handlers related to the current channel handler
 	 * context.
 	 */
 	public void freeHandlers(final ChannelHandlerContext ctx) {
+		release(ctx.attr(ATTR_RESPONSE).getAndRemove());
+	}
 
-		final PooledServerResponse response =
-				ctx.attr(ATTR_RESPONSE).getAndRemove();
+	/**
+	 * Detach a finished response from its channel so the next request can be
+	 * processed, without returning it to the pool yet.
+	 */
+	void detach(final ChannelHandlerContext ctx,
+			final PooledServerResponse response) {
+		ctx.attr(ATTR_RESPONSE).compareAndSet(response, null);
+	}
+
+	/**
+	 * Complete a response and return it to the pool with its request.
+	 */
+	void release(final PooledServerResponse response) {
 
 		if (response != null) {
 
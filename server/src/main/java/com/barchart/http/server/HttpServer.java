@@ -8,8 +8,6 @@
 package com.barchart.http.server;
 
 import io.netty.bootstrap.ServerBootstrap;
-import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
@@ -19,31 +17,44 @@ import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.DefaultChannelPromise;
 import io.netty.channel.group.ChannelGroup;
 import io.netty.channel.group.ChannelGroupFuture;
 import io.netty.channel.group.DefaultChannelGroup;
-import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.handler.codec.http.DefaultFullHttpResponse;
-import io.netty.handler.codec.http.FullHttpResponse;
-import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpRequestDecoder;
-import io.netty.handler.codec.http.HttpResponseEncoder;
-import io.netty.handler.codec.http.HttpResponseStatus;
-import io.netty.handler.codec.http.HttpVersion;
 import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
 import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.barchart.http.request.PrebuiltResponse;
 
 /**
  * High performance HTTP server.
  */
 public class HttpServer {
 
-	private Channel serverChannel;
+	private List<Channel> serverChannels;
 	private HttpServerConfig config;
 	private HttpRequestChannelHandler channelHandler;
 	private ConnectionTracker clientTracker;
+	private WarmUpReport warmUpReport;
+	private StallWatchdog watchdog;
 
 	private final ChannelGroup channelGroup = new DefaultChannelGroup(
 			GlobalEventExecutor.INSTANCE);
@@ -59,7 +70,9 @@ public class HttpServer {
 	}
 
 	/**
-	 * Start the server with the configuration settings provided.
+	 * Start the server with the configuration settings provided. If warm-up
+	 * is configured, blocks until it completes before binding, so must not be
+	 * called from an event loop.
 	 */
 	public ChannelFuture listen() {
 
@@ -67,23 +80,96 @@ public class HttpServer {
 			throw new IllegalStateException("Server has not been configured");
 		}
 
-		if (serverChannel != null) {
+		if (serverChannels != null) {
 			throw new IllegalStateException("Server is already running.");
 		}
 
-		final ChannelFuture future = new ServerBootstrap() //
-				.group(config.parentGroup(), config.childGroup()) //
-				.channel(NioServerSocketChannel.class) //
-				.localAddress(config.address()) //
-				.childHandler(new HttpServerChannelInitializer()) //
-				.option(ChannelOption.SO_REUSEADDR, true) //
-				.option(ChannelOption.SO_SNDBUF, 262144) //
-				.option(ChannelOption.SO_RCVBUF, 262144) //
-				.bind();
+		final List<ServerListener> listeners = config.listeners();
 
-		serverChannel = future.channel();
+		if (listeners.isEmpty()) {
+			throw new IllegalStateException("No listen address configured");
+		}
 
-		return future;
+		final HttpServerChannelInitializer initializer =
+				new HttpServerChannelInitializer();
+
+		// Listening again after drain()
+		channelHandler.undrain();
+
+		if (config.preallocate() > 0) {
+			channelHandler.preallocate(config.preallocate());
+		}
+
+		if (config.warmUp() > 0) {
+			warmUpReport = new WarmUp(config, initializer).run();
+		}
+
+		if (config.trafficCapture() != null) {
+			try {
+				config.trafficCapture().open();
+			} catch (final IOException e) {
+				throw new IllegalStateException("Could not open traffic capture",
+						e);
+			}
+		}
+
+		final List<ChannelFuture> futures = new ArrayList<ChannelFuture>();
+		serverChannels = new ArrayList<Channel>();
+
+		for (final ServerListener listener : listeners) {
+
+			listener.open();
+
+			final ServerBootstrap bootstrap = new ServerBootstrap() //
+					.group(listener.parentGroup() != null ? listener
+							.parentGroup() : config.parentGroup(), //
+							listener.childGroup() != null ? listener
+									.childGroup() : config.childGroup()) //
+					.channel(listener.channelClass()) //
+					.localAddress(listener.address()) //
+					.childHandler(initializer);
+
+			for (final Map.Entry<ChannelOption<?>, Object> option : listener
+					.options().entrySet()) {
+				bootstrap.option(unchecked(option.getKey()), option.getValue());
+			}
+
+			for (final Map.Entry<ChannelOption<?>, Object> option : listener
+					.childOptions().entrySet()) {
+				bootstrap.childOption(unchecked(option.getKey()),
+						option.getValue());
+			}
+
+			final ChannelFuture future = bootstrap.bind();
+
+			futures.add(future);
+			serverChannels.add(future.channel());
+
+		}
+
+		if (config.stallThreshold() > 0) {
+
+			final Set<EventExecutorGroup> groups =
+					Collections
+							.newSetFromMap(new IdentityHashMap<EventExecutorGroup, Boolean>());
+
+			groups.add(config.childGroup());
+
+			for (final ServerListener listener : listeners) {
+				if (listener.childGroup() != null) {
+					groups.add(listener.childGroup());
+				}
+			}
+
+			watchdog =
+					new StallWatchdog(groups, config.stallThreshold(),
+							config.stallReportInterval(),
+							config.eventListener());
+			watchdog.start();
+
+		}
+
+		return all(futures);
 
 	}
 
@@ -92,14 +178,105 @@ public class HttpServer {
 	 */
 	public ChannelFuture shutdown() {
 
-		if (serverChannel == null) {
+		if (serverChannels == null) {
 			throw new IllegalStateException("Server is not running.");
 		}
 
-		final ChannelFuture future = serverChannel.close();
-		serverChannel = null;
+		final List<ChannelFuture> futures = new ArrayList<ChannelFuture>();
 
-		return future;
+		for (final Channel channel : serverChannels) {
+			futures.add(channel.close());
+		}
+
+		serverChannels = null;
+		stopWatchdog();
+		closeCapture();
+		closeListeners(null);
+
+		return all(futures);
+
+	}
+
+	/**
+	 * Gracefully shutdown the server. Stops accepting connections, closes idle
+	 * keep-alive connections, lets in-flight and suspended responses complete
+	 * with "Connection: close", and force-closes any connections still open
+	 * after the timeout (calling RequestHandler.onAbort() for unfinished
+	 * responses).
+	 *
+	 * @return A future that completes when all client connections have closed
+	 */
+	public DrainFuture drain(final long timeout, final TimeUnit unit) {
+
+		if (serverChannels == null) {
+			throw new IllegalStateException("Server is not running.");
+		}
+
+		channelHandler.drain();
+
+		for (final Channel channel : serverChannels) {
+			channel.close();
+		}
+
+		serverChannels = null;
+		stopWatchdog();
+		closeCapture();
+
+		final DrainFuture drain = new DrainFuture();
+
+		for (final Channel channel : new ArrayList<Channel>(channelGroup)) {
+
+			drain.add();
+
+			final Runnable task = new Runnable() {
+				@Override
+				public void run() {
+
+					final boolean active = channelHandler.isActive(channel);
+
+					drain.track(channel, active);
+
+					if (!active) {
+						channel.close();
+					}
+
+				}
+			};
+
+			try {
+				channel.eventLoop().execute(task);
+			} catch (final RejectedExecutionException e) {
+				drain.track(channel, false);
+			}
+
+		}
+
+		// Release registration guard
+		drain.done();
+
+		// Own listener loops stay up until their connections are drained
+		closeListeners(drain);
+
+		if (!drain.isDone()) {
+
+			final ScheduledFuture<?> deadline =
+					GlobalEventExecutor.INSTANCE.schedule(new Runnable() {
+						@Override
+						public void run() {
+							channelGroup.close();
+						}
+					}, timeout, unit);
+
+			drain.addListener(new GenericFutureListener<Future<Void>>() {
+				@Override
+				public void operationComplete(final Future<Void> future) {
+					deadline.cancel(false);
+				}
+			});
+
+		}
+
+		return drain;
 
 	}
 
@@ -107,7 +284,15 @@ public class HttpServer {
 	 * Return a future for the server shutdown process.
 	 */
 	public ChannelFuture shutdownFuture() {
-		return serverChannel.closeFuture();
+
+		final List<ChannelFuture> futures = new ArrayList<ChannelFuture>();
+
+		for (final Channel channel : serverChannels) {
+			futures.add(channel.closeFuture());
+		}
+
+		return all(futures);
+
 	}
 
 	/**
@@ -115,42 +300,164 @@ public class HttpServer {
 	 */
 	public ChannelGroupFuture kill() {
 
-		if (serverChannel == null) {
+		if (serverChannels == null) {
 			throw new IllegalStateException("Server is not running.");
 		}
 
-		channelGroup.add(serverChannel);
+		channelGroup.addAll(serverChannels);
 		final ChannelGroupFuture future = channelGroup.close();
-		channelGroup.remove(serverChannel);
-		serverChannel = null;
+		channelGroup.removeAll(serverChannels);
+		serverChannels = null;
+		stopWatchdog();
+		closeCapture();
+		closeListeners(null);
 
 		return future;
 
 	}
 
+	private void stopWatchdog() {
+		if (watchdog != null) {
+			watchdog.stop();
+			watchdog = null;
+		}
+	}
+
+	private void closeListeners(final Future<?> after) {
+		for (final ServerListener listener : config.listeners()) {
+			listener.close(after);
+		}
+	}
+
+	private void closeCapture() {
+		if (config.trafficCapture() != null) {
+			config.trafficCapture().close();
+		}
+	}
+
 	public boolean isRunning() {
-		return serverChannel != null;
+		return serverChannels != null;
+	}
+
+	/**
+	 * Get the results of the warm-up run by listen(), or null if warm-up is
+	 * not enabled.
+	 */
+	public WarmUpReport warmUpReport() {
+		return warmUpReport;
 	}
 
 	public HttpServerConfig config() {
 		return config;
 	}
 
+	/**
+	 * Combine listener futures into one that completes when all succeed, or
+	 * fails with the first failure.
+	 */
+	private static ChannelFuture all(final List<ChannelFuture> futures) {
+
+		if (futures.size() == 1) {
+			return futures.get(0);
+		}
+
+		final ChannelPromise promise =
+				new DefaultChannelPromise(futures.get(0).channel(),
+						GlobalEventExecutor.INSTANCE);
+
+		final AtomicInteger remaining = new AtomicInteger(futures.size());
+
+		final ChannelFutureListener listener = new ChannelFutureListener() {
+			@Override
+			public void operationComplete(final ChannelFuture future) {
+				if (!future.isSuccess()) {
+					promise.tryFailure(future.cause());
+				} else if (remaining.decrementAndGet() == 0) {
+					promise.trySuccess();
+				}
+			}
+		};
+
+		for (final ChannelFuture future : futures) {
+			future.addListener(listener);
+		}
+
+		return promise;
+
+	}
+
+	@SuppressWarnings("unchecked")
+	private static ChannelOption<Object> unchecked(final ChannelOption<?> option) {
+		return (ChannelOption<Object>) option;
+	}
+
 	private class HttpServerChannelInitializer extends
-			ChannelInitializer<SocketChannel> {
+			ChannelInitializer<Channel> {
 
 		@Override
-		public void initChannel(final SocketChannel ch) throws Exception {
+		public void initChannel(final Channel ch) throws Exception {
 
 			final ChannelPipeline pipeline = ch.pipeline();
 
-			pipeline.addLast(new HttpResponseEncoder(), //
+			// First in line to see inbound bytes
+			final RequestTimer timer =
+					config.requestTiming() ? new RequestTimer() : null;
+
+			if (timer != null) {
+				pipeline.addLast(timer);
+			}
+
+			// First in line to see encoded output
+			if (config.flushConsolidation()) {
+				pipeline.addLast(new FlushConsolidator(config
+						.maxPendingFlushBytes(), config.maxFlushDelay()));
+			}
+
+			pipeline.addLast(
+					new ServerResponseEncoder(config.maxCopiedContent()), //
 					new ChunkedWriteHandler(), //
-					clientTracker, //
-					new HttpRequestDecoder(), //
-					new HttpObjectAggregator(config.maxRequestSize()), //
-					// new MessageLoggingHandler(LogLevel.INFO), //
-					channelHandler);
+					clientTracker);
+
+			// Raw request bytes, as received
+			if (config.trafficCapture() != null) {
+				pipeline.addLast(config.trafficCapture().newHandler());
+			}
+
+			if (config.flyweightParser()) {
+
+				pipeline.addLast(new FlyweightRequestDecoder(config));
+
+				if (timer != null) {
+					pipeline.addLast(timer.decoded());
+				}
+
+				if (config.maxUploadSize() > 0) {
+					pipeline.addLast(new MultipartUploadHandler(config));
+				}
+
+			} else {
+
+				pipeline.addLast(new HttpRequestDecoder());
+
+				if (timer != null) {
+					pipeline.addLast(timer.decoded());
+				}
+
+				// Admit 100-continue requests before uploads are parsed
+				pipeline.addLast(new ExpectContinueHandler(config));
+
+				// Parse uploads before they are aggregated
+				if (config.maxUploadSize() > 0) {
+					pipeline.addLast(new MultipartUploadHandler(config));
+				}
+
+				pipeline.addLast(new HttpObjectAggregator(config
+						.maxRequestSize()));
+
+			}
+
+			// pipeline.addLast(new MessageLoggingHandler(LogLevel.INFO));
+			pipeline.addLast(channelHandler);
 
 		}
 
@@ -168,24 +475,24 @@ public class HttpServer {
 		@Override
 		public void channelActive(final ChannelHandlerContext context) {
 
-			if (maxConnections > -1 && channelGroup.size() >= maxConnections) {
-
-				final ByteBuf content = Unpooled.buffer();
-
-				content.writeBytes("503 Service Unavailable - Server Too Busy"
-						.getBytes());
-
-				final FullHttpResponse response =
-						new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
-								HttpResponseStatus.SERVICE_UNAVAILABLE);
+			// Accepted just before the listen socket was closed
+			if (channelHandler.isDraining()) {
+				context.close();
+				return;
+			}
 
-				response.headers().set(HttpHeaders.Names.CONTENT_LENGTH,
-						content.readableBytes());
+			if (maxConnections > -1 && channelGroup.size() >= maxConnections) {
 
-				response.content().writeBytes(content);
+				if (config.eventListener() != null) {
+					config.eventListener().connectionRejected(
+							context.channel().remoteAddress(),
+							channelGroup.size());
+				}
 
-				context.writeAndFlush(response).addListener(
-						ChannelFutureListener.CLOSE);
+				context.writeAndFlush(
+						ServerResponseEncoder.prebuilt(
+								PrebuiltResponse.SERVICE_UNAVAILABLE, false, false))
+						.addListener(ChannelFutureListener.CLOSE);
 
 				return;
 
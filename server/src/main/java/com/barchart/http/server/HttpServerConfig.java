@@ -10,35 +10,80 @@ package com.barchart.http.server;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
 
+import java.io.File;
 import java.net.SocketAddress;
-import java.util.Comparator;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentSkipListMap;
-
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import com.barchart.http.capture.TrafficCapture;
+import com.barchart.http.codec.BinaryCodec;
+import com.barchart.http.codec.BodyCodec;
+import com.barchart.http.codec.BodyCodecs;
+import com.barchart.http.codec.JsonCodec;
 import com.barchart.http.error.DefaultErrorHandler;
 import com.barchart.http.error.ErrorHandler;
 import com.barchart.http.logging.NullRequestLogger;
 import com.barchart.http.logging.RequestLogger;
+import com.barchart.http.logging.ServerEventListener;
+import com.barchart.http.request.PrebuiltResponse;
+import com.barchart.http.request.RequestFilter;
 import com.barchart.http.request.RequestHandler;
 import com.barchart.http.request.RequestHandlerFactory;
 import com.barchart.http.request.RequestHandlerMapping;
+import com.barchart.http.request.RequestURLMapper;
 
 /**
  * Configuration values for initializing HttpServer.
  */
 public class HttpServerConfig {
 
-	private final Map<String, Object> handlers =
-			new ConcurrentSkipListMap<String, Object>(
-					new ReverseLengthComparator());
+	private final List<RequestFilter> filters =
+			new CopyOnWriteArrayList<RequestFilter>();
+
+	/* Routes for requests that match no virtual host */
+	private final VirtualHost defaultHost = new VirtualHost(filters);
+
+	private final Map<String, VirtualHost> virtualHosts =
+			new LinkedHashMap<String, VirtualHost>();
+	private volatile HostTable hostTable = null;
 
 	private SocketAddress address;
+	private final List<ServerListener> listeners =
+			new ArrayList<ServerListener>();
 	private int maxConnections = -1;
 	private int maxRequestSize = 1024 * 1024;
+	private int maxCopiedContent = 4096;
+	private boolean flyweightParser = false;
+	private long maxUploadSize = 0;
+	private int uploadThreshold = 16384;
+	private long uploadRequestMemory = 1024 * 1024;
+	private UploadBudget uploadBudget = new UploadBudget(64 * 1024 * 1024);
+	private File uploadDirectory = null;
+	private final BodyCodecs bodyCodecs = new BodyCodecs().add(
+			new BinaryCodec()).add(new JsonCodec());
 	private ErrorHandler errorHandler = new DefaultErrorHandler();
 	private RequestLogger requestLogger = new NullRequestLogger();
+	private ServerEventListener eventListener = null;
+	private long slowHandlerThreshold = TimeUnit.MILLISECONDS.toNanos(100);
+	private long stallThreshold = 0;
+	private long stallReportInterval = TimeUnit.SECONDS.toNanos(10);
 	private EventLoopGroup parentGroup = new NioEventLoopGroup();
 	private EventLoopGroup childGroup = new NioEventLoopGroup();
+	private CharSequence serverHeader = null;
+	private boolean dateHeader = true;
+	private boolean flushConsolidation = false;
+	private boolean requestTiming = false;
+	private int maxPendingFlushBytes = 65536;
+	private long maxFlushDelay = 0;
+	private long asyncTimeout = TimeUnit.SECONDS.toNanos(30);
+	private int preallocate = 0;
+	private int warmUp = 0;
+	private final List<String> warmUpUris = new ArrayList<String>();
+	private TrafficCapture trafficCapture = null;
 
 	/**
 	 * Set the server listen address.
@@ -48,6 +93,15 @@ public class HttpServerConfig {
 		return this;
 	}
 
+	/**
+	 * Add a listener (TCP, Unix domain socket or in-VM LocalChannel), in
+	 * addition to the primary server address if one is set.
+	 */
+	public HttpServerConfig listener(final ServerListener listener) {
+		listeners.add(listener);
+		return this;
+	}
+
 	/**
 	 * Set the maximum number of client connections.
 	 */
@@ -65,6 +119,84 @@ public class HttpServerConfig {
 		return this;
 	}
 
+	/**
+	 * Set the largest response body in bytes that is copied into the same
+	 * buffer as the status line and headers, so the response is sent with a
+	 * single write. Larger bodies are sent as a separate buffer in the same
+	 * gathering write. Defaults to 4096.
+	 */
+	public HttpServerConfig maxCopiedContent(final int max) {
+		maxCopiedContent = max;
+		return this;
+	}
+
+	/**
+	 * Enable the flyweight request parser, which indexes request headers in
+	 * the received bytes and passes fixed-length bodies on without copying,
+	 * instead of building a full Netty request object. Defaults to false.
+	 */
+	public HttpServerConfig flyweightParser(final boolean enabled) {
+		flyweightParser = enabled;
+		return this;
+	}
+
+	/**
+	 * Enable streaming multipart/form-data uploads up to the given total size
+	 * in bytes. Upload bodies are parsed into parts as they are received
+	 * instead of being aggregated under the maxRequestSize limit. Defaults to 0
+	 * (disabled).
+	 */
+	public HttpServerConfig maxUploadSize(final long max) {
+		maxUploadSize = max;
+		return this;
+	}
+
+	/**
+	 * Set the largest multipart part size in bytes that is kept in memory.
+	 * Larger parts are stored in temporary files. Defaults to 16384.
+	 * <p>
+	 * Spilled parts are written to their file with blocking FileChannel writes
+	 * on the event loop as the body arrives, so a slow upload directory delays
+	 * every connection on that loop. Use a local disk, or raise the threshold
+	 * (and uploadMemory()) when uploads are small.
+	 */
+	public HttpServerConfig uploadThreshold(final int threshold) {
+		uploadThreshold = threshold;
+		return this;
+	}
+
+	/**
+	 * Set the memory limits for multipart parts kept in memory, per request
+	 * and for the whole server. Parts that do not fit are stored in temporary
+	 * files. Defaults to 1MB per request and 64MB total.
+	 */
+	public HttpServerConfig uploadMemory(final long perRequest,
+			final long total) {
+		uploadRequestMemory = perRequest;
+		uploadBudget = new UploadBudget(total);
+		return this;
+	}
+
+	/**
+	 * Set the directory for temporary upload files. Defaults to null (the
+	 * system temporary directory).
+	 */
+	public HttpServerConfig uploadDirectory(final File directory) {
+		uploadDirectory = directory;
+		return this;
+	}
+
+	/**
+	 * Register a codec for ServerResponse.writeObject() and
+	 * ServerRequest.readObject(), taking precedence over previously registered
+	 * codecs. JSON and application/octet-stream codecs are registered by
+	 * default.
+	 */
+	public HttpServerConfig bodyCodec(final BodyCodec codec) {
+		bodyCodecs.add(codec);
+		return this;
+	}
+
 	/**
 	 * Set the default error handler.
 	 */
@@ -81,6 +213,47 @@ public class HttpServerConfig {
 		return this;
 	}
 
+	/**
+	 * Set the listener for request lifecycle and server internals events.
+	 * Defaults to null, which skips all event measurement.
+	 */
+	public HttpServerConfig eventListener(final ServerEventListener listener) {
+		eventListener = listener;
+		return this;
+	}
+
+	/**
+	 * Report request filters and handlers that run on the event loop for
+	 * longer than this as slow handler events. Defaults to 100ms.
+	 */
+	public HttpServerConfig slowHandlerThreshold(final long time,
+			final TimeUnit unit) {
+		slowHandlerThreshold = unit.toNanos(time);
+		return this;
+	}
+
+	/**
+	 * Watch child event loops for stalls: a loop that does not run a
+	 * heartbeat task within this time has its stack sampled and logged with
+	 * the request it is dispatching, and reported to the event listener.
+	 * Defaults to 0, disabled.
+	 */
+	public HttpServerConfig stallThreshold(final long time,
+			final TimeUnit unit) {
+		stallThreshold = unit.toNanos(time);
+		return this;
+	}
+
+	/**
+	 * Report stalls of each event loop at most once per this interval, to
+	 * bound logging when a loop stalls repeatedly. Defaults to 10 seconds.
+	 */
+	public HttpServerConfig stallReportInterval(final long time,
+			final TimeUnit unit) {
+		stallReportInterval = unit.toNanos(time);
+		return this;
+	}
+
 	/**
 	 * Set the parent (listen port) event loop group.
 	 */
@@ -97,6 +270,126 @@ public class HttpServerConfig {
 		return this;
 	}
 
+	/**
+	 * Set the child (request handler) event loop group to a new group created
+	 * from the given profile.
+	 */
+	public HttpServerConfig childGroup(final EventLoopProfile profile) {
+		childGroup = profile.create();
+		return this;
+	}
+
+	/**
+	 * Set a fixed Server header value sent with every response. Defaults to
+	 * null (no Server header).
+	 */
+	public HttpServerConfig serverHeader(final String value) {
+		serverHeader = value == null ? null : ResponseHeaders.encode(value);
+		return this;
+	}
+
+	/**
+	 * Enable or disable the Date header on responses. Defaults to true.
+	 */
+	public HttpServerConfig dateHeader(final boolean enabled) {
+		dateHeader = enabled;
+		return this;
+	}
+
+	/**
+	 * Enable or disable flush consolidation. When enabled, flushes are
+	 * deferred to the end of the current read batch / event loop iteration so
+	 * that pipelined responses and small chunks share a write syscall.
+	 * Defaults to false.
+	 */
+	public HttpServerConfig flushConsolidation(final boolean enabled) {
+		flushConsolidation = enabled;
+		return this;
+	}
+
+	/**
+	 * Enable flush consolidation with bounds for streaming responses.
+	 *
+	 * @param maxPendingBytes
+	 *            Flush immediately once this many bytes are pending (default
+	 *            65536)
+	 * @param maxDelay
+	 *            Maximum time to defer flushes outside of a read batch, 0 to
+	 *            flush at the end of the current event loop iteration (default
+	 *            0)
+	 */
+	public HttpServerConfig flushConsolidation(final int maxPendingBytes,
+			final long maxDelay, final TimeUnit unit) {
+		flushConsolidation = true;
+		maxPendingFlushBytes = maxPendingBytes;
+		maxFlushDelay = unit.toNanos(maxDelay);
+		return this;
+	}
+
+	/**
+	 * Set how long AsyncRequestHandler results may take before the request
+	 * fails with 503 Service Unavailable and the result future is cancelled.
+	 * Defaults to 30 seconds, 0 to wait indefinitely.
+	 */
+	public HttpServerConfig asyncTimeout(final long timeout,
+			final TimeUnit unit) {
+		asyncTimeout = unit.toNanos(timeout);
+		return this;
+	}
+
+	/**
+	 * Create this many pooled requests and responses before binding, instead
+	 * of on first use. Limited by maxConnections(). Defaults to 0.
+	 */
+	public HttpServerConfig preallocate(final int messages) {
+		preallocate = messages;
+		return this;
+	}
+
+	/**
+	 * Before binding, send this many synthetic GET requests to each warm-up
+	 * URI through the real pipeline over an in-VM connection, so the router,
+	 * codecs and handlers are JIT-compiled before live traffic arrives.
+	 * Around 10000 reaches the C2 thresholds of the default tiered compiler.
+	 * Handlers see the requests (and the request logger logs them), so
+	 * warmed routes must be safe to GET. Defaults to 0, disabled.
+	 */
+	public HttpServerConfig warmUp(final int iterations) {
+		warmUp = iterations;
+		return this;
+	}
+
+	/**
+	 * Add a URI to warm up. If none are added, every handler prefix of the
+	 * default and virtual hosts is warmed up; template routes are only warmed
+	 * up through URIs added here.
+	 */
+	public HttpServerConfig warmUpUri(final String uri) {
+		warmUpUris.add(uri);
+		return this;
+	}
+
+	/**
+	 * Capture raw inbound requests for later replay. The capture is opened
+	 * when the server starts listening, after warm-up, and should be closed
+	 * by the application when done. Defaults to null, disabled.
+	 */
+	public HttpServerConfig trafficCapture(final TrafficCapture capture) {
+		trafficCapture = capture;
+		return this;
+	}
+
+	/**
+	 * Enable or disable per-phase request timing, available from
+	 * ServerResponse.timing(). When enabled, access log durations span from
+	 * the first byte received to the last byte written instead of handler
+	 * dispatch to finish(). Defaults to false.
+	 */
+	public HttpServerConfig requestTiming(final boolean enabled) {
+		requestTiming = enabled;
+		return this;
+	}
+
 	/**
 	 * <p>
 	 * Add a request handler for the given prefix i.e /session and
@@ -134,7 +427,7 @@ public class HttpServerConfig {
 	 */
 	public HttpServerConfig requestHandler(final String prefix,
 			final RequestHandler handler) {
-		handlers.put(prefix, handler);
+		defaultHost.requestHandler(prefix, handler);
 		return this;
 	}
 
@@ -175,10 +468,71 @@ public class HttpServerConfig {
 	 */
 	public HttpServerConfig requestHandler(final String prefix,
 			final RequestHandlerFactory factory) {
-		handlers.put(prefix, factory);
+		defaultHost.requestHandler(prefix, factory);
 		return this;
 	}
 
+	/**
+	 * Serve a prebuilt response for all requests matching the given prefix,
+	 * i.e. health checks. The encoded bytes are written directly to the
+	 * channel without creating a ServerRequest / ServerResponse, so these
+	 * requests are not recorded by the request logger.
+	 */
+	public HttpServerConfig staticResponse(final String prefix,
+			final PrebuiltResponse response) {
+		defaultHost.staticResponse(prefix, response);
+		return this;
+	}
+
+	/**
+	 * Add a filter run before every request handler, ahead of any prefix
+	 * filters. Static responses and unmapped (404) requests are not filtered.
+	 */
+	public HttpServerConfig filter(final RequestFilter filter) {
+		filters.add(filter);
+		compile();
+		return this;
+	}
+
+	/**
+	 * Add a filter run before request handlers registered at or below the
+	 * given prefix. Filters for shorter prefixes run first.
+	 */
+	public HttpServerConfig filter(final String prefix,
+			final RequestFilter filter) {
+		defaultHost.filter(prefix, filter);
+		return this;
+	}
+
+	/**
+	 * Set a mapper for the default routes consulted before the prefix
+	 * handlers, i.e. a TemplateURLMapper with path parameters.
+	 */
+	public HttpServerConfig urlMapper(final RequestURLMapper mapper) {
+		defaultHost.urlMapper(mapper);
+		return this;
+	}
+
+	/**
+	 * Route requests for the given Host to their own table instead of the
+	 * default handlers. The host is matched ignoring case and port, either
+	 * exactly ("api.example.com") or by subdomain ("*.example.com", which
+	 * does not match "example.com" itself). Exact hosts win over wildcards,
+	 * and longer wildcards over shorter ones. Server-wide filters also run for
+	 * virtual hosts.
+	 */
+	public synchronized HttpServerConfig virtualHost(final String host,
+			final VirtualHost routes) {
+
+		routes.filters(filters);
+
+		virtualHosts.put(HostTable.key(host), routes);
+		hostTable = new HostTable(virtualHosts);
+
+		return this;
+
+	}
+
 	/**
 	 * Get the address this server binds to.
 	 */
@@ -186,6 +540,24 @@ public class HttpServerConfig {
 		return address;
 	}
 
+	/**
+	 * Get all listeners, starting with a TCP listener for the primary server
+	 * address if one is set.
+	 */
+	public List<ServerListener> listeners() {
+
+		final List<ServerListener> all = new ArrayList<ServerListener>();
+
+		if (address != null) {
+			all.add(ServerListener.tcp(address));
+		}
+
+		all.addAll(listeners);
+
+		return all;
+
+	}
+
 	/**
 	 * Get the maximum number of client connections.
 	 */
@@ -200,6 +572,61 @@ public class HttpServerConfig {
 		return maxRequestSize;
 	}
 
+	/**
+	 * Get the largest response body in bytes that is copied into the header
+	 * buffer.
+	 */
+	public int maxCopiedContent() {
+		return maxCopiedContent;
+	}
+
+	/**
+	 * Check if the flyweight request parser is enabled.
+	 */
+	public boolean flyweightParser() {
+		return flyweightParser;
+	}
+
+	/**
+	 * Get the maximum multipart upload size in bytes, 0 if streaming uploads
+	 * are disabled.
+	 */
+	public long maxUploadSize() {
+		return maxUploadSize;
+	}
+
+	/**
+	 * Get the largest multipart part size in bytes that is kept in memory.
+	 */
+	public int uploadThreshold() {
+		return uploadThreshold;
+	}
+
+	/**
+	 * Get the per-request memory limit for multipart parts.
+	 */
+	public long uploadRequestMemory() {
+		return uploadRequestMemory;
+	}
+
+	/**
+	 * Get the directory for temporary upload files.
+	 */
+	public File uploadDirectory() {
+		return uploadDirectory;
+	}
+
+	UploadBudget uploadBudget() {
+		return uploadBudget;
+	}
+
+	/**
+	 * Get the registered body codecs.
+	 */
+	public BodyCodecs bodyCodecs() {
+		return bodyCodecs;
+	}
+
 	/**
 	 * Get the default error handler.
 	 */
@@ -214,6 +641,35 @@ public class HttpServerConfig {
 		return requestLogger;
 	}
 
+	/**
+	 * Get the server event listener, or null if none.
+	 */
+	public ServerEventListener eventListener() {
+		return eventListener;
+	}
+
+	/**
+	 * Get the slow handler event threshold in nanoseconds.
+	 */
+	public long slowHandlerThreshold() {
+		return slowHandlerThreshold;
+	}
+
+	/**
+	 * Get the event loop stall threshold in nanoseconds, 0 if disabled.
+	 */
+	public long stallThreshold() {
+		return stallThreshold;
+	}
+
+	/**
+	 * Get the minimum interval between stall reports per event loop in
+	 * nanoseconds.
+	 */
+	public long stallReportInterval() {
+		return stallReportInterval;
+	}
+
 	/**
 	 * Get the parent Netty event loop group.
 	 */
@@ -229,55 +685,135 @@ public class HttpServerConfig {
 	}
 
 	/**
-	 * Get the request handler mapping for the specified URI.
+	 * Get the pre-encoded Server header value, or null if not set.
 	 */
-	public RequestHandlerMapping getRequestMapping(final String uri) {
+	public CharSequence serverHeader() {
+		return serverHeader;
+	}
 
-		for (final Map.Entry<String, Object> entry : handlers.entrySet()) {
-			if (uri.startsWith(entry.getKey())) {
-				return RequestHandlerMapping.create(entry.getKey(),
-						entry.getValue());
-			}
-		}
+	/**
+	 * Check if the Date header is sent with responses.
+	 */
+	public boolean dateHeader() {
+		return dateHeader;
+	}
 
-		return null;
+	/**
+	 * Check if flush consolidation is enabled.
+	 */
+	public boolean flushConsolidation() {
+		return flushConsolidation;
+	}
 
+	/**
+	 * Get the pending byte count that forces a consolidated flush.
+	 */
+	public int maxPendingFlushBytes() {
+		return maxPendingFlushBytes;
 	}
 
-	public Object removeRequestHandler(final String path) {
-		return handlers.remove(path);
+	/**
+	 * Get the maximum consolidated flush delay in nanoseconds.
+	 */
+	public long maxFlushDelay() {
+		return maxFlushDelay;
 	}
 
 	/**
-	 * 
-	 * Sorts strings by reverse length first, then normal comparison. For
-	 * example:
-	 * 
-	 * 2 handlers defined as requestHandler("/service", serviceHandler);
-	 * requestHandler("/service/info", infoHandler);
-	 * 
-	 * A request to "/service/info/10" will go to infoHandler, but a request to
-	 * "/service/something/else" will go to serviceHandler.
-	 * 
+	 * Get the async handler timeout in nanoseconds.
 	 */
-	private class ReverseLengthComparator implements Comparator<String> {
+	public long asyncTimeout() {
+		return asyncTimeout;
+	}
 
-		// Sort by reverse length first to allow overriding parent
-		// mappings
-		@Override
-		public int compare(final String o1, final String o2) {
+	/**
+	 * Get the number of pooled messages created before binding.
+	 */
+	public int preallocate() {
+		return preallocate;
+	}
 
-			final int l1 = o1.length();
-			final int l2 = o2.length();
+	/**
+	 * Get the number of warm-up requests per URI.
+	 */
+	public int warmUp() {
+		return warmUp;
+	}
+
+	/**
+	 * Get the URIs added for warm-up.
+	 */
+	public List<String> warmUpUris() {
+		return warmUpUris;
+	}
 
-			if (l1 < l2) {
-				return 1;
-			} else if (l2 < l1) {
-				return -1;
-			} else {
-				return o1.compareTo(o2);
+	/**
+	 * Get the traffic capture, or null if disabled.
+	 */
+	public TrafficCapture trafficCapture() {
+		return trafficCapture;
+	}
+
+	/**
+	 * Check if request timing is enabled.
+	 */
+	public boolean requestTiming() {
+		return requestTiming;
+	}
+
+	/**
+	 * Get the default prefix handler mapping for the specified URI.
+	 */
+	public RequestHandlerMapping getRequestMapping(final String uri) {
+		return defaultHost.getRequestMapping(uri);
+	}
+
+	/**
+	 * Get the prefix handler mapping for the specified Host header and URI.
+	 */
+	public RequestHandlerMapping getRequestMapping(final String host,
+			final String uri) {
+		return getVirtualHost(host).getRequestMapping(uri);
+	}
+
+	/**
+	 * Get the routes for the specified Host header, or the default routes if
+	 * no virtual host matches.
+	 */
+	public VirtualHost getVirtualHost(final String host) {
+
+		final HostTable table = hostTable;
+
+		if (table != null) {
+			final VirtualHost routes = table.resolve(host);
+			if (routes != null) {
+				return routes;
 			}
+		}
+
+		return defaultHost;
+
+	}
+
+	/**
+	 * Registered virtual hosts by host name, wildcards as their suffix
+	 * (".example.com").
+	 */
+	synchronized Map<String, VirtualHost> virtualHosts() {
+		return new LinkedHashMap<String, VirtualHost>(virtualHosts);
+	}
+
+	public Object removeRequestHandler(final String path) {
+		return defaultHost.removeRequestHandler(path);
+	}
+
+	/* Server-wide filters changed, rebuild every filter chain */
+	private synchronized void compile() {
+
+		defaultHost.compile();
 
+		for (final VirtualHost routes : virtualHosts.values()) {
+			routes.compile();
 		}
 
 	}
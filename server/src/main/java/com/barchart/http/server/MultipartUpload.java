@@ -0,0 +1,451 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufProcessor;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.util.CharsetUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.barchart.http.request.RequestPart;
+
+/**
+ * Streaming multipart/form-data parser. Content is offered as it is received,
+ * and part data is passed on to the current UploadPart as slices of the
+ * received buffers. Only a partial boundary delimiter or part header block is
+ * held back between calls.
+ */
+class MultipartUpload {
+
+	private static final int MAX_HEADER_SIZE = 8192;
+	private static final int MAX_PARTS = 1024;
+
+	private static final byte[] CRLF = { '\r', '\n' };
+	private static final byte[] HEADER_END = { '\r', '\n', '\r', '\n' };
+
+	private static enum State {
+		BODY, DELIMITER, HEADERS, EPILOGUE
+	}
+
+	private final ByteBufAllocator alloc;
+	private final int threshold;
+	private final long requestMemory;
+	private final UploadBudget budget;
+	private final File directory;
+
+	/* CRLF + "--" + boundary */
+	private final byte[] delimiter;
+
+	/* Received content not yet consumed */
+	private final CompositeByteBuf buffer;
+
+	private final List<UploadPart> parts = new ArrayList<UploadPart>();
+
+	private State state = State.BODY;
+
+	/* Part currently receiving content, null in the preamble */
+	private UploadPart part = null;
+
+	/* Memory reserved by this request */
+	private long reserved = 0;
+
+	private boolean closed = false;
+
+	MultipartUpload(final String boundary, final ByteBufAllocator alloc_,
+			final HttpServerConfig config) {
+
+		alloc = alloc_;
+		threshold = config.uploadThreshold();
+		requestMemory = config.uploadRequestMemory();
+		budget = config.uploadBudget();
+		directory = config.uploadDirectory();
+
+		delimiter = ("\r\n--" + boundary).getBytes(CharsetUtil.ISO_8859_1);
+
+		buffer = alloc.compositeBuffer(Integer.MAX_VALUE);
+
+		// The first delimiter is not preceded by a line break
+		append(Unpooled.wrappedBuffer(CRLF));
+
+	}
+
+	/**
+	 * Parse the next block of received content. The buffer is retained as
+	 * needed and not released.
+	 *
+	 * @return False if the content is malformed
+	 */
+	boolean offer(final ByteBuf content) throws IOException {
+
+		if (content.isReadable()) {
+			append(content.retain());
+		}
+
+		final boolean valid = parse();
+
+		buffer.discardReadComponents();
+
+		return valid;
+
+	}
+
+	/**
+	 * Called after the last content has been offered.
+	 *
+	 * @return False if the closing delimiter was not received
+	 */
+	boolean finish() {
+
+		buffer.release();
+
+		return state == State.EPILOGUE;
+
+	}
+
+	/**
+	 * Release all memory and delete temporary files not moved by the
+	 * application.
+	 */
+	void close() {
+
+		if (closed) {
+			return;
+		}
+
+		closed = true;
+
+		if (buffer.refCnt() > 0) {
+			buffer.release();
+		}
+
+		for (final UploadPart p : parts) {
+			p.delete();
+		}
+
+	}
+
+	List<RequestPart> parts() {
+		return Collections.<RequestPart> unmodifiableList(parts);
+	}
+
+	/* Budget and storage for UploadPart */
+
+	ByteBufAllocator alloc() {
+		return alloc;
+	}
+
+	int threshold() {
+		return threshold;
+	}
+
+	File directory() {
+		return directory;
+	}
+
+	boolean reserve(final long bytes) {
+
+		if (reserved + bytes > requestMemory || !budget.reserve(bytes)) {
+			return false;
+		}
+
+		reserved += bytes;
+
+		return true;
+
+	}
+
+	void release(final long bytes) {
+		reserved -= bytes;
+		budget.release(bytes);
+	}
+
+	private void append(final ByteBuf content) {
+		buffer.addComponent(content);
+		buffer.writerIndex(buffer.writerIndex() + content.readableBytes());
+	}
+
+	private boolean parse() throws IOException {
+
+		while (true) {
+
+			switch (state) {
+
+				case BODY: {
+
+					final int found = indexOf(delimiter);
+
+					if (found == -1) {
+
+						// Keep enough to match a delimiter split across reads
+						final int safe =
+								buffer.writerIndex() - delimiter.length + 1;
+
+						if (safe > buffer.readerIndex()) {
+							emit(safe - buffer.readerIndex());
+						}
+
+						return true;
+
+					}
+
+					emit(found - buffer.readerIndex());
+					buffer.skipBytes(delimiter.length);
+
+					if (part != null) {
+						part.complete();
+						part = null;
+					}
+
+					state = State.DELIMITER;
+
+					break;
+
+				}
+
+				case DELIMITER: {
+
+					if (buffer.readableBytes() < 2) {
+						return true;
+					}
+
+					final int start = buffer.readerIndex();
+
+					if (buffer.getByte(start) == '-'
+							&& buffer.getByte(start + 1) == '-') {
+						state = State.EPILOGUE;
+						break;
+					}
+
+					final int lf =
+							buffer.forEachByte(start, buffer.readableBytes(),
+									ByteBufProcessor.FIND_LF);
+
+					if (lf == -1) {
+						return buffer.readableBytes() < MAX_HEADER_SIZE;
+					}
+
+					// Only transport padding allowed after the boundary
+					for (int i = start; i < lf; i++) {
+						final byte b = buffer.getByte(i);
+						if (b != ' ' && b != '\t' && b != '\r') {
+							return false;
+						}
+					}
+
+					buffer.readerIndex(lf + 1);
+					state = State.HEADERS;
+
+					break;
+
+				}
+
+				case HEADERS: {
+
+					if (buffer.readableBytes() < 2) {
+						return true;
+					}
+
+					final int start = buffer.readerIndex();
+					final int end;
+
+					if (buffer.getByte(start) == '\r'
+							&& buffer.getByte(start + 1) == '\n') {
+
+						// No part headers
+						end = start + 2;
+
+					} else {
+
+						final int found = indexOf(HEADER_END);
+
+						if (found == -1) {
+							return buffer.readableBytes() < MAX_HEADER_SIZE;
+						}
+
+						end = found + HEADER_END.length;
+
+					}
+
+					if (end - start > MAX_HEADER_SIZE || parts.size() == MAX_PARTS) {
+						return false;
+					}
+
+					part =
+							createPart(buffer.toString(start, end - start,
+									CharsetUtil.UTF_8));
+					buffer.readerIndex(end);
+
+					if (part == null) {
+						return false;
+					}
+
+					parts.add(part);
+					state = State.BODY;
+
+					break;
+
+				}
+
+				case EPILOGUE:
+					buffer.skipBytes(buffer.readableBytes());
+					return true;
+
+			}
+
+		}
+
+	}
+
+	/**
+	 * Pass part content on to the current part, or discard it in the preamble.
+	 */
+	private void emit(final int length) throws IOException {
+
+		if (part != null) {
+			part.write(buffer.readSlice(length));
+		} else {
+			buffer.skipBytes(length);
+		}
+
+	}
+
+	private int indexOf(final byte[] pattern) {
+
+		final int end = buffer.writerIndex() - pattern.length;
+
+		int i = buffer.readerIndex();
+
+		while (i <= end) {
+
+			i = buffer.forEachByte(i, end - i + 1, ByteBufProcessor.FIND_CR);
+
+			if (i == -1) {
+				return -1;
+			}
+
+			int m = 1;
+
+			while (m < pattern.length && buffer.getByte(i + m) == pattern[m]) {
+				m++;
+			}
+
+			if (m == pattern.length) {
+				return i;
+			}
+
+			i++;
+
+		}
+
+		return -1;
+
+	}
+
+	private UploadPart createPart(final String block) {
+
+		final HttpHeaders headers = new DefaultHttpHeaders(false);
+
+		for (final String line : block.split("\r\n")) {
+
+			if (line.isEmpty()) {
+				continue;
+			}
+
+			final int colon = line.indexOf(':');
+
+			if (colon <= 0) {
+				return null;
+			}
+
+			headers.add(line.substring(0, colon).trim(),
+					line.substring(colon + 1).trim());
+
+		}
+
+		final String disposition =
+				headers.get("Content-Disposition");
+
+		if (disposition == null) {
+			return null;
+		}
+
+		return new UploadPart(this, headers, parameter(disposition, "name"),
+				parameter(disposition, "filename"));
+
+	}
+
+	/**
+	 * Get a parameter value from a header such as
+	 * <code>form-data; name="field"; filename="data.csv"</code>.
+	 */
+	static String parameter(final String header, final String name) {
+
+		int pos = header.indexOf(';');
+
+		while (pos != -1 && pos < header.length()) {
+
+			int start = pos + 1;
+			while (start < header.length() && header.charAt(start) == ' ') {
+				start++;
+			}
+
+			final int eq = header.indexOf('=', start);
+
+			if (eq == -1) {
+				return null;
+			}
+
+			final String key = header.substring(start, eq).trim();
+			final String value;
+
+			if (eq + 1 < header.length() && header.charAt(eq + 1) == '"') {
+
+				final StringBuilder sb = new StringBuilder();
+
+				int i = eq + 2;
+
+				for (; i < header.length() && header.charAt(i) != '"'; i++) {
+					if (header.charAt(i) == '\\' && i + 1 < header.length()) {
+						i++;
+					}
+					sb.append(header.charAt(i));
+				}
+
+				value = sb.toString();
+				pos = header.indexOf(';', i);
+
+			} else {
+
+				pos = header.indexOf(';', eq);
+				value =
+						header.substring(eq + 1,
+								pos == -1 ? header.length() : pos).trim();
+
+			}
+
+			if (key.equalsIgnoreCase(name)) {
+				return value;
+			}
+
+		}
+
+		return null;
+
+	}
+
+}
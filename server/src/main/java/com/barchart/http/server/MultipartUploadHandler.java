@@ -0,0 +1,215 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.server;
+
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageDecoder;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Parses multipart/form-data request bodies as they are received, before
+ * aggregation. The request is passed on with an empty body, and the parsed
+ * parts are handed to the request handler through the channel attribute
+ * ATTR_UPLOAD.
+ *
+ * Aggregated requests (from the flyweight parser) are parsed in one pass, so
+ * the same parts API is available in both modes.
+ */
+class MultipartUploadHandler extends MessageToMessageDecoder<HttpObject> {
+
+	static final AttributeKey<MultipartUpload> ATTR_UPLOAD = AttributeKey
+			.<MultipartUpload> valueOf("upload");
+
+	private final HttpServerConfig config;
+
+	/* Upload currently being received */
+	private MultipartUpload upload = null;
+	private long received = 0;
+
+	/* Set after a rejected request, until the connection closes */
+	private boolean discarding = false;
+
+	MultipartUploadHandler(final HttpServerConfig config_) {
+		config = config_;
+	}
+
+	@Override
+	protected void decode(final ChannelHandlerContext ctx,
+			final HttpObject msg, final List<Object> out) throws Exception {
+
+		if (discarding) {
+			return;
+		}
+
+		if (msg instanceof HttpRequest) {
+
+			final String boundary = boundary((HttpRequest) msg);
+
+			if (boundary != null) {
+
+				if (HttpHeaders.getContentLength((HttpRequest) msg, -1) > config
+						.maxUploadSize()) {
+					reject(ctx, HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE);
+					return;
+				}
+
+				upload = new MultipartUpload(boundary, ctx.alloc(), config);
+				received = 0;
+
+				if (msg instanceof FullHttpRequest) {
+					if (receive(ctx, (FullHttpRequest) msg)) {
+						out.add(ReferenceCountUtil.retain(msg));
+					}
+				} else {
+					// Expect was answered by ExpectContinueHandler, the
+					// aggregator only completes the empty request
+					out.add(msg);
+				}
+
+				return;
+
+			}
+
+		}
+
+		if (upload != null && msg instanceof HttpContent) {
+
+			if (receive(ctx, (HttpContent) msg)
+					&& msg instanceof LastHttpContent) {
+				out.add(LastHttpContent.EMPTY_LAST_CONTENT);
+			}
+
+			return;
+
+		}
+
+		out.add(ReferenceCountUtil.retain(msg));
+
+	}
+
+	private boolean receive(final ChannelHandlerContext ctx,
+			final HttpContent content) {
+
+		received += content.content().readableBytes();
+
+		if (received > config.maxUploadSize()) {
+			reject(ctx, HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE);
+			return false;
+		}
+
+		try {
+
+			if (!upload.offer(content.content())) {
+				reject(ctx, HttpResponseStatus.BAD_REQUEST);
+				return false;
+			}
+
+		} catch (final IOException e) {
+			reject(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR);
+			return false;
+		}
+
+		if (content instanceof LastHttpContent) {
+
+			if (!upload.finish()) {
+				reject(ctx, HttpResponseStatus.BAD_REQUEST);
+				return false;
+			}
+
+			ctx.channel().attr(ATTR_UPLOAD).set(upload);
+			upload = null;
+
+		}
+
+		return true;
+
+	}
+
+	private void reject(final ChannelHandlerContext ctx,
+			final HttpResponseStatus status) {
+
+		discarding = true;
+
+		cleanup(ctx);
+
+		final FullHttpResponse response =
+				new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status);
+
+		response.headers().set(ResponseHeaders.CONTENT_LENGTH, 0);
+		response.headers().set(ResponseHeaders.CONNECTION,
+				ResponseHeaders.CLOSE);
+
+		ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+
+	}
+
+	private void cleanup(final ChannelHandlerContext ctx) {
+
+		if (upload != null) {
+			upload.close();
+			upload = null;
+		}
+
+		// Not picked up by the request handler
+		final MultipartUpload unclaimed =
+				ctx.channel().attr(ATTR_UPLOAD).getAndRemove();
+
+		if (unclaimed != null) {
+			unclaimed.close();
+		}
+
+	}
+
+	@Override
+	public void channelInactive(final ChannelHandlerContext ctx)
+			throws Exception {
+		cleanup(ctx);
+		super.channelInactive(ctx);
+	}
+
+	/**
+	 * Get the multipart boundary from the request Content-Type, or null if
+	 * this is not a multipart/form-data request.
+	 */
+	static String boundary(final HttpRequest request) {
+
+		final String contentType =
+				request.headers().get(HttpHeaders.Names.CONTENT_TYPE);
+
+		if (contentType == null
+				|| !contentType.regionMatches(true, 0,
+						HttpHeaders.Values.MULTIPART_FORM_DATA, 0,
+						HttpHeaders.Values.MULTIPART_FORM_DATA.length())) {
+			return null;
+		}
+
+		final String boundary =
+				MultipartUpload.parameter(contentType,
+						HttpHeaders.Values.BOUNDARY);
+
+		return boundary == null || boundary.isEmpty()
+				|| boundary.length() > 70 ? null : boundary;
+
+	}
+
+}
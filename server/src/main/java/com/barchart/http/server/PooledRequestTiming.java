@@ -0,0 +1,86 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.server;
+
+import com.barchart.http.request.RequestTiming;
+
+/**
+ * Request timeline reused with its pooled response. Not thread safe.
+ */
+public class PooledRequestTiming implements RequestTiming {
+
+	private static final Phase[] PHASES = Phase.values();
+
+	private final long[] times = new long[PHASES.length];
+
+	void reset() {
+		for (int i = 0; i < times.length; i++) {
+			times[i] = 0;
+		}
+	}
+
+	/**
+	 * Record the current time for a phase.
+	 */
+	void mark(final Phase phase) {
+		times[phase.ordinal()] = System.nanoTime();
+	}
+
+	/**
+	 * Record a time captured earlier in the pipeline, if any.
+	 */
+	void mark(final Phase phase, final long time) {
+		times[phase.ordinal()] = time;
+	}
+
+	@Override
+	public long time(final Phase phase) {
+		return times[phase.ordinal()];
+	}
+
+	@Override
+	public long elapsed(final Phase from, final Phase to) {
+
+		final long start = times[from.ordinal()];
+		final long end = times[to.ordinal()];
+
+		if (start == 0 || end == 0) {
+			return -1;
+		}
+
+		return end - start;
+
+	}
+
+	@Override
+	public long total() {
+		return elapsed(Phase.RECEIVED, Phase.WRITTEN);
+	}
+
+	@Override
+	public String toString() {
+
+		final StringBuilder sb = new StringBuilder("RequestTiming[");
+
+		final long start = times[0];
+
+		for (int i = 1; i < times.length; i++) {
+			if (start != 0 && times[i] != 0) {
+				if (sb.charAt(sb.length() - 1) != '[') {
+					sb.append(", ");
+				}
+				sb.append(PHASES[i]).append('=')
+						.append((times[i] - start) / 1000).append("us");
+			}
+		}
+
+		return sb.append(']').toString();
+
+	}
+
+}
@@ -16,22 +16,31 @@ import io.netty.handler.codec.http.CookieDecoder;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpVersion;
 import io.netty.handler.codec.http.QueryStringDecoder;
 import io.netty.util.CharsetUtil;
 
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
+import com.barchart.http.codec.BodyCodec;
+import com.barchart.http.error.ContentNegotiationException;
+import com.barchart.http.request.PathParameters;
 import com.barchart.http.request.RequestAttribute;
 import com.barchart.http.request.RequestAttributeKey;
+import com.barchart.http.request.RequestPart;
 import com.barchart.http.request.ServerRequest;
 
 /**
@@ -41,6 +50,7 @@ public class PooledServerRequest implements ServerRequest {
 
 	private FullHttpRequest nettyRequest;
 
+	private String route;
 	private String baseUri;
 	private String pathInfo;
 	private String queryString;
@@ -51,22 +61,47 @@ public class PooledServerRequest implements ServerRequest {
 	private Map<String, List<String>> queryStringDecoded = null;
 	private Map<String, Cookie> cookies;
 
-	private Map<RequestAttributeKey<?>, RequestAttribute<?>> attributes;
+	private MultipartUpload upload;
+
+	/* Attribute holders by key index, reused across requests */
+	private AtomicReferenceArray<RequestAttribute<?>> attributes =
+			new AtomicReferenceArray<RequestAttribute<?>>(0);
+
+	/* Keys created after this request was initialized, or without a slot */
+	private Map<RequestAttributeKey<?>, RequestAttribute<?>> lateAttributes;
 
 	private String remoteUser = null;
 
+	/* Host header, read once when routing the request */
+	private String host;
+
+	/* Template captures, decoded on read */
+	private final PathParameters pathParams = new PathParameters();
+
+	private HttpServerConfig config;
+
 	public PooledServerRequest() {
 	}
 
 	void init(final Channel channel_, final FullHttpRequest nettyRequest_,
-			final String relativeUri_) {
+			final String host_, final String route_, final String relativeUri_,
+			final PathParameters pathParams_, final MultipartUpload upload_,
+			final HttpServerConfig config_) {
 
-		local = (InetSocketAddress) channel_.localAddress();
-		remote = (InetSocketAddress) channel_.remoteAddress();
+		// Unix domain socket and LocalChannel clients have no IP address
+		local = inet(channel_.localAddress());
+		remote = inet(channel_.remoteAddress());
 
 		nettyRequest = nettyRequest_;
 		nettyRequest.retain();
 
+		host = host_;
+		route = route_;
+		pathParams.copy(pathParams_);
+
+		upload = upload_;
+		config = config_;
+
 		baseUri = relativeUri_;
 
 		final int q = baseUri.indexOf('?');
@@ -82,14 +117,57 @@ public class PooledServerRequest implements ServerRequest {
 		// Reset previous state
 		queryStringDecoded = null;
 		cookies = null;
-		attributes = null;
+		resetAttributes();
 
 		remoteUser = null;
 	}
 
+	/**
+	 * Clear attribute values, growing the slot array to fit every key created
+	 * so far. Called before the request is visible to other threads.
+	 */
+	void resetAttributes() {
+
+		final int keys = RequestAttributeKey.count();
+		final int length = attributes.length();
+
+		if (length < keys) {
+
+			final AtomicReferenceArray<RequestAttribute<?>> grown =
+					new AtomicReferenceArray<RequestAttribute<?>>(keys);
+
+			for (int i = 0; i < length; i++) {
+				grown.set(i, attributes.get(i));
+			}
+
+			attributes = grown;
+
+		}
+
+		for (int i = 0; i < length; i++) {
+			final RequestAttribute<?> attr = attributes.get(i);
+			if (attr != null) {
+				attr.set(null);
+			}
+		}
+
+		lateAttributes = null;
+
+	}
+
+	private static InetSocketAddress inet(final SocketAddress address) {
+		return address instanceof InetSocketAddress ? (InetSocketAddress) address
+				: null;
+	}
+
 	void release() {
 		if (nettyRequest != null) {
 			nettyRequest.release();
+			nettyRequest = null;
+		}
+		if (upload != null) {
+			upload.close();
+			upload = null;
 		}
 	}
 
@@ -98,6 +176,13 @@ public class PooledServerRequest implements ServerRequest {
 		return queryString;
 	}
 
+	/**
+	 * The mapped handler prefix, or null if no handler matched.
+	 */
+	String route() {
+		return route;
+	}
+
 	@Override
 	public String getHandlerUri() {
 		return baseUri;
@@ -108,6 +193,16 @@ public class PooledServerRequest implements ServerRequest {
 		return pathInfo;
 	}
 
+	@Override
+	public String pathParam(final String name) {
+		return pathParams.get(name);
+	}
+
+	@Override
+	public PathParameters pathParams() {
+		return pathParams;
+	}
+
 	@Override
 	public String getScheme() {
 		return isSecure() ? "https" : "http";
@@ -115,7 +210,7 @@ public class PooledServerRequest implements ServerRequest {
 
 	@Override
 	public String getServerHost() {
-		return HttpHeaders.getHost(nettyRequest);
+		return host;
 	}
 
 	@Override
@@ -170,6 +265,22 @@ public class PooledServerRequest implements ServerRequest {
 				getCharacterEncoding()));
 	}
 
+	@Override
+	public <T> T readObject(final Class<T> type) throws IOException {
+
+		final BodyCodec codec =
+				config.bodyCodecs().reader(type, getContentType());
+
+		if (codec == null) {
+			throw new ContentNegotiationException(
+					HttpResponseStatus.UNSUPPORTED_MEDIA_TYPE,
+					"No codec for " + getContentType());
+		}
+
+		return codec.read(type, nettyRequest.content().duplicate());
+
+	}
+
 	@Override
 	public Map<String, List<String>> getParameters() {
 
@@ -180,6 +291,32 @@ public class PooledServerRequest implements ServerRequest {
 				queryStringDecoded =
 						new QueryStringDecoder(nettyRequest.content().toString(
 								getCharacterEncoding()), false).parameters();
+			} else if (upload != null) {
+
+				queryStringDecoded = new HashMap<String, List<String>>();
+
+				for (final RequestPart part : upload.parts()) {
+
+					if (part.getFilename() == null && part.isInMemory()) {
+
+						List<String> values =
+								queryStringDecoded.get(part.getName());
+
+						if (values == null) {
+							values = new ArrayList<String>(1);
+							queryStringDecoded.put(part.getName(), values);
+						}
+
+						try {
+							values.add(part.getString(CharsetUtil.UTF_8));
+						} catch (final IOException e) {
+							// In memory
+						}
+
+					}
+
+				}
+
 			} else if (queryString != null) {
 				queryStringDecoded =
 						new QueryStringDecoder(queryString, false).parameters();
@@ -224,6 +361,30 @@ public class PooledServerRequest implements ServerRequest {
 		return null;
 	}
 
+	@Override
+	public List<RequestPart> getParts() {
+
+		if (upload == null) {
+			return Collections.emptyList();
+		}
+
+		return upload.parts();
+
+	}
+
+	@Override
+	public RequestPart getPart(final String name) {
+
+		for (final RequestPart part : getParts()) {
+			if (name.equals(part.getName())) {
+				return part;
+			}
+		}
+
+		return null;
+
+	}
+
 	@Override
 	public Map<String, Cookie> getCookies() {
 
@@ -231,11 +392,12 @@ public class PooledServerRequest implements ServerRequest {
 
 			cookies = new HashMap<String, Cookie>();
 
-			final Set<Cookie> cookieSet =
-					CookieDecoder.decode(nettyRequest.headers().get("Cookie"));
+			final String header = nettyRequest.headers().get("Cookie");
 
-			for (final Cookie cookie : cookieSet) {
-				cookies.put(cookie.getName(), cookie);
+			if (header != null) {
+				for (final Cookie cookie : CookieDecoder.decode(header)) {
+					cookies.put(cookie.getName(), cookie);
+				}
 			}
 
 		}
@@ -329,18 +491,41 @@ public class PooledServerRequest implements ServerRequest {
 
 	@Override
 	@SuppressWarnings("unchecked")
-	public synchronized <T> RequestAttribute<T> attr(
+	public <T> RequestAttribute<T> attr(final RequestAttributeKey<T> key) {
+
+		final AtomicReferenceArray<RequestAttribute<?>> slots = attributes;
+		final int index = key.index();
+
+		if (index < 0 || index >= slots.length()) {
+			return lateAttr(key);
+		}
+
+		RequestAttribute<T> attr = (RequestAttribute<T>) slots.get(index);
+
+		if (attr == null) {
+			attr = new RequestAttribute<T>();
+			if (!slots.compareAndSet(index, null, attr)) {
+				attr = (RequestAttribute<T>) slots.get(index);
+			}
+		}
+
+		return attr;
+
+	}
+
+	@SuppressWarnings("unchecked")
+	private synchronized <T> RequestAttribute<T> lateAttr(
 			final RequestAttributeKey<T> key) {
 
-		if (attributes == null) {
-			attributes =
+		if (lateAttributes == null) {
+			lateAttributes =
 					new HashMap<RequestAttributeKey<?>, RequestAttribute<?>>(2);
 		}
 
-		RequestAttribute<T> attr = (RequestAttribute<T>) attributes.get(key);
+		RequestAttribute<T> attr = (RequestAttribute<T>) lateAttributes.get(key);
 		if (attr == null) {
 			attr = new RequestAttribute<T>();
-			attributes.put(key, attr);
+			lateAttributes.put(key, attr);
 		}
 
 		return attr;
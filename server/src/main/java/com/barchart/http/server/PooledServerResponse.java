@@ -17,13 +17,20 @@ import io.netty.handler.codec.http.Cookie;
 import io.netty.handler.codec.http.DefaultCookie;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
 import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
 import io.netty.handler.codec.http.HttpContent;
 import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpVersion;
 import io.netty.handler.codec.http.LastHttpContent;
 import io.netty.handler.codec.http.ServerCookieEncoder;
 import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
 
 import java.io.IOException;
 import java.io.OutputStream;
@@ -32,12 +39,20 @@ import java.io.Writer;
 import java.nio.charset.Charset;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.barchart.http.codec.BodyCodec;
+import com.barchart.http.request.AsyncRequestHandler;
+import com.barchart.http.error.ContentNegotiationException;
 import com.barchart.http.logging.RequestLogger;
+import com.barchart.http.logging.ServerEventListener;
+import com.barchart.http.request.PrebuiltResponse;
 import com.barchart.http.request.RequestHandler;
+import com.barchart.http.request.RequestTiming;
 import com.barchart.http.request.ServerResponse;
 
 /**
@@ -66,9 +81,44 @@ public class PooledServerResponse extends DefaultFullHttpResponse implements
 	private boolean suspended = false;
 	private boolean started = false;
 	private boolean finished = false;
+	private boolean keepAlive = false;
+	private boolean autoETag = false;
 
 	private long requestTime = 0;
+	private long prebuiltBytes = -1;
+	private HttpServerConfig config;
 	private RequestLogger logger;
+	private ServerEventListener events;
+
+	/* System.nanoTime() at dispatch, only with an event listener */
+	private long dispatchTime = 0;
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final FilterInvocation filterChain = new FilterInvocation(this);
+
+	/* Incremented per request, so late async results are dropped */
+	private volatile long generation = 0;
+
+	private Future<?> asyncResult = null;
+	private Future<?> asyncTimeout = null;
+
+	/* Null unless request timing is enabled */
+	private PooledRequestTiming timing = null;
+
+	/* Handler return and write completion, both needed before logging */
+	private int timingPending = 0;
+
+	private final ChannelFutureListener writeListener =
+			new ChannelFutureListener() {
+				@Override
+				public void operationComplete(final ChannelFuture future) {
+					if (future.isSuccess()) {
+						timing.mark(RequestTiming.Phase.WRITTEN);
+					}
+					timingComplete();
+				}
+			};
 
 	public PooledServerResponse(final ServerMessagePool pool_) {
 		super(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
@@ -78,12 +128,13 @@ public class PooledServerResponse extends DefaultFullHttpResponse implements
 	void init(final ChannelHandlerContext context_,
 			final HttpRequestChannelHandler channelHandler_,
 			final RequestHandler handler_, final PooledServerRequest request_,
-			final RequestLogger logger_) {
+			final HttpServerConfig config_) {
 
 		// Reset default request values if this is a recycled handler
 		if (finished) {
 			headers().clear();
 			content().clear();
+			cookies.clear();
 			setStatus(HttpResponseStatus.OK);
 		}
 
@@ -95,19 +146,45 @@ public class PooledServerResponse extends DefaultFullHttpResponse implements
 		channelHandler = channelHandler_;
 		handler = handler_;
 		request = request_;
-		logger = logger_;
+		config = config_;
+		logger = config.logger();
+		events = config.eventListener();
 
 		charSet = CharsetUtil.UTF_8;
 
 		finished = false;
 		suspended = false;
 		started = false;
+		autoETag = false;
+		prebuiltBytes = -1;
+		keepAlive = HttpHeaders.isKeepAlive(request);
+
+		filterChain.init(channelHandler, request, handler);
+
+		generation++;
+		asyncResult = null;
+		asyncTimeout = null;
 
 		out = new ByteBufOutputStream(content());
 		writer = new OutputStreamWriter(out, charSet);
 
 		requestTime = System.currentTimeMillis();
 
+		if (events != null) {
+			dispatchTime = System.nanoTime();
+		}
+
+		if (config.requestTiming()) {
+			if (timing == null) {
+				timing = new PooledRequestTiming();
+			} else {
+				timing.reset();
+			}
+			timingPending = 2;
+		} else {
+			timing = null;
+		}
+
 	}
 
 	@Override
@@ -120,6 +197,24 @@ public class PooledServerResponse extends DefaultFullHttpResponse implements
 		return writer;
 	}
 
+	@Override
+	public void resetBuffer() {
+
+		checkFinished();
+
+		if (started || isChunkedEncoding()) {
+			throw new IllegalStateException("Response already started");
+		}
+
+		content().clear();
+
+		// Fresh streams, so characters pending in the old writer and the
+		// written byte count are dropped too
+		out = new ByteBufOutputStream(content());
+		writer = new OutputStreamWriter(out, charSet);
+
+	}
+
 	@Override
 	public void setCookie(final Cookie cookie) {
 		cookies.add(cookie);
@@ -132,7 +227,7 @@ public class PooledServerResponse extends DefaultFullHttpResponse implements
 
 	@Override
 	public void sendRedirect(final String location) {
-		headers().set(HttpHeaders.Names.LOCATION, location);
+		headers().set(ResponseHeaders.LOCATION, location);
 	}
 
 	@Override
@@ -160,12 +255,12 @@ public class PooledServerResponse extends DefaultFullHttpResponse implements
 
 	@Override
 	public void setContentLength(final int length) {
-		HttpHeaders.setContentLength(this, length);
+		headers().set(ResponseHeaders.CONTENT_LENGTH, length);
 	}
 
 	@Override
 	public void setContentType(final String mimeType) {
-		headers().set(HttpHeaders.Names.CONTENT_TYPE, mimeType);
+		headers().set(ResponseHeaders.CONTENT_TYPE, mimeType);
 	}
 
 	@Override
@@ -180,7 +275,8 @@ public class PooledServerResponse extends DefaultFullHttpResponse implements
 
 			if (chunked) {
 
-				HttpHeaders.setTransferEncodingChunked(this);
+				headers().set(ResponseHeaders.TRANSFER_ENCODING,
+						ResponseHeaders.CHUNKED);
 				out = new HttpChunkOutputStream(context);
 				writer = new OutputStreamWriter(out, charSet);
 
@@ -196,11 +292,135 @@ public class PooledServerResponse extends DefaultFullHttpResponse implements
 
 	}
 
+	@Override
+	public void setAutoETag(final boolean enabled) {
+		autoETag = enabled;
+	}
+
+	@Override
+	public boolean checkETag(final String etag) {
+
+		final String tag = etag.startsWith("\"") ? etag : "\"" + etag + "\"";
+
+		headers().set(ResponseHeaders.ETAG, tag);
+
+		final HttpMethod method = request.getMethod();
+
+		if ((method == HttpMethod.GET || method == HttpMethod.HEAD)
+				&& matches(
+						request.headers().get(HttpHeaders.Names.IF_NONE_MATCH),
+						tag)) {
+			setStatus(HttpResponseStatus.NOT_MODIFIED);
+			return true;
+		}
+
+		return false;
+
+	}
+
+	private static String etag(final long hash) {
+
+		final char[] chars = new char[18];
+
+		chars[0] = '"';
+		chars[17] = '"';
+
+		for (int i = 16; i > 0; i--) {
+			chars[i] = HEX[(int) (hash >>> ((16 - i) * 4)) & 0xF];
+		}
+
+		return new String(chars);
+
+	}
+
+	/* If-None-Match uses weak comparison, so W/ prefixes are ignored */
+	static boolean matches(final String header, final String tag) {
+
+		if (header == null) {
+			return false;
+		}
+
+		final int length = header.length();
+		int i = 0;
+
+		while (i < length) {
+
+			while (i < length
+					&& (header.charAt(i) == ' ' || header.charAt(i) == ',')) {
+				i++;
+			}
+
+			if (i == length) {
+				break;
+			}
+
+			if (header.charAt(i) == '*') {
+				return true;
+			}
+
+			if (header.startsWith("W/", i)) {
+				i += 2;
+			}
+
+			if (header.startsWith(tag, i)) {
+				final int next = i + tag.length();
+				if (next == length || header.charAt(next) == ','
+						|| header.charAt(next) == ' ') {
+					return true;
+				}
+			}
+
+			// Skip to the end of this tag, past the closing quote
+			final int open = header.indexOf('"', i);
+			final int close = open == -1 ? -1 : header.indexOf('"', open + 1);
+
+			if (close == -1) {
+				break;
+			}
+
+			i = close + 1;
+
+		}
+
+		return false;
+
+	}
+
 	@Override
 	public void write(final String data) throws IOException {
 		if (data != null) {
-			write(data.getBytes());
+			write(data.getBytes(charSet));
+		}
+	}
+
+	@Override
+	public void writeObject(final Object value) throws IOException {
+
+		checkFinished();
+
+		final BodyCodec codec =
+				config.bodyCodecs().writer(
+						value == null ? Void.class : value.getClass(),
+						request.headers().get(HttpHeaders.Names.ACCEPT));
+
+		if (codec == null) {
+			throw new ContentNegotiationException(
+					HttpResponseStatus.NOT_ACCEPTABLE, "No acceptable codec for "
+							+ (value == null ? null : value.getClass()));
+		}
+
+		if (!started) {
+			setContentType(codec.contentType());
 		}
+
+		// Serialize straight into the outgoing buffer
+		if (out instanceof HttpChunkOutputStream) {
+			((HttpChunkOutputStream) out).write(codec, value);
+		} else {
+			writer.flush();
+			codec.write(value, content());
+		}
+
 	}
 
 	@Override
@@ -224,9 +444,32 @@ public class PooledServerResponse extends DefaultFullHttpResponse implements
 
 	}
 
+	@Override
+	public void write(final ByteBuf data) throws IOException {
+
+		try {
+
+			checkFinished();
+
+			writer.flush();
+
+			if (out instanceof HttpChunkOutputStream) {
+				((HttpChunkOutputStream) out).write(data.retain());
+			} else {
+				content().writeBytes(data);
+			}
+
+		} finally {
+			data.release();
+		}
+
+	}
+
 	@Override
 	public long writtenBytes() {
-		if (out instanceof ByteBufOutputStream) {
+		if (prebuiltBytes >= 0) {
+			return prebuiltBytes;
+		} else if (out instanceof ByteBufOutputStream) {
 			return ((ByteBufOutputStream) out).writtenBytes();
 		} else if (out instanceof HttpChunkOutputStream) {
 			return ((HttpChunkOutputStream) out).writtenBytes();
@@ -241,6 +484,10 @@ public class PooledServerResponse extends DefaultFullHttpResponse implements
 
 		suspended = true;
 
+		if (timing != null) {
+			timing.mark(RequestTiming.Phase.SUSPENDED);
+		}
+
 	}
 
 	@Override
@@ -248,6 +495,138 @@ public class PooledServerResponse extends DefaultFullHttpResponse implements
 		return suspended;
 	}
 
+	@Override
+	public <T> void async(final AsyncRequestHandler<T> handler_)
+			throws IOException {
+
+		suspend();
+
+		final EventExecutor loop = context.executor();
+		final long requestGeneration = generation;
+
+		final Future<T> result = handler_.handle(request, loop);
+
+		if (result == null) {
+			throw new IllegalStateException(handler_.getClass().getName()
+					+ " returned a null future");
+		}
+
+		if (!result.isDone()) {
+
+			asyncResult = result;
+
+			final long timeout = config.asyncTimeout();
+
+			if (timeout > 0) {
+				asyncTimeout = loop.schedule(new Runnable() {
+					@Override
+					public void run() {
+						if (generation == requestGeneration && !finished) {
+							asyncFailed(new TimeoutException(
+									"Async handler timed out after "
+											+ TimeUnit.NANOSECONDS
+													.toMillis(timeout) + "ms"));
+							result.cancel(false);
+						}
+					}
+				}, timeout, TimeUnit.NANOSECONDS);
+			}
+
+		}
+
+		// Completions are queued to the event loop, not written from the
+		// completing thread
+		result.addListener(new GenericFutureListener<Future<T>>() {
+			@Override
+			public void operationComplete(final Future<T> future) {
+				if (loop.inEventLoop()) {
+					asyncComplete(handler_, future, requestGeneration);
+				} else {
+					loop.execute(new Runnable() {
+						@Override
+						public void run() {
+							asyncComplete(handler_, future, requestGeneration);
+						}
+					});
+				}
+			}
+		});
+
+	}
+
+	private <T> void asyncComplete(final AsyncRequestHandler<T> handler_,
+			final Future<T> future, final long requestGeneration) {
+
+		// Aborted, timed out or recycled
+		if (generation != requestGeneration || finished) {
+			return;
+		}
+
+		cancelAsync();
+
+		if (!future.isSuccess()) {
+			asyncFailed(future.cause());
+			return;
+		}
+
+		try {
+
+			suspended = false;
+
+			handler_.respond(request, this, future.getNow());
+
+			if (!finished && !suspended) {
+				finish();
+			}
+
+		} catch (final Throwable t) {
+			asyncFailed(t);
+		}
+
+	}
+
+	private void asyncFailed(final Throwable cause) {
+		try {
+			channelHandler.failed(request, this, cause);
+		} catch (final Throwable t) {
+			log.warn("Could not send async error response", t);
+		}
+	}
+
+	/**
+	 * Cancel a pending async handler result and its timeout.
+	 */
+	void cancelAsync() {
+
+		if (asyncTimeout != null) {
+			asyncTimeout.cancel(false);
+			asyncTimeout = null;
+		}
+
+		if (asyncResult != null) {
+			final Future<?> result = asyncResult;
+			asyncResult = null;
+			result.cancel(false);
+		}
+
+	}
+
+	/**
+	 * Resume a response suspended by a request filter.
+	 */
+	void resume() {
+
+		checkFinished();
+
+		suspended = false;
+
+	}
+
+	@Override
+	public PooledRequestTiming timing() {
+		return timing;
+	}
+
 	private ChannelFuture startResponse() {
 
 		checkFinished();
@@ -257,20 +636,72 @@ public class PooledServerResponse extends DefaultFullHttpResponse implements
 		}
 
 		// Set headers
-		headers().set(HttpHeaders.Names.SET_COOKIE,
-				ServerCookieEncoder.encode(cookies));
+		final HttpHeaders headers = headers();
+
+		if (!cookies.isEmpty()) {
+			headers.set(ResponseHeaders.SET_COOKIE,
+					ServerCookieEncoder.encode(cookies));
+		}
 
 		if (!isChunkedEncoding()) {
-			setContentLength(content().readableBytes());
+
+			if (autoETag && HttpResponseStatus.OK.equals(getStatus())
+					&& !headers.contains(ResponseHeaders.ETAG)) {
+				checkETag(etag(XxHash64.hash(content(), 0)));
+			}
+
+			if (HttpResponseStatus.NOT_MODIFIED.equals(getStatus())) {
+				// No body, and no length that caches could mistake for it
+				content().clear();
+				headers.remove(ResponseHeaders.CONTENT_LENGTH);
+			} else {
+				setContentLength(content().readableBytes());
+			}
+
+		}
+
+		if (keepAlive()) {
+			headers.set(ResponseHeaders.CONNECTION, ResponseHeaders.KEEP_ALIVE);
+		} else if (channelHandler.isDraining()) {
+			// Tell the client to reconnect elsewhere
+			headers.set(ResponseHeaders.CONNECTION, ResponseHeaders.CLOSE);
+		}
+
+		if (config.dateHeader()) {
+			headers.set(ResponseHeaders.DATE, ResponseHeaders.date());
 		}
 
-		if (HttpHeaders.isKeepAlive(request)) {
-			headers().set(HttpHeaders.Names.CONNECTION,
-					HttpHeaders.Values.KEEP_ALIVE);
+		if (config.serverHeader() != null) {
+			headers.set(ResponseHeaders.SERVER, config.serverHeader());
 		}
 
 		started = true;
 
+		if (isChunkedEncoding()) {
+
+			// Send headers only, as a full response would be terminated by the
+			// encoder before any chunks are written
+			final HttpResponse head =
+					new DefaultHttpResponse(getProtocolVersion(), getStatus());
+			head.headers().set(headers);
+
+			final ByteBuf buffered =
+					content().isReadable() ? Unpooled.copiedBuffer(content())
+							: null;
+
+			// This response is not written, drop the reference taken by init()
+			release();
+
+			if (buffered == null) {
+				return context.writeAndFlush(head);
+			}
+
+			context.write(head);
+
+			return context.writeAndFlush(new DefaultHttpContent(buffered));
+
+		}
+
 		return context.writeAndFlush(this);
 
 	}
@@ -286,7 +717,11 @@ public class PooledServerResponse extends DefaultFullHttpResponse implements
 		// channel, don't cause unnecessary pipeline exceptions
 		if (context.channel().isOpen()) {
 
-			if (isChunkedEncoding()) {
+			if (out instanceof HttpChunkOutputStream) {
+
+				writeFuture = ((HttpChunkOutputStream) out).finish();
+
+			} else if (isChunkedEncoding()) {
 
 				if (!started) {
 					log.debug("Warning, empty response");
@@ -307,17 +742,81 @@ public class PooledServerResponse extends DefaultFullHttpResponse implements
 
 		}
 
+		return complete(writeFuture);
+
+	}
+
+	@Override
+	public ChannelFuture send(final PrebuiltResponse response)
+			throws IOException {
+
+		checkFinished();
+
+		if (started) {
+			throw new IllegalStateException("Response already started");
+		}
+
+		started = true;
+
+		// Status for access log
+		setStatus(response.status());
+		prebuiltBytes = response.contentLength();
+
+		ChannelFuture writeFuture = null;
+
+		if (context.channel().isOpen()) {
+			writeFuture =
+					context.writeAndFlush(ServerResponseEncoder.prebuilt(
+							response, keepAlive(),
+							request.getMethod() == HttpMethod.HEAD));
+		}
+
+		// This response is not written, drop the reference taken by init()
+		release();
+
+		return complete(writeFuture);
+
+	}
+
+	private ChannelFuture complete(final ChannelFuture writeFuture) {
+
 		close();
 
-		if (writeFuture != null && !HttpHeaders.isKeepAlive(request)) {
+		final boolean keepAlive_ = keepAlive();
+
+		if (writeFuture != null && !keepAlive_) {
 			writeFuture.addListener(ChannelFutureListener.CLOSE);
 		}
 
+		if (timing != null) {
+
+			timing.mark(RequestTiming.Phase.FINISHED);
+
+			// Free the channel for the next request, but keep this response
+			// out of the pool until it has been written and logged
+			channelHandler.detach(context, this);
+
+			if (writeFuture != null) {
+				writeFuture.addListener(writeListener);
+			} else {
+				context.channel().newSucceededFuture()
+						.addListener(writeListener);
+			}
+
+			return writeFuture;
+
+		}
+
 		// Record to access log
 		logger.access(request, this, System.currentTimeMillis() - requestTime);
 
+		if (events != null) {
+			events.requestCompleted(request, this, request.route(),
+					System.nanoTime() - dispatchTime);
+		}
+
 		// Keep alive, need to tell channel handler it can return us to the pool
-		if (HttpHeaders.isKeepAlive(request)) {
+		if (keepAlive_) {
 			channelHandler.freeHandlers(context);
 		}
 
@@ -325,6 +824,57 @@ public class PooledServerResponse extends DefaultFullHttpResponse implements
 
 	}
 
+	/**
+	 * Called by the channel handler after the request handler returns.
+	 */
+	void dispatched() {
+		if (timing != null) {
+			timingComplete();
+		}
+	}
+
+	/**
+	 * Log and release a timed response once its handler has returned and its
+	 * last byte has been written. Both run on the channel's event loop.
+	 */
+	private void timingComplete() {
+
+		if (--timingPending > 0) {
+			return;
+		}
+
+		long end = timing.time(RequestTiming.Phase.WRITTEN);
+
+		if (end == 0) {
+			end = timing.time(RequestTiming.Phase.FINISHED);
+		}
+
+		logger.access(request, this, TimeUnit.NANOSECONDS.toMillis(end
+				- timing.time(RequestTiming.Phase.RECEIVED)));
+
+		if (events != null) {
+			events.requestCompleted(request, this, request.route(), end
+					- timing.time(RequestTiming.Phase.RECEIVED));
+		}
+
+		channelHandler.release(this);
+
+	}
+
+	/**
+	 * Whether the connection stays open after this response. Once the server
+	 * starts draining, connections are closed after their current response.
+	 */
+	private boolean keepAlive() {
+
+		if (keepAlive && channelHandler.isDraining()) {
+			keepAlive = false;
+		}
+
+		return keepAlive;
+
+	}
+
 	private void checkFinished() {
 		if (finished) {
 			throw new IllegalStateException(
@@ -363,13 +913,24 @@ public class PooledServerResponse extends DefaultFullHttpResponse implements
 		return handler;
 	}
 
+	FilterInvocation filterChain() {
+		return filterChain;
+	}
+
+	/**
+	 * The request count of this pooled response, changed on each reuse.
+	 */
+	long generation() {
+		return generation;
+	}
+
 	/**
 	 * Writes messages as HttpChunk objects to the client.
 	 */
 	private class HttpChunkOutputStream extends OutputStream {
 
-		private final ByteBuf content = Unpooled.buffer();
 		private final ChannelHandlerContext context;
+		private ByteBuf content = Unpooled.buffer();
 		private long writtenBytes = 0;
 
 		HttpChunkOutputStream(final ChannelHandlerContext context_) {
@@ -385,6 +946,38 @@ public class PooledServerResponse extends DefaultFullHttpResponse implements
 			writtenBytes++;
 		}
 
+		/**
+		 * Serializes an object into the output buffer as a single chunk.
+		 */
+		void write(final BodyCodec codec, final Object value)
+				throws IOException {
+
+			writer.flush();
+
+			final int start = content.writerIndex();
+			codec.write(value, content);
+			writtenBytes += content.writerIndex() - start;
+
+			flush();
+
+		}
+
+		/**
+		 * Sends a buffer as its own chunk after any buffered output.
+		 */
+		void write(final ByteBuf data) {
+
+			flush();
+
+			if (data.isReadable()) {
+				writtenBytes += data.readableBytes();
+				context.writeAndFlush(new DefaultHttpContent(data));
+			} else {
+				data.release();
+			}
+
+		}
+
 		public long writtenBytes() {
 			return writtenBytes;
 		}
@@ -396,8 +989,35 @@ public class PooledServerResponse extends DefaultFullHttpResponse implements
 				startResponse();
 			}
 
-			final HttpContent chunk = new DefaultHttpContent(content);
-			context.writeAndFlush(chunk);
+			// Hand the buffer off with the chunk, it is released once written
+			if (content.isReadable()) {
+				final HttpContent chunk = new DefaultHttpContent(content);
+				content = Unpooled.buffer();
+				context.writeAndFlush(chunk);
+			}
+
+		}
+
+		/**
+		 * Writes any remaining data with the last chunk.
+		 */
+		ChannelFuture finish() {
+
+			if (!started) {
+				if (!content.isReadable()) {
+					log.debug("Warning, empty response");
+				}
+				startResponse();
+			}
+
+			if (content.isReadable()) {
+				final LastHttpContent last = new DefaultLastHttpContent(content);
+				content = Unpooled.EMPTY_BUFFER;
+				return context.writeAndFlush(last);
+			}
+
+			return context.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+
 		}
 
 	}
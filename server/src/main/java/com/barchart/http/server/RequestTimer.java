@@ -0,0 +1,83 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.server;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.util.AttributeKey;
+
+import com.barchart.http.request.RequestTiming;
+
+/**
+ * Captures when a request starts arriving and when its headers are decoded,
+ * before the request object is dispatched to the server. Installed first in
+ * the pipeline when request timing is enabled, with its decoded() marker
+ * placed after the HTTP decoder.
+ */
+class RequestTimer extends ChannelInboundHandlerAdapter {
+
+	static final AttributeKey<RequestTimer> ATTR_TIMER = AttributeKey
+			.<RequestTimer> valueOf("requestTimer");
+
+	private long received = 0;
+	private long decoded = 0;
+
+	@Override
+	public void handlerAdded(final ChannelHandlerContext ctx) {
+		ctx.channel().attr(ATTR_TIMER).set(this);
+	}
+
+	@Override
+	public void channelRead(final ChannelHandlerContext ctx, final Object msg) {
+
+		// First read since the last request was dispatched
+		if (received == 0) {
+			received = System.nanoTime();
+		}
+
+		ctx.fireChannelRead(msg);
+
+	}
+
+	/**
+	 * Handler that records when the decoder emits request headers.
+	 */
+	ChannelHandler decoded() {
+		return new ChannelInboundHandlerAdapter() {
+			@Override
+			public void channelRead(final ChannelHandlerContext ctx,
+					final Object msg) {
+				if (msg instanceof HttpRequest && decoded == 0) {
+					decoded = System.nanoTime();
+				}
+				ctx.fireChannelRead(msg);
+			}
+		};
+	}
+
+	/**
+	 * Copy the captured times to a request timeline and start timing the next
+	 * request.
+	 */
+	void dispatch(final PooledRequestTiming timing) {
+
+		final long now = System.nanoTime();
+
+		timing.mark(RequestTiming.Phase.RECEIVED, received == 0 ? now
+				: received);
+		timing.mark(RequestTiming.Phase.DECODED, decoded == 0 ? now : decoded);
+		timing.mark(RequestTiming.Phase.AGGREGATED, now);
+
+		received = 0;
+		decoded = 0;
+
+	}
+
+}
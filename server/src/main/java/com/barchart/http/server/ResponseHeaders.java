@@ -0,0 +1,193 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.util.CharsetUtil;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pre-encoded header names and values for server responses. Setting headers
+ * with these constants lets the response encoder copy cached ASCII bytes
+ * instead of re-encoding each header character by character.
+ */
+public final class ResponseHeaders {
+
+	/* Bounds the cache when values are encoded at runtime */
+	static final int MAX_ENCODED = 256;
+
+	/* Cached bytes of pre-encoded names and values, for encoders that only see
+	 * the String form of a header */
+	private static final Map<String, byte[]> encoded =
+			new ConcurrentHashMap<String, byte[]>();
+
+	/* Header names */
+
+	public static final CharSequence CONNECTION =
+			name(HttpHeaders.Names.CONNECTION);
+
+	public static final CharSequence CONTENT_LENGTH =
+			name(HttpHeaders.Names.CONTENT_LENGTH);
+
+	public static final CharSequence CONTENT_TYPE =
+			name(HttpHeaders.Names.CONTENT_TYPE);
+
+	public static final CharSequence DATE = name(HttpHeaders.Names.DATE);
+
+	public static final CharSequence ETAG = name(HttpHeaders.Names.ETAG);
+
+	public static final CharSequence LOCATION =
+			name(HttpHeaders.Names.LOCATION);
+
+	public static final CharSequence SERVER = name(HttpHeaders.Names.SERVER);
+
+	public static final CharSequence SET_COOKIE =
+			name(HttpHeaders.Names.SET_COOKIE);
+
+	public static final CharSequence TRANSFER_ENCODING =
+			name(HttpHeaders.Names.TRANSFER_ENCODING);
+
+	/* Header values */
+
+	public static final CharSequence KEEP_ALIVE =
+			encode(HttpHeaders.Values.KEEP_ALIVE);
+
+	public static final CharSequence CLOSE = encode(HttpHeaders.Values.CLOSE);
+
+	public static final CharSequence CHUNKED =
+			encode(HttpHeaders.Values.CHUNKED);
+
+	private static final ThreadLocal<DateCache> dateCache =
+			new ThreadLocal<DateCache>() {
+				@Override
+				protected DateCache initialValue() {
+					return new DateCache();
+				}
+			};
+
+	private ResponseHeaders() {
+	}
+
+	/**
+	 * Create a pre-encoded header value. Intended for values that are set on
+	 * many responses, such as a fixed Server header or a common content type.
+	 * The bytes of at most MAX_ENCODED values are cached, later values are
+	 * encoded on each response.
+	 */
+	public static CharSequence encode(final String value) {
+
+		// Size check may overshoot by the number of concurrent callers
+		if (encoded.size() < MAX_ENCODED && !encoded.containsKey(value)) {
+			encoded.put(value, value.getBytes(CharsetUtil.US_ASCII));
+		}
+
+		return HttpHeaders.newValueEntity(value);
+
+	}
+
+	private static CharSequence name(final String name) {
+		encoded.put(name, name.getBytes(CharsetUtil.US_ASCII));
+		return HttpHeaders.newNameEntity(name);
+	}
+
+	/**
+	 * The number of cached names and values.
+	 */
+	static int cached() {
+		return encoded.size();
+	}
+
+	/**
+	 * The current value for the Date header. The value is formatted at most
+	 * once per second per thread, so all responses written by the same event
+	 * loop within a second share the same encoded bytes.
+	 */
+	public static CharSequence date() {
+		return dateCache.get().value();
+	}
+
+	/**
+	 * Write a header line as ASCII, copying cached bytes for the pre-encoded
+	 * constants and the current Date value.
+	 */
+	static void writeHeader(final String name, final String value,
+			final ByteBuf buf) {
+
+		writeAscii(name, buf);
+		buf.writeByte(':');
+		buf.writeByte(' ');
+
+		final DateCache date;
+
+		// Identity checks are intended, entities return their cached String
+		if (name == HttpHeaders.Names.DATE
+				&& value == (date = dateCache.get()).text) {
+			buf.writeBytes(date.bytes);
+		} else {
+			writeAscii(value, buf);
+		}
+
+		buf.writeByte('\r');
+		buf.writeByte('\n');
+
+	}
+
+	private static void writeAscii(final String value, final ByteBuf buf) {
+
+		final byte[] bytes = encoded.get(value);
+
+		if (bytes != null) {
+			buf.writeBytes(bytes);
+		} else {
+			HttpHeaders.encodeAscii(value, buf);
+		}
+
+	}
+
+	/**
+	 * Per-thread cache of the RFC 1123 formatted date.
+	 */
+	private static class DateCache {
+
+		private final SimpleDateFormat format = new SimpleDateFormat(
+				"EEE, dd MMM yyyy HH:mm:ss zzz", Locale.ENGLISH);
+
+		private long second = -1;
+		private CharSequence value;
+		private String text;
+		private byte[] bytes;
+
+		DateCache() {
+			format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		}
+
+		CharSequence value() {
+
+			final long now = System.currentTimeMillis() / 1000;
+
+			if (now != second) {
+				second = now;
+				text = format.format(new Date(now * 1000));
+				bytes = text.getBytes(CharsetUtil.US_ASCII);
+				value = HttpHeaders.newValueEntity(text);
+			}
+
+			return value;
+
+		}
+
+	}
+
+}
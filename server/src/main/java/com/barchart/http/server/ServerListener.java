@@ -0,0 +1,243 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.server;
+
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalServerChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+
+import java.net.SocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A server listen endpoint: TCP, Unix domain socket or in-VM LocalChannel.
+ * All listeners of a server share its request handlers and message pool, but
+ * have their own socket options.
+ */
+public class ServerListener {
+
+	private static final String EPOLL = "io.netty.channel.epoll.";
+
+	private final SocketAddress address;
+	private final Class<? extends ServerChannel> channelClass;
+
+	private final Map<ChannelOption<?>, Object> options =
+			new LinkedHashMap<ChannelOption<?>, Object>();
+	private final Map<ChannelOption<?>, Object> childOptions =
+			new LinkedHashMap<ChannelOption<?>, Object>();
+
+	private EventLoopGroup parentGroup = null;
+	private EventLoopGroup childGroup = null;
+
+	/* Groups of this type are created by open() and shut down by close(),
+	 * unless set with group() */
+	private Class<? extends EventLoopGroup> ownGroups = null;
+
+	private ServerListener(final SocketAddress address_,
+			final Class<? extends ServerChannel> channelClass_) {
+		address = address_;
+		channelClass = channelClass_;
+	}
+
+	/**
+	 * Listen on a TCP address, with the default socket options.
+	 */
+	public static ServerListener tcp(final SocketAddress address) {
+		return new ServerListener(address, NioServerSocketChannel.class)
+				.option(ChannelOption.SO_REUSEADDR, true)
+				.option(ChannelOption.SO_SNDBUF, 262144)
+				.option(ChannelOption.SO_RCVBUF, 262144);
+	}
+
+	/**
+	 * Listen for in-VM LocalChannel connections with the given id.
+	 */
+	public static ServerListener local(final String id) {
+		return new ServerListener(new LocalAddress(id),
+				LocalServerChannel.class);
+	}
+
+	/**
+	 * Listen on a Unix domain socket. Requires the native epoll transport on
+	 * the classpath, and uses its own epoll event loop groups unless
+	 * configured otherwise. These are created when the server listens and
+	 * shut down when it stops, closing any connections still open on them.
+	 *
+	 * @throws IllegalStateException
+	 *             If the native transport is not available
+	 */
+	public static ServerListener domainSocket(final String path) {
+
+		try {
+
+			final ClassLoader loader = ServerListener.class.getClassLoader();
+
+			final Class<?> epoll = loader.loadClass(EPOLL + "Epoll");
+
+			if (!(Boolean) epoll.getMethod("isAvailable").invoke(null)) {
+				throw new IllegalStateException(
+						"Native epoll transport is not available",
+						(Throwable) epoll.getMethod("unavailabilityCause")
+								.invoke(null));
+			}
+
+			final SocketAddress address =
+					(SocketAddress) loader
+							.loadClass("io.netty.channel.unix.DomainSocketAddress")
+							.getConstructor(String.class).newInstance(path);
+
+			final ServerListener listener =
+					new ServerListener(address, loader.loadClass(
+							EPOLL + "EpollServerDomainSocketChannel")
+							.asSubclass(ServerChannel.class));
+
+			listener.ownGroups =
+					loader.loadClass(EPOLL + "EpollEventLoopGroup").asSubclass(
+							EventLoopGroup.class);
+
+			return listener;
+
+		} catch (final IllegalStateException e) {
+			throw e;
+		} catch (final Exception e) {
+			throw new IllegalStateException(
+					"Unix domain sockets require netty-transport-native-epoll",
+					e);
+		}
+
+	}
+
+	/**
+	 * Set a listen channel option.
+	 */
+	public <T> ServerListener option(final ChannelOption<T> option,
+			final T value) {
+		options.put(option, value);
+		return this;
+	}
+
+	/**
+	 * Set an option for accepted client channels.
+	 */
+	public <T> ServerListener childOption(final ChannelOption<T> option,
+			final T value) {
+		childOptions.put(option, value);
+		return this;
+	}
+
+	/**
+	 * Use separate event loop groups for this listener instead of the
+	 * server's.
+	 */
+	public ServerListener group(final EventLoopGroup parent,
+			final EventLoopGroup child) {
+		parentGroup = parent;
+		childGroup = child;
+		ownGroups = null;
+		return this;
+	}
+
+	/**
+	 * Create this listener's own event loop groups, if it uses them. Called
+	 * by the server before binding.
+	 */
+	void open() {
+
+		if (ownGroups == null || parentGroup != null) {
+			return;
+		}
+
+		try {
+			parentGroup = ownGroups.getConstructor(int.class).newInstance(1);
+			childGroup = ownGroups.newInstance();
+		} catch (final Exception e) {
+			throw new IllegalStateException(
+					"Could not create listener event loop groups", e);
+		}
+
+	}
+
+	/**
+	 * Shut down the groups created by open(). The child group is shut down
+	 * once the given future completes, or right away if null.
+	 */
+	void close(final Future<?> after) {
+
+		if (ownGroups == null || parentGroup == null) {
+			return;
+		}
+
+		final EventLoopGroup child = childGroup;
+
+		parentGroup.shutdownGracefully();
+
+		parentGroup = null;
+		childGroup = null;
+
+		if (after == null) {
+			child.shutdownGracefully();
+		} else {
+			after.addListener(new GenericFutureListener<Future<Object>>() {
+				@Override
+				public void operationComplete(final Future<Object> future) {
+					child.shutdownGracefully();
+				}
+			});
+		}
+
+	}
+
+	/**
+	 * Get the listen address.
+	 */
+	public SocketAddress address() {
+		return address;
+	}
+
+	/**
+	 * Get the server channel type.
+	 */
+	public Class<? extends ServerChannel> channelClass() {
+		return channelClass;
+	}
+
+	/**
+	 * Get the listen channel options.
+	 */
+	public Map<ChannelOption<?>, Object> options() {
+		return options;
+	}
+
+	/**
+	 * Get the client channel options.
+	 */
+	public Map<ChannelOption<?>, Object> childOptions() {
+		return childOptions;
+	}
+
+	/**
+	 * Get the parent event loop group, or null to use the server's.
+	 */
+	public EventLoopGroup parentGroup() {
+		return parentGroup;
+	}
+
+	/**
+	 * Get the child event loop group, or null to use the server's.
+	 */
+	public EventLoopGroup childGroup() {
+		return childGroup;
+	}
+
+}
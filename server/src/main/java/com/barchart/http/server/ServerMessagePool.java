@@ -59,6 +59,17 @@ public class ServerMessagePool {
 		return responsePool.poll();
 	}
 
+	/**
+	 * Create request and response objects up front, up to the pool size.
+	 * 
+	 * @param messages
+	 *            The number of request / response pairs that should exist
+	 */
+	public void prefill(final int messages) {
+		requestPool.prefill(messages);
+		responsePool.prefill(messages);
+	}
+
 	void makeAvailable(final PooledServerRequest request) {
 		requestPool.give(request);
 	}
@@ -0,0 +1,206 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.DefaultByteBufHolder;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseEncoder;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.CharsetUtil;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.List;
+import java.util.Map;
+
+import com.barchart.http.request.PrebuiltResponse;
+
+/**
+ * HTTP response encoder that writes complete (non-chunked) responses as a
+ * single buffer: precomputed status line, headers and content. Bodies up to
+ * the configured threshold are copied into the same buffer so the response
+ * goes out in one write; larger bodies are written as a header buffer followed
+ * by the content buffer, which the transport sends as one gathering write.
+ *
+ * Chunked responses and content chunks are delegated to the standard
+ * HttpResponseEncoder. Prebuilt responses are passed through as-is.
+ */
+public class ServerResponseEncoder extends HttpResponseEncoder {
+
+	private static final byte[] CRLF = { '\r', '\n' };
+
+	/* Estimated header block size for initial buffer allocation */
+	private static final int HEADER_ESTIMATE = 256;
+
+	/* Precomputed HTTP/1.1 status lines, indexed by status code */
+	private static final HttpResponseStatus[] statuses =
+			new HttpResponseStatus[1000];
+	private static final byte[][] statusLines = new byte[1000][];
+
+	static {
+
+		for (final Field field : HttpResponseStatus.class.getFields()) {
+
+			if (Modifier.isStatic(field.getModifiers())
+					&& field.getType() == HttpResponseStatus.class) {
+
+				try {
+
+					final HttpResponseStatus status =
+							(HttpResponseStatus) field.get(null);
+
+					statuses[status.code()] = status;
+					statusLines[status.code()] =
+							statusLine(HttpVersion.HTTP_1_1, status);
+
+				} catch (final IllegalAccessException e) {
+					// Public field, should not happen
+				}
+
+			}
+
+		}
+
+	}
+
+	private final int maxCopiedContent;
+
+	/**
+	 * Create a new encoder.
+	 *
+	 * @param maxCopiedContent_
+	 *            The largest body (in bytes) that will be copied into the
+	 *            header buffer instead of being written separately
+	 */
+	public ServerResponseEncoder(final int maxCopiedContent_) {
+		maxCopiedContent = maxCopiedContent_;
+	}
+
+	/**
+	 * Wrap the encoded bytes of a prebuilt response for writing to a channel
+	 * with this encoder.
+	 */
+	static Object prebuilt(final PrebuiltResponse response,
+			final boolean keepAlive, final boolean head) {
+		return new Prebuilt(response.encoded(keepAlive, head));
+	}
+
+	@Override
+	public boolean acceptOutboundMessage(final Object msg) throws Exception {
+		return msg instanceof Prebuilt || super.acceptOutboundMessage(msg);
+	}
+
+	@Override
+	protected void encode(final ChannelHandlerContext ctx, final Object msg,
+			final List<Object> out) throws Exception {
+
+		if (msg instanceof Prebuilt) {
+			out.add(((Prebuilt) msg).content().retain());
+			return;
+		}
+
+		if (msg instanceof FullHttpResponse) {
+
+			final FullHttpResponse response = (FullHttpResponse) msg;
+
+			final boolean chunked =
+					msg instanceof PooledServerResponse ? ((PooledServerResponse) msg)
+							.isChunkedEncoding() : HttpHeaders
+							.isTransferEncodingChunked(response);
+
+			if (!chunked) {
+				encodeFull(ctx, response, out);
+				return;
+			}
+
+		}
+
+		super.encode(ctx, msg, out);
+
+	}
+
+	private void encodeFull(final ChannelHandlerContext ctx,
+			final FullHttpResponse response, final List<Object> out) {
+
+		final ByteBuf content = response.content();
+		final int length = content.readableBytes();
+		final boolean copy = length <= maxCopiedContent;
+
+		final ByteBuf buf =
+				ctx.alloc().buffer(HEADER_ESTIMATE + (copy ? length : 0));
+
+		buf.writeBytes(statusLine(response));
+
+		for (final Map.Entry<String, String> header : response.headers()) {
+			ResponseHeaders.writeHeader(header.getKey(), header.getValue(), buf);
+		}
+
+		buf.writeBytes(CRLF);
+
+		if (copy) {
+
+			if (length > 0) {
+				buf.writeBytes(content, content.readerIndex(), length);
+			}
+
+			out.add(buf);
+
+		} else {
+
+			out.add(buf);
+			out.add(content.retain());
+
+		}
+
+	}
+
+	private static byte[] statusLine(final FullHttpResponse response) {
+
+		final HttpResponseStatus status = response.getStatus();
+		final int code = status.code();
+
+		if (response.getProtocolVersion() == HttpVersion.HTTP_1_1
+				&& code >= 0 && code < statuses.length) {
+
+			final HttpResponseStatus cached = statuses[code];
+
+			if (cached == status
+					|| (cached != null && cached.reasonPhrase().equals(
+							status.reasonPhrase()))) {
+				return statusLines[code];
+			}
+
+		}
+
+		return statusLine(response.getProtocolVersion(), status);
+
+	}
+
+	private static byte[] statusLine(final HttpVersion version,
+			final HttpResponseStatus status) {
+		return (version.text() + " " + status.code() + " "
+				+ status.reasonPhrase() + "\r\n")
+				.getBytes(CharsetUtil.US_ASCII);
+	}
+
+	/**
+	 * Marks a complete encoded response, as opposed to raw chunk content.
+	 */
+	private static final class Prebuilt extends DefaultByteBufHolder {
+
+		Prebuilt(final ByteBuf data) {
+			super(data);
+		}
+
+	}
+
+}
@@ -0,0 +1,157 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.server;
+
+import java.io.IOException;
+import java.net.ProtocolFamily;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.AbstractSelectableChannel;
+import java.nio.channels.spi.AbstractSelector;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Set;
+
+/**
+ * Selector provider whose selectors busy-poll with selectNow() for a fixed
+ * time before blocking in select(), trading CPU for wakeup latency. Channels
+ * are created by the default provider.
+ */
+class SpinSelectorProvider extends SelectorProvider {
+
+	private final SelectorProvider delegate = SelectorProvider.provider();
+	private final long spinNanos;
+
+	SpinSelectorProvider(final long spinNanos_) {
+		spinNanos = spinNanos_;
+	}
+
+	@Override
+	public AbstractSelector openSelector() throws IOException {
+		return new SpinSelector(delegate, delegate.openSelector(), spinNanos);
+	}
+
+	@Override
+	public DatagramChannel openDatagramChannel() throws IOException {
+		return delegate.openDatagramChannel();
+	}
+
+	@Override
+	public DatagramChannel openDatagramChannel(final ProtocolFamily family)
+			throws IOException {
+		return delegate.openDatagramChannel(family);
+	}
+
+	@Override
+	public Pipe openPipe() throws IOException {
+		return delegate.openPipe();
+	}
+
+	@Override
+	public ServerSocketChannel openServerSocketChannel() throws IOException {
+		return delegate.openServerSocketChannel();
+	}
+
+	@Override
+	public SocketChannel openSocketChannel() throws IOException {
+		return delegate.openSocketChannel();
+	}
+
+	private static class SpinSelector extends AbstractSelector {
+
+		private final Selector selector;
+		private final long spinNanos;
+
+		private volatile boolean wakenUp = false;
+
+		SpinSelector(final SelectorProvider provider_,
+				final Selector selector_, final long spinNanos_) {
+			super(provider_);
+			selector = selector_;
+			spinNanos = spinNanos_;
+		}
+
+		@Override
+		protected void implCloseSelector() throws IOException {
+			selector.close();
+		}
+
+		@Override
+		protected SelectionKey register(final AbstractSelectableChannel ch,
+				final int ops, final Object att) {
+			try {
+				return ch.register(selector, ops, att);
+			} catch (final IOException e) {
+				// Channel closed, same as the JDK selector
+				throw new IllegalStateException(e);
+			}
+		}
+
+		@Override
+		public Set<SelectionKey> keys() {
+			return selector.keys();
+		}
+
+		@Override
+		public Set<SelectionKey> selectedKeys() {
+			return selector.selectedKeys();
+		}
+
+		@Override
+		public int selectNow() throws IOException {
+			return selector.selectNow();
+		}
+
+		@Override
+		public int select(final long timeout) throws IOException {
+
+			final long spin =
+					timeout > 0 ? Math.min(spinNanos, timeout * 1000000)
+							: spinNanos;
+			final long deadline = System.nanoTime() + spin;
+
+			// selectNow() clears pending wakeups, track them separately. A
+			// wakeup from before this call must still be seen, so the flag is
+			// only cleared when consumed.
+			do {
+
+				final int selected = selector.selectNow();
+
+				if (selected > 0) {
+					return selected;
+				}
+
+				if (wakenUp) {
+					wakenUp = false;
+					return 0;
+				}
+
+			} while (System.nanoTime() < deadline);
+
+			return selector.select(timeout);
+
+		}
+
+		@Override
+		public int select() throws IOException {
+			return select(0);
+		}
+
+		@Override
+		public Selector wakeup() {
+			wakenUp = true;
+			selector.wakeup();
+			return this;
+		}
+
+	}
+
+}
@@ -0,0 +1,232 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.server;
+
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.FastThreadLocal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.barchart.http.logging.ServerEventListener;
+
+/**
+ * Detects event loops that stop running tasks, i.e. because a request handler
+ * blocks. A daemon thread posts a heartbeat task to each loop every half
+ * threshold; when one has not run within the threshold, the loop's stack is
+ * sampled and reported with the request it was dispatching. Each stall is
+ * reported once, and each loop at most once per report interval.
+ */
+class StallWatchdog implements Runnable {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(StallWatchdog.class);
+
+	/* Set on each watched loop thread by its first heartbeat */
+	private static final FastThreadLocal<Loop> CURRENT =
+			new FastThreadLocal<Loop>();
+
+	private final List<Loop> loops = new ArrayList<Loop>();
+	private final long threshold;
+	private final long interval;
+	private final ServerEventListener events;
+
+	private final Thread thread;
+
+	private volatile boolean running = true;
+
+	StallWatchdog(final Collection<EventExecutorGroup> groups,
+			final long threshold_, final long interval_,
+			final ServerEventListener events_) {
+
+		threshold = threshold_;
+		interval = interval_;
+		events = events_;
+
+		for (final EventExecutorGroup group : groups) {
+			for (final EventExecutor executor : group) {
+				loops.add(new Loop(executor));
+			}
+		}
+
+		thread = new Thread(this, "barchart-http-watchdog");
+		thread.setDaemon(true);
+
+	}
+
+	/**
+	 * The watched loop running on this thread, or null.
+	 */
+	static Loop current() {
+		return CURRENT.get();
+	}
+
+	void start() {
+		thread.start();
+	}
+
+	void stop() {
+		running = false;
+		thread.interrupt();
+	}
+
+	@Override
+	public void run() {
+
+		final long period =
+				Math.max(TimeUnit.MILLISECONDS.toNanos(1), threshold / 2);
+
+		while (running) {
+
+			try {
+				TimeUnit.NANOSECONDS.sleep(period);
+			} catch (final InterruptedException e) {
+				continue;
+			}
+
+			check(System.nanoTime());
+
+		}
+
+	}
+
+	private void check(final long now) {
+
+		for (final Loop loop : loops) {
+
+			if (!loop.pending) {
+
+				// Heartbeat ran, any stall is over
+				loop.reported = false;
+
+				if (loop.executor.isShuttingDown()) {
+					continue;
+				}
+
+				loop.submitted = now;
+				loop.pending = true;
+
+				try {
+					loop.executor.execute(loop);
+				} catch (final RejectedExecutionException e) {
+					loop.pending = false;
+				}
+
+			} else if (!loop.reported && now - loop.submitted > threshold
+					&& (loop.lastReport == 0 //
+					|| now - loop.lastReport > interval)) {
+
+				loop.reported = true;
+				loop.lastReport = now;
+
+				report(loop, now - loop.submitted);
+
+			}
+
+		}
+
+	}
+
+	private void report(final Loop loop, final long stalled) {
+
+		final Thread stuck = loop.thread;
+
+		if (stuck == null) {
+			// Never ran a heartbeat, nothing to attribute
+			return;
+		}
+
+		final StackTraceElement[] stack = stuck.getStackTrace();
+
+		// Volatile uri read first, publishes the other fields
+		final String uri = loop.uri;
+		final HttpMethod method = uri == null ? null : loop.method;
+		final String route = uri == null ? null : loop.route;
+
+		final Throwable trace = new Throwable("Stalled event loop stack");
+		trace.setStackTrace(stack);
+
+		log.warn("Event loop {} stalled for {}ms, dispatching {} {} (route {})",
+				stuck.getName(), TimeUnit.NANOSECONDS.toMillis(stalled),
+				method, uri, route, trace);
+
+		if (events != null) {
+			try {
+				events.eventLoopStalled(stuck, stalled, stack, method, uri,
+						route);
+			} catch (final RuntimeException e) {
+				log.warn("Server event listener failed", e);
+			}
+		}
+
+	}
+
+	/**
+	 * Heartbeat and dispatch state of one event loop.
+	 */
+	static final class Loop implements Runnable {
+
+		private final EventExecutor executor;
+
+		private volatile Thread thread = null;
+		private volatile boolean pending = false;
+
+		/* Request being dispatched, written only by the loop thread */
+		private HttpMethod method;
+		private String route;
+		private volatile String uri = null;
+
+		/* Watchdog thread only */
+		private long submitted = 0;
+		private long lastReport = 0;
+		private boolean reported = false;
+
+		Loop(final EventExecutor executor_) {
+			executor = executor_;
+		}
+
+		@Override
+		public void run() {
+
+			if (thread == null) {
+				thread = Thread.currentThread();
+				CURRENT.set(this);
+			}
+
+			pending = false;
+
+		}
+
+		/**
+		 * Record the request the loop is about to dispatch.
+		 */
+		void enter(final HttpMethod method_, final String uri_,
+				final String route_) {
+			method = method_;
+			route = route_;
+			uri = uri_;
+		}
+
+		/**
+		 * Clear the request after dispatch.
+		 */
+		void exit() {
+			uri = null;
+		}
+
+	}
+
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.server;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pins event loop threads round-robin to a list of CPUs using the Linux
+ * taskset utility. Logs a warning and leaves the thread unpinned when the
+ * utility or /proc/thread-self is not available.
+ */
+public class TasksetAffinity implements AffinityStrategy {
+
+	private final static Logger log = LoggerFactory
+			.getLogger(TasksetAffinity.class);
+
+	private final int[] cpus;
+
+	/**
+	 * @param cpus_
+	 *            CPUs to assign to threads in order, typically cores isolated
+	 *            from the OS scheduler
+	 */
+	public TasksetAffinity(final int... cpus_) {
+
+		if (cpus_.length == 0) {
+			throw new IllegalArgumentException("No CPUs specified");
+		}
+
+		cpus = cpus_.clone();
+
+	}
+
+	@Override
+	public void pin(final int index) {
+
+		final int cpu = cpus[index % cpus.length];
+
+		try {
+
+			final String tid =
+					new File("/proc/thread-self").getCanonicalFile().getName();
+
+			final Process process =
+					new ProcessBuilder("taskset", "-p", "-c",
+							String.valueOf(cpu), tid).redirectErrorStream(true)
+							.start();
+
+			process.getInputStream().close();
+
+			if (process.waitFor() != 0) {
+				log.warn("Could not pin {} to CPU {}: taskset exit code {}",
+						Thread.currentThread().getName(), cpu,
+						process.exitValue());
+			}
+
+		} catch (final Exception e) {
+			log.warn("Could not pin " + Thread.currentThread().getName()
+					+ " to CPU " + cpu, e);
+		}
+
+	}
+
+	@Override
+	public String toString() {
+		return "TasksetAffinity" + Arrays.toString(cpus);
+	}
+
+}
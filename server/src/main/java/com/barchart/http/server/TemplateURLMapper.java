@@ -0,0 +1,377 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.server;
+
+import io.netty.handler.codec.http.HttpMethod;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.barchart.http.request.PathParameters;
+import com.barchart.http.request.RequestHandler;
+import com.barchart.http.request.RequestHandlerFactory;
+import com.barchart.http.request.RequestHandlerMapping;
+import com.barchart.http.request.RequestURLMapper;
+
+/**
+ * <p>
+ * Maps requests by path template, i.e. "/quotes/{symbol}/history/{interval}".
+ * Segments are literals, single segment parameters ("{symbol}"), or as the
+ * last segment a parameter matching the rest of the path ("{path*}", or an
+ * unnamed "*"). Routes may be limited to one request method.
+ * </p>
+ * 
+ * <p>
+ * Templates are compiled into a segment tree that is walked once per request,
+ * trying literals before parameters before the rest of the path. Captures are
+ * recorded as offsets into the URI, and are only decoded when read with
+ * ServerRequest.pathParam(). Trailing slashes are ignored.
+ * </p>
+ * 
+ * <p>
+ * The handler prefix (see ServerRequest.getPathInfo()) of a route is its
+ * template up to the first parameter.
+ * </p>
+ */
+public class TemplateURLMapper implements RequestURLMapper {
+
+	private final List<Route> routes = new ArrayList<Route>();
+
+	private volatile Tree tree = new Tree(new Node(0), 0);
+
+	/**
+	 * Route requests of any method matching the template to a handler.
+	 */
+	public TemplateURLMapper route(final String template,
+			final RequestHandler handler) {
+		return add(null, template, handler);
+	}
+
+	/**
+	 * Route requests of any method matching the template to a handler
+	 * factory.
+	 */
+	public TemplateURLMapper route(final String template,
+			final RequestHandlerFactory factory) {
+		return add(null, template, factory);
+	}
+
+	/**
+	 * Route requests of the given method matching the template to a handler.
+	 */
+	public TemplateURLMapper route(final HttpMethod method,
+			final String template, final RequestHandler handler) {
+		return add(method, template, handler);
+	}
+
+	/**
+	 * Route requests of the given method matching the template to a handler
+	 * factory.
+	 */
+	public TemplateURLMapper route(final HttpMethod method,
+			final String template, final RequestHandlerFactory factory) {
+		return add(method, template, factory);
+	}
+
+	@Override
+	public RequestHandlerMapping getHandlerFor(final HttpMethod method,
+			final String uri, final PathParameters params) {
+
+		final Tree current = tree;
+
+		int end = uri.indexOf('?');
+
+		if (end == -1) {
+			end = uri.length();
+		}
+
+		if (end > 1 && uri.charAt(end - 1) == '/') {
+			end--;
+		}
+
+		params.capacity(current.captures);
+
+		final Route route =
+				match(current.root, method, uri,
+						uri.startsWith("/") ? 1 : 0, end, params);
+
+		if (route == null) {
+			return null;
+		}
+
+		params.names(route.names);
+
+		return route.mapping;
+
+	}
+
+	private static Route match(final Node node, final HttpMethod method,
+			final String uri, final int pos, final int end,
+			final PathParameters params) {
+
+		if (pos >= end) {
+
+			final Route route = node.route(method);
+
+			if (route != null || node.rest == null) {
+				return route;
+			}
+
+			params.set(node.index, end, end);
+			return node.rest.route(method);
+
+		}
+
+		int next = uri.indexOf('/', pos);
+
+		if (next == -1 || next > end) {
+			next = end;
+		}
+
+		final int length = next - pos;
+
+		for (int i = 0; i < node.literals.length; i++) {
+
+			final String literal = node.literals[i];
+
+			if (literal.length() == length
+					&& uri.regionMatches(pos, literal, 0, length)) {
+
+				final Route route =
+						match(node.children[i], method, uri, next + 1, end,
+								params);
+
+				if (route != null) {
+					return route;
+				}
+
+			}
+
+		}
+
+		if (node.param != null && length > 0) {
+
+			params.set(node.index, pos, next);
+
+			final Route route =
+					match(node.param, method, uri, next + 1, end, params);
+
+			if (route != null) {
+				return route;
+			}
+
+		}
+
+		if (node.rest != null) {
+			params.set(node.index, pos, end);
+			return node.rest.route(method);
+		}
+
+		return null;
+
+	}
+
+	private synchronized TemplateURLMapper add(final HttpMethod method,
+			final String template, final Object handler) {
+
+		final Route route = new Route(method, template, handler);
+
+		for (int i = 0; i < routes.size(); i++) {
+			final Route existing = routes.get(i);
+			if (existing.template.equals(route.template)
+					&& (method == null ? existing.method == null : method
+							.equals(existing.method))) {
+				routes.remove(i);
+				break;
+			}
+		}
+
+		routes.add(route);
+
+		// Rebuild and publish, lookups never see a partial tree
+		final Node root = new Node(0);
+		int captures = 0;
+
+		for (final Route r : routes) {
+			root.add(r, 0, 0);
+			captures = Math.max(captures, r.names.length);
+		}
+
+		tree = new Tree(root, captures);
+
+		return this;
+
+	}
+
+	private static final class Tree {
+
+		private final Node root;
+		private final int captures;
+
+		Tree(final Node root_, final int captures_) {
+			root = root_;
+			captures = captures_;
+		}
+
+	}
+
+	private static final class Node {
+
+		private static final String[] NO_LITERALS = new String[0];
+		private static final Node[] NO_NODES = new Node[0];
+		private static final Route[] NO_ROUTES = new Route[0];
+
+		/* Capture index of a parameter following this node */
+		private final int index;
+
+		private String[] literals = NO_LITERALS;
+		private Node[] children = NO_NODES;
+		private Node param = null;
+		private Node rest = null;
+		private Route[] routes = NO_ROUTES;
+
+		Node(final int index_) {
+			index = index_;
+		}
+
+		void add(final Route route, final int segment, final int captures) {
+
+			if (segment == route.segments.length) {
+				routes = Arrays.copyOf(routes, routes.length + 1);
+				routes[routes.length - 1] = route;
+				return;
+			}
+
+			final String s = route.segments[segment];
+
+			if (Route.isRest(s)) {
+				if (rest == null) {
+					rest = new Node(captures + 1);
+				}
+				rest.add(route, segment + 1, captures + 1);
+			} else if (Route.isParam(s)) {
+				if (param == null) {
+					param = new Node(captures + 1);
+				}
+				param.add(route, segment + 1, captures + 1);
+			} else {
+				child(s).add(route, segment + 1, captures);
+			}
+
+		}
+
+		private Node child(final String literal) {
+
+			for (int i = 0; i < literals.length; i++) {
+				if (literals[i].equals(literal)) {
+					return children[i];
+				}
+			}
+
+			literals = Arrays.copyOf(literals, literals.length + 1);
+			children = Arrays.copyOf(children, children.length + 1);
+
+			literals[literals.length - 1] = literal;
+			children[children.length - 1] = new Node(index);
+
+			return children[children.length - 1];
+
+		}
+
+		/* Method-specific routes win over routes for any method */
+		Route route(final HttpMethod method) {
+
+			Route any = null;
+
+			for (final Route route : routes) {
+				if (route.method == null) {
+					any = route;
+				} else if (route.method.equals(method)) {
+					return route;
+				}
+			}
+
+			return any;
+
+		}
+
+	}
+
+	private static final class Route {
+
+		private final HttpMethod method;
+		private final String template;
+		private final String[] segments;
+		private final String[] names;
+		private final RequestHandlerMapping mapping;
+
+		Route(final HttpMethod method_, final String template_,
+				final Object handler) {
+
+			method = method_;
+
+			String t = template_.startsWith("/") ? template_ : "/" + template_;
+
+			if (t.length() > 1 && t.endsWith("/")) {
+				t = t.substring(0, t.length() - 1);
+			}
+
+			template = t;
+			segments =
+					t.length() == 1 ? new String[0] : t.substring(1).split("/",
+							-1);
+
+			final List<String> params = new ArrayList<String>();
+			final StringBuilder prefix = new StringBuilder();
+			boolean literal = true;
+
+			for (int i = 0; i < segments.length; i++) {
+
+				final String s = segments[i];
+
+				if (isRest(s)) {
+					if (i != segments.length - 1) {
+						throw new IllegalArgumentException(
+								"Rest of path parameter must be last: "
+										+ template_);
+					}
+					params.add(s.equals("*") ? "*" : s.substring(1,
+							s.length() - 2));
+					literal = false;
+				} else if (isParam(s)) {
+					params.add(s.substring(1, s.length() - 1));
+					literal = false;
+				} else if (s.indexOf('{') != -1 || s.indexOf('}') != -1) {
+					throw new IllegalArgumentException(
+							"Parameters must span a whole segment: "
+									+ template_);
+				} else if (literal) {
+					prefix.append('/').append(s);
+				}
+
+			}
+
+			names = params.toArray(new String[params.size()]);
+			mapping = RequestHandlerMapping.create(prefix.toString(), handler);
+
+		}
+
+		static boolean isParam(final String segment) {
+			return segment.length() > 2 && segment.startsWith("{")
+					&& segment.endsWith("}");
+		}
+
+		static boolean isRest(final String segment) {
+			return segment.equals("*")
+					|| (isParam(segment) && segment.endsWith("*}"));
+		}
+
+	}
+
+}
@@ -0,0 +1,60 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Server-wide limit on memory used to hold uploaded multipart content.
+ */
+class UploadBudget {
+
+	private final AtomicLong available;
+
+	UploadBudget(final long bytes) {
+		available = new AtomicLong(bytes);
+	}
+
+	/**
+	 * Reserve memory from the budget.
+	 *
+	 * @return False if not enough memory is available
+	 */
+	boolean reserve(final long bytes) {
+
+		while (true) {
+
+			final long current = available.get();
+
+			if (current < bytes) {
+				return false;
+			}
+
+			if (available.compareAndSet(current, current - bytes)) {
+				return true;
+			}
+
+		}
+
+	}
+
+	/**
+	 * Return previously reserved memory to the budget.
+	 */
+	void release(final long bytes) {
+		available.addAndGet(bytes);
+	}
+
+	/**
+	 * The currently available memory in bytes.
+	 */
+	long available() {
+		return available.get();
+	}
+
+}
@@ -0,0 +1,298 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.HttpHeaders;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+import com.barchart.http.request.RequestPart;
+
+/**
+ * Multipart request part that keeps its content in memory until it exceeds the
+ * upload threshold or the memory budget, then spills to a temporary file.
+ */
+class UploadPart implements RequestPart {
+
+	private final MultipartUpload upload;
+	private final HttpHeaders headers;
+	private final String name;
+	private final String filename;
+
+	/* In-memory content, null if empty or spilled */
+	private ByteBuf memory = null;
+
+	/* Memory reserved from the upload budgets for this part */
+	private long reserved = 0;
+
+	/* Spilled content */
+	private File file = null;
+	private FileChannel channel = null;
+	private boolean moved = false;
+
+	private long size = 0;
+
+	UploadPart(final MultipartUpload upload_, final HttpHeaders headers_,
+			final String name_, final String filename_) {
+		upload = upload_;
+		headers = headers_;
+		name = name_;
+		filename = filename_;
+	}
+
+	/**
+	 * Append received content to this part.
+	 */
+	void write(final ByteBuf data) throws IOException {
+
+		final int length = data.readableBytes();
+
+		if (length == 0) {
+			return;
+		}
+
+		if (file == null) {
+
+			if (size + length <= upload.threshold() && upload.reserve(length)) {
+
+				if (memory == null) {
+					memory = upload.alloc().buffer(length);
+				}
+
+				memory.writeBytes(data, data.readerIndex(), length);
+				reserved += length;
+				size += length;
+
+				return;
+
+			}
+
+			spill();
+
+		}
+
+		writeFile(data);
+		size += length;
+
+	}
+
+	/**
+	 * Called when all content for this part has been received.
+	 */
+	void complete() throws IOException {
+
+		if (channel != null) {
+			channel.close();
+			channel = null;
+		}
+
+	}
+
+	/**
+	 * Release memory and delete the temporary file, unless it was moved.
+	 */
+	void delete() {
+
+		if (memory != null) {
+			memory.release();
+			memory = null;
+		}
+
+		if (reserved > 0) {
+			upload.release(reserved);
+			reserved = 0;
+		}
+
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (final IOException e) {
+				// Deleting anyway
+			}
+			channel = null;
+		}
+
+		if (file != null && !moved) {
+			file.delete();
+		}
+
+	}
+
+	private void spill() throws IOException {
+
+		file = File.createTempFile("upload-", ".part", upload.directory());
+		channel = new FileOutputStream(file).getChannel();
+
+		if (memory != null) {
+
+			writeFile(memory);
+
+			memory.release();
+			memory = null;
+
+			upload.release(reserved);
+			reserved = 0;
+
+		}
+
+	}
+
+	private void writeFile(final ByteBuf data) throws IOException {
+
+		// Gathering write straight from the received buffers
+		final ByteBuffer[] buffers =
+				data.nioBuffers(data.readerIndex(), data.readableBytes());
+
+		long remaining = data.readableBytes();
+
+		while (remaining > 0) {
+			remaining -= channel.write(buffers);
+		}
+
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public String getFilename() {
+		return filename;
+	}
+
+	@Override
+	public String getContentType() {
+		return headers.get(HttpHeaders.Names.CONTENT_TYPE);
+	}
+
+	@Override
+	public HttpHeaders headers() {
+		return headers;
+	}
+
+	@Override
+	public long getSize() {
+		return size;
+	}
+
+	@Override
+	public boolean isInMemory() {
+		return file == null;
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+
+		if (file != null) {
+			return new FileInputStream(file);
+		}
+
+		return new ByteBufInputStream(memory == null ? Unpooled.EMPTY_BUFFER
+				: memory.duplicate());
+
+	}
+
+	@Override
+	public String getString(final Charset charset) throws IOException {
+
+		if (file == null) {
+			return memory == null ? "" : memory.toString(charset);
+		}
+
+		final ByteArrayOutputStream out =
+				new ByteArrayOutputStream((int) Math.min(size, Integer.MAX_VALUE));
+		final InputStream in = getInputStream();
+
+		try {
+
+			final byte[] buf = new byte[8192];
+			int read;
+
+			while ((read = in.read(buf)) != -1) {
+				out.write(buf, 0, read);
+			}
+
+		} finally {
+			in.close();
+		}
+
+		return new String(out.toByteArray(), charset);
+
+	}
+
+	@Override
+	public File getFile() {
+		return file;
+	}
+
+	@Override
+	public void moveTo(final File destination) throws IOException {
+
+		if (file != null && file.renameTo(destination)) {
+			file = destination;
+			moved = true;
+			return;
+		}
+
+		final FileChannel out = new FileOutputStream(destination).getChannel();
+
+		try {
+
+			if (file != null) {
+
+				final FileChannel in = new FileInputStream(file).getChannel();
+
+				try {
+					long position = 0;
+					while (position < size) {
+						position += in.transferTo(position, size - position, out);
+					}
+				} finally {
+					in.close();
+				}
+
+				file.delete();
+
+			} else if (memory != null) {
+
+				final ByteBuffer buffer = memory.nioBuffer();
+
+				while (buffer.hasRemaining()) {
+					out.write(buffer);
+				}
+
+				memory.release();
+				memory = null;
+
+				upload.release(reserved);
+				reserved = 0;
+
+			}
+
+		} finally {
+			out.close();
+		}
+
+		file = destination;
+		moved = true;
+
+	}
+
+}
@@ -0,0 +1,306 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.server;
+
+import io.netty.handler.codec.http.HttpMethod;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.barchart.http.request.PathParameters;
+import com.barchart.http.request.PrebuiltResponse;
+import com.barchart.http.request.RequestFilter;
+import com.barchart.http.request.RequestHandler;
+import com.barchart.http.request.RequestHandlerFactory;
+import com.barchart.http.request.RequestHandlerMapping;
+import com.barchart.http.request.RequestURLMapper;
+
+/**
+ * A route table of request handlers and prefix filters. HttpServerConfig
+ * holds the default table; additional tables are registered per Host with
+ * HttpServerConfig.virtualHost(). Prefix matching is the same for every
+ * table, see HttpServerConfig.requestHandler().
+ */
+public class VirtualHost {
+
+	private final Map<String, Object> handlers =
+			new ConcurrentSkipListMap<String, Object>(
+					new ReverseLengthComparator());
+
+	/* Handlers with their filter chains, rebuilt when either changes */
+	private final Map<String, RequestHandlerMapping> mappings =
+			new ConcurrentSkipListMap<String, RequestHandlerMapping>(
+					new ReverseLengthComparator());
+
+	private final NavigableMap<String, List<RequestFilter>> prefixFilters =
+			new ConcurrentSkipListMap<String, List<RequestFilter>>(
+					new ReverseLengthComparator());
+
+	/* Server-wide filters, shared with the owning config */
+	private List<RequestFilter> filters;
+
+	private volatile RequestURLMapper urlMapper = null;
+
+	/* Bounds the cache for mappers that create mappings per request */
+	static final int MAX_MAPPED = 1024;
+
+	/* Mapper results with their filter chains, by mapping instance */
+	private final ConcurrentMap<RequestHandlerMapping, RequestHandlerMapping> mapped =
+			new ConcurrentHashMap<RequestHandlerMapping, RequestHandlerMapping>();
+
+	public VirtualHost() {
+		this(Collections.<RequestFilter> emptyList());
+	}
+
+	VirtualHost(final List<RequestFilter> filters_) {
+		filters = filters_;
+	}
+
+	/**
+	 * Add a request handler for the given prefix.
+	 */
+	public VirtualHost requestHandler(final String prefix,
+			final RequestHandler handler) {
+		handlers.put(prefix, handler);
+		compile();
+		return this;
+	}
+
+	/**
+	 * Add a request handler factory for the given prefix.
+	 */
+	public VirtualHost requestHandler(final String prefix,
+			final RequestHandlerFactory factory) {
+		handlers.put(prefix, factory);
+		compile();
+		return this;
+	}
+
+	/**
+	 * Serve a prebuilt response for all requests matching the given prefix.
+	 */
+	public VirtualHost staticResponse(final String prefix,
+			final PrebuiltResponse response) {
+		handlers.put(prefix, response);
+		compile();
+		return this;
+	}
+
+	/**
+	 * Add a filter run before request handlers registered at or below the
+	 * given prefix, after any server-wide filters. Filters for shorter
+	 * prefixes run first.
+	 */
+	public VirtualHost filter(final String prefix, final RequestFilter filter) {
+
+		List<RequestFilter> list = prefixFilters.get(prefix);
+
+		if (list == null) {
+			list = new CopyOnWriteArrayList<RequestFilter>();
+			prefixFilters.put(prefix, list);
+		}
+
+		list.add(filter);
+		compile();
+
+		return this;
+
+	}
+
+	/**
+	 * Set a mapper consulted before the prefix handlers, i.e. a
+	 * TemplateURLMapper. Requests it does not map fall through to the prefix
+	 * handlers. Filters apply to its mappings by their handler prefix.
+	 */
+	public VirtualHost urlMapper(final RequestURLMapper mapper) {
+		urlMapper = mapper;
+		mapped.clear();
+		return this;
+	}
+
+	/**
+	 * Remove the handler registered for the given prefix.
+	 */
+	public Object removeRequestHandler(final String path) {
+		final Object removed = handlers.remove(path);
+		compile();
+		return removed;
+	}
+
+	/**
+	 * Get the request handler mapping for the specified method and URI,
+	 * trying the URL mapper before the prefix handlers.
+	 * 
+	 * @param params
+	 *            Receives captured path parameters, reset by the caller
+	 */
+	public RequestHandlerMapping getRequestMapping(final HttpMethod method,
+			final String uri, final PathParameters params) {
+
+		final RequestURLMapper mapper = urlMapper;
+
+		if (mapper != null) {
+
+			final RequestHandlerMapping mapping =
+					mapper.getHandlerFor(method, uri, params);
+
+			if (mapping != null) {
+
+				final RequestHandlerMapping filtered = mapped.get(mapping);
+
+				if (filtered != null) {
+					return filtered;
+				}
+
+				return filter(mapping);
+
+			}
+
+		}
+
+		return getRequestMapping(uri);
+
+	}
+
+	/**
+	 * Get the prefix handler mapping for the specified URI.
+	 */
+	public RequestHandlerMapping getRequestMapping(final String uri) {
+
+		for (final Map.Entry<String, RequestHandlerMapping> entry : mappings
+				.entrySet()) {
+			if (uri.startsWith(entry.getKey())) {
+				return entry.getValue();
+			}
+		}
+
+		return null;
+
+	}
+
+	/**
+	 * The registered handler prefixes, longest first.
+	 */
+	Set<String> prefixes() {
+		return handlers.keySet();
+	}
+
+	/**
+	 * Share the server-wide filter list and rebuild the filter chains.
+	 */
+	void filters(final List<RequestFilter> filters_) {
+		filters = filters_;
+		compile();
+	}
+
+	/**
+	 * Resolve the filter chain for every handler up front so requests only
+	 * walk a flat array.
+	 */
+	synchronized void compile() {
+
+		for (final Map.Entry<String, Object> entry : handlers.entrySet()) {
+
+			final String path = entry.getKey();
+
+			mappings.put(path,
+					RequestHandlerMapping.create(path, entry.getValue())
+							.filters(chain(path)));
+
+		}
+
+		mappings.keySet().retainAll(handlers.keySet());
+
+		// Mapper results are resolved again on next use
+		mapped.clear();
+
+	}
+
+	/* First request for a mapper result, cache it with its chain while there
+	 * is room, otherwise it is resolved on each request */
+	private synchronized RequestHandlerMapping filter(
+			final RequestHandlerMapping mapping) {
+
+		final RequestHandlerMapping filtered =
+				mapping.filters(chain(mapping.path()));
+
+		if (mapped.size() < MAX_MAPPED) {
+			mapped.put(mapping, filtered);
+		}
+
+		return filtered;
+
+	}
+
+	/**
+	 * The number of cached mapper results.
+	 */
+	int mappedCount() {
+		return mapped.size();
+	}
+
+	private RequestFilter[] chain(final String path) {
+
+		final List<RequestFilter> chain = new ArrayList<RequestFilter>(filters);
+
+		// Shortest prefix first
+		for (final Map.Entry<String, List<RequestFilter>> prefix : prefixFilters
+				.descendingMap().entrySet()) {
+			if (path.startsWith(prefix.getKey())) {
+				chain.addAll(prefix.getValue());
+			}
+		}
+
+		return chain.toArray(new RequestFilter[chain.size()]);
+
+	}
+
+	/**
+	 * 
+	 * Sorts strings by reverse length first, then normal comparison. For
+	 * example:
+	 * 
+	 * 2 handlers defined as requestHandler("/service", serviceHandler);
+	 * requestHandler("/service/info", infoHandler);
+	 * 
+	 * A request to "/service/info/10" will go to infoHandler, but a request to
+	 * "/service/something/else" will go to serviceHandler.
+	 * 
+	 */
+	private static class ReverseLengthComparator implements Comparator<String> {
+
+		// Sort by reverse length first to allow overriding parent
+		// mappings
+		@Override
+		public int compare(final String o1, final String o2) {
+
+			final int l1 = o1.length();
+			final int l2 = o2.length();
+
+			if (l1 < l2) {
+				return 1;
+			} else if (l2 < l1) {
+				return -1;
+			} else {
+				return o1.compareTo(o2);
+			}
+
+		}
+
+	}
+
+}
@@ -0,0 +1,251 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.server;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalServerChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpVersion;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Drives synthetic requests through the server pipeline over an in-VM
+ * LocalChannel, one at a time, before the server binds.
+ */
+class WarmUp {
+
+	private static final Logger log = LoggerFactory.getLogger(WarmUp.class);
+
+	/* Give up on a route that does not respond within this time */
+	private static final long STALL_TIMEOUT = TimeUnit.SECONDS.toNanos(5);
+
+	private final HttpServerConfig config;
+	private final ChannelHandler initializer;
+
+	WarmUp(final HttpServerConfig config_, final ChannelHandler initializer_) {
+		config = config_;
+		initializer = initializer_;
+	}
+
+	WarmUpReport run() {
+
+		final List<String[]> targets = targets();
+		final int total = targets.size() * config.warmUp();
+
+		final LocalAddress address =
+				new LocalAddress("barchart-http-warmup-"
+						+ System.identityHashCode(this));
+
+		final Channel server =
+				new ServerBootstrap()
+						.group(config.parentGroup(), config.childGroup())
+						.channel(LocalServerChannel.class)
+						.localAddress(address).childHandler(initializer)
+						.bind().syncUninterruptibly().channel();
+
+		final Driver driver = new Driver(targets, total);
+		final long start = System.nanoTime();
+
+		try {
+
+			final Channel client = new Bootstrap() //
+					.group(config.childGroup()) //
+					.channel(LocalChannel.class) //
+					.handler(new ChannelInitializer<LocalChannel>() {
+						@Override
+						protected void initChannel(final LocalChannel ch) {
+							ch.pipeline().addLast(new HttpClientCodec(),
+									new HttpObjectAggregator(Integer.MAX_VALUE),
+									driver);
+						}
+					}).connect(address).syncUninterruptibly().channel();
+
+			client.eventLoop().execute(new Runnable() {
+				@Override
+				public void run() {
+					driver.send(client);
+				}
+			});
+
+			while (!client.closeFuture().awaitUninterruptibly(100)) {
+				if (System.nanoTime() - driver.progress.get() > STALL_TIMEOUT) {
+					log.warn("Warm-up stalled on {}",
+							targets.get(driver.completed % targets.size())[1]);
+					client.close().syncUninterruptibly();
+				}
+			}
+
+		} finally {
+			server.close().syncUninterruptibly();
+		}
+
+		final WarmUpReport report =
+				new WarmUpReport(targets.size(), driver.completed,
+						System.nanoTime() - start, driver.average(true),
+						driver.average(false), driver.completed == total);
+
+		log.info(report.toString());
+
+		return report;
+
+	}
+
+	/* Host and URI pairs, from configured URIs or all handler prefixes */
+	private List<String[]> targets() {
+
+		final List<String[]> targets = new ArrayList<String[]>();
+
+		if (!config.warmUpUris().isEmpty()) {
+			for (final String uri : config.warmUpUris()) {
+				targets.add(new String[] { "localhost", uri });
+			}
+			return targets;
+		}
+
+		add(targets, "localhost", config.getVirtualHost(null));
+
+		for (final Map.Entry<String, VirtualHost> entry : config
+				.virtualHosts().entrySet()) {
+			final String host = entry.getKey();
+			add(targets, host.startsWith(".") ? "warmup" + host : host,
+					entry.getValue());
+		}
+
+		return targets;
+
+	}
+
+	private static void add(final List<String[]> targets, final String host,
+			final VirtualHost routes) {
+		for (final String prefix : routes.prefixes()) {
+			targets.add(new String[] { host,
+					prefix.startsWith("/") ? prefix : "/" + prefix });
+		}
+	}
+
+	private static class Driver extends
+			SimpleChannelInboundHandler<FullHttpResponse> {
+
+		private final List<String[]> targets;
+		private final int total;
+		private final int sample;
+
+		/* Last response, for stall detection */
+		private final AtomicLong progress = new AtomicLong(System.nanoTime());
+
+		private volatile int completed = 0;
+		private long sent;
+
+		private Channel channel;
+
+		private final Runnable next = new Runnable() {
+			@Override
+			public void run() {
+				send(channel);
+			}
+		};
+		private long first = 0;
+		private long last = 0;
+
+		Driver(final List<String[]> targets_, final int total_) {
+			targets = targets_;
+			total = total_;
+			sample = Math.max(1, Math.min(1000, total / 10));
+		}
+
+		void send(final Channel channel_) {
+
+			channel = channel_;
+
+			if (completed == total) {
+				channel.close();
+				return;
+			}
+
+			final String[] target = targets.get(completed % targets.size());
+
+			final FullHttpRequest request =
+					new DefaultFullHttpRequest(HttpVersion.HTTP_1_1,
+							HttpMethod.GET, target[1]);
+
+			request.headers().set(HttpHeaders.Names.HOST, target[0]);
+
+			sent = System.nanoTime();
+			channel.writeAndFlush(request);
+
+		}
+
+		@Override
+		protected void channelRead0(final ChannelHandlerContext ctx,
+				final FullHttpResponse msg) {
+
+			final long now = System.nanoTime();
+			final long latency = now - sent;
+
+			if (completed < sample) {
+				first += latency;
+			}
+
+			if (completed >= total - sample) {
+				last += latency;
+			}
+
+			completed++;
+			progress.set(now);
+
+			if (HttpHeaders.isKeepAlive(msg)) {
+				// Not from within the read, LocalChannel does not deliver
+				// writes made while its peer is still reading
+				ctx.channel().eventLoop().execute(next);
+			} else {
+				log.warn("Warm-up stopped, connection closed by {}",
+						targets.get((completed - 1) % targets.size())[1]);
+				ctx.close();
+			}
+
+		}
+
+		@Override
+		public void exceptionCaught(final ChannelHandlerContext ctx,
+				final Throwable cause) {
+			log.warn("Warm-up failed", cause);
+			ctx.close();
+		}
+
+		long average(final boolean start) {
+			if (start) {
+				return first / Math.min(sample, Math.max(1, completed));
+			}
+			return completed == total ? last / sample : 0;
+		}
+
+	}
+
+}
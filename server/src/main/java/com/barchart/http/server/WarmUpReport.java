@@ -0,0 +1,89 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.server;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Results of the warm-up phase run before the server binds. Latencies are
+ * in-VM round trips through the full pipeline, averaged over the first and
+ * last tenth of the warm-up requests (at most 1000 each).
+ */
+public class WarmUpReport {
+
+	private final int uris;
+	private final int requests;
+	private final long duration;
+	private final long firstLatency;
+	private final long lastLatency;
+	private final boolean complete;
+
+	WarmUpReport(final int uris_, final int requests_, final long duration_,
+			final long firstLatency_, final long lastLatency_,
+			final boolean complete_) {
+		uris = uris_;
+		requests = requests_;
+		duration = duration_;
+		firstLatency = firstLatency_;
+		lastLatency = lastLatency_;
+		complete = complete_;
+	}
+
+	/**
+	 * The number of URIs warmed up.
+	 */
+	public int uris() {
+		return uris;
+	}
+
+	/**
+	 * The number of requests completed.
+	 */
+	public int requests() {
+		return requests;
+	}
+
+	/**
+	 * The warm-up duration.
+	 */
+	public long duration(final TimeUnit unit) {
+		return unit.convert(duration, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * The average latency at the start of the warm-up.
+	 */
+	public long firstLatency(final TimeUnit unit) {
+		return unit.convert(firstLatency, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * The average latency at the end of the warm-up.
+	 */
+	public long lastLatency(final TimeUnit unit) {
+		return unit.convert(lastLatency, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * False if the warm-up was cut short, i.e. a route never responded or
+	 * closed the connection.
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	@Override
+	public String toString() {
+		return "Warm-up " + (complete ? "" : "(incomplete) ") + requests
+				+ " requests to " + uris + " URIs in "
+				+ duration(TimeUnit.MILLISECONDS) + "ms, latency "
+				+ firstLatency(TimeUnit.MICROSECONDS) + "us -> "
+				+ lastLatency(TimeUnit.MICROSECONDS) + "us";
+	}
+
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.server;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * XXH64 non-cryptographic hash, read straight from a ByteBuf without copying
+ * or changing its indexes. Used for generated ETags, not for security.
+ */
+final class XxHash64 {
+
+	private static final long PRIME1 = 0x9E3779B185EBCA87L;
+	private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long PRIME3 = 0x165667B19E3779F9L;
+	private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+	private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+	private XxHash64() {
+	}
+
+	/**
+	 * Hash the readable bytes of a buffer.
+	 */
+	static long hash(final ByteBuf buf, final long seed) {
+
+		final int start = buf.readerIndex();
+		final int end = buf.writerIndex();
+		final int length = end - start;
+
+		int i = start;
+		long h;
+
+		if (length >= 32) {
+
+			long v1 = seed + PRIME1 + PRIME2;
+			long v2 = seed + PRIME2;
+			long v3 = seed;
+			long v4 = seed - PRIME1;
+
+			final int limit = end - 32;
+
+			do {
+				v1 = round(v1, getLong(buf, i));
+				v2 = round(v2, getLong(buf, i + 8));
+				v3 = round(v3, getLong(buf, i + 16));
+				v4 = round(v4, getLong(buf, i + 24));
+				i += 32;
+			} while (i <= limit);
+
+			h =
+					Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7)
+							+ Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+
+			h = merge(h, v1);
+			h = merge(h, v2);
+			h = merge(h, v3);
+			h = merge(h, v4);
+
+		} else {
+
+			h = seed + PRIME5;
+
+		}
+
+		h += length;
+
+		for (; i + 8 <= end; i += 8) {
+			h ^= round(0, getLong(buf, i));
+			h = Long.rotateLeft(h, 27) * PRIME1 + PRIME4;
+		}
+
+		if (i + 4 <= end) {
+			h ^= (Integer.reverseBytes(buf.getInt(i)) & 0xFFFFFFFFL) * PRIME1;
+			h = Long.rotateLeft(h, 23) * PRIME2 + PRIME3;
+			i += 4;
+		}
+
+		for (; i < end; i++) {
+			h ^= (buf.getByte(i) & 0xFF) * PRIME5;
+			h = Long.rotateLeft(h, 11) * PRIME1;
+		}
+
+		h ^= h >>> 33;
+		h *= PRIME2;
+		h ^= h >>> 29;
+		h *= PRIME3;
+		h ^= h >>> 32;
+
+		return h;
+
+	}
+
+	private static long getLong(final ByteBuf buf, final int index) {
+		return Long.reverseBytes(buf.getLong(index));
+	}
+
+	private static long round(long acc, final long input) {
+		acc += input * PRIME2;
+		acc = Long.rotateLeft(acc, 31);
+		return acc * PRIME1;
+	}
+
+	private static long merge(long acc, final long v) {
+		acc ^= round(0, v);
+		return acc * PRIME1 + PRIME4;
+	}
+
+}
@@ -147,6 +147,40 @@ public class ObjectPool<T> {
 
 	}
 
+	/**
+	 * Create objects up front until the given number exist, or the pool is
+	 * full.
+	 * 
+	 * @return The number of objects created
+	 */
+	public int prefill(final int objects) {
+
+		int filled = 0;
+		int count = created.get();
+
+		while (count < objects && (maxObjects == -1 || count < maxObjects)) {
+
+			if (created.compareAndSet(count, count + 1)) {
+
+				try {
+					objectPool.offer(objectCreator.call());
+					filled++;
+				} catch (final Exception e) {
+					created.decrementAndGet();
+					throw new RuntimeException(
+							"Unhandled exception in object creator", e);
+				}
+
+			}
+
+			count = created.get();
+
+		}
+
+		return filled;
+
+	}
+
 	/**
 	 * Return an object to the pool.
 	 * 
@@ -0,0 +1,208 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.barchart.http.request.AsyncRequestHandler;
+import com.barchart.http.request.RequestHandlerBase;
+import com.barchart.http.request.ServerRequest;
+import com.barchart.http.request.ServerResponse;
+
+public class TestAsyncRequestHandler {
+
+	private final ScheduledExecutorService backend = Executors
+			.newSingleThreadScheduledExecutor();
+
+	private volatile Promise<String> pending;
+
+	private HttpServer server;
+	private int port;
+
+	@Before
+	public void setUp() throws Exception {
+
+		final ServerSocket s = new ServerSocket(0);
+		port = s.getLocalPort();
+		s.close();
+
+		server = new HttpServer();
+
+		server.configure(
+				new HttpServerConfig()
+						.address(new InetSocketAddress("localhost", port))
+						.parentGroup(new NioEventLoopGroup(1))
+						.childGroup(new NioEventLoopGroup(1, new NamedFactory()))
+						.asyncTimeout(200, TimeUnit.MILLISECONDS)
+						.requestHandler("/backend", new BackendHandler())
+						.requestHandler("/immediate", new ImmediateHandler())
+						.requestHandler("/failed", new FailedHandler())
+						.requestHandler("/hang", new HangHandler())
+						.requestHandler("/delegate", new DelegatingHandler()))
+				.listen()
+				.sync();
+
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		backend.shutdownNow();
+		if (server.isRunning()) {
+			server.shutdown().sync();
+		}
+	}
+
+	@Test
+	public void testBackendCompletion() throws Exception {
+		// Completed on a backend thread, written on the event loop
+		assertEquals("loop:result", get("/backend", 200));
+	}
+
+	@Test
+	public void testImmediate() throws Exception {
+		assertEquals("immediate", get("/immediate", 200));
+		assertEquals("immediate", get("/immediate", 200));
+	}
+
+	@Test
+	public void testDelegated() throws Exception {
+		assertEquals("loop:result", get("/delegate", 200));
+	}
+
+	@Test
+	public void testFailed() throws Exception {
+		get("/failed", 500);
+	}
+
+	@Test
+	public void testTimeout() throws Exception {
+
+		final long start = System.nanoTime();
+
+		get("/hang", 503);
+
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS
+				.toNanos(200));
+		assertTrue(pending.isCancelled());
+
+	}
+
+	private String get(final String path, final int status) throws Exception {
+
+		final HttpResponse response =
+				new DefaultHttpClient().execute(new HttpGet("http://localhost:"
+						+ port + path));
+
+		assertEquals(status, response.getStatusLine().getStatusCode());
+
+		return EntityUtils.toString(response.getEntity());
+
+	}
+
+	private static class NamedFactory implements ThreadFactory {
+
+		@Override
+		public Thread newThread(final Runnable r) {
+			return new Thread(r, "loop");
+		}
+
+	}
+
+	private class BackendHandler extends AsyncRequestHandler<String> {
+
+		@Override
+		public Future<String> handle(final ServerRequest request,
+				final EventExecutor executor) {
+
+			final Promise<String> promise = executor.newPromise();
+
+			backend.schedule(new Runnable() {
+				@Override
+				public void run() {
+					promise.setSuccess("result");
+				}
+			}, 20, TimeUnit.MILLISECONDS);
+
+			return promise;
+
+		}
+
+		@Override
+		public void respond(final ServerRequest request,
+				final ServerResponse response, final String result)
+				throws IOException {
+			response.write(Thread.currentThread().getName() + ":" + result);
+		}
+
+	}
+
+	private class DelegatingHandler extends RequestHandlerBase {
+
+		private final BackendHandler delegate = new BackendHandler();
+
+		@Override
+		public void onRequest(final ServerRequest request,
+				final ServerResponse response) throws IOException {
+			delegate.onRequest(request, response);
+		}
+
+	}
+
+	private static class ImmediateHandler extends AsyncRequestHandler<String> {
+
+		@Override
+		public Future<String> handle(final ServerRequest request,
+				final EventExecutor executor) {
+			return executor.newSucceededFuture("immediate");
+		}
+
+	}
+
+	private static class FailedHandler extends AsyncRequestHandler<String> {
+
+		@Override
+		public Future<String> handle(final ServerRequest request,
+				final EventExecutor executor) {
+			return executor.newFailedFuture(new IOException("backend down"));
+		}
+
+	}
+
+	private class HangHandler extends AsyncRequestHandler<String> {
+
+		@Override
+		public Future<String> handle(final ServerRequest request,
+				final EventExecutor executor) {
+			pending = executor.newPromise();
+			return pending;
+		}
+
+	}
+
+}
@@ -0,0 +1,113 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.server;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.barchart.http.request.RequestAttribute;
+import com.barchart.http.request.RequestAttributeKey;
+
+/**
+ * Per-request attribute cost (reset plus three keys written and read) of
+ * indexed slots compared to the previous synchronized HashMap storage.
+ */
+public class TestAttributeBenchmark {
+
+	private static final int ITERATIONS = 10000000;
+
+	private static final RequestAttributeKey<Object> USER =
+			new RequestAttributeKey<Object>("user");
+	private static final RequestAttributeKey<Object> CORS =
+			new RequestAttributeKey<Object>("cors");
+	private static final RequestAttributeKey<Object> TASKS =
+			new RequestAttributeKey<Object>("tasks");
+
+	private static final Object VALUE = new Object();
+
+	private static long sink = 0;
+
+	public static void main(final String[] args) {
+
+		final PooledServerRequest request = new PooledServerRequest();
+		final MapAttributes map = new MapAttributes();
+
+		for (int round = 0; round < 5; round++) {
+
+			long start = System.nanoTime();
+
+			for (int i = 0; i < ITERATIONS; i++) {
+				request.resetAttributes();
+				request.attr(USER).set(VALUE);
+				request.attr(CORS).set(VALUE);
+				request.attr(TASKS).set(VALUE);
+				sink += request.attr(USER).get().hashCode() & 1;
+				sink += request.attr(CORS).get().hashCode() & 1;
+				sink += request.attr(TASKS).get().hashCode() & 1;
+			}
+
+			final long indexed = System.nanoTime() - start;
+
+			start = System.nanoTime();
+
+			for (int i = 0; i < ITERATIONS; i++) {
+				map.reset();
+				map.attr(USER).set(VALUE);
+				map.attr(CORS).set(VALUE);
+				map.attr(TASKS).set(VALUE);
+				sink += map.attr(USER).get().hashCode() & 1;
+				sink += map.attr(CORS).get().hashCode() & 1;
+				sink += map.attr(TASKS).get().hashCode() & 1;
+			}
+
+			final long hashed = System.nanoTime() - start;
+
+			System.out.printf("indexed %5.1f ns/req  synchronized map %5.1f ns/req%n",
+					(double) indexed / ITERATIONS, (double) hashed
+							/ ITERATIONS);
+
+		}
+
+		System.out.println(sink);
+
+	}
+
+	/**
+	 * The previous PooledServerRequest attribute implementation.
+	 */
+	private static class MapAttributes {
+
+		private Map<RequestAttributeKey<?>, RequestAttribute<?>> attributes;
+
+		void reset() {
+			attributes = null;
+		}
+
+		@SuppressWarnings("unchecked")
+		synchronized <T> RequestAttribute<T> attr(
+				final RequestAttributeKey<T> key) {
+
+			if (attributes == null) {
+				attributes =
+						new HashMap<RequestAttributeKey<?>, RequestAttribute<?>>(
+								2);
+			}
+
+			RequestAttribute<T> attr = (RequestAttribute<T>) attributes.get(key);
+			if (attr == null) {
+				attr = new RequestAttribute<T>();
+				attributes.put(key, attr);
+			}
+
+			return attr;
+
+		}
+
+	}
+
+}
@@ -27,7 +27,9 @@ public class TestBenchmark {
 						.requestHandler("", new TestRequestHandler())
 						.address(new InetSocketAddress("localhost", 8080))
 						.parentGroup(new NioEventLoopGroup())
-						.childGroup(new NioEventLoopGroup()).maxConnections(-1);
+						.childGroup(new NioEventLoopGroup()).maxConnections(-1)
+						.flushConsolidation(
+								Boolean.getBoolean("flushConsolidation"));
 
 		try {
 			server.configure(config).listen().sync();
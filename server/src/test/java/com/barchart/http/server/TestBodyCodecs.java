@@ -0,0 +1,238 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.util.CharsetUtil;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.junit.Test;
+
+import com.barchart.http.codec.BinaryCodec;
+import com.barchart.http.codec.BinaryMessage;
+import com.barchart.http.codec.BodyCodecs;
+import com.barchart.http.codec.JsonCodec;
+import com.barchart.http.request.RequestHandlerBase;
+import com.barchart.http.request.ServerRequest;
+import com.barchart.http.request.ServerResponse;
+
+public class TestBodyCodecs {
+
+	private final JsonCodec json = new JsonCodec();
+	private final BinaryCodec binary = new BinaryCodec();
+	private final BodyCodecs codecs = new BodyCodecs().add(binary).add(json);
+
+	@Test
+	public void testJsonRoundTrip() throws Exception {
+
+		final Map<String, Object> value = new LinkedHashMap<String, Object>();
+		value.put("symbol", "GOOG");
+		value.put("text", "quote \" slash \\ tab \t nl \n \u00e9 \u20ac \ud83d\ude00");
+		value.put("volume", 1234567890123L);
+		value.put("big", new BigInteger("123456789012345678901234567890"));
+		value.put("price", 512.25);
+		value.put("halted", false);
+		value.put("exchange", null);
+		value.put("trades", Arrays.asList(1L, 2L, Arrays.asList("a", true)));
+
+		final ByteBuf buf = Unpooled.buffer();
+		json.write(value, buf);
+
+		assertEquals(value, json.read(Map.class, buf));
+
+		buf.release();
+
+	}
+
+	@Test
+	public void testJsonParse() throws Exception {
+
+		final ByteBuf buf =
+				Unpooled.copiedBuffer(
+						" { \"a\" : [ 1 , -2.5e3, \"\\u0041\\n\" ] , \"b\":{} } ",
+						CharsetUtil.UTF_8);
+
+		final Map<?, ?> map = json.read(Map.class, buf);
+
+		assertEquals(Arrays.asList(1L, -2500.0, "A\n"), map.get("a"));
+		assertEquals(new LinkedHashMap<Object, Object>(), map.get("b"));
+
+		for (final String invalid : new String[] {
+				"{", "[1,]", "{\"a\" 1}", "tru", "\"abc", "1 2" }) {
+			try {
+				json.read(Object.class,
+						Unpooled.copiedBuffer(invalid, CharsetUtil.UTF_8));
+				throw new AssertionError("Parsed invalid JSON " + invalid);
+			} catch (final IOException e) {
+				// expected
+			}
+		}
+
+	}
+
+	@Test
+	public void testAcceptNegotiation() throws Exception {
+
+		assertSame(json, codecs.writer(Map.class, null));
+		assertSame(json, codecs.writer(Map.class, "*/*"));
+		assertSame(json, codecs.writer(Map.class, "application/*"));
+		assertSame(binary, codecs.writer(byte[].class, null));
+		assertSame(binary, codecs.writer(byte[].class,
+				"application/json;q=0.5, application/octet-stream"));
+		assertSame(binary, codecs.writer(byte[].class,
+				"application/json, application/octet-stream;q=0.8"));
+		assertSame(json, codecs.writer(Map.class,
+				"application/octet-stream, application/json;q=0.8"));
+		assertSame(json,
+				codecs.writer(String.class, "text/html, */*;q=0.1"));
+
+		assertNull(codecs.writer(Map.class, "text/html"));
+		assertNull(codecs.writer(Map.class, "application/json;q=0"));
+
+	}
+
+	@Test
+	public void testContentTypeNegotiation() throws Exception {
+
+		assertSame(json,
+				codecs.reader(Map.class, "Application/JSON; charset=UTF-8"));
+		assertSame(binary,
+				codecs.reader(byte[].class, "application/octet-stream"));
+		assertSame(json, codecs.reader(Map.class, null));
+
+		assertNull(codecs.reader(Map.class, "application/xml"));
+		assertNull(codecs.reader(Map.class, "application/octet-stream"));
+
+	}
+
+	@Test
+	public void testBinaryMessage() throws Exception {
+
+		final Quote quote = new Quote();
+		quote.id = 42;
+		quote.price = 512.25;
+
+		final ByteBuf buf = Unpooled.buffer();
+		binary.write(quote, buf);
+
+		assertEquals(12, buf.readableBytes());
+
+		final Quote decoded = binary.read(Quote.class, buf);
+		assertEquals(42, decoded.id);
+		assertEquals(512.25, decoded.price, 0);
+
+		buf.release();
+
+	}
+
+	@Test
+	public void testServer() throws Exception {
+
+		final ServerSocket s = new ServerSocket(0);
+		final int port = s.getLocalPort();
+		s.close();
+
+		final HttpServer server = new HttpServer();
+
+		server.configure(
+				new HttpServerConfig()
+						.address(new InetSocketAddress("localhost", port))
+						.parentGroup(new NioEventLoopGroup(1))
+						.childGroup(new NioEventLoopGroup(1))
+						.requestHandler("/echo", new EchoHandler()))
+				.listen().sync();
+
+		try {
+
+			final HttpClient client = new DefaultHttpClient();
+
+			final HttpPost post =
+					new HttpPost("http://localhost:" + port + "/echo");
+			post.setEntity(new StringEntity("{\"symbol\":\"GOOG\",\"bid\":[1,2]}"));
+			post.setHeader("Content-Type", "application/json");
+			post.setHeader("Accept", "text/html, application/json;q=0.9");
+
+			HttpResponse response = client.execute(post);
+
+			assertEquals(200, response.getStatusLine().getStatusCode());
+			assertTrue(response.getFirstHeader("Content-Type").getValue()
+					.startsWith("application/json"));
+			assertEquals("{\"symbol\":\"GOOG\",\"bid\":[1,2]}",
+					EntityUtils.toString(response.getEntity()));
+
+			post.setHeader("Accept", "text/html");
+			response = client.execute(post);
+			EntityUtils.consume(response.getEntity());
+			assertEquals(406, response.getStatusLine().getStatusCode());
+
+			post.setHeader("Content-Type", "application/xml");
+			post.removeHeaders("Accept");
+			response = client.execute(post);
+			EntityUtils.consume(response.getEntity());
+			assertEquals(415, response.getStatusLine().getStatusCode());
+
+		} finally {
+			server.shutdown().sync();
+		}
+
+	}
+
+	public static class Quote implements BinaryMessage {
+
+		int id;
+		double price;
+
+		@Override
+		public void encode(final ByteBuf out) {
+			out.writeInt(id);
+			out.writeDouble(price);
+		}
+
+		@Override
+		public void decode(final ByteBuf in) {
+			id = in.readInt();
+			price = in.readDouble();
+		}
+
+	}
+
+	private static class EchoHandler extends RequestHandlerBase {
+
+		@Override
+		public void onRequest(final ServerRequest request,
+				final ServerResponse response) throws IOException {
+
+			final Map<?, ?> map = request.readObject(Map.class);
+
+			response.writeObject(map);
+			response.finish();
+
+		}
+
+	}
+
+}
@@ -0,0 +1,205 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.util.CharsetUtil;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.barchart.http.request.FilterChain;
+import com.barchart.http.request.RequestFilter;
+import com.barchart.http.request.RequestHandlerBase;
+import com.barchart.http.request.ServerRequest;
+import com.barchart.http.request.ServerResponse;
+
+public class TestConditionalResponse {
+
+	private final EventLoopGroup group = new NioEventLoopGroup(1);
+
+	private final AtomicInteger rendered = new AtomicInteger(0);
+
+	private HttpServer server;
+	private int port;
+
+	@Before
+	public void setUp() throws Exception {
+
+		final ServerSocket s = new ServerSocket(0);
+		port = s.getLocalPort();
+		s.close();
+
+		server = new HttpServer();
+		server.configure(
+				new HttpServerConfig()
+						.address(new InetSocketAddress("localhost", port))
+						.parentGroup(group).childGroup(group)
+						.filter("/auto", new AutoFilter())
+						.requestHandler("/auto", new BodyHandler())
+						.requestHandler("/plain", new BodyHandler())
+						.requestHandler("/version", new VersionHandler()))
+				.listen().sync();
+
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (server.isRunning()) {
+			server.shutdown().sync();
+		}
+		group.shutdownGracefully();
+	}
+
+	@Test
+	public void testHash() throws Exception {
+
+		assertEquals(0xEF46DB3751D8E999L, hash(""));
+		assertEquals(0xD24EC4F1A98C6E5BL, hash("a"));
+		assertEquals(0x44BC2CF5AD770999L, hash("abc"));
+		assertEquals(0xFBCEA83C8A378BF1L,
+				hash("Nobody inspects the spammish repetition"));
+
+		// Readable bytes only
+		final ByteBuf buf = Unpooled.copiedBuffer("xxabc", CharsetUtil.UTF_8);
+		buf.skipBytes(2);
+		assertEquals(0x44BC2CF5AD770999L, XxHash64.hash(buf, 0));
+		assertEquals(2, buf.readerIndex());
+
+	}
+
+	@Test
+	public void testMatches() throws Exception {
+
+		assertTrue(PooledServerResponse.matches("\"a\"", "\"a\""));
+		assertTrue(PooledServerResponse.matches("\"b\", W/\"a\"", "\"a\""));
+		assertTrue(PooledServerResponse.matches("*", "\"a\""));
+		assertFalse(PooledServerResponse.matches("\"ab\"", "\"a\""));
+		assertFalse(PooledServerResponse.matches("\"b\",\"c\"", "\"a\""));
+		assertFalse(PooledServerResponse.matches("bogus", "\"a\""));
+		assertFalse(PooledServerResponse.matches(null, "\"a\""));
+
+	}
+
+	@Test
+	public void testAutoETag() throws Exception {
+
+		HttpResponse response = get("/auto", null);
+		assertEquals(200, response.getStatusLine().getStatusCode());
+		assertEquals("body", EntityUtils.toString(response.getEntity()));
+
+		final String etag = response.getFirstHeader("ETag").getValue();
+		assertEquals(18, etag.length());
+
+		response = get("/auto", etag);
+		assertEquals(304, response.getStatusLine().getStatusCode());
+		assertEquals(etag, response.getFirstHeader("ETag").getValue());
+		assertNull(response.getEntity());
+
+		response = get("/auto", "\"other\"");
+		assertEquals(200, response.getStatusLine().getStatusCode());
+		EntityUtils.consume(response.getEntity());
+
+		// Not enabled for this route
+		response = get("/plain", etag);
+		assertEquals(200, response.getStatusLine().getStatusCode());
+		assertNull(response.getFirstHeader("ETag"));
+		EntityUtils.consume(response.getEntity());
+
+	}
+
+	@Test
+	public void testVersionETag() throws Exception {
+
+		HttpResponse response = get("/version", null);
+		assertEquals(200, response.getStatusLine().getStatusCode());
+		assertEquals("\"v42\"", response.getFirstHeader("ETag").getValue());
+		EntityUtils.consume(response.getEntity());
+
+		response = get("/version", "W/\"v42\"");
+		assertEquals(304, response.getStatusLine().getStatusCode());
+		assertNull(response.getEntity());
+
+		assertEquals(1, rendered.get());
+
+	}
+
+	private static long hash(final String s) {
+		return XxHash64.hash(Unpooled.copiedBuffer(s, CharsetUtil.UTF_8), 0);
+	}
+
+	private HttpResponse get(final String path, final String ifNoneMatch)
+			throws Exception {
+
+		final HttpGet get = new HttpGet("http://localhost:" + port + path);
+
+		if (ifNoneMatch != null) {
+			get.setHeader("If-None-Match", ifNoneMatch);
+		}
+
+		return new DefaultHttpClient().execute(get);
+
+	}
+
+	private static class AutoFilter implements RequestFilter {
+
+		@Override
+		public boolean filter(final ServerRequest request,
+				final ServerResponse response, final FilterChain chain)
+				throws IOException {
+			response.setAutoETag(true);
+			return true;
+		}
+
+	}
+
+	private static class BodyHandler extends RequestHandlerBase {
+
+		@Override
+		public void onRequest(final ServerRequest request,
+				final ServerResponse response) throws IOException {
+			response.write("body");
+		}
+
+	}
+
+	private class VersionHandler extends RequestHandlerBase {
+
+		@Override
+		public void onRequest(final ServerRequest request,
+				final ServerResponse response) throws IOException {
+
+			if (response.checkETag("v42")) {
+				return;
+			}
+
+			rendered.incrementAndGet();
+			response.write("version 42");
+
+		}
+
+	}
+
+}
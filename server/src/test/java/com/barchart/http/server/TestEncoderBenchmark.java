@@ -0,0 +1,79 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.server;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.HttpResponseEncoder;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * Compares encode cost and number of outbound buffers (one per socket write
+ * without gathering) of the standard and fused response encoders.
+ */
+public class TestEncoderBenchmark {
+
+	private static final int ITERATIONS = 2000000;
+
+	public static void main(final String[] args) {
+
+		final int[] sizes = new int[] { 64, 512, 1000, 16384 };
+
+		for (int round = 0; round < 3; round++) {
+
+			for (final int size : sizes) {
+
+				run("standard", new HttpResponseEncoder(), size);
+				run("fused", new ServerResponseEncoder(1024), size);
+
+			}
+
+		}
+
+	}
+
+	private static void run(final String name, final ChannelHandler encoder,
+			final int size) {
+
+		final EmbeddedChannel channel = new EmbeddedChannel(encoder);
+
+		final PooledServerResponse response =
+				new PooledServerResponse(new ServerMessagePool(1));
+
+		response.setContentType("application/json");
+		response.headers().set(ResponseHeaders.DATE, ResponseHeaders.date());
+		response.headers().set(ResponseHeaders.CONNECTION,
+				ResponseHeaders.KEEP_ALIVE);
+		response.content().writeZero(size);
+		response.setContentLength(size);
+
+		long buffers = 0;
+		final long start = System.nanoTime();
+
+		for (int i = 0; i < ITERATIONS; i++) {
+
+			channel.writeOutbound(response.retain());
+
+			Object msg;
+			while ((msg = channel.readOutbound()) != null) {
+				buffers++;
+				ReferenceCountUtil.release(msg);
+			}
+
+		}
+
+		final long elapsed = System.nanoTime() - start;
+
+		System.out.println(String.format(
+				"%-8s body=%5d bytes: %6.1f ns/response, %.2f buffers/response",
+				name, size, (double) elapsed / ITERATIONS, (double) buffers
+						/ ITERATIONS));
+
+	}
+
+}
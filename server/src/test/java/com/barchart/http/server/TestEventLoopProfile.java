@@ -0,0 +1,147 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.Selector;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.barchart.http.request.RequestHandlerBase;
+import com.barchart.http.request.ServerRequest;
+import com.barchart.http.request.ServerResponse;
+
+public class TestEventLoopProfile {
+
+	private final Set<Integer> pinned = new ConcurrentSkipListSet<Integer>();
+
+	private final EventLoopGroup parent = new NioEventLoopGroup(1);
+
+	private HttpServer server;
+	private int port;
+
+	@Before
+	public void setUp() throws Exception {
+
+		final ServerSocket s = new ServerSocket(0);
+		port = s.getLocalPort();
+		s.close();
+
+		server = new HttpServer();
+
+		server.configure(
+				new HttpServerConfig()
+						.address(new InetSocketAddress("localhost", port))
+						.parentGroup(parent)
+						.childGroup(
+								EventLoopProfile.lowLatency().threads(2)
+										.name("test-loop")
+										.affinity(new AffinityStrategy() {
+											@Override
+											public void pin(final int index) {
+												pinned.add(index);
+											}
+										}))
+						.requestHandler("/thread", new ThreadHandler()))
+				.listen().sync();
+
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (server.isRunning()) {
+			server.shutdown().sync();
+		}
+		server.config().childGroup().shutdownGracefully();
+		parent.shutdownGracefully();
+	}
+
+	@Test
+	public void testLowLatency() throws Exception {
+
+		for (int i = 0; i < 4; i++) {
+
+			final HttpResponse response =
+					new DefaultHttpClient().execute(new HttpGet(
+							"http://localhost:" + port + "/thread"));
+
+			assertEquals(200, response.getStatusLine().getStatusCode());
+
+			final String thread = EntityUtils.toString(response.getEntity());
+			assertTrue(thread, thread.startsWith("test-loop-"));
+
+		}
+
+		assertEquals(2, pinned.size());
+
+	}
+
+	@Test
+	public void testWakeupBeforeSelect() throws Exception {
+
+		final Selector selector =
+				new SpinSelectorProvider(TimeUnit.MICROSECONDS.toNanos(100))
+						.openSelector();
+
+		// Issued before select(), as the event loop does for new tasks
+		selector.wakeup();
+
+		final long start = System.nanoTime();
+		assertEquals(0, selector.select(5000));
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+
+		selector.close();
+
+	}
+
+	@Test
+	public void testIdleWakeup() throws Exception {
+
+		// Event loop blocks in select() after spinning, tasks must wake it
+		Thread.sleep(100);
+
+		final long start = System.nanoTime();
+
+		server.config().childGroup().submit(new Runnable() {
+			@Override
+			public void run() {
+			}
+		}).sync();
+
+		assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS
+				.toNanos(100));
+
+	}
+
+	private static class ThreadHandler extends RequestHandlerBase {
+
+		@Override
+		public void onRequest(final ServerRequest request,
+				final ServerResponse response) throws IOException {
+			response.write(Thread.currentThread().getName());
+		}
+
+	}
+
+}
@@ -0,0 +1,242 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.util.CharsetUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.barchart.http.request.FilterChain;
+import com.barchart.http.request.RequestAdmission;
+import com.barchart.http.request.RequestFilter;
+import com.barchart.http.request.RequestHandlerBase;
+import com.barchart.http.request.ServerRequest;
+import com.barchart.http.request.ServerResponse;
+
+public class TestExpectContinue {
+
+	private final EventLoopGroup group = new NioEventLoopGroup(1);
+
+	private final AtomicInteger handled = new AtomicInteger(0);
+
+	private HttpServer server;
+	private int port;
+
+	private void start(final boolean flyweight) throws Exception {
+		start(new HttpServerConfig().flyweightParser(flyweight)
+				.maxRequestSize(1024).filter("/secure", new AuthFilter())
+				.requestHandler("/secure", new EchoHandler())
+				.requestHandler("/open", new EchoHandler()));
+	}
+
+	private void start(final HttpServerConfig config) throws Exception {
+
+		final ServerSocket s = new ServerSocket(0);
+		port = s.getLocalPort();
+		s.close();
+
+		server = new HttpServer();
+		server.configure(
+				config.address(new InetSocketAddress("localhost", port))
+						.parentGroup(group).childGroup(group)).listen().sync();
+
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (server.isRunning()) {
+			server.shutdown().sync();
+		}
+		group.shutdownGracefully();
+	}
+
+	@Test
+	public void testAdmission() throws Exception {
+		start(false);
+		verify();
+	}
+
+	@Test
+	public void testAdmissionFlyweight() throws Exception {
+		start(true);
+		verify();
+	}
+
+	@Test
+	public void testUploadAdmission() throws Exception {
+
+		start(new HttpServerConfig().maxUploadSize(4 * 1024 * 1024)
+				.requestHandler("/upload", new UploadHandler()));
+
+		// Over maxRequestSize, within maxUploadSize
+		final int size = 2 * 1024 * 1024;
+		final String boundary = "----Boundary7MA4YWxkTrZu0gW";
+
+		final StringBuilder body = new StringBuilder(size + 256);
+		body.append("--").append(boundary).append("\r\n")
+				.append("Content-Disposition: form-data; name=\"data\"; ")
+				.append("filename=\"data.bin\"\r\n\r\n");
+		while (body.length() < size) {
+			body.append("0123456789abcdef");
+		}
+		final int partSize = body.length() - body.indexOf("\r\n\r\n") - 4;
+		body.append("\r\n--").append(boundary).append("--\r\n");
+
+		final Socket socket = new Socket("localhost", port);
+		send(socket, "/upload", "Content-Type: multipart/form-data; boundary="
+				+ boundary + "\r\n", body.length());
+		assertEquals("HTTP/1.1 100 Continue", readLine(socket));
+		readLine(socket);
+		socket.getOutputStream().write(
+				body.toString().getBytes(CharsetUtil.ISO_8859_1));
+		final String response = readAll(socket, "size=" + partSize);
+		assertTrue(response, response.startsWith("HTTP/1.1 200 OK"));
+		socket.close();
+
+		assertEquals(1, handled.get());
+
+	}
+
+	private void verify() throws Exception {
+
+		// Admitted, body sent after 100 Continue
+		Socket socket = new Socket("localhost", port);
+		send(socket, "/secure", "Authorization: yes\r\n", 4);
+		assertEquals("HTTP/1.1 100 Continue", readLine(socket));
+		readLine(socket);
+		socket.getOutputStream().write("body".getBytes());
+		String response = readAll(socket, "body");
+		assertTrue(response, response.startsWith("HTTP/1.1 200 OK"));
+		socket.close();
+
+		// Rejected by the filter on headers alone
+		socket = new Socket("localhost", port);
+		send(socket, "/secure", "", 4);
+		response = readAll(socket, null);
+		assertTrue(response, response.startsWith("HTTP/1.1 401"));
+		assertTrue(response, response.contains("Connection: close"));
+		socket.close();
+
+		// No route
+		socket = new Socket("localhost", port);
+		send(socket, "/missing", "", 4);
+		response = readAll(socket, null);
+		assertTrue(response, response.startsWith("HTTP/1.1 404"));
+		socket.close();
+
+		// Too large
+		socket = new Socket("localhost", port);
+		send(socket, "/open", "", 4096);
+		response = readAll(socket, null);
+		assertTrue(response, response.startsWith("HTTP/1.1 413"));
+		socket.close();
+
+		assertEquals(1, handled.get());
+
+	}
+
+	private static void send(final Socket socket, final String path,
+			final String headers, final int length) throws IOException {
+		socket.getOutputStream().write(
+				("POST " + path + " HTTP/1.1\r\nHost: localhost\r\n"
+						+ "Expect: 100-continue\r\n" + "Content-Length: "
+						+ length + "\r\n" + headers + "\r\n").getBytes());
+	}
+
+	private static String readLine(final Socket socket) throws IOException {
+
+		final InputStream in = socket.getInputStream();
+		final StringBuilder sb = new StringBuilder();
+
+		int b;
+		while ((b = in.read()) != -1 && b != '\n') {
+			if (b != '\r') {
+				sb.append((char) b);
+			}
+		}
+
+		return sb.toString();
+
+	}
+
+	/* Read until the given suffix, or until closed if null */
+	private static String readAll(final Socket socket, final String suffix)
+			throws IOException {
+
+		final InputStream in = socket.getInputStream();
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		int b;
+		while ((b = in.read()) != -1) {
+			out.write(b);
+			if (suffix != null && out.toString("US-ASCII").endsWith(suffix)) {
+				break;
+			}
+		}
+
+		return out.toString("US-ASCII");
+
+	}
+
+	private static class AuthFilter implements RequestFilter,
+			RequestAdmission {
+
+		@Override
+		public HttpResponseStatus admit(final HttpRequest request) {
+			return request.headers().contains(HttpHeaders.Names.AUTHORIZATION) ? null
+					: HttpResponseStatus.UNAUTHORIZED;
+		}
+
+		@Override
+		public boolean filter(final ServerRequest request,
+				final ServerResponse response, final FilterChain chain)
+				throws IOException {
+			return true;
+		}
+
+	}
+
+	private class UploadHandler extends RequestHandlerBase {
+
+		@Override
+		public void onRequest(final ServerRequest request,
+				final ServerResponse response) throws IOException {
+			handled.incrementAndGet();
+			response.write("size=" + request.getPart("data").getSize());
+		}
+
+	}
+
+	private class EchoHandler extends RequestHandlerBase {
+
+		@Override
+		public void onRequest(final ServerRequest request,
+				final ServerResponse response) throws IOException {
+			handled.incrementAndGet();
+			response.write(request.getContent().toString(CharsetUtil.UTF_8));
+		}
+
+	}
+
+}
@@ -0,0 +1,204 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.util.ReferenceCounted;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Test;
+
+import com.barchart.http.request.RequestHandlerBase;
+import com.barchart.http.request.ServerRequest;
+import com.barchart.http.request.ServerResponse;
+
+public class TestFlushConsolidator {
+
+	private final List<Integer> refCounts = new CopyOnWriteArrayList<Integer>();
+
+	@Test
+	public void testReadBatch() throws Exception {
+
+		final FlushCounter counter = new FlushCounter();
+		final EmbeddedChannel channel =
+				new EmbeddedChannel(counter, new FlushConsolidator(1024, 0),
+						new Responder());
+
+		// Three pipelined requests, one flush at the end of the batch
+		channel.pipeline().fireChannelRead("a");
+		channel.pipeline().fireChannelRead("b");
+		channel.pipeline().fireChannelRead("c");
+
+		assertEquals(0, counter.flushes);
+
+		channel.pipeline().fireChannelReadComplete();
+
+		assertEquals(1, counter.flushes);
+		assertEquals(3, channel.outboundMessages().size());
+
+		channel.finish();
+
+	}
+
+	@Test
+	public void testOutsideRead() throws Exception {
+
+		final FlushCounter counter = new FlushCounter();
+		final EmbeddedChannel channel =
+				new EmbeddedChannel(counter, new FlushConsolidator(1024, 0));
+
+		channel.writeAndFlush(Unpooled.wrappedBuffer(new byte[10]));
+		channel.writeAndFlush(Unpooled.wrappedBuffer(new byte[10]));
+
+		assertEquals(0, counter.flushes);
+
+		// End of event loop iteration
+		channel.runPendingTasks();
+
+		assertEquals(1, counter.flushes);
+
+		channel.finish();
+
+	}
+
+	@Test
+	public void testMaxPendingBytes() throws Exception {
+
+		final FlushCounter counter = new FlushCounter();
+		final EmbeddedChannel channel =
+				new EmbeddedChannel(counter, new FlushConsolidator(16, 0));
+
+		channel.writeAndFlush(Unpooled.wrappedBuffer(new byte[10]));
+		assertEquals(0, counter.flushes);
+
+		channel.writeAndFlush(Unpooled.wrappedBuffer(new byte[10]));
+		assertEquals(1, counter.flushes);
+
+		channel.writeAndFlush(Unpooled.wrappedBuffer(new byte[10]));
+		assertEquals(1, counter.flushes);
+
+		// Pending data flushed on close
+		channel.close();
+		assertEquals(2, counter.flushes);
+
+	}
+
+	@Test
+	public void testPipelinedChunked() throws Exception {
+
+		final ServerSocket s = new ServerSocket(0);
+		final int port = s.getLocalPort();
+		s.close();
+
+		final HttpServer server = new HttpServer();
+
+		server.configure(
+				new HttpServerConfig()
+						.address(new InetSocketAddress("localhost", port))
+						.parentGroup(new NioEventLoopGroup(1))
+						.childGroup(new NioEventLoopGroup(1))
+						.flushConsolidation(true)
+						.requestHandler("/stream", new StreamHandler()))
+				.listen().sync();
+
+		try {
+
+			final Socket socket = new Socket("localhost", port);
+
+			socket.getOutputStream().write(
+					("GET /stream HTTP/1.1\r\nHost: localhost\r\n\r\n"
+							+ "GET /stream HTTP/1.1\r\nHost: localhost\r\n\r\n"
+							+ "GET /stream HTTP/1.1\r\nHost: localhost\r\n"
+							+ "Connection: close\r\n\r\n").getBytes());
+
+			final InputStream in = socket.getInputStream();
+			final ByteArrayOutputStream response = new ByteArrayOutputStream();
+			final byte[] buf = new byte[4096];
+
+			int read;
+			while ((read = in.read(buf)) > 0) {
+				response.write(buf, 0, read);
+			}
+
+			socket.close();
+
+			final String text = response.toString("US-ASCII");
+			final String body = "\r\n\r\n3\r\none\r\n3\r\ntwo\r\n5\r\nthree\r\n0\r\n\r\n";
+
+			assertTrue(text, text.indexOf(body) > 0);
+			assertTrue(text, text.indexOf(body, text.indexOf(body) + 1) > 0);
+			assertTrue(text, text.endsWith(body));
+
+			// Chunked responses drop the reference taken by init()
+			assertEquals(3, refCounts.size());
+
+			for (final int refCnt : refCounts) {
+				assertEquals(2, refCnt);
+			}
+
+		} finally {
+			server.shutdown().sync();
+		}
+
+	}
+
+	private static class FlushCounter extends ChannelOutboundHandlerAdapter {
+
+		int flushes = 0;
+
+		@Override
+		public void flush(final ChannelHandlerContext ctx) throws Exception {
+			flushes++;
+			ctx.flush();
+		}
+
+	}
+
+	private static class Responder extends ChannelInboundHandlerAdapter {
+
+		@Override
+		public void channelRead(final ChannelHandlerContext ctx,
+				final Object msg) {
+			ctx.writeAndFlush(Unpooled.copiedBuffer(new byte[] { 1 }));
+		}
+
+	}
+
+	private class StreamHandler extends RequestHandlerBase {
+
+		@Override
+		public void onRequest(final ServerRequest request,
+				final ServerResponse response) throws IOException {
+
+			refCounts.add(((ReferenceCounted) response).refCnt());
+
+			response.setChunkedEncoding(true);
+			response.write("one");
+			response.write("two");
+			response.getOutputStream().write("three".getBytes());
+
+		}
+
+	}
+
+}
@@ -0,0 +1,433 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpRequestDecoder;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.util.CharsetUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Conformance tests comparing FlyweightRequestDecoder with the standard
+ * HttpRequestDecoder + HttpObjectAggregator pipeline on randomized input.
+ */
+public class TestFlyweightRequestDecoder {
+
+	private static final String[] METHODS = new String[] { "GET", "POST",
+			"PUT", "DELETE", "HEAD", "OPTIONS", "PATCH", "PROPFIND" };
+
+	private static final String CHARS =
+			"abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789-_";
+
+	@Test
+	public void testConformance() throws Exception {
+
+		final Random random = new Random(1234);
+
+		for (int i = 0; i < 2000; i++) {
+
+			final StringBuilder input = new StringBuilder();
+			final int count = 1 + random.nextInt(3);
+
+			for (int r = 0; r < count; r++) {
+				input.append(randomRequest(random));
+			}
+
+			final byte[] bytes =
+					input.toString().getBytes(CharsetUtil.ISO_8859_1);
+
+			final List<FullHttpRequest> expected =
+					decode(new EmbeddedChannel(new HttpRequestDecoder(),
+							new HttpObjectAggregator(1024 * 1024)), bytes,
+							random);
+
+			final List<FullHttpRequest> actual =
+					decode(new EmbeddedChannel(new FlyweightRequestDecoder(
+							1024 * 1024)), bytes, random);
+
+			assertEquals(input.toString(), expected.size(), actual.size());
+
+			for (int r = 0; r < expected.size(); r++) {
+				assertConforms(input.toString(), expected.get(r), actual.get(r));
+				expected.get(r).release();
+				actual.get(r).release();
+			}
+
+		}
+
+	}
+
+	@Test
+	public void testRequestReuse() throws Exception {
+
+		final EmbeddedChannel channel =
+				new EmbeddedChannel(new FlyweightRequestDecoder(1024));
+
+		channel.writeInbound(ascii("GET /a HTTP/1.1\r\nHost: x\r\n\r\n"));
+		final FullHttpRequest first = (FullHttpRequest) channel.readInbound();
+		assertEquals("/a", first.getUri());
+		first.release();
+
+		channel.writeInbound(ascii("GET /b HTTP/1.1\r\nHost: y\r\n\r\n"));
+		final FullHttpRequest second = (FullHttpRequest) channel.readInbound();
+		assertSame(first, second);
+		assertEquals("/b", second.getUri());
+		assertEquals("y", second.headers().get("host"));
+
+		// Not released, a new instance must be used
+		channel.writeInbound(ascii("GET /c HTTP/1.1\r\n\r\n"));
+		final FullHttpRequest third = (FullHttpRequest) channel.readInbound();
+		assertFalse(second == third);
+		assertEquals("/b", second.getUri());
+		assertEquals("/c", third.getUri());
+
+		second.release();
+		third.release();
+
+	}
+
+	@Test
+	public void testHeaderModification() throws Exception {
+
+		final EmbeddedChannel channel =
+				new EmbeddedChannel(new FlyweightRequestDecoder(1024));
+
+		channel.writeInbound(ascii("GET / HTTP/1.1\r\nA: 1\r\nB: 2\r\n\r\n"));
+		final FullHttpRequest request = (FullHttpRequest) channel.readInbound();
+
+		request.headers().add("A", "3");
+		request.headers().remove("B");
+
+		assertEquals(2, request.headers().getAll("a").size());
+		assertNull(request.headers().get("B"));
+
+		request.release();
+
+	}
+
+	@Test
+	public void testExpectContinue() throws Exception {
+
+		final EmbeddedChannel channel =
+				new EmbeddedChannel(new FlyweightRequestDecoder(1024));
+
+		channel.writeInbound(ascii("POST / HTTP/1.1\r\nExpect: 100-continue\r\n"
+				+ "Content-Length: 4\r\n\r\n"));
+
+		final FullHttpResponse response =
+				(FullHttpResponse) channel.readOutbound();
+		assertEquals(HttpResponseStatus.CONTINUE, response.getStatus());
+		assertNull(channel.readInbound());
+
+		channel.writeInbound(ascii("body"));
+
+		final FullHttpRequest request = (FullHttpRequest) channel.readInbound();
+		assertEquals("body", request.content().toString(CharsetUtil.US_ASCII));
+		request.release();
+
+	}
+
+	@Test
+	public void testRejected() throws Exception {
+
+		assertRejected("GET /\r\n\r\n", 1024, HttpResponseStatus.BAD_REQUEST);
+		assertRejected("GET / HTTP/1.1\r\nBad Header\r\n\r\n", 1024,
+				HttpResponseStatus.BAD_REQUEST);
+		assertRejected("GET / HTTP/1.1\r\nA: 1\r\n folded\r\n\r\n", 1024,
+				HttpResponseStatus.BAD_REQUEST);
+		assertRejected("POST / HTTP/1.1\r\nContent-Length: x\r\n\r\n", 1024,
+				HttpResponseStatus.BAD_REQUEST);
+		assertRejected("POST / HTTP/1.1\r\nContent-Length: 2048\r\n\r\n", 1024,
+				HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE);
+		assertRejected("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"
+				+ "800\r\n", 1024, HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE);
+		assertRejected("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"
+				+ "zz\r\n", 1024, HttpResponseStatus.BAD_REQUEST);
+
+		final StringBuilder huge = new StringBuilder("GET / HTTP/1.1\r\n");
+		while (huge.length() < 10000) {
+			huge.append("X-Filler: 0123456789\r\n");
+		}
+
+		assertRejected(huge.toString(), 1024, HttpResponseStatus.BAD_REQUEST);
+
+	}
+
+	@Test
+	public void testTransferCoding() throws Exception {
+
+		final String[] rejected = {
+				"Transfer-Encoding: xchunked\r\n",
+				"Transfer-Encoding: chunked, gzip\r\n",
+				"Transfer-Encoding: chunked, chunked\r\n",
+				"Transfer-Encoding: foo, chunked\r\n",
+				"Transfer-Encoding: chunked\r\nContent-Length: 3\r\n",
+				"Content-Length: 3\r\nTransfer-Encoding: chunked\r\n",
+				"Transfer-Encoding: ,\r\n"
+		};
+
+		for (final String headers : rejected) {
+			assertRejected("POST / HTTP/1.1\r\n" + headers + "\r\n"
+					+ "3\r\nabc\r\n0\r\n\r\n", 1024,
+					HttpResponseStatus.BAD_REQUEST);
+		}
+
+		final EmbeddedChannel channel =
+				new EmbeddedChannel(new FlyweightRequestDecoder(1024));
+
+		channel.writeInbound(ascii("POST / HTTP/1.1\r\n"
+				+ "Transfer-Encoding: gzip\r\nTransfer-Encoding: Chunked\r\n"
+				+ "\r\n3\r\nabc\r\n0\r\n\r\n"));
+
+		final FullHttpRequest request = (FullHttpRequest) channel.readInbound();
+		assertEquals("abc", request.content().toString(CharsetUtil.US_ASCII));
+		request.release();
+
+	}
+
+	@Test
+	public void testGarbage() throws Exception {
+
+		final Random random = new Random(5678);
+
+		for (int i = 0; i < 1000; i++) {
+
+			final EmbeddedChannel channel =
+					new EmbeddedChannel(new FlyweightRequestDecoder(1024));
+
+			final byte[] bytes = new byte[random.nextInt(512)];
+			random.nextBytes(bytes);
+
+			// Mix in some protocol structure
+			for (int b = 0; b < bytes.length; b++) {
+				if (random.nextInt(8) == 0) {
+					bytes[b] = (byte) "\r\n: "
+							.charAt(random.nextInt(4));
+				}
+			}
+
+			channel.writeInbound(Unpooled.wrappedBuffer(bytes));
+
+			Object msg;
+			while ((msg = channel.readInbound()) != null) {
+				((FullHttpRequest) msg).release();
+			}
+
+			channel.finish();
+
+		}
+
+	}
+
+	private static void assertRejected(final String input, final int maxSize,
+			final HttpResponseStatus status) {
+
+		final EmbeddedChannel channel =
+				new EmbeddedChannel(new FlyweightRequestDecoder(maxSize));
+
+		channel.writeInbound(ascii(input));
+
+		assertNull(input, channel.readInbound());
+
+		final FullHttpResponse response =
+				(FullHttpResponse) channel.readOutbound();
+		assertNotNull(input, response);
+		assertEquals(input, status, response.getStatus());
+		assertFalse(input, channel.isOpen());
+
+	}
+
+	private static void assertConforms(final String input,
+			final FullHttpRequest expected, final FullHttpRequest actual) {
+
+		assertEquals(input, expected.getDecoderResult().isSuccess(), actual
+				.getDecoderResult().isSuccess());
+		assertEquals(input, expected.getMethod(), actual.getMethod());
+		assertEquals(input, expected.getUri(), actual.getUri());
+		assertEquals(input, expected.getProtocolVersion(),
+				actual.getProtocolVersion());
+
+		// The aggregator always sets Content-Length, even when not received
+		assertEquals(input, HttpHeaders.getContentLength(expected, 0),
+				HttpHeaders.getContentLength(actual, 0));
+		assertEquals(input, headers(expected.headers()),
+				headers(actual.headers()));
+		assertEquals(input, headers(expected.trailingHeaders()),
+				headers(actual.trailingHeaders()));
+
+		for (final String name : actual.headers().names()) {
+			assertEquals(input, expected.headers().getAll(name), actual
+					.headers().getAll(name));
+		}
+
+		assertEquals(input, expected.content(), actual.content());
+
+	}
+
+	private static List<String> headers(final HttpHeaders headers) {
+
+		final List<String> list = new ArrayList<String>();
+
+		for (final Map.Entry<String, String> entry : headers) {
+			if (!entry.getKey().equalsIgnoreCase(
+					HttpHeaders.Names.CONTENT_LENGTH)) {
+				list.add(entry.getKey() + "=" + entry.getValue());
+			}
+		}
+
+		return list;
+
+	}
+
+	private static List<FullHttpRequest> decode(final EmbeddedChannel channel,
+			final byte[] bytes, final Random random) {
+
+		// Write in random fragments to exercise incremental parsing
+		int pos = 0;
+
+		while (pos < bytes.length) {
+			final int length = 1 + random.nextInt(bytes.length - pos);
+			channel.writeInbound(Unpooled.wrappedBuffer(bytes, pos, length));
+			pos += length;
+		}
+
+		final List<FullHttpRequest> requests = new ArrayList<FullHttpRequest>();
+
+		Object msg;
+		while ((msg = channel.readInbound()) != null) {
+			requests.add((FullHttpRequest) msg);
+		}
+
+		return requests;
+
+	}
+
+	private static String randomRequest(final Random random) {
+
+		final StringBuilder sb = new StringBuilder();
+
+		if (random.nextInt(10) == 0) {
+			sb.append("\r\n");
+		}
+
+		sb.append(METHODS[random.nextInt(METHODS.length)]).append(' ');
+		sb.append('/').append(token(random, 0, 20));
+
+		if (random.nextBoolean()) {
+			sb.append('?').append(token(random, 1, 10)).append('=')
+					.append(token(random, 0, 10));
+		}
+
+		sb.append(random.nextInt(4) == 0 ? " HTTP/1.0" : " HTTP/1.1");
+		sb.append("\r\n");
+
+		final int headers = random.nextInt(12);
+
+		for (int h = 0; h < headers; h++) {
+			sb.append(token(random, 1, 16)).append(':');
+			sb.append(random.nextBoolean() ? " " : "");
+			sb.append(value(random));
+			sb.append(random.nextInt(5) == 0 ? " " : "");
+			sb.append(random.nextInt(5) == 0 ? "\n" : "\r\n");
+		}
+
+		final String body = token(random, 0, 200);
+
+		switch (random.nextInt(3)) {
+
+			case 0:
+				sb.append("\r\n");
+				break;
+
+			case 1:
+				sb.append("Content-Length: ").append(body.length());
+				sb.append("\r\n\r\n").append(body);
+				break;
+
+			case 2:
+
+				sb.append("Transfer-Encoding: chunked\r\n\r\n");
+
+				int pos = 0;
+				while (pos < body.length()) {
+					final int length =
+							1 + random.nextInt(body.length() - pos);
+					sb.append(Integer.toHexString(length));
+					sb.append(random.nextBoolean() ? ";ext=1" : "");
+					sb.append("\r\n");
+					sb.append(body, pos, pos + length).append("\r\n");
+					pos += length;
+				}
+
+				sb.append("0\r\n");
+
+				if (random.nextBoolean()) {
+					sb.append("X-Trailer: ").append(token(random, 1, 10))
+							.append("\r\n");
+				}
+
+				sb.append("\r\n");
+
+				break;
+
+		}
+
+		return sb.toString();
+
+	}
+
+	private static String value(final Random random) {
+
+		final StringBuilder sb = new StringBuilder(token(random, 0, 20));
+		final int words = random.nextInt(3);
+
+		for (int w = 0; w < words; w++) {
+			sb.append(' ').append(token(random, 1, 10));
+		}
+
+		return sb.toString();
+
+	}
+
+	private static String token(final Random random, final int min,
+			final int max) {
+
+		final int length = min + random.nextInt(max - min + 1);
+		final StringBuilder sb = new StringBuilder(length);
+
+		for (int i = 0; i < length; i++) {
+			sb.append(CHARS.charAt(random.nextInt(CHARS.length())));
+		}
+
+		return sb.toString();
+
+	}
+
+	private static ByteBuf ascii(final String s) {
+		return Unpooled.copiedBuffer(s, CharsetUtil.US_ASCII);
+	}
+
+}
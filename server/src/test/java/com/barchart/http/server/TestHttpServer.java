@@ -91,7 +91,7 @@ public class TestHttpServer {
 						.requestHandler("/error", error)
 						.requestHandler("/service/info", infoHandler)
 						.requestHandler("/service", serviceHandler)
-						.maxConnections(1);
+						.serverHeader("barchart-http").maxConnections(1);
 
 		server.configure(config).listen().sync();
 
@@ -121,6 +121,20 @@ public class TestHttpServer {
 		}
 	}
 
+	@Test
+	public void testResponseHeaders() throws Exception {
+
+		final HttpGet get = new HttpGet("http://localhost:" + port + "/basic");
+		final HttpResponse response = client.execute(get);
+		EntityUtils.consume(response.getEntity());
+
+		assertEquals("barchart-http", response.getFirstHeader("Server")
+				.getValue());
+		assertNotNull(response.getFirstHeader("Date"));
+		assertEquals("5", response.getFirstHeader("Content-Length").getValue());
+
+	}
+
 	@Test
 	public void testPostRequest() throws Exception {
 
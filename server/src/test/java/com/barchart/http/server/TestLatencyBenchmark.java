@@ -0,0 +1,155 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.server;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+
+import com.barchart.http.request.RequestHandlerBase;
+import com.barchart.http.request.ServerRequest;
+import com.barchart.http.request.ServerResponse;
+
+/**
+ * Request/response round trip latency over a single keep-alive connection for
+ * the throughput and low latency event loop profiles. Pass CPU ids with
+ * -Dcpus=2,3 to pin event loop threads.
+ */
+public class TestLatencyBenchmark {
+
+	private static final int WARMUP = 20000;
+	private static final int REQUESTS = 100000;
+
+	private static final byte[] REQUEST =
+			"GET /ping HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes();
+
+	public static void main(final String[] args) throws Exception {
+
+		AffinityStrategy affinity = null;
+
+		final String cpus = System.getProperty("cpus");
+
+		if (cpus != null) {
+			final String[] ids = cpus.split(",");
+			final int[] cores = new int[ids.length];
+			for (int i = 0; i < ids.length; i++) {
+				cores[i] = Integer.parseInt(ids[i].trim());
+			}
+			affinity = new TasksetAffinity(cores);
+		}
+
+		run("throughput", EventLoopProfile.throughput().threads(1)
+				.affinity(affinity));
+		run("low-latency", EventLoopProfile.lowLatency().threads(1)
+				.affinity(affinity));
+
+	}
+
+	private static void run(final String name, final EventLoopProfile profile)
+			throws Exception {
+
+		final ServerSocket s = new ServerSocket(0);
+		final int port = s.getLocalPort();
+		s.close();
+
+		final EventLoopGroup parent = new NioEventLoopGroup(1);
+
+		final HttpServer server = new HttpServer();
+
+		server.configure(
+				new HttpServerConfig()
+						.address(new InetSocketAddress("localhost", port))
+						.parentGroup(parent).childGroup(profile)
+						.requestHandler("/ping", new PingHandler())).listen()
+				.sync();
+
+		final Socket socket = new Socket("localhost", port);
+		socket.setTcpNoDelay(true);
+
+		final OutputStream out = socket.getOutputStream();
+		final InputStream in = socket.getInputStream();
+		final byte[] buf = new byte[4096];
+
+		for (int i = 0; i < WARMUP; i++) {
+			roundTrip(out, in, buf);
+		}
+
+		final long[] latencies = new long[REQUESTS];
+
+		final long cpuStart = processCpuTime();
+		final long start = System.nanoTime();
+
+		for (int i = 0; i < REQUESTS; i++) {
+			final long t = System.nanoTime();
+			roundTrip(out, in, buf);
+			latencies[i] = System.nanoTime() - t;
+		}
+
+		final long wall = System.nanoTime() - start;
+		final long cpu = processCpuTime() - cpuStart;
+
+		socket.close();
+		server.shutdown().sync();
+		server.config().childGroup().shutdownGracefully();
+		parent.shutdownGracefully();
+
+		Arrays.sort(latencies);
+
+		System.out.printf(
+				"%-12s p50 %6.1fus  p99 %6.1fus  p99.9 %6.1fus  cpu %5.1f%%%n",
+				name, percentile(latencies, 0.5),
+				percentile(latencies, 0.99), percentile(latencies, 0.999),
+				cpu * 100.0 / wall);
+
+	}
+
+	private static void roundTrip(final OutputStream out,
+			final InputStream in, final byte[] buf) throws IOException {
+
+		out.write(REQUEST);
+
+		// Response ends with the 4 byte body
+		int total = 0;
+		do {
+			final int read = in.read(buf, total, buf.length - total);
+			if (read < 0) {
+				throw new IOException("Connection closed");
+			}
+			total += read;
+		} while (total < 4 || buf[total - 1] != 'g' || buf[total - 4] != 'p');
+
+	}
+
+	private static double percentile(final long[] sorted, final double p) {
+		return sorted[(int) (sorted.length * p)] / 1000.0;
+	}
+
+	private static long processCpuTime() {
+		return ((com.sun.management.OperatingSystemMXBean) ManagementFactory
+				.getOperatingSystemMXBean()).getProcessCpuTime();
+	}
+
+	private static class PingHandler extends RequestHandlerBase {
+
+		@Override
+		public void onRequest(final ServerRequest request,
+				final ServerResponse response) throws IOException {
+			response.write("ping");
+		}
+
+	}
+
+}
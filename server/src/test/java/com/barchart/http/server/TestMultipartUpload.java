@@ -0,0 +1,283 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpRequestDecoder;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.util.CharsetUtil;
+
+import java.io.File;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.barchart.http.request.RequestHandlerBase;
+import com.barchart.http.request.RequestPart;
+import com.barchart.http.request.ServerRequest;
+import com.barchart.http.request.ServerResponse;
+
+public class TestMultipartUpload {
+
+	private static final String BOUNDARY = "----Boundary7MA4YWxkTrZu0gW";
+
+	@Test
+	public void testStreamingUpload() throws Exception {
+
+		final HttpServerConfig config =
+				new HttpServerConfig().maxRequestSize(1024)
+						.maxUploadSize(1024 * 1024).uploadThreshold(1024);
+
+		final String csv = csv(100000);
+
+		final EmbeddedChannel channel = streaming(config);
+
+		write(channel, request(body(csv), false), new Random(42));
+
+		final FullHttpRequest request = (FullHttpRequest) channel.readInbound();
+		assertNotNull(request);
+		assertEquals(0, request.content().readableBytes());
+
+		final MultipartUpload upload =
+				channel.attr(MultipartUploadHandler.ATTR_UPLOAD).getAndRemove();
+		final List<RequestPart> parts = upload.parts();
+
+		assertEquals(2, parts.size());
+
+		final RequestPart symbol = parts.get(0);
+		assertEquals("symbol", symbol.getName());
+		assertNull(symbol.getFilename());
+		assertTrue(symbol.isInMemory());
+		assertEquals("GOOG\r\n--not a boundary",
+				symbol.getString(CharsetUtil.UTF_8));
+
+		final RequestPart file = parts.get(1);
+		assertEquals("data", file.getName());
+		assertEquals("quotes.csv", file.getFilename());
+		assertEquals("text/csv", file.getContentType());
+		assertFalse(file.isInMemory());
+		assertEquals(csv.length(), file.getSize());
+		assertEquals(csv, file.getString(CharsetUtil.UTF_8));
+
+		final File temp = file.getFile();
+		assertTrue(temp.exists());
+
+		upload.close();
+		request.release();
+
+		assertFalse(temp.exists());
+		assertEquals(64 * 1024 * 1024, config.uploadBudget().available());
+
+	}
+
+	@Test
+	public void testMemoryBudget() throws Exception {
+
+		final HttpServerConfig config =
+				new HttpServerConfig().maxUploadSize(1024 * 1024)
+						.uploadThreshold(1024).uploadMemory(32, 1024);
+
+		final EmbeddedChannel channel = streaming(config);
+
+		write(channel, request(body("a,b,c\n1,2,3\n4,5,6\n"), false),
+				new Random(1));
+
+		((FullHttpRequest) channel.readInbound()).release();
+
+		final MultipartUpload upload =
+				channel.attr(MultipartUploadHandler.ATTR_UPLOAD).getAndRemove();
+
+		// Small field fits, file part over the request budget is spilled
+		assertTrue(upload.parts().get(0).isInMemory());
+		assertFalse(upload.parts().get(1).isInMemory());
+		assertEquals(1024 - 22, config.uploadBudget().available());
+
+		upload.close();
+
+		assertEquals(1024, config.uploadBudget().available());
+
+	}
+
+	@Test
+	public void testExpectContinue() throws Exception {
+
+		// Admitted by the route, over maxRequestSize but within maxUploadSize
+		final HttpServerConfig config =
+				new HttpServerConfig().maxRequestSize(1024)
+						.maxUploadSize(1024 * 1024)
+						.requestHandler("/upload", new UploadHandler());
+
+		final EmbeddedChannel channel = streaming(config);
+
+		final String body = body(csv(10000));
+		final String request = request(body, true);
+		final int headerEnd = request.indexOf("\r\n\r\n") + 4;
+
+		channel.writeInbound(Unpooled.copiedBuffer(
+				request.substring(0, headerEnd), CharsetUtil.ISO_8859_1));
+
+		final FullHttpResponse response =
+				(FullHttpResponse) channel.readOutbound();
+		assertEquals(HttpResponseStatus.CONTINUE, response.getStatus());
+
+		channel.writeInbound(Unpooled.copiedBuffer(
+				request.substring(headerEnd), CharsetUtil.ISO_8859_1));
+
+		// Answered once, not again by the aggregator
+		assertNull(channel.readOutbound());
+
+		((FullHttpRequest) channel.readInbound()).release();
+
+		final MultipartUpload upload =
+				channel.attr(MultipartUploadHandler.ATTR_UPLOAD).getAndRemove();
+		assertEquals(10000, upload.parts().get(1).getSize());
+		upload.close();
+
+	}
+
+	@Test
+	public void testAggregatedUpload() throws Exception {
+
+		final HttpServerConfig config =
+				new HttpServerConfig().maxUploadSize(1024 * 1024);
+
+		final EmbeddedChannel channel =
+				new EmbeddedChannel(new FlyweightRequestDecoder(1024 * 1024),
+						new MultipartUploadHandler(config));
+
+		final String csv = csv(5000);
+
+		write(channel, request(body(csv), false), new Random(7));
+
+		final FullHttpRequest request = (FullHttpRequest) channel.readInbound();
+
+		final MultipartUpload upload =
+				channel.attr(MultipartUploadHandler.ATTR_UPLOAD).getAndRemove();
+		assertEquals(csv,
+				upload.parts().get(1).getString(CharsetUtil.UTF_8));
+
+		upload.close();
+		request.release();
+
+	}
+
+	@Test
+	public void testRejected() throws Exception {
+
+		final HttpServerConfig config =
+				new HttpServerConfig().maxUploadSize(1000);
+
+		EmbeddedChannel channel = streaming(config);
+		write(channel, request(body(csv(5000)), false), new Random(3));
+		assertRejected(channel, HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE);
+
+		channel = streaming(config);
+		write(channel,
+				request("--" + BOUNDARY + "\r\nNo-Disposition: x\r\n\r\n"
+						+ "data\r\n--" + BOUNDARY + "--\r\n", false),
+				new Random(4));
+		assertRejected(channel, HttpResponseStatus.BAD_REQUEST);
+
+		channel = streaming(config);
+		write(channel,
+				request("--" + BOUNDARY + "\r\n"
+						+ "Content-Disposition: form-data; name=\"x\"\r\n\r\n"
+						+ "truncated", false), new Random(5));
+		assertRejected(channel, HttpResponseStatus.BAD_REQUEST);
+
+	}
+
+	private static void assertRejected(final EmbeddedChannel channel,
+			final HttpResponseStatus status) {
+
+		assertNull(channel.readInbound());
+		assertEquals(status,
+				((FullHttpResponse) channel.readOutbound()).getStatus());
+		assertFalse(channel.isOpen());
+
+	}
+
+	/* Same order as the standard server pipeline */
+	private static EmbeddedChannel streaming(final HttpServerConfig config) {
+		return new EmbeddedChannel(new HttpRequestDecoder(),
+				new ExpectContinueHandler(config), new MultipartUploadHandler(
+						config), new HttpObjectAggregator(
+						config.maxRequestSize()));
+	}
+
+	private static void write(final EmbeddedChannel channel,
+			final String request, final Random random) {
+
+		final byte[] bytes = request.getBytes(CharsetUtil.ISO_8859_1);
+
+		int pos = 0;
+
+		while (pos < bytes.length && channel.isOpen()) {
+			final int length =
+					Math.min(bytes.length - pos, 1 + random.nextInt(4096));
+			channel.writeInbound(Unpooled.copiedBuffer(bytes, pos, length));
+			pos += length;
+		}
+
+	}
+
+	private static String request(final String body, final boolean expect) {
+		return "POST /upload HTTP/1.1\r\n" + "Host: localhost\r\n"
+				+ "Content-Type: multipart/form-data; boundary=\"" + BOUNDARY
+				+ "\"\r\n" + (expect ? "Expect: 100-continue\r\n" : "")
+				+ "Content-Length: " + body.length() + "\r\n\r\n" + body;
+	}
+
+	private static String body(final String csv) {
+		return "preamble to ignore\r\n" //
+				+ "--" + BOUNDARY + "\r\n"
+				+ "Content-Disposition: form-data; name=\"symbol\"\r\n\r\n"
+				+ "GOOG\r\n--not a boundary\r\n" //
+				+ "--" + BOUNDARY + "\r\n"
+				+ "Content-Disposition: form-data; name=\"data\"; "
+				+ "filename=\"quotes.csv\"\r\n"
+				+ "Content-Type: text/csv\r\n\r\n" + csv + "\r\n" //
+				+ "--" + BOUNDARY + "--\r\n" //
+				+ "epilogue to ignore";
+	}
+
+	private static class UploadHandler extends RequestHandlerBase {
+
+		@Override
+		public void onRequest(final ServerRequest request,
+				final ServerResponse response) {
+		}
+
+	}
+
+	private static String csv(final int length) {
+
+		final StringBuilder sb = new StringBuilder(length);
+		final Random random = new Random(length);
+
+		while (sb.length() < length) {
+			sb.append("GOOG,").append(random.nextInt(100000)).append("\r\n");
+		}
+
+		sb.setLength(length);
+
+		return sb.toString();
+
+	}
+
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpRequestDecoder;
+import io.netty.util.CharsetUtil;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Compares request parsing throughput and per-request heap allocation of the
+ * standard Netty decoder + aggregator and the flyweight request decoder.
+ */
+public class TestParserBenchmark {
+
+	private static final int ITERATIONS = 1000000;
+
+	private static final String REQUEST = "GET /api/quotes?symbols=GOOG HTTP/1.1\r\n"
+			+ "Host: www.barchart.com\r\n"
+			+ "User-Agent: Mozilla/5.0 (X11; Linux x86_64) Gecko/20100101 Firefox/24.0\r\n"
+			+ "Accept: application/json,text/html;q=0.9,*/*;q=0.8\r\n"
+			+ "Accept-Language: en-US,en;q=0.5\r\n"
+			+ "Accept-Encoding: gzip, deflate\r\n"
+			+ "Cookie: session=0123456789abcdef; theme=dark\r\n"
+			+ "Connection: keep-alive\r\n\r\n";
+
+	private static final String BODY =
+			"{\"symbol\":\"GOOG\",\"side\":\"buy\",\"quantity\":100}";
+
+	private static final String POST = "POST /api/orders HTTP/1.1\r\n"
+			+ "Host: www.barchart.com\r\n"
+			+ "Content-Type: application/json\r\n"
+			+ "Content-Length: " + BODY.length() + "\r\n"
+			+ "Connection: keep-alive\r\n\r\n" + BODY;
+
+	public static void main(final String[] args) {
+
+		for (int round = 0; round < 3; round++) {
+
+			run("standard", REQUEST, new HttpRequestDecoder(),
+					new HttpObjectAggregator(1024 * 1024));
+			run("flyweight", REQUEST, new FlyweightRequestDecoder(1024 * 1024));
+
+			run("standard", POST, new HttpRequestDecoder(),
+					new HttpObjectAggregator(1024 * 1024));
+			run("flyweight", POST, new FlyweightRequestDecoder(1024 * 1024));
+
+		}
+
+	}
+
+	private static void run(final String name, final String request,
+			final ChannelHandler... handlers) {
+
+		final EmbeddedChannel channel = new EmbeddedChannel(handlers);
+
+		final ByteBuf bytes =
+				Unpooled.unreleasableBuffer(Unpooled.copiedBuffer(request,
+						CharsetUtil.US_ASCII));
+
+		final com.sun.management.ThreadMXBean threads =
+				(com.sun.management.ThreadMXBean) ManagementFactory
+						.getThreadMXBean();
+		final long thread = Thread.currentThread().getId();
+
+		long checksum = 0;
+
+		final long allocated = threads.getThreadAllocatedBytes(thread);
+		final long start = System.nanoTime();
+
+		for (int i = 0; i < ITERATIONS; i++) {
+
+			channel.writeInbound(bytes.duplicate());
+
+			final FullHttpRequest msg = (FullHttpRequest) channel.readInbound();
+
+			// Typical access by the request handler
+			checksum += msg.getUri().length();
+			checksum += msg.getMethod().hashCode();
+			checksum += HttpHeaders.isKeepAlive(msg) ? 1 : 0;
+			checksum += msg.content().readableBytes();
+
+			msg.release();
+
+		}
+
+		final long elapsed = System.nanoTime() - start;
+		final long bytesAllocated =
+				threads.getThreadAllocatedBytes(thread) - allocated;
+
+		System.out.println(String.format(
+				"%-10s %-4s %6.1f ns/request, %6d bytes allocated/request (%d)",
+				name, request.substring(0, 4).trim(), (double) elapsed
+						/ ITERATIONS, bytesAllocated / ITERATIONS, checksum));
+
+	}
+
+}
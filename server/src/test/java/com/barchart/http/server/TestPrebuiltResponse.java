@@ -0,0 +1,228 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCounted;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.barchart.http.request.PrebuiltResponse;
+import com.barchart.http.request.RequestHandlerBase;
+import com.barchart.http.request.ServerRequest;
+import com.barchart.http.request.ServerResponse;
+
+public class TestPrebuiltResponse {
+
+	private static final PrebuiltResponse PONG = PrebuiltResponse.text(
+			HttpResponseStatus.OK, "pong");
+
+	private final List<Integer> refCounts = new CopyOnWriteArrayList<Integer>();
+
+	private HttpServer server;
+	private HttpClient client;
+
+	private int port;
+
+	@Before
+	public void setUp() throws Exception {
+
+		final ServerSocket s = new ServerSocket(0);
+		port = s.getLocalPort();
+		s.close();
+
+		server = new HttpServer();
+
+		server.configure(
+				new HttpServerConfig()
+						.address(new InetSocketAddress("localhost", port))
+						.parentGroup(new NioEventLoopGroup(1))
+						.childGroup(new NioEventLoopGroup(1))
+						.staticResponse("/ping", PONG)
+						.requestHandler("/send", new SendHandler())
+						.requestHandler("/error", new ErrorHandler()))
+				.listen().sync();
+
+		client = new DefaultHttpClient();
+
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (server.isRunning()) {
+			server.shutdown().sync();
+		}
+	}
+
+	@Test
+	public void testEncoded() throws Exception {
+
+		final ByteBuf keepAlive = PONG.encoded(true, false);
+
+		assertEquals("HTTP/1.1 200 OK\r\n"
+				+ "Content-Type: text/plain; charset=UTF-8\r\n"
+				+ "Content-Length: 4\r\n" + "Connection: keep-alive\r\n\r\n"
+				+ "pong", keepAlive.toString(CharsetUtil.US_ASCII));
+		assertTrue(keepAlive.isDirect());
+
+		try {
+			keepAlive.setByte(0, 'X');
+			throw new AssertionError("Prebuilt response is writable");
+		} catch (final Exception e) {
+			// expected, read-only
+		}
+
+		// Views share the prebuilt buffer's reference count
+		keepAlive.release();
+		assertEquals(1, keepAlive.refCnt());
+
+		final ByteBuf head = PONG.encoded(false, true);
+		assertEquals("HTTP/1.1 200 OK\r\n"
+				+ "Content-Type: text/plain; charset=UTF-8\r\n"
+				+ "Content-Length: 4\r\n" + "Connection: close\r\n\r\n",
+				head.toString(CharsetUtil.US_ASCII));
+		head.release();
+
+	}
+
+	@Test
+	public void testStaticResponse() throws Exception {
+
+		for (int i = 0; i < 10; i++) {
+
+			final HttpResponse response =
+					client.execute(new HttpGet("http://localhost:" + port
+							+ "/ping/health"));
+
+			assertEquals(200, response.getStatusLine().getStatusCode());
+			assertEquals("pong", EntityUtils.toString(response.getEntity()));
+			assertNull(response.getFirstHeader("Date"));
+
+		}
+
+		final HttpResponse head =
+				client.execute(new HttpHead("http://localhost:" + port
+						+ "/ping"));
+
+		assertEquals(200, head.getStatusLine().getStatusCode());
+		assertEquals("4", head.getFirstHeader("Content-Length").getValue());
+		assertNull(head.getEntity());
+
+	}
+
+	@Test
+	public void testSend() throws Exception {
+
+		final HttpResponse response =
+				client.execute(new HttpGet("http://localhost:" + port
+						+ "/send"));
+
+		assertEquals(200, response.getStatusLine().getStatusCode());
+		assertEquals("pong", EntityUtils.toString(response.getEntity()));
+
+	}
+
+	@Test
+	public void testSendReleases() throws Exception {
+
+		for (int i = 0; i < 5; i++) {
+			final HttpResponse response =
+					client.execute(new HttpGet("http://localhost:" + port
+							+ "/send"));
+			EntityUtils.consume(response.getEntity());
+		}
+
+		// One reference for the pool, one taken per request by init()
+		assertEquals(5, refCounts.size());
+
+		for (final int refCnt : refCounts) {
+			assertEquals(2, refCnt);
+		}
+
+	}
+
+	@Test
+	public void testErrorFallbacks() throws Exception {
+
+		HttpResponse response =
+				client.execute(new HttpGet("http://localhost:" + port
+						+ "/missing"));
+
+		assertEquals(404, response.getStatusLine().getStatusCode());
+		assertEquals("404 Not Found",
+				EntityUtils.toString(response.getEntity()));
+
+		response =
+				client.execute(new HttpGet("http://localhost:" + port
+						+ "/error"));
+
+		assertEquals(500, response.getStatusLine().getStatusCode());
+		assertEquals("500 Internal Server Error",
+				EntityUtils.toString(response.getEntity()));
+
+		// Partial content is dropped, headers and cookies are kept
+		assertTrue(response.containsHeader("X-Partial"));
+		assertEquals("partial=true",
+				response.getFirstHeader("Set-Cookie").getValue());
+		assertTrue(response.containsHeader("Date"));
+
+	}
+
+	private class SendHandler extends RequestHandlerBase {
+
+		@Override
+		public void onRequest(final ServerRequest request,
+				final ServerResponse response) throws IOException {
+
+			refCounts.add(((ReferenceCounted) response).refCnt());
+
+			response.setStatus(HttpResponseStatus.NOT_FOUND);
+			response.write("discarded");
+			response.send(PONG);
+
+		}
+
+	}
+
+	private static class ErrorHandler extends RequestHandlerBase {
+
+		@Override
+		public void onRequest(final ServerRequest request,
+				final ServerResponse response) throws IOException {
+
+			response.headers().set("X-Partial", "true");
+			response.setCookie("partial", "true");
+			response.write("partial");
+
+			throw new IOException("Handler failure");
+
+		}
+
+	}
+
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.barchart.http.request.RequestAttribute;
+import com.barchart.http.request.RequestAttributeKey;
+
+public class TestRequestAttributes {
+
+	private static final RequestAttributeKey<String> NAME =
+			new RequestAttributeKey<String>("name");
+
+	@Test
+	public void testKeyIndex() {
+		final RequestAttributeKey<String> key =
+				new RequestAttributeKey<String>("other");
+		assertTrue(key.index() > NAME.index());
+		assertTrue(RequestAttributeKey.count() > key.index());
+	}
+
+	@Test
+	public void testReset() {
+
+		final PooledServerRequest request = new PooledServerRequest();
+		request.resetAttributes();
+
+		final RequestAttribute<String> attr = request.attr(NAME);
+		attr.set("first");
+		assertSame(attr, request.attr(NAME));
+		assertEquals("first", request.attr(NAME).get());
+
+		// Next request reuses the holder with a cleared value
+		request.resetAttributes();
+		assertSame(attr, request.attr(NAME));
+		assertNull(attr.get());
+
+	}
+
+	@Test
+	public void testLateKey() {
+
+		final PooledServerRequest request = new PooledServerRequest();
+		request.resetAttributes();
+
+		// Created after the request was initialized
+		final RequestAttributeKey<String> late =
+				new RequestAttributeKey<String>("late");
+
+		request.attr(late).set("value");
+		assertEquals("value", request.attr(late).get());
+		assertNull(request.attr(NAME).get());
+
+		request.resetAttributes();
+		assertNull(request.attr(late).get());
+
+		request.attr(late).set("again");
+		assertEquals("again", request.attr(late).get());
+
+	}
+
+	@Test
+	public void testUnindexedKey() {
+
+		final int count = RequestAttributeKey.count();
+
+		final RequestAttributeKey<String> dynamic =
+				new RequestAttributeKey<String>("dynamic", false);
+
+		assertEquals(-1, dynamic.index());
+		assertEquals(count, RequestAttributeKey.count());
+
+		final PooledServerRequest request = new PooledServerRequest();
+		request.resetAttributes();
+
+		request.attr(dynamic).set("value");
+		assertEquals("value", request.attr(dynamic).get());
+
+		request.resetAttributes();
+		assertNull(request.attr(dynamic).get());
+
+	}
+
+	@Test
+	public void testAtomicUpdates() {
+
+		final RequestAttribute<String> attr = new RequestAttribute<String>();
+
+		assertNull(attr.setIfAbsent("a"));
+		assertEquals("a", attr.setIfAbsent("b"));
+		assertTrue(attr.compareAndSet("a", "c"));
+		assertEquals("c", attr.getAndSet(null));
+		assertNull(attr.get());
+
+	}
+
+}
@@ -0,0 +1,315 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.handler.codec.http.HttpResponseStatus;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.barchart.http.request.FilterChain;
+import com.barchart.http.request.RequestFilter;
+import com.barchart.http.request.RequestHandlerBase;
+import com.barchart.http.request.RequestHandlerMapping;
+import com.barchart.http.request.ServerRequest;
+import com.barchart.http.request.ServerResponse;
+
+public class TestRequestFilter {
+
+	private final ScheduledExecutorService executor = Executors
+			.newSingleThreadScheduledExecutor();
+
+	private final AtomicBoolean handled = new AtomicBoolean(false);
+
+	private final AtomicReference<FilterChain> heldChain =
+			new AtomicReference<FilterChain>();
+	private final AtomicReference<ServerResponse> heldResponse =
+			new AtomicReference<ServerResponse>();
+	private final AtomicReference<ServerResponse> waiting =
+			new AtomicReference<ServerResponse>();
+	private final AtomicInteger waits = new AtomicInteger(0);
+
+	private final RequestFilter global = new TagFilter("global");
+	private final RequestFilter api = new TagFilter("api");
+
+	private HttpServerConfig config;
+	private HttpServer server;
+	private int port;
+
+	@Before
+	public void setUp() throws Exception {
+
+		final ServerSocket s = new ServerSocket(0);
+		port = s.getLocalPort();
+		s.close();
+
+		config =
+				new HttpServerConfig()
+						.address(new InetSocketAddress("localhost", port))
+						.parentGroup(new NioEventLoopGroup(1))
+						.childGroup(new NioEventLoopGroup(1))
+						.requestHandler("/api/users", new TagHandler())
+						.requestHandler("/api/secure", new TagHandler())
+						.requestHandler("/api/async", new TagHandler())
+						.requestHandler("/api/error", new TagHandler())
+						.requestHandler("/other", new TagHandler())
+						.requestHandler("/api/hold", new TagHandler())
+						.requestHandler("/wait", new WaitHandler())
+						.filter("/api/users", new TagFilter("users"))
+						.filter("/api", api).filter(global)
+						.filter("/api/secure", new AuthFilter())
+						.filter("/api/async", new AsyncFilter())
+						.filter("/api/error", new ErrorFilter())
+						.filter("/api/hold", new HoldFilter());
+
+		server = new HttpServer();
+		server.configure(config).listen().sync();
+
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		executor.shutdownNow();
+		if (server.isRunning()) {
+			server.shutdown().sync();
+		}
+	}
+
+	@Test
+	public void testCompiledChain() throws Exception {
+
+		final RequestHandlerMapping mapping =
+				config.getRequestMapping("/api/users/10");
+
+		assertEquals(3, mapping.filters().length);
+		assertSame(global, mapping.filters()[0]);
+		assertSame(api, mapping.filters()[1]);
+
+		// Resolved once, not per request
+		assertSame(mapping, config.getRequestMapping("/api/users/11"));
+
+		assertEquals(1, config.getRequestMapping("/other").filters().length);
+
+		config.removeRequestHandler("/other");
+		assertEquals(null, config.getRequestMapping("/other"));
+
+	}
+
+	@Test
+	public void testOrder() throws Exception {
+		assertEquals("global,api,users,handler", get("/api/users", 200));
+		assertEquals("global,handler", get("/other", 200));
+	}
+
+	@Test
+	public void testShortCircuit() throws Exception {
+		assertEquals("global,api,denied", get("/api/secure", 401));
+		assertFalse(handled.get());
+	}
+
+	@Test
+	public void testAsync() throws Exception {
+		assertEquals("global,api,async,handler", get("/api/async", 200));
+	}
+
+	@Test
+	public void testException() throws Exception {
+		get("/api/error", 500);
+		assertFalse(handled.get());
+	}
+
+	@Test
+	public void testStaleProceed() throws Exception {
+
+		final Socket aborted = send("/api/hold");
+		await(heldChain);
+		aborted.close();
+
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (!heldResponse.get().isFinished()
+				&& System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+
+		// Next request on the recycled response, suspended in its handler
+		final Socket socket = send("/wait");
+		await(waiting);
+		assertSame(heldResponse.get(), waiting.get());
+
+		heldChain.get().proceed();
+
+		assertEquals(1, waits.get());
+		assertFalse(handled.get());
+
+		waiting.get().finish();
+		socket.close();
+
+	}
+
+	private Socket send(final String path) throws IOException {
+		final Socket socket = new Socket("localhost", port);
+		socket.getOutputStream().write(
+				("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n")
+						.getBytes());
+		return socket;
+	}
+
+	private static void await(final AtomicReference<?> ref)
+			throws InterruptedException {
+
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+
+		while (ref.get() == null && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+
+		assertNotNull(ref.get());
+
+	}
+
+	private String get(final String path, final int status) throws Exception {
+
+		final HttpResponse response =
+				new DefaultHttpClient().execute(new HttpGet("http://localhost:"
+						+ port + path));
+
+		assertEquals(status, response.getStatusLine().getStatusCode());
+
+		return EntityUtils.toString(response.getEntity());
+
+	}
+
+	private static class TagFilter implements RequestFilter {
+
+		private final String tag;
+
+		TagFilter(final String tag_) {
+			tag = tag_;
+		}
+
+		@Override
+		public boolean filter(final ServerRequest request,
+				final ServerResponse response, final FilterChain chain)
+				throws IOException {
+			response.write(tag + ",");
+			return true;
+		}
+
+	}
+
+	private static class AuthFilter implements RequestFilter {
+
+		@Override
+		public boolean filter(final ServerRequest request,
+				final ServerResponse response, final FilterChain chain)
+				throws IOException {
+
+			response.setStatus(HttpResponseStatus.UNAUTHORIZED);
+			response.write("denied");
+
+			return false;
+
+		}
+
+	}
+
+	private class AsyncFilter implements RequestFilter {
+
+		@Override
+		public boolean filter(final ServerRequest request,
+				final ServerResponse response, final FilterChain chain)
+				throws IOException {
+
+			response.suspend();
+
+			executor.schedule(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						response.write("async,");
+						chain.proceed();
+					} catch (final IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			}, 20, TimeUnit.MILLISECONDS);
+
+			return false;
+
+		}
+
+	}
+
+	private class HoldFilter implements RequestFilter {
+
+		@Override
+		public boolean filter(final ServerRequest request,
+				final ServerResponse response, final FilterChain chain) {
+			response.suspend();
+			heldResponse.set(response);
+			heldChain.set(chain);
+			return false;
+		}
+
+	}
+
+	private class WaitHandler extends RequestHandlerBase {
+
+		@Override
+		public void onRequest(final ServerRequest request,
+				final ServerResponse response) {
+			waits.incrementAndGet();
+			response.suspend();
+			waiting.set(response);
+		}
+
+	}
+
+	private static class ErrorFilter implements RequestFilter {
+
+		@Override
+		public boolean filter(final ServerRequest request,
+				final ServerResponse response, final FilterChain chain) {
+			throw new IllegalArgumentException("invalid request");
+		}
+
+	}
+
+	private class TagHandler extends RequestHandlerBase {
+
+		@Override
+		public void onRequest(final ServerRequest request,
+				final ServerResponse response) throws IOException {
+			handled.set(true);
+			response.write("handler");
+		}
+
+	}
+
+}
@@ -0,0 +1,300 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import io.netty.channel.nio.NioEventLoopGroup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Test;
+
+import com.barchart.http.logging.RequestLogger;
+import com.barchart.http.request.RequestHandlerBase;
+import com.barchart.http.request.RequestTiming;
+import com.barchart.http.request.RequestTiming.Phase;
+import com.barchart.http.request.ServerRequest;
+import com.barchart.http.request.ServerResponse;
+
+public class TestRequestTiming {
+
+	private final ScheduledExecutorService executor = Executors
+			.newSingleThreadScheduledExecutor();
+
+	private final BlockingQueue<Logged> logged =
+			new LinkedBlockingQueue<Logged>();
+
+	private HttpServer server;
+	private int port;
+
+	private void start(final boolean timing) throws Exception {
+
+		final ServerSocket s = new ServerSocket(0);
+		port = s.getLocalPort();
+		s.close();
+
+		server = new HttpServer();
+
+		server.configure(
+				new HttpServerConfig()
+						.address(new InetSocketAddress("localhost", port))
+						.parentGroup(new NioEventLoopGroup(1))
+						.childGroup(new NioEventLoopGroup(1))
+						.requestTiming(timing).logger(new TimingLogger())
+						.requestHandler("/basic", new BasicHandler())
+						.requestHandler("/async", new AsyncHandler())).listen()
+				.sync();
+
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		executor.shutdownNow();
+		if (server.isRunning()) {
+			server.shutdown().sync();
+		}
+	}
+
+	@Test
+	public void testDisabled() throws Exception {
+
+		start(false);
+
+		get("/basic");
+
+		final Logged log = logged.poll(1, TimeUnit.SECONDS);
+		assertNotNull(log);
+		assertNull(log.timing);
+
+	}
+
+	@Test
+	public void testSync() throws Exception {
+
+		start(true);
+
+		get("/basic");
+
+		final Logged log = logged.poll(1, TimeUnit.SECONDS);
+		assertNotNull(log);
+
+		final RequestTiming timing = log.timing;
+		assertNotNull(timing);
+
+		assertOrdered(timing, Phase.RECEIVED, Phase.DECODED,
+				Phase.AGGREGATED, Phase.HANDLER_START, Phase.HANDLER_RETURN,
+				Phase.FINISHED, Phase.WRITTEN);
+
+		assertEquals(0, timing.time(Phase.SUSPENDED));
+		assertEquals(-1, timing.elapsed(Phase.RECEIVED, Phase.SUSPENDED));
+		assertTrue(timing.total() > 0);
+		assertEquals(TimeUnit.NANOSECONDS.toMillis(timing.total()),
+				log.duration);
+
+	}
+
+	@Test
+	public void testAsync() throws Exception {
+
+		start(true);
+
+		get("/async");
+
+		final Logged log = logged.poll(1, TimeUnit.SECONDS);
+		assertNotNull(log);
+
+		final RequestTiming timing = log.timing;
+
+		assertOrdered(timing, Phase.RECEIVED, Phase.HANDLER_START,
+				Phase.SUSPENDED, Phase.HANDLER_RETURN, Phase.FINISHED,
+				Phase.WRITTEN);
+
+		// Handler returned long before the delayed finish
+		assertTrue(timing.elapsed(Phase.HANDLER_RETURN, Phase.FINISHED) >= TimeUnit.MILLISECONDS
+				.toNanos(40));
+		assertTrue(log.duration >= 40);
+
+	}
+
+	@Test
+	public void testPipelined() throws Exception {
+
+		start(true);
+
+		final Socket socket = new Socket("localhost", port);
+
+		final String request =
+				"GET /basic HTTP/1.1\r\nHost: localhost\r\n\r\n";
+
+		socket.getOutputStream().write((request + request).getBytes());
+
+		final InputStream in = socket.getInputStream();
+		final StringBuilder sb = new StringBuilder();
+
+		while (sb.indexOf("basic") == sb.lastIndexOf("basic")) {
+			sb.append((char) in.read());
+		}
+
+		socket.close();
+
+		for (int i = 0; i < 2; i++) {
+			final Logged log = logged.poll(1, TimeUnit.SECONDS);
+			assertNotNull(log);
+			assertTrue(log.timing.total() > 0);
+		}
+
+	}
+
+	private void get(final String path) throws Exception {
+
+		final HttpResponse response =
+				new DefaultHttpClient().execute(new HttpGet("http://localhost:"
+						+ port + path));
+
+		assertEquals(200, response.getStatusLine().getStatusCode());
+		EntityUtils.consume(response.getEntity());
+
+	}
+
+	private static void assertOrdered(final RequestTiming timing,
+			final Phase... phases) {
+
+		long last = 0;
+
+		for (final Phase phase : phases) {
+			final long time = timing.time(phase);
+			assertTrue(phase + " not recorded: " + timing, time != 0);
+			assertTrue(phase + " out of order: " + timing, last == 0
+					|| time >= last);
+			last = time;
+		}
+
+	}
+
+	private static class Logged {
+
+		final long duration;
+		final RequestTiming timing;
+
+		Logged(final long duration_, final RequestTiming timing_) {
+			duration = duration_;
+			timing = timing_;
+		}
+
+	}
+
+	private class TimingLogger implements RequestLogger {
+
+		@Override
+		public void access(final ServerRequest request,
+				final ServerResponse response, final long duration) {
+
+			// Copy before the response is recycled
+			final RequestTiming timing = response.timing();
+
+			logged.add(new Logged(duration, timing == null ? null
+					: new Snapshot(timing)));
+
+		}
+
+		@Override
+		public void error(final ServerRequest request,
+				final ServerResponse response, final Throwable exception) {
+		}
+
+	}
+
+	private static class Snapshot implements RequestTiming {
+
+		private final long[] times = new long[Phase.values().length];
+		private final String string;
+
+		Snapshot(final RequestTiming timing) {
+			for (final Phase phase : Phase.values()) {
+				times[phase.ordinal()] = timing.time(phase);
+			}
+			string = timing.toString();
+		}
+
+		@Override
+		public long time(final Phase phase) {
+			return times[phase.ordinal()];
+		}
+
+		@Override
+		public long elapsed(final Phase from, final Phase to) {
+			if (time(from) == 0 || time(to) == 0) {
+				return -1;
+			}
+			return time(to) - time(from);
+		}
+
+		@Override
+		public long total() {
+			return elapsed(Phase.RECEIVED, Phase.WRITTEN);
+		}
+
+		@Override
+		public String toString() {
+			return string;
+		}
+
+	}
+
+	private static class BasicHandler extends RequestHandlerBase {
+
+		@Override
+		public void onRequest(final ServerRequest request,
+				final ServerResponse response) throws IOException {
+			response.write("basic");
+		}
+
+	}
+
+	private class AsyncHandler extends RequestHandlerBase {
+
+		@Override
+		public void onRequest(final ServerRequest request,
+				final ServerResponse response) throws IOException {
+
+			response.suspend();
+
+			executor.schedule(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						response.write("async");
+						response.finish();
+					} catch (final IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			}, 50, TimeUnit.MILLISECONDS);
+
+		}
+
+	}
+
+}
@@ -0,0 +1,265 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import io.netty.channel.nio.NioEventLoopGroup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.barchart.http.request.RequestHandlerBase;
+import com.barchart.http.request.ServerRequest;
+import com.barchart.http.request.ServerResponse;
+
+public class TestServerDrain {
+
+	private final ScheduledExecutorService executor = Executors
+			.newSingleThreadScheduledExecutor();
+
+	private final CountDownLatch started = new CountDownLatch(1);
+	private final AtomicBoolean aborted = new AtomicBoolean(false);
+
+	private HttpServer server;
+	private int port;
+
+	@Before
+	public void setUp() throws Exception {
+
+		final ServerSocket s = new ServerSocket(0);
+		port = s.getLocalPort();
+		s.close();
+
+		server = new HttpServer();
+
+		server.configure(
+				new HttpServerConfig()
+						.address(new InetSocketAddress("localhost", port))
+						.parentGroup(new NioEventLoopGroup(1))
+						.childGroup(new NioEventLoopGroup(1))
+						.requestHandler("/basic", new BasicHandler())
+						.requestHandler("/slow", new SlowHandler())
+						.requestHandler("/hang", new HangHandler())).listen()
+				.sync();
+
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		executor.shutdownNow();
+		if (server.isRunning()) {
+			server.kill().sync();
+		}
+	}
+
+	@Test
+	public void testDrain() throws Exception {
+
+		// Idle keep-alive connection
+		final Socket idle = new Socket("localhost", port);
+		send(idle, "/basic");
+		assertTrue(read(idle, "basic"));
+
+		// In-flight response
+		final Socket slow = new Socket("localhost", port);
+		send(slow, "/slow");
+		started.await(1, TimeUnit.SECONDS);
+
+		final DrainFuture drain = server.drain(5, TimeUnit.SECONDS);
+
+		assertFalse(server.isRunning());
+
+		// Idle connection closed right away
+		assertEquals(-1, idle.getInputStream().read());
+
+		// In-flight response completes and asks the client to reconnect
+		final String response = readAll(slow);
+		assertTrue(response, response.contains("Connection: close"));
+		assertTrue(response, response.endsWith("slow"));
+
+		assertTrue(drain.await(1, TimeUnit.SECONDS));
+		assertEquals(2, drain.closed());
+		assertEquals(0, drain.inFlight());
+		assertEquals(0, drain.idle());
+		assertFalse(aborted.get());
+
+		try {
+			new Socket("localhost", port).close();
+			throw new AssertionError("Server still accepting connections");
+		} catch (final IOException e) {
+			// expected
+		}
+
+	}
+
+	@Test
+	public void testListenAfterDrain() throws Exception {
+
+		assertTrue(server.drain(1, TimeUnit.SECONDS).await(1, TimeUnit.SECONDS));
+
+		// Listen socket is closed asynchronously
+		for (int i = 0; !server.listen().await().isSuccess() && i < 50; i++) {
+			server.kill();
+			Thread.sleep(20);
+		}
+
+		assertTrue(server.isRunning());
+
+		final Socket socket = new Socket("localhost", port);
+		send(socket, "/basic");
+		assertTrue(read(socket, "basic"));
+
+		// Kept alive again
+		send(socket, "/basic");
+		assertTrue(read(socket, "basic"));
+
+		socket.close();
+
+	}
+
+	@Test
+	public void testDrainDeadline() throws Exception {
+
+		final Socket hang = new Socket("localhost", port);
+		send(hang, "/hang");
+		started.await(1, TimeUnit.SECONDS);
+
+		final long start = System.nanoTime();
+
+		final DrainFuture drain = server.drain(200, TimeUnit.MILLISECONDS);
+
+		Thread.sleep(50);
+		assertEquals(1, drain.inFlight());
+		assertFalse(drain.isDone());
+
+		assertTrue(drain.await(2, TimeUnit.SECONDS));
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS
+				.toNanos(200));
+
+		assertEquals(1, drain.closed());
+		assertEquals(-1, hang.getInputStream().read());
+
+		Thread.sleep(50);
+		assertTrue(aborted.get());
+
+	}
+
+	private static void send(final Socket socket, final String path)
+			throws IOException {
+		socket.getOutputStream().write(
+				("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n")
+						.getBytes());
+	}
+
+	private static boolean read(final Socket socket, final String body)
+			throws IOException {
+
+		final InputStream in = socket.getInputStream();
+		final StringBuilder sb = new StringBuilder();
+
+		while (!sb.toString().endsWith(body)) {
+			final int b = in.read();
+			if (b == -1) {
+				return false;
+			}
+			sb.append((char) b);
+		}
+
+		return true;
+
+	}
+
+	private static String readAll(final Socket socket) throws IOException {
+
+		final InputStream in = socket.getInputStream();
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buf = new byte[1024];
+
+		int read;
+		while ((read = in.read(buf)) > 0) {
+			out.write(buf, 0, read);
+		}
+
+		return out.toString("US-ASCII");
+
+	}
+
+	private static class BasicHandler extends RequestHandlerBase {
+
+		@Override
+		public void onRequest(final ServerRequest request,
+				final ServerResponse response) throws IOException {
+			response.write("basic");
+		}
+
+	}
+
+	private class SlowHandler extends RequestHandlerBase {
+
+		@Override
+		public void onRequest(final ServerRequest request,
+				final ServerResponse response) throws IOException {
+
+			response.suspend();
+			started.countDown();
+
+			executor.schedule(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						response.write("slow");
+						response.finish();
+					} catch (final IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			}, 300, TimeUnit.MILLISECONDS);
+
+		}
+
+		@Override
+		public void onAbort(final ServerRequest request,
+				final ServerResponse response) {
+			aborted.set(true);
+		}
+
+	}
+
+	private class HangHandler extends RequestHandlerBase {
+
+		@Override
+		public void onRequest(final ServerRequest request,
+				final ServerResponse response) throws IOException {
+			response.suspend();
+			started.countDown();
+		}
+
+		@Override
+		public void onAbort(final ServerRequest request,
+				final ServerResponse response) {
+			aborted.set(true);
+		}
+
+	}
+
+}
@@ -0,0 +1,233 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.handler.codec.http.HttpMethod;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.barchart.http.logging.ServerEventAdapter;
+import com.barchart.http.request.RequestHandlerBase;
+import com.barchart.http.request.ServerRequest;
+import com.barchart.http.request.ServerResponse;
+
+public class TestServerEvents {
+
+	private final EventLoopGroup group = new NioEventLoopGroup(1);
+	private final BlockingQueue<String> events =
+			new LinkedBlockingQueue<String>();
+
+	private HttpServer server;
+	private int port;
+
+	@Before
+	public void setUp() throws Exception {
+
+		final ServerSocket s = new ServerSocket(0);
+		port = s.getLocalPort();
+		s.close();
+
+		server = new HttpServer();
+		server.configure(
+				new HttpServerConfig()
+						.address(new InetSocketAddress("localhost", port))
+						.parentGroup(group).childGroup(group)
+						.maxConnections(1)
+						.eventListener(new RecordingListener())
+						.slowHandlerThreshold(20, TimeUnit.MILLISECONDS)
+						.requestHandler("/fast", new FastHandler())
+						.requestHandler("/slow", new SlowHandler())
+						.requestHandler("/hang", new HangHandler())).listen()
+				.sync();
+
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (server.isRunning()) {
+			server.shutdown().sync();
+		}
+		group.shutdownGracefully();
+	}
+
+	@Test
+	public void testCompleted() throws Exception {
+
+		final Socket socket = send("/fast/item");
+		read(socket, "fast");
+
+		final String event = events.poll(1, TimeUnit.SECONDS);
+		assertNotNull(event);
+		assertTrue(event, event.startsWith("completed /fast 200 4 "));
+		assertNull(events.poll(50, TimeUnit.MILLISECONDS));
+
+		socket.close();
+
+	}
+
+	@Test
+	public void testSlowHandler() throws Exception {
+
+		final Socket socket = send("/slow");
+		read(socket, "slow");
+
+		assertEquals("slow GET /slow /slow SlowHandler",
+				events.poll(1, TimeUnit.SECONDS));
+		assertTrue(events.poll(1, TimeUnit.SECONDS).startsWith("completed"));
+
+		socket.close();
+
+	}
+
+	@Test
+	public void testRejectedAndAborted() throws Exception {
+
+		final Socket hang = send("/hang");
+		Thread.sleep(100);
+
+		final Socket rejected = send("/fast");
+		assertTrue(readAll(rejected).startsWith("HTTP/1.1 503"));
+
+		assertEquals("rejected 1", events.poll(1, TimeUnit.SECONDS));
+
+		hang.close();
+
+		assertEquals("aborted /hang", events.poll(1, TimeUnit.SECONDS));
+
+		rejected.close();
+
+	}
+
+	private Socket send(final String path) throws IOException {
+		final Socket socket = new Socket("localhost", port);
+		socket.getOutputStream().write(
+				("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n")
+						.getBytes());
+		return socket;
+	}
+
+	private static void read(final Socket socket, final String body)
+			throws IOException {
+
+		final InputStream in = socket.getInputStream();
+		final StringBuilder sb = new StringBuilder();
+
+		while (!sb.toString().endsWith(body)) {
+			final int b = in.read();
+			if (b == -1) {
+				throw new IOException("Closed");
+			}
+			sb.append((char) b);
+		}
+
+	}
+
+	private static String readAll(final Socket socket) throws IOException {
+
+		final InputStream in = socket.getInputStream();
+		final StringBuilder sb = new StringBuilder();
+
+		int b;
+		while ((b = in.read()) != -1) {
+			sb.append((char) b);
+		}
+
+		return sb.toString();
+
+	}
+
+	private class RecordingListener extends ServerEventAdapter {
+
+		@Override
+		public void requestCompleted(final ServerRequest request,
+				final ServerResponse response, final String route,
+				final long duration) {
+			events.add("completed " + route + " "
+					+ response.getStatus().code() + " "
+					+ response.writtenBytes() + " " + duration);
+		}
+
+		@Override
+		public void slowHandler(final HttpMethod method, final String uri,
+				final String route, final Class<?> handler,
+				final long duration) {
+			events.add("slow " + method + " " + uri + " " + route + " "
+					+ handler.getSimpleName());
+		}
+
+		@Override
+		public void connectionRejected(final SocketAddress remoteAddress,
+				final int connections) {
+			events.add("rejected " + connections);
+		}
+
+		@Override
+		public void responseAborted(final ServerRequest request,
+				final ServerResponse response, final String route) {
+			events.add("aborted " + route);
+		}
+
+	}
+
+	private static class FastHandler extends RequestHandlerBase {
+
+		@Override
+		public void onRequest(final ServerRequest request,
+				final ServerResponse response) throws IOException {
+			response.write("fast");
+		}
+
+	}
+
+	private static class SlowHandler extends RequestHandlerBase {
+
+		@Override
+		public void onRequest(final ServerRequest request,
+				final ServerResponse response) throws IOException {
+
+			try {
+				Thread.sleep(40);
+			} catch (final InterruptedException e) {
+				throw new IOException(e);
+			}
+
+			response.write("slow");
+
+		}
+
+	}
+
+	private static class HangHandler extends RequestHandlerBase {
+
+		@Override
+		public void onRequest(final ServerRequest request,
+				final ServerResponse response) {
+			response.suspend();
+		}
+
+	}
+
+}
@@ -0,0 +1,164 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.CharsetUtil;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.barchart.http.request.RequestHandlerBase;
+import com.barchart.http.request.ServerRequest;
+import com.barchart.http.request.ServerResponse;
+
+public class TestServerListeners {
+
+	private final EventLoopGroup group = new NioEventLoopGroup(1);
+
+	private HttpServer server;
+	private int port;
+
+	@Before
+	public void setUp() throws Exception {
+
+		final ServerSocket s = new ServerSocket(0);
+		port = s.getLocalPort();
+		s.close();
+
+		server = new HttpServer();
+
+		server.configure(
+				new HttpServerConfig()
+						.address(new InetSocketAddress("localhost", port))
+						.listener(ServerListener.local("barchart-http-test"))
+						.parentGroup(group).childGroup(group)
+						.requestHandler("/address", new AddressHandler()))
+				.listen().sync();
+
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (server.isRunning()) {
+			server.shutdown().sync();
+		}
+		group.shutdownGracefully();
+	}
+
+	@Test
+	public void testTcp() throws Exception {
+
+		final HttpResponse response =
+				new DefaultHttpClient().execute(new HttpGet("http://localhost:"
+						+ port + "/address"));
+
+		assertEquals(200, response.getStatusLine().getStatusCode());
+		assertEquals("/127.0.0.1",
+				EntityUtils.toString(response.getEntity()));
+
+	}
+
+	@Test
+	public void testLocal() throws Exception {
+
+		final BlockingQueue<FullHttpResponse> responses =
+				new LinkedBlockingQueue<FullHttpResponse>();
+
+		final Channel channel = new Bootstrap().group(group) //
+				.channel(LocalChannel.class) //
+				.handler(new ChannelInitializer<LocalChannel>() {
+					@Override
+					protected void initChannel(final LocalChannel ch) {
+						ch.pipeline().addLast(new HttpClientCodec(),
+								new HttpObjectAggregator(65536),
+								new SimpleChannelInboundHandler<FullHttpResponse>() {
+									@Override
+									protected void channelRead0(
+											final ChannelHandlerContext ctx,
+											final FullHttpResponse msg) {
+										responses.add(msg.retain());
+									}
+								});
+					}
+				}).connect(new LocalAddress("barchart-http-test")).sync()
+				.channel();
+
+		for (int i = 0; i < 3; i++) {
+
+			channel.writeAndFlush(new DefaultFullHttpRequest(
+					HttpVersion.HTTP_1_1, HttpMethod.GET, "/address"));
+
+			final FullHttpResponse response =
+					responses.poll(5, TimeUnit.SECONDS);
+
+			assertNotNull(response);
+			assertEquals(200, response.getStatus().code());
+			assertEquals("local",
+					response.content().toString(CharsetUtil.UTF_8));
+
+			response.release();
+
+		}
+
+		channel.close().sync();
+
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testDomainSocketUnavailable() throws Exception {
+		// Native transport is not a dependency of this module
+		ServerListener.domainSocket("/tmp/barchart-http.sock");
+	}
+
+	private static class AddressHandler extends RequestHandlerBase {
+
+		@Override
+		public void onRequest(final ServerRequest request,
+				final ServerResponse response) throws IOException {
+
+			if (request.getRemoteAddress() == null) {
+				response.write("local");
+			} else {
+				response.write(request.getRemoteAddress().getAddress()
+						.toString());
+			}
+
+		}
+
+	}
+
+}
@@ -0,0 +1,189 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpResponseEncoder;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.CharsetUtil;
+
+import org.junit.Test;
+
+public class TestServerResponseEncoder {
+
+	@Test
+	public void testSmallResponse() throws Exception {
+
+		final EmbeddedChannel channel =
+				new EmbeddedChannel(new ServerResponseEncoder(1024));
+
+		channel.writeOutbound(response(HttpVersion.HTTP_1_1,
+				HttpResponseStatus.OK, "hello"));
+
+		// Entire response in one buffer
+		final ByteBuf buf = (ByteBuf) channel.readOutbound();
+		assertNull(channel.readOutbound());
+
+		assertEquals(
+				standard(response(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
+						"hello")), buf.toString(CharsetUtil.US_ASCII));
+
+	}
+
+	@Test
+	public void testLargeResponse() throws Exception {
+
+		final StringBuilder body = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			body.append("0123456789");
+		}
+
+		final EmbeddedChannel channel =
+				new EmbeddedChannel(new ServerResponseEncoder(1024));
+
+		channel.writeOutbound(response(HttpVersion.HTTP_1_1,
+				HttpResponseStatus.OK, body.toString()));
+
+		// Header buffer followed by content buffer
+		final ByteBuf header = (ByteBuf) channel.readOutbound();
+		final ByteBuf content = (ByteBuf) channel.readOutbound();
+		assertNull(channel.readOutbound());
+
+		assertEquals(
+				standard(response(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
+						body.toString())),
+				header.toString(CharsetUtil.US_ASCII)
+						+ content.toString(CharsetUtil.US_ASCII));
+
+	}
+
+	@Test
+	public void testStatusLines() throws Exception {
+
+		final HttpResponseStatus custom =
+				new HttpResponseStatus(200, "Fine Thanks");
+
+		final HttpResponseStatus[] statuses =
+				new HttpResponseStatus[] { HttpResponseStatus.NOT_FOUND,
+						HttpResponseStatus.SERVICE_UNAVAILABLE,
+						HttpResponseStatus.valueOf(299), custom };
+
+		for (final HttpResponseStatus status : statuses) {
+
+			for (final HttpVersion version : new HttpVersion[] {
+					HttpVersion.HTTP_1_0, HttpVersion.HTTP_1_1 }) {
+
+				final EmbeddedChannel channel =
+						new EmbeddedChannel(new ServerResponseEncoder(1024));
+
+				channel.writeOutbound(response(version, status, ""));
+
+				assertEquals(standard(response(version, status, "")),
+						((ByteBuf) channel.readOutbound())
+								.toString(CharsetUtil.US_ASCII));
+
+			}
+
+		}
+
+	}
+
+	@Test
+	public void testPooledResponseHeaders() throws Exception {
+
+		final PooledServerResponse pooled =
+				new PooledServerResponse(new ServerMessagePool(1));
+		pooled.setContentType("text/plain");
+		pooled.headers().set(ResponseHeaders.DATE, ResponseHeaders.date());
+		pooled.headers().set(ResponseHeaders.CONNECTION,
+				ResponseHeaders.KEEP_ALIVE);
+		pooled.content().writeBytes("pooled".getBytes());
+		pooled.setContentLength(6);
+
+		final EmbeddedChannel fused =
+				new EmbeddedChannel(new ServerResponseEncoder(1024));
+		fused.writeOutbound(pooled.retain());
+
+		final EmbeddedChannel standard =
+				new EmbeddedChannel(new HttpResponseEncoder());
+		standard.writeOutbound(pooled.retain());
+
+		assertEquals(drain(standard), drain(fused));
+
+	}
+
+	@Test
+	public void testEncodedValueCacheBounded() throws Exception {
+
+		CharSequence value = null;
+
+		for (int i = 0; i < ResponseHeaders.MAX_ENCODED * 2; i++) {
+			value = ResponseHeaders.encode("text/x-generated-" + i);
+		}
+
+		assertTrue(ResponseHeaders.cached() <= ResponseHeaders.MAX_ENCODED);
+
+		// Uncached values are still encoded
+		final FullHttpResponse response =
+				response(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, "body");
+		response.headers().set(ResponseHeaders.CONTENT_TYPE, value);
+
+		final EmbeddedChannel channel =
+				new EmbeddedChannel(new ServerResponseEncoder(1024));
+		channel.writeOutbound(response.copy());
+
+		assertEquals(standard(response), drain(channel));
+
+	}
+
+	private static FullHttpResponse response(final HttpVersion version,
+			final HttpResponseStatus status, final String body) {
+
+		final FullHttpResponse response =
+				new DefaultFullHttpResponse(version, status,
+						Unpooled.copiedBuffer(body, CharsetUtil.US_ASCII));
+
+		response.headers().set(ResponseHeaders.CONTENT_LENGTH, body.length());
+		response.headers().set(ResponseHeaders.SERVER, "test");
+
+		return response;
+
+	}
+
+	private static String standard(final FullHttpResponse response) {
+
+		final EmbeddedChannel channel =
+				new EmbeddedChannel(new HttpResponseEncoder());
+		channel.writeOutbound(response);
+
+		return drain(channel);
+
+	}
+
+	private static String drain(final EmbeddedChannel channel) {
+
+		final StringBuilder sb = new StringBuilder();
+
+		Object msg;
+		while ((msg = channel.readOutbound()) != null) {
+			sb.append(((ByteBuf) msg).toString(CharsetUtil.US_ASCII));
+		}
+
+		return sb.toString();
+
+	}
+
+}
@@ -0,0 +1,194 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.handler.codec.http.HttpMethod;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.barchart.http.logging.ServerEventAdapter;
+import com.barchart.http.request.RequestHandlerBase;
+import com.barchart.http.request.ServerRequest;
+import com.barchart.http.request.ServerResponse;
+
+public class TestStallWatchdog {
+
+	private final EventLoopGroup group = new NioEventLoopGroup(1);
+	private final BlockingQueue<Stall> stalls = new LinkedBlockingQueue<Stall>();
+
+	private HttpServer server;
+	private int port;
+
+	@Before
+	public void setUp() throws Exception {
+
+		final ServerSocket s = new ServerSocket(0);
+		port = s.getLocalPort();
+		s.close();
+
+		server = new HttpServer();
+		server.configure(
+				new HttpServerConfig()
+						.address(new InetSocketAddress("localhost", port))
+						.parentGroup(group).childGroup(group)
+						.stallThreshold(50, TimeUnit.MILLISECONDS)
+						.stallReportInterval(0, TimeUnit.MILLISECONDS)
+						.eventListener(new ServerEventAdapter() {
+							@Override
+							public void eventLoopStalled(final Thread thread,
+									final long duration,
+									final StackTraceElement[] stack,
+									final HttpMethod method, final String uri,
+									final String route) {
+								stalls.add(new Stall(duration, stack, uri,
+										route));
+							}
+						}).requestHandler("/fast", new FastHandler())
+						.requestHandler("/block", new BlockingHandler()))
+				.listen().sync();
+
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (server.isRunning()) {
+			server.shutdown().sync();
+		}
+		group.shutdownGracefully();
+	}
+
+	@Test
+	public void testStall() throws Exception {
+
+		// Let the heartbeat register the loop thread, ignore cold start stalls
+		assertEquals("fast", get("/fast"));
+		Thread.sleep(200);
+		stalls.clear();
+
+		assertEquals("block", get("/block/item"));
+
+		final Stall stall = stalls.poll(1, TimeUnit.SECONDS);
+
+		assertNotNull(stall);
+		assertEquals("/block/item", stall.uri);
+		assertEquals("/block", stall.route);
+		assertTrue(stall.duration >= TimeUnit.MILLISECONDS.toNanos(50));
+
+		boolean found = false;
+
+		for (final StackTraceElement element : stall.stack) {
+			found |= element.getClassName().endsWith("BlockingHandler");
+		}
+
+		assertTrue(found);
+
+		// Reported once per stall
+		assertNull(stalls.poll(300, TimeUnit.MILLISECONDS));
+
+	}
+
+	@Test
+	public void testNoStall() throws Exception {
+
+		for (int i = 0; i < 20; i++) {
+			assertEquals("fast", get("/fast"));
+		}
+
+		assertNull(stalls.poll(200, TimeUnit.MILLISECONDS));
+
+	}
+
+	@Test
+	public void testStopped() throws Exception {
+
+		server.shutdown().sync();
+
+		Thread.sleep(100);
+
+		for (final Thread thread : Thread.getAllStackTraces().keySet()) {
+			assertTrue(!thread.getName().equals("barchart-http-watchdog")
+					|| !thread.isAlive());
+		}
+
+	}
+
+	private String get(final String path) throws IOException {
+
+		final HttpResponse response =
+				new DefaultHttpClient().execute(new HttpGet(
+						"http://localhost:" + port + path));
+
+		return EntityUtils.toString(response.getEntity());
+
+	}
+
+	private static class Stall {
+
+		final long duration;
+		final StackTraceElement[] stack;
+		final String uri;
+		final String route;
+
+		Stall(final long duration_, final StackTraceElement[] stack_,
+				final String uri_, final String route_) {
+			duration = duration_;
+			stack = stack_;
+			uri = uri_;
+			route = route_;
+		}
+
+	}
+
+	private static class FastHandler extends RequestHandlerBase {
+
+		@Override
+		public void onRequest(final ServerRequest request,
+				final ServerResponse response) throws IOException {
+			response.write("fast");
+		}
+
+	}
+
+	private static class BlockingHandler extends RequestHandlerBase {
+
+		@Override
+		public void onRequest(final ServerRequest request,
+				final ServerResponse response) throws IOException {
+
+			try {
+				Thread.sleep(400);
+			} catch (final InterruptedException e) {
+				throw new IOException(e);
+			}
+
+			response.write("block");
+
+		}
+
+	}
+
+}
@@ -0,0 +1,192 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.handler.codec.http.HttpMethod;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.barchart.http.request.FilterChain;
+import com.barchart.http.request.PathParameters;
+import com.barchart.http.request.RequestFilter;
+import com.barchart.http.request.RequestHandler;
+import com.barchart.http.request.RequestHandlerBase;
+import com.barchart.http.request.RequestHandlerMapping;
+import com.barchart.http.request.ServerRequest;
+import com.barchart.http.request.ServerResponse;
+
+public class TestTemplateURLMapper {
+
+	private final EventLoopGroup group = new NioEventLoopGroup(1);
+
+	private final RequestHandler history = new ParamsHandler("history");
+	private final RequestHandler quote = new ParamsHandler("quote");
+	private final RequestHandler update = new ParamsHandler("update");
+	private final RequestHandler latest = new ParamsHandler("latest");
+	private final RequestHandler files = new ParamsHandler("files");
+
+	private TemplateURLMapper mapper;
+	private HttpServer server;
+	private int port;
+
+	@Before
+	public void setUp() throws Exception {
+
+		final ServerSocket s = new ServerSocket(0);
+		port = s.getLocalPort();
+		s.close();
+
+		mapper =
+				new TemplateURLMapper()
+						.route("/quotes/{symbol}/history/{interval}", history)
+						.route(HttpMethod.GET, "/quotes/{symbol}", quote)
+						.route(HttpMethod.POST, "/quotes/{symbol}", update)
+						.route("/quotes/latest", latest)
+						.route("/files/{path*}", files);
+
+		server = new HttpServer();
+		server.configure(
+				new HttpServerConfig()
+						.address(new InetSocketAddress("localhost", port))
+						.parentGroup(group).childGroup(group)
+						.urlMapper(mapper)
+						.filter("/quotes", new TagFilter())
+						.requestHandler("/", new ParamsHandler("prefix")))
+				.listen().sync();
+
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (server.isRunning()) {
+			server.shutdown().sync();
+		}
+		group.shutdownGracefully();
+	}
+
+	@Test
+	public void testMatch() throws Exception {
+
+		final PathParameters params = new PathParameters();
+
+		assertSame(history,
+				map(HttpMethod.GET, "/quotes/IBM/history/1d?x=1", params));
+		assertEquals(2, params.size());
+		assertEquals("IBM", params.get("symbol"));
+		assertEquals("1d", params.get("interval"));
+		assertNull(params.get("other"));
+
+		// Literals win over parameters, method routes over any method
+		assertSame(latest, map(HttpMethod.GET, "/quotes/latest", params));
+		assertEquals(0, params.size());
+		assertSame(quote, map(HttpMethod.GET, "/quotes/GOOG/", params));
+		assertSame(update, map(HttpMethod.POST, "/quotes/GOOG", params));
+		assertNull(map(HttpMethod.DELETE, "/quotes/GOOG", params));
+
+		assertSame(files, map(HttpMethod.GET, "/files/a/b%20c.txt", params));
+		assertEquals("a/b c.txt", params.get("path"));
+		assertSame(files, map(HttpMethod.GET, "/files", params));
+		assertEquals("", params.get("path"));
+
+		assertNull(map(HttpMethod.GET, "/quotes/IBM/history", params));
+		assertNull(map(HttpMethod.GET, "/other", params));
+
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidTemplate() throws Exception {
+		mapper.route("/files/{path*}/info", files);
+	}
+
+	@Test
+	public void testRequest() throws Exception {
+
+		assertEquals("tag history /IBM/history/1d IBM 1d",
+				execute(new HttpGet("http://localhost:" + port
+						+ "/quotes/IBM/history/1d")));
+		assertEquals("tag update /BRK.A BRK.A null",
+				execute(new HttpPost("http://localhost:" + port
+						+ "/quotes/BRK.A")));
+
+		// Unmapped falls through to prefix handlers
+		assertEquals("prefix other null null", execute(new HttpGet(
+				"http://localhost:" + port + "/other")));
+
+	}
+
+	private RequestHandler map(final HttpMethod method, final String uri,
+			final PathParameters params) {
+
+		params.reset(uri);
+
+		final RequestHandlerMapping mapping =
+				mapper.getHandlerFor(method, uri, params);
+
+		return mapping == null ? null : mapping.handler(null);
+
+	}
+
+	private String execute(final HttpUriRequest request) throws Exception {
+
+		final HttpResponse response =
+				new DefaultHttpClient().execute(request);
+
+		assertEquals(200, response.getStatusLine().getStatusCode());
+
+		return EntityUtils.toString(response.getEntity());
+
+	}
+
+	private static class ParamsHandler extends RequestHandlerBase {
+
+		private final String name;
+
+		ParamsHandler(final String name_) {
+			name = name_;
+		}
+
+		@Override
+		public void onRequest(final ServerRequest request,
+				final ServerResponse response) throws IOException {
+			response.write(name + " " + request.getPathInfo() + " "
+					+ request.pathParam("symbol") + " "
+					+ request.pathParam("interval"));
+		}
+
+	}
+
+	private static class TagFilter implements RequestFilter {
+
+		@Override
+		public boolean filter(final ServerRequest request,
+				final ServerResponse response, final FilterChain chain)
+				throws IOException {
+			response.write("tag ");
+			return true;
+		}
+
+	}
+
+}
@@ -0,0 +1,315 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.util.CharsetUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.barchart.http.capture.CaptureReader;
+import com.barchart.http.capture.ReplayReport;
+import com.barchart.http.capture.TrafficCapture;
+import com.barchart.http.capture.TrafficReplay;
+import com.barchart.http.request.RequestHandlerBase;
+import com.barchart.http.request.ServerRequest;
+import com.barchart.http.request.ServerResponse;
+
+public class TestTrafficCapture {
+
+	private static final String GET =
+			"GET /echo HTTP/1.1\r\nHost: localhost\r\n\r\n";
+	private static final String HEAD =
+			"HEAD /echo HTTP/1.1\r\nHost: localhost\r\n\r\n";
+	private static final String POST =
+			"POST /echo HTTP/1.1\r\nHost: localhost\r\nContent-Length: 5\r\n\r\nhello";
+	private static final String CHUNKED =
+			"POST /echo HTTP/1.1\r\nHost: localhost\r\nTransfer-Encoding: chunked\r\n\r\n"
+					+ "3\r\nabc\r\n2;ext=1\r\nde\r\n0\r\nX-Trailer: 1\r\n\r\n";
+
+	private final EventLoopGroup group = new NioEventLoopGroup(1);
+	private final AtomicInteger requests = new AtomicInteger(0);
+
+	private File directory;
+	private TrafficCapture capture;
+	private HttpServer server;
+	private int port;
+
+	@Before
+	public void setUp() throws Exception {
+
+		final ServerSocket s = new ServerSocket(0);
+		port = s.getLocalPort();
+		s.close();
+
+		directory = File.createTempFile("capture", "");
+		directory.delete();
+		directory.mkdir();
+
+	}
+
+	@After
+	public void tearDown() throws Exception {
+
+		if (capture != null) {
+			capture.close();
+		}
+
+		if (server.isRunning()) {
+			server.shutdown().sync();
+		}
+
+		group.shutdownGracefully();
+
+		for (final File file : directory.listFiles()) {
+			file.delete();
+		}
+
+		directory.delete();
+
+	}
+
+	@Test
+	public void testCaptureAndReplay() throws Exception {
+
+		start(new TrafficCapture(directory));
+
+		final Socket first = send(GET + POST);
+
+		await(2);
+
+		final Socket second = send(CHUNKED.substring(0, 80));
+		second.getOutputStream().write(
+				(CHUNKED.substring(80) + HEAD).getBytes());
+
+		await(4);
+
+		first.close();
+		second.close();
+		capture.close();
+
+		final List<String> records = new ArrayList<String>();
+		final List<Integer> connections = new ArrayList<Integer>();
+
+		final CaptureReader reader =
+				new CaptureReader(CaptureReader.files(directory, "capture"));
+
+		while (reader.next()) {
+			records.add(reader.content().toString(CharsetUtil.ISO_8859_1));
+			connections.add(reader.connection());
+		}
+
+		reader.close();
+
+		assertEquals(4, records.size());
+		assertEquals(GET, records.get(0));
+		assertEquals(POST, records.get(1));
+		assertEquals(CHUNKED, records.get(2));
+		assertEquals(HEAD, records.get(3));
+		assertEquals(connections.get(0), connections.get(1));
+		assertEquals(connections.get(2), connections.get(3));
+		assertTrue(!connections.get(0).equals(connections.get(2)));
+
+		final ReplayReport report =
+				new TrafficReplay(new InetSocketAddress("localhost", port))
+						.speed(0)
+						.timeout(5, TimeUnit.SECONDS)
+						.run(new CaptureReader(CaptureReader.files(directory,
+								"capture")));
+
+		assertEquals(2, report.connections());
+		assertEquals(4, report.requests());
+		assertEquals(4, report.responses());
+		assertEquals(0, report.errors());
+		assertTrue(report.latency(100, TimeUnit.NANOSECONDS) > 0);
+		assertEquals(8, requests.get());
+
+	}
+
+	@Test
+	public void testRotation() throws Exception {
+
+		start(new TrafficCapture(directory).prefix("rotate").fileSize(1024)
+				.maxFiles(2));
+
+		final StringBuilder sb = new StringBuilder();
+
+		for (int i = 0; i < 50; i++) {
+			sb.append(GET);
+		}
+
+		final Socket socket = send(sb.toString());
+
+		await(50);
+
+		socket.close();
+		capture.close();
+
+		final List<File> files = CaptureReader.files(directory, "rotate");
+
+		assertEquals(2, files.size());
+		assertTrue(files.get(0).getName().compareTo(files.get(1).getName()) < 0);
+
+		final CaptureReader reader = new CaptureReader(files);
+
+		int count = 0;
+
+		while (reader.next()) {
+			assertEquals(GET, reader.content().toString(CharsetUtil.ISO_8859_1));
+			count++;
+		}
+
+		reader.close();
+
+		assertTrue(count > 0 && count < 50);
+
+	}
+
+	@Test
+	public void testRestart() throws Exception {
+
+		start(new TrafficCapture(directory));
+
+		Socket socket = send(GET);
+		await(1);
+		socket.close();
+
+		// Closes the capture, and listen() opens the next file
+		server.shutdown().sync();
+		server.listen().sync();
+
+		socket = send(POST);
+		await(2);
+		socket.close();
+
+		server.kill().sync();
+
+		final List<File> files = CaptureReader.files(directory, "capture");
+		assertEquals(2, files.size());
+
+		final CaptureReader reader = new CaptureReader(files);
+
+		assertTrue(reader.next());
+		assertEquals(GET, reader.content().toString(CharsetUtil.ISO_8859_1));
+		assertTrue(reader.next());
+		assertEquals(POST, reader.content().toString(CharsetUtil.ISO_8859_1));
+		assertTrue(!reader.next());
+
+		reader.close();
+
+	}
+
+	@Test
+	public void testNegativeContentLength() throws Exception {
+
+		start(new TrafficCapture(directory));
+
+		// Connection no longer captured
+		final Socket invalid =
+				send("POST /echo HTTP/1.1\r\nHost: localhost\r\n"
+						+ "Content-Length: -3\r\n\r\n" + GET);
+		Thread.sleep(100);
+
+		final Socket socket = send(GET);
+		await(1);
+		socket.close();
+		invalid.close();
+		capture.close();
+
+		final CaptureReader reader =
+				new CaptureReader(CaptureReader.files(directory, "capture"));
+
+		assertTrue(reader.next());
+		assertEquals(GET, reader.content().toString(CharsetUtil.ISO_8859_1));
+		assertTrue(!reader.next());
+
+		reader.close();
+
+	}
+
+	@Test
+	public void testUnsampled() throws Exception {
+
+		start(new TrafficCapture(directory).sampleRate(0));
+
+		final Socket socket = send(GET + POST);
+
+		await(2);
+
+		socket.close();
+		capture.close();
+
+		final CaptureReader reader =
+				new CaptureReader(CaptureReader.files(directory, "capture"));
+
+		assertTrue(!reader.next());
+
+		reader.close();
+
+	}
+
+	private void start(final TrafficCapture capture_) throws Exception {
+
+		capture = capture_;
+
+		server = new HttpServer();
+		server.configure(
+				new HttpServerConfig()
+						.address(new InetSocketAddress("localhost", port))
+						.parentGroup(group).childGroup(group)
+						.trafficCapture(capture)
+						.requestHandler("/echo", new EchoHandler())).listen()
+				.sync();
+
+	}
+
+	private Socket send(final String data) throws IOException {
+		final Socket socket = new Socket("localhost", port);
+		socket.getOutputStream().write(data.getBytes());
+		return socket;
+	}
+
+	private void await(final int count) throws InterruptedException {
+
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+
+		while (requests.get() < count && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+
+		assertEquals(count, requests.get());
+
+	}
+
+	private class EchoHandler extends RequestHandlerBase {
+
+		@Override
+		public void onRequest(final ServerRequest request,
+				final ServerResponse response) throws IOException {
+			requests.incrementAndGet();
+			response.write("ok " + request.getContent().readableBytes());
+		}
+
+	}
+
+}
@@ -0,0 +1,204 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.handler.codec.http.HttpMethod;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.barchart.http.request.FilterChain;
+import com.barchart.http.request.PathParameters;
+import com.barchart.http.request.RequestFilter;
+import com.barchart.http.request.RequestHandlerBase;
+import com.barchart.http.request.RequestHandlerMapping;
+import com.barchart.http.request.RequestURLMapper;
+import com.barchart.http.request.ServerRequest;
+import com.barchart.http.request.ServerResponse;
+
+public class TestVirtualHost {
+
+	private final EventLoopGroup group = new NioEventLoopGroup(1);
+
+	private final VirtualHost api = new VirtualHost();
+	private final VirtualHost tenants = new VirtualHost();
+	private final VirtualHost eu = new VirtualHost();
+
+	private HttpServerConfig config;
+	private HttpServer server;
+	private int port;
+
+	@Before
+	public void setUp() throws Exception {
+
+		final ServerSocket s = new ServerSocket(0);
+		port = s.getLocalPort();
+		s.close();
+
+		api.requestHandler("/", new NameHandler("api"));
+		tenants.requestHandler("/", new NameHandler("tenants"));
+		eu.requestHandler("/", new NameHandler("eu"));
+		eu.requestHandler("/only", new NameHandler("eu-only"));
+
+		config =
+				new HttpServerConfig()
+						.address(new InetSocketAddress("localhost", port))
+						.parentGroup(group).childGroup(group)
+						.requestHandler("/", new NameHandler("default"))
+						.filter(new TagFilter())
+						.virtualHost("api.example.com", api)
+						.virtualHost("*.tenants.example.com", tenants)
+						.virtualHost("*.eu.tenants.example.com", eu);
+
+		server = new HttpServer();
+		server.configure(config).listen().sync();
+
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (server.isRunning()) {
+			server.shutdown().sync();
+		}
+		group.shutdownGracefully();
+	}
+
+	@Test
+	public void testResolve() throws Exception {
+
+		assertSame(api, config.getVirtualHost("api.example.com"));
+		assertSame(api, config.getVirtualHost("API.Example.com:8080"));
+		assertSame(tenants, config.getVirtualHost("a.tenants.example.com"));
+		assertSame(tenants, config.getVirtualHost("a.b.tenants.example.com"));
+		assertSame(eu, config.getVirtualHost("a.eu.tenants.example.com"));
+
+		// Wildcards only match subdomains
+		assertSame(config.getVirtualHost(null),
+				config.getVirtualHost("tenants.example.com"));
+		assertSame(config.getVirtualHost(null),
+				config.getVirtualHost("example.com"));
+		assertSame(config.getVirtualHost(null),
+				config.getVirtualHost("[::1]:8080"));
+
+		assertEquals("/",
+				config.getRequestMapping("api.example.com", "/only").path());
+		assertEquals("/only",
+				config.getRequestMapping("x.eu.tenants.example.com", "/only")
+						.path());
+
+	}
+
+	@Test
+	public void testRouting() throws Exception {
+
+		assertEquals("tagged api api.example.com",
+				get("api.example.com", "/info"));
+		assertEquals("tagged tenants acme.tenants.example.com:80",
+				get("acme.tenants.example.com:80", "/info"));
+		assertEquals("tagged eu-only acme.eu.tenants.example.com",
+				get("acme.eu.tenants.example.com", "/only"));
+		assertEquals("tagged default other.com", get("other.com", "/info"));
+
+	}
+
+	@Test
+	public void testLateRoutes() throws Exception {
+
+		api.requestHandler("/late", new NameHandler("late"));
+
+		assertEquals("tagged late api.example.com",
+				get("api.example.com", "/late/1"));
+
+	}
+
+	@Test
+	public void testMappingCacheBounded() throws Exception {
+
+		final VirtualHost host = new VirtualHost();
+		host.filter("/", new TagFilter());
+
+		// Creates a new mapping for every request
+		host.urlMapper(new RequestURLMapper() {
+			@Override
+			public RequestHandlerMapping getHandlerFor(final HttpMethod method,
+					final String uri, final PathParameters params) {
+				return RequestHandlerMapping.create("/dynamic",
+						new NameHandler("dynamic"));
+			}
+		});
+
+		RequestHandlerMapping mapping = null;
+
+		for (int i = 0; i < VirtualHost.MAX_MAPPED * 2; i++) {
+			mapping =
+					host.getRequestMapping(HttpMethod.GET, "/dynamic",
+							new PathParameters());
+		}
+
+		assertEquals(VirtualHost.MAX_MAPPED, host.mappedCount());
+
+		// Resolved without the cache
+		assertEquals(1, mapping.filters().length);
+
+	}
+
+	private String get(final String host, final String path) throws Exception {
+
+		final HttpGet get = new HttpGet("http://localhost:" + port + path);
+		get.setHeader("Host", host);
+
+		final HttpResponse response = new DefaultHttpClient().execute(get);
+
+		assertEquals(200, response.getStatusLine().getStatusCode());
+
+		return EntityUtils.toString(response.getEntity());
+
+	}
+
+	private static class NameHandler extends RequestHandlerBase {
+
+		private final String name;
+
+		NameHandler(final String name_) {
+			name = name_;
+		}
+
+		@Override
+		public void onRequest(final ServerRequest request,
+				final ServerResponse response) throws IOException {
+			response.write(name + " " + request.getServerHost());
+		}
+
+	}
+
+	private static class TagFilter implements RequestFilter {
+
+		@Override
+		public boolean filter(final ServerRequest request,
+				final ServerResponse response, final FilterChain chain)
+				throws IOException {
+			response.write("tagged ");
+			return true;
+		}
+
+	}
+
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright (C) 2011-2013 Barchart, Inc. <http://www.barchart.com/>
+ *
+ * All rights reserved. Licensed under the OSI BSD License.
+ *
+ * http://www.opensource.org/licenses/bsd-license.php
+ */
+package com.barchart.http.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.barchart.http.request.RequestHandlerBase;
+import com.barchart.http.request.ServerRequest;
+import com.barchart.http.request.ServerResponse;
+import com.barchart.http.util.ObjectPool;
+
+public class TestWarmUp {
+
+	private final EventLoopGroup group = new NioEventLoopGroup(1);
+
+	private final ConcurrentMap<String, AtomicInteger> counts =
+			new ConcurrentHashMap<String, AtomicInteger>();
+
+	private HttpServer server;
+	private int port;
+
+	@Before
+	public void setUp() throws Exception {
+		final ServerSocket s = new ServerSocket(0);
+		port = s.getLocalPort();
+		s.close();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (server.isRunning()) {
+			server.shutdown().sync();
+		}
+		group.shutdownGracefully();
+	}
+
+	@Test
+	public void testWarmUp() throws Exception {
+
+		server = new HttpServer();
+		server.configure(
+				new HttpServerConfig()
+						.address(new InetSocketAddress("localhost", port))
+						.parentGroup(group)
+						.childGroup(group)
+						.preallocate(8)
+						.warmUp(200)
+						.requestHandler("/a", new CountingHandler())
+						.requestHandler("/b", new CountingHandler())
+						.virtualHost(
+								"*.example.com",
+								new VirtualHost().requestHandler("/c",
+										new CountingHandler()))).listen()
+				.sync();
+
+		final WarmUpReport report = server.warmUpReport();
+
+		assertTrue(report.toString(), report.isComplete());
+		assertEquals(3, report.uris());
+		assertEquals(600, report.requests());
+		assertTrue(report.firstLatency(TimeUnit.NANOSECONDS) > 0);
+		assertTrue(report.lastLatency(TimeUnit.NANOSECONDS) > 0);
+
+		assertEquals(200, counts.get("localhost/a").get());
+		assertEquals(200, counts.get("localhost/b").get());
+		assertEquals(200, counts.get("warmup.example.com/c").get());
+
+		// Bound after warm-up
+		final HttpResponse response =
+				new DefaultHttpClient().execute(new HttpGet("http://localhost:"
+						+ port + "/a"));
+		assertEquals(200, response.getStatusLine().getStatusCode());
+		EntityUtils.consume(response.getEntity());
+
+	}
+
+	@Test
+	public void testWarmUpUris() throws Exception {
+
+		server = new HttpServer();
+		server.configure(
+				new HttpServerConfig()
+						.address(new InetSocketAddress("localhost", port))
+						.parentGroup(group).childGroup(group).warmUp(50)
+						.warmUpUri("/a/1").warmUpUri("/a/2")
+						.requestHandler("/a", new CountingHandler())
+						.requestHandler("/b", new CountingHandler())).listen()
+				.sync();
+
+		assertEquals(100, server.warmUpReport().requests());
+		assertEquals(100, counts.get("localhost/a").get());
+		assertNull(counts.get("localhost/b"));
+
+	}
+
+	@Test
+	public void testPrefill() throws Exception {
+
+		final AtomicInteger created = new AtomicInteger(0);
+
+		final ObjectPool<Object> pool =
+				new ObjectPool<Object>(4, new Callable<Object>() {
+					@Override
+					public Object call() throws Exception {
+						created.incrementAndGet();
+						return new Object();
+					}
+				});
+
+		assertEquals(2, pool.prefill(2));
+		assertEquals(2, pool.prefill(10));
+		assertEquals(4, created.get());
+
+		for (int i = 0; i < 4; i++) {
+			pool.poll();
+		}
+
+		assertNull(pool.poll());
+		assertEquals(4, created.get());
+
+		server = new HttpServer();
+
+	}
+
+	private class CountingHandler extends RequestHandlerBase {
+
+		@Override
+		public void onRequest(final ServerRequest request,
+				final ServerResponse response) throws IOException {
+
+			final String key =
+					request.getServerHost() + request.getUri().substring(0, 2);
+
+			counts.putIfAbsent(key, new AtomicInteger(0));
+			counts.get(key).incrementAndGet();
+
+			response.write("ok");
+
+		}
+
+	}
+
+}